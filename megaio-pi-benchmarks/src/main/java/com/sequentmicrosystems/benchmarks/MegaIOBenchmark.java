@@ -0,0 +1,321 @@
+package com.sequentmicrosystems.benchmarks;
+
+import com.sequentmicrosystems.MegaIOBatch;
+import com.sequentmicrosystems.MegaIOEmulator;
+import com.sequentmicrosystems.MegaIOImpl;
+import com.sequentmicrosystems.SleepingGpioWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static com.sequentmicrosystems.Constants.*;
+
+/**
+ * Measures every MegaIO operation against a MegaIOEmulator. Run the shaded jar to get throughput and
+ * latency percentiles, and add the gc profiler for allocations per operation:
+ * <pre>
+ *   java -jar megaio-pi-benchmarks/target/benchmarks.jar MegaIOBenchmark -prof gc
+ * </pre>
+ * The busKHz parameter sets the modelled bus clock; 0 removes the bus cost entirely, leaving only the cost of
+ * the library itself. The irqWriteDelay parameter sets the pause between interrupt mask accesses.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class MegaIOBenchmark
+{
+  // the fixed cost of an i2c ioctl on a Raspberry Pi, apart from the bytes on the wire
+  static final long TRANSACTION_NANOS = 50_000;
+
+  @Param( { "0", "100", "400" } )
+  public int busKHz;
+
+  @Param( { "10", "0" } )
+  public long irqWriteDelay;
+
+  MegaIOEmulator device;
+  MegaIOImpl mega;
+
+  private final int[] analog = new int[ADC_CH_NR_MAX];
+  private boolean on = false;
+  private int dac = 0;
+  private int irq = 0;
+  private MegaIOBatch scan;
+
+  /**
+   * @return a card on a modelled bus with the given clock, in kHz, or with no bus cost if 0
+   */
+  static MegaIOEmulator modelDevice( int busKHz )
+  {
+    MegaIOEmulator device = new MegaIOEmulator();
+    if (0 != busKHz)
+    {
+      device.setBusSpeed( busKHz, TRANSACTION_NANOS );
+    }
+    return device;
+  }
+
+  @Setup
+  public void setup()
+  {
+    device = modelDevice( busKHz );
+    mega = new MegaIOImpl( device, new SleepingGpioWrapper() );
+    mega.setIrqWriteDelay( irqWriteDelay );
+    scan = mega.batch();
+  }
+
+  private IrqState nextIrqState()
+  {
+    return IrqState.values()[irq++ & 0x03];
+  }
+
+  /* ------------- RELAYS  -------------- */
+
+  @Benchmark
+  public int readRelays()
+      throws IOException
+  {
+    return mega.readRelays();
+  }
+
+  @Benchmark
+  public boolean isRelayOn()
+      throws IOException
+  {
+    return mega.isRelayOn( 3 );
+  }
+
+  @Benchmark
+  public boolean triggerRelay()
+      throws IOException
+  {
+    on = !on;
+    return mega.triggerRelay( 3, on );
+  }
+
+  @Benchmark
+  public boolean writeRelays()
+      throws IOException
+  {
+    on = !on;
+    return mega.writeRelays( on ? 0xAA : 0x55 );
+  }
+
+  @Benchmark
+  public boolean updateRelays()
+      throws IOException
+  {
+    on = !on;
+    return on ? mega.updateRelays( 0x0F, 0 ) : mega.updateRelays( 0, 0x0F );
+  }
+
+  /* ------------- ADC/DAC  -------------- */
+
+  @Benchmark
+  public int readAnalog()
+      throws IOException
+  {
+    return mega.readAnalog( 4 );
+  }
+
+  @Benchmark
+  public int[] readAnalogAll()
+      throws IOException
+  {
+    mega.readAnalogAll( analog );
+    return analog;
+  }
+
+  @Benchmark
+  public int[] readAnalogEachChannel()
+      throws IOException
+  {
+    // the per-channel sweep that readAnalogAll replaces
+    for (int channel = 1; channel <= ADC_CH_NR_MAX; channel++)
+    {
+      analog[channel - 1] = mega.readAnalog( channel );
+    }
+    return analog;
+  }
+
+  @Benchmark
+  public int[] readAnalogRange()
+      throws IOException
+  {
+    mega.readAnalogRange( 3, 6, analog );
+    return analog;
+  }
+
+  @Benchmark
+  public boolean writeAnalog()
+      throws IOException
+  {
+    dac = (dac + 1) & ANALOG_VAL_MAX;
+    return mega.writeAnalog( dac );
+  }
+
+  /* ------------- GPIO pins  -------------- */
+
+  @Benchmark
+  public boolean isGpioPinOutput()
+      throws IOException
+  {
+    return mega.isGpioPinOutput( 2 );
+  }
+
+  @Benchmark
+  public boolean setGpioPinDirection()
+      throws IOException
+  {
+    on = !on;
+    return mega.setGpioPinDirection( 2, on );
+  }
+
+  @Benchmark
+  public boolean setGpioPin()
+      throws IOException
+  {
+    on = !on;
+    return mega.setGpioPin( 2, on );
+  }
+
+  @Benchmark
+  public boolean readGpioPin()
+      throws IOException
+  {
+    return mega.readGpioPin( 2 );
+  }
+
+  @Benchmark
+  public int readGpioPins()
+      throws IOException
+  {
+    return mega.readGpioPins();
+  }
+
+  @Benchmark
+  public int readIoIrqFlags()
+      throws IOException
+  {
+    return mega.readIoIrqFlags();
+  }
+
+  @Benchmark
+  public IrqState setIoIrq()
+      throws IOException
+  {
+    return mega.setIoIrq( 2, nextIrqState() );
+  }
+
+  @Benchmark
+  public void configureIoIrqs()
+      throws IOException
+  {
+    IrqState state = nextIrqState();
+    mega.configureIoIrqs( new IrqState[] { state, state, state, state, state, state } );
+  }
+
+  /* ------------- OPTICALLY ISOLATED PINS  -------------- */
+
+  @Benchmark
+  public boolean readOptoIn()
+      throws IOException
+  {
+    return mega.readOptoIn( 5 );
+  }
+
+  @Benchmark
+  public int readOptoIns()
+      throws IOException
+  {
+    return mega.readOptoIns();
+  }
+
+  @Benchmark
+  public int readOptoIrqFlags()
+      throws IOException
+  {
+    return mega.readOptoIrqFlags();
+  }
+
+  @Benchmark
+  public IrqState setOptoIrq()
+      throws IOException
+  {
+    return mega.setOptoIrq( 5, nextIrqState() );
+  }
+
+  @Benchmark
+  public void configureOptoIrqs()
+      throws IOException
+  {
+    IrqState state = nextIrqState();
+    mega.configureOptoIrqs( new IrqState[] { state, state, state, state, state, state, state, state } );
+  }
+
+  /* ------------- OPEN COLLECTOR PINS  -------------- */
+
+  @Benchmark
+  public boolean readOCPin()
+      throws IOException
+  {
+    return mega.readOCPin( 1 );
+  }
+
+  @Benchmark
+  public boolean setOCPin()
+      throws IOException
+  {
+    on = !on;
+    return mega.setOCPin( 1, on );
+  }
+
+  /* ------------- SCAN CYCLE  -------------- */
+
+  @Benchmark
+  public int scanCycleEachOperation()
+      throws IOException
+  {
+    // read every input, then set two relays, an open collector and the DAC, one call at a time
+    on = !on;
+    int inputs = mega.readOptoIns() + mega.readGpioPins();
+    mega.readAnalogAll( analog );
+    mega.triggerRelay( 1, on );
+    mega.triggerRelay( 2, !on );
+    mega.setOCPin( 1, on );
+    dac = (dac + 1) & ANALOG_VAL_MAX;
+    mega.writeAnalog( dac );
+    return inputs;
+  }
+
+  @Benchmark
+  public MegaIOBatch.Result scanCycleBatch()
+      throws IOException
+  {
+    on = !on;
+    dac = (dac + 1) & ANALOG_VAL_MAX;
+    return scan.clear()
+        .readOptoIns()
+        .readGpioPins()
+        .readAnalogAll()
+        .triggerRelay( 1, on )
+        .triggerRelay( 2, !on )
+        .setOCPin( 1, on )
+        .writeAnalog( dac )
+        .execute();
+  }
+}
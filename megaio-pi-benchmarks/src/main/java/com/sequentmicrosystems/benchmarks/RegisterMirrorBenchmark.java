@@ -0,0 +1,93 @@
+package com.sequentmicrosystems.benchmarks;
+
+import com.sequentmicrosystems.MegaIOBatch;
+import com.sequentmicrosystems.MegaIOImpl;
+import com.sequentmicrosystems.RegisterMirror;
+import com.sequentmicrosystems.RegisterMirrorReader;
+import com.sequentmicrosystems.SleepingGpioWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading a card's registers from a RegisterMirror, published every millisecond from a card on a
+ * 100 kHz bus, with reading them from the card itself. Run it with several threads to see that readers do not
+ * slow one another down:
+ * <pre>
+ *   java -jar megaio-pi-benchmarks/target/benchmarks.jar RegisterMirrorBenchmark -t 4
+ * </pre>
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class RegisterMirrorBenchmark
+{
+  @State( Scope.Thread )
+  public static class Reader
+  {
+    final RegisterMirrorReader.Snapshot snapshot = new RegisterMirrorReader.Snapshot();
+    MegaIOBatch direct;
+
+    @Setup
+    public void setup( RegisterMirrorBenchmark benchmark )
+    {
+      direct = benchmark.mega.batch().readRelays().readOptoIns().readOCPins().readGpioPins().readAnalogAll();
+    }
+  }
+
+  Path file;
+  RegisterMirror mirror;
+  RegisterMirrorReader reader;
+  MegaIOImpl mega;
+
+  @Setup
+  public void setup()
+      throws IOException
+  {
+    file = Files.createTempFile( "megaio", ".mirror" );
+    mega = new MegaIOImpl( MegaIOBenchmark.modelDevice( 100 ), new SleepingGpioWrapper() );
+    mirror = new RegisterMirror( file, 1, TimeUnit.MILLISECONDS );
+    mirror.addCard( 0, mega );
+    mirror.start();
+    reader = new RegisterMirrorReader( file );
+  }
+
+  @TearDown
+  public void teardown()
+      throws IOException
+  {
+    mirror.close();
+    Files.deleteIfExists( file );
+  }
+
+  @Benchmark
+  public int readMirror( Reader state )
+  {
+    reader.read( 0, state.snapshot );
+    return state.snapshot.getOptoIns() + state.snapshot.getAnalog( 1 );
+  }
+
+  @Benchmark
+  public int readCard( Reader state )
+      throws IOException
+  {
+    MegaIOBatch.Result result = state.direct.execute();
+    return result.getOptoIns() + result.getAnalog( 1 );
+  }
+}
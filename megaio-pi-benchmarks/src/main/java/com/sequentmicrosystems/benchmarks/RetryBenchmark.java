@@ -0,0 +1,84 @@
+package com.sequentmicrosystems.benchmarks;
+
+import com.sequentmicrosystems.MegaIOEmulator;
+import com.sequentmicrosystems.MegaIOImpl;
+import com.sequentmicrosystems.SleepingGpioWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static com.sequentmicrosystems.Constants.*;
+
+/**
+ * Measures the cost of an operation whose verify never succeeds, so that its retry loop runs to exhaustion: the
+ * price a caller pays for a card that acknowledges writes but does not act on them.
+ * <pre>
+ *   java -jar megaio-pi-benchmarks/target/benchmarks.jar RetryBenchmark
+ * </pre>
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.SampleTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2, time = 2 )
+@Measurement( iterations = 3, time = 2 )
+@Fork( 1 )
+public class RetryBenchmark
+{
+  @Param( { "0", "100" } )
+  public int busKHz;
+
+  MegaIOImpl mega;
+
+  private boolean on = false;
+
+  @Setup
+  public void setup()
+  {
+    MegaIOEmulator device = MegaIOBenchmark.modelDevice( busKHz );
+    // the relays and open collectors read back as off, whatever is written
+    device.setStuckBits( RELAY_MEM_ADD, 0, 0xFF );
+    device.setStuckBits( OC_OUT_VAL_MEM_ADD, 0, 0xFF );
+    mega = new MegaIOImpl( device, new SleepingGpioWrapper() );
+  }
+
+  @Benchmark
+  public boolean triggerRelayExhausted()
+      throws IOException
+  {
+    on = !on;
+    return mega.triggerRelay( 3, on );
+  }
+
+  @Benchmark
+  public boolean writeRelaysExhausted()
+      throws IOException
+  {
+    on = !on;
+    return mega.writeRelays( on ? 0xAA : 0x55 );
+  }
+
+  @Benchmark
+  public boolean setOCPinExhausted()
+  {
+    on = !on;
+    try
+    {
+      return mega.setOCPin( 1, on );
+    }
+    catch( IOException tooManyAttempts )
+    {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package com.sequentmicrosystems.benchmarks;
+
+import com.sequentmicrosystems.MegaIOImpl;
+import com.sequentmicrosystems.SignalConditioner;
+import com.sequentmicrosystems.SleepingGpioWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static com.sequentmicrosystems.Constants.*;
+
+/**
+ * Measures the SignalConditioner with every stage enabled on all eight channels. Run it with the gc profiler,
+ * whose gc.alloc.rate.norm should be 0 B/op for every benchmark:
+ * <pre>
+ *   java -jar megaio-pi-benchmarks/target/benchmarks.jar SignalConditionerBenchmark -prof gc
+ * </pre>
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class SignalConditionerBenchmark
+{
+  SignalConditioner conditioner;
+  MegaIOImpl mega;
+
+  private final int[] raw = new int[ADC_CH_NR_MAX];
+  private int step = 0;
+
+  @Setup
+  public void setup()
+  {
+    conditioner = new SignalConditioner();
+    for (int channel = 1; channel <= ADC_CH_NR_MAX; channel++)
+    {
+      conditioner.setOversampling( channel, 4 )
+          .setSpikeRejection( channel )
+          .setMedian( channel, 5 )
+          .setSmoothing( channel, 0.1 )
+          .setCalibration( channel, 4.0, 20.0 );
+    }
+    mega = new MegaIOImpl( MegaIOBenchmark.modelDevice( 0 ), new SleepingGpioWrapper() );
+  }
+
+  @Benchmark
+  public double acceptSweep()
+  {
+    step++;
+    for (int i = 0; i < ADC_CH_NR_MAX; i++)
+    {
+      raw[i] = 2000 + ((step * 31 + i * 7) & 0x3F);
+    }
+    conditioner.acceptAll( 1, raw, ADC_CH_NR_MAX );
+    return conditioner.getValue( 1 + (step & 0x07) );
+  }
+
+  @Benchmark
+  public double sampleCard()
+      throws IOException
+  {
+    // a bulk read from a card with no bus cost, then the whole pipeline
+    conditioner.sample( mega );
+    return conditioner.getValue( 1 );
+  }
+}
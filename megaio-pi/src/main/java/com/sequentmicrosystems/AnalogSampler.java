@@ -0,0 +1,417 @@
+package com.sequentmicrosystems;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
+
+import static com.sequentmicrosystems.Constants.*;
+
+/**
+ * Samples a set of analog channels at a fixed rate into a preallocated ring buffer of (time, channel, value)
+ * entries, which any number of consumers can read through their own Cursor.
+ * <p>
+ * Each sweep reads the span of channels from the lowest to the highest configured one in a single block read.
+ * Sweeps are scheduled against absolute deadlines, so a late sweep does not push the following ones back; if
+ * the sampler falls more than a whole period behind, the sweeps it cannot catch up are skipped and counted.
+ * Neither sampling nor reading through a cursor allocates.
+ * <p>
+ * The ring is written by the sampling thread alone and consumers never hold it up. A consumer that falls more
+ * than the ring's capacity behind loses the oldest entries, which are counted as overruns on its cursor.
+ */
+public class AnalogSampler
+    implements Closeable
+{
+  /**
+   * A consumer's position in the ring. Each call to next copies one entry into the cursor, where it can be read
+   * until the following call. A cursor must only be used by one thread at a time.
+   */
+  public class Cursor
+  {
+    private long position;
+    private long overruns = 0;
+
+    private long time;
+    private int channel;
+    private int value;
+
+    private Cursor( long position )
+    {
+      this.position = position;
+    }
+
+    /**
+     * Moves to the next entry, if one has been written.
+     *
+     * @return true if the cursor holds a new entry, false if it has caught up with the sampler
+     */
+    public boolean next()
+    {
+      while (true)
+      {
+        long stamp = ringLock.tryOptimisticRead();
+        long written = published;
+        if (position >= written)
+        {
+          return false;
+        }
+        long from = Math.max( position, written - capacity );
+
+        int index = (int) (from & mask);
+        long entryTime = times[index];
+        int entryChannel = channels[index];
+        int entryValue = values[index];
+
+        // If a sweep was written while we were copying, the entry may be torn; try again.
+        if (!ringLock.validate( stamp ))
+        {
+          Thread.yield();
+          continue;
+        }
+        overruns += from - position;
+        position = from + 1;
+        time = entryTime;
+        channel = entryChannel;
+        value = entryValue;
+        return true;
+      }
+    }
+
+    /**
+     * @return the System.nanoTime() at which the sweep holding this entry started
+     */
+    public long time()
+    {
+      return time;
+    }
+
+    /**
+     * @return the analog channel of this entry, from 1 to 8
+     */
+    public int channel()
+    {
+      return channel;
+    }
+
+    /**
+     * @return the 12-bit value of this entry, from 0 to 4095
+     */
+    public int value()
+    {
+      return value;
+    }
+
+    /**
+     * @return the number of entries this cursor has lost because the sampler overwrote them before they were read
+     */
+    public long getOverruns()
+    {
+      return overruns;
+    }
+
+    /**
+     * @return the number of entries written but not yet read through this cursor, which may exceed the capacity
+     */
+    public long getBacklog()
+    {
+      return published - position;
+    }
+  }
+
+  private final MegaIO card;
+  private final int[] sampledChannels;
+  private final int firstChannel;
+  private final int lastChannel;
+  private final int[] sweep;
+  private final long periodNanos;
+
+  private final int capacity;
+  private final long mask;
+  private final long[] times;
+  private final byte[] channels;
+  private final short[] values;
+  private volatile long published = 0;
+  // Used as a sequence lock: the sampler write-locks it for each sweep, cursors read optimistically.
+  private final StampedLock ringLock = new StampedLock();
+
+  private final AtomicLong sweeps = new AtomicLong();
+  private final AtomicLong skippedSweeps = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private volatile IOException lastError = null;
+  private final AtomicLong totalLatenessNanos = new AtomicLong();
+  private final AtomicLong maxLatenessNanos = new AtomicLong();
+  private final LatencyHistogram jitter = new LatencyHistogram();
+  private volatile long startTime;
+
+  private volatile boolean running = false;
+  private Thread sampler = null;
+
+  /**
+   * @param card the card to sample
+   * @param ratePerSecond the number of sweeps of all configured channels per second
+   * @param ringCapacity the number of entries the ring holds, rounded up to a power of two
+   * @param analogChannels the channels to sample, from 1 to 8
+   */
+  public AnalogSampler( MegaIO card, double ratePerSecond, int ringCapacity, int... analogChannels )
+  {
+    if (!(ratePerSecond > 0))
+    {
+      throw new IllegalArgumentException( "Invalid sweep rate " + ratePerSecond );
+    }
+    if (0 == analogChannels.length)
+    {
+      throw new IllegalArgumentException( "No analog channels to sample" );
+    }
+    int first = ADC_CH_NR_MAX;
+    int last = CHANNEL_NR_MIN;
+    for (int channel : analogChannels)
+    {
+      if (channel < CHANNEL_NR_MIN || channel > ADC_CH_NR_MAX)
+      {
+        throw new IllegalArgumentException( "Invalid analog channel " + channel );
+      }
+      first = Math.min( first, channel );
+      last = Math.max( last, channel );
+    }
+
+    this.card = card;
+    this.sampledChannels = analogChannels.clone();
+    this.firstChannel = first;
+    this.lastChannel = last;
+    this.sweep = new int[last - first + 1];
+    this.periodNanos = (long) (1_000_000_000L / ratePerSecond);
+
+    int size = 1;
+    while (size < Math.max( ringCapacity, analogChannels.length ))
+    {
+      size <<= 1;
+    }
+    this.capacity = size;
+    this.mask = size - 1;
+    this.times = new long[size];
+    this.channels = new byte[size];
+    this.values = new short[size];
+  }
+
+  /**
+   * @return a cursor positioned at the oldest entry still in the ring
+   */
+  public Cursor oldest()
+  {
+    return new Cursor( Math.max( 0, published - capacity ));
+  }
+
+  /**
+   * @return a cursor that will see only entries written from now on
+   */
+  public Cursor latest()
+  {
+    return new Cursor( published );
+  }
+
+  /**
+   * Starts sampling on a thread of the sampler's own.
+   */
+  public synchronized void start()
+  {
+    if (running)
+    {
+      return;
+    }
+    running = true;
+    sampler = new Thread( this::run, "megaio-adc-sampler" );
+    sampler.setDaemon( true );
+    sampler.start();
+  }
+
+  private void run()
+  {
+    startTime = System.nanoTime();
+    long deadline = startTime;
+    long previousStart = 0;
+    long previousDeadline = 0;
+    while (running)
+    {
+      long now = System.nanoTime();
+      while (now < deadline)
+      {
+        LockSupport.parkNanos( this, deadline - now );
+        if (!running)
+        {
+          return;
+        }
+        now = System.nanoTime();
+      }
+
+      long lateness = now - deadline;
+      totalLatenessNanos.addAndGet( lateness );
+      if (lateness > maxLatenessNanos.get())
+      {
+        maxLatenessNanos.set( lateness );
+      }
+      if (0 != previousStart)
+      {
+        // how far the interval since the last sweep strayed from the one scheduled, a period unless some were skipped
+        jitter.record( Math.abs( (now - previousStart) - (deadline - previousDeadline) ));
+      }
+      previousStart = now;
+      previousDeadline = deadline;
+      sweep( now );
+
+      deadline += periodNanos;
+      long behind = System.nanoTime() - deadline;
+      if (behind > periodNanos)
+      {
+        long missed = behind / periodNanos;
+        skippedSweeps.addAndGet( missed );
+        deadline += missed * periodNanos;
+      }
+    }
+  }
+
+  /**
+   * Reads every configured channel once and appends the values to the ring. Called by the sampling thread; a
+   * sampler that has not been started may be swept directly, from one thread only.
+   *
+   * @param timestamp the System.nanoTime() to record against the values
+   * @return true if the channels were read, false if the read failed
+   */
+  public boolean sweep( long timestamp )
+  {
+    try
+    {
+      card.readAnalogRange( firstChannel, lastChannel, sweep );
+    }
+    catch( IOException ioex )
+    {
+      errors.incrementAndGet();
+      lastError = ioex;
+      return false;
+    }
+
+    long stamp = ringLock.writeLock();
+    try
+    {
+      long position = published;
+      for (int channel : sampledChannels)
+      {
+        int index = (int) (position & mask);
+        times[index] = timestamp;
+        channels[index] = (byte) channel;
+        values[index] = (short) sweep[channel - firstChannel];
+        position++;
+      }
+      published = position;
+    }
+    finally
+    {
+      ringLock.unlockWrite( stamp );
+    }
+    sweeps.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * @return the number of entries written to the ring since the sampler was created
+   */
+  public long getWritten()
+  {
+    return published;
+  }
+
+  public int getCapacity()
+  {
+    return capacity;
+  }
+
+  /**
+   * @return the number of sweeps completed
+   */
+  public long getSweeps()
+  {
+    return sweeps.get();
+  }
+
+  /**
+   * @return the number of sweeps skipped because the sampler fell more than a period behind schedule
+   */
+  public long getSkippedSweeps()
+  {
+    return skippedSweeps.get();
+  }
+
+  /**
+   * @return the number of sweeps that failed because the channels could not be read
+   */
+  public long getErrors()
+  {
+    return errors.get();
+  }
+
+  /**
+   * @return the most recent exception thrown by a sweep, or null if there has been none
+   */
+  public IOException getLastError()
+  {
+    return lastError;
+  }
+
+  /**
+   * @return the number of sweeps per second achieved since the sampler was started
+   */
+  public double getAchievedRate()
+  {
+    long elapsed = System.nanoTime() - startTime;
+    return 0 == startTime || elapsed <= 0 ? 0 : sweeps.get() * 1e9 / elapsed;
+  }
+
+  /**
+   * @return the mean time, in nanoseconds, by which sweeps started after their scheduled time
+   */
+  public long getMeanLatenessNanos()
+  {
+    long count = sweeps.get() + errors.get();
+    return 0 == count ? 0 : totalLatenessNanos.get() / count;
+  }
+
+  /**
+   * @return the longest time, in nanoseconds, by which a sweep started after its scheduled time
+   */
+  public long getMaxLatenessNanos()
+  {
+    return maxLatenessNanos.get();
+  }
+
+  /**
+   * @return the time, in nanoseconds, by which the interval between the starts of consecutive sweeps differed
+   *         from the scheduled interval, either way
+   */
+  public LatencyHistogram getJitter()
+  {
+    return jitter;
+  }
+
+  /**
+   * Stops sampling. The ring and its entries remain readable.
+   */
+  @Override
+  public synchronized void close()
+  {
+    if (!running)
+    {
+      return;
+    }
+    running = false;
+    LockSupport.unpark( sampler );
+    try
+    {
+      sampler.join();
+    }
+    catch( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+    }
+    sampler = null;
+  }
+}
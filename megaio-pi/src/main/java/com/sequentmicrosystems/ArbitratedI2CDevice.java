@@ -0,0 +1,259 @@
+package com.sequentmicrosystems;
+
+import com.pi4j.io.i2c.I2CDevice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import static com.sequentmicrosystems.Constants.*;
+
+/**
+ * An I2CDevice for one MegaIO card which waits for the I2CBusArbiter to grant it the bus before every
+ * transaction.
+ */
+public class ArbitratedI2CDevice implements I2CDevice
+{
+  private final I2CBusArbiter arbiter;
+  private final int cardNum;
+  private final I2CDevice device;
+
+  ArbitratedI2CDevice( I2CBusArbiter arbiter, int cardNum, I2CDevice device )
+  {
+    this.arbiter = arbiter;
+    this.cardNum = cardNum;
+    this.device = device;
+  }
+
+  public int getCardNum()
+  {
+    return cardNum;
+  }
+
+  /**
+   * Runs a sequence of transactions on this device without another thread's transactions being interleaved.
+   *
+   * @see I2CBusArbiter#exclusive
+   */
+  public <T> T exclusive( I2CBusArbiter.Priority priority, I2CBusArbiter.BusOperation<T> operation )
+      throws IOException
+  {
+    return arbiter.exclusive( cardNum, priority, operation );
+  }
+
+  private static I2CBusArbiter.Priority writePriority( int address )
+  {
+    switch (address)
+    {
+      case RELAY_MEM_ADD:
+      case RELAY_ON_MEM_ADD:
+      case RELAY_OFF_MEM_ADD:
+      case OC_OUT_VAL_MEM_ADD:
+      case OC_OUT_SET_MEM_ADD:
+      case OC_OUT_CLR_MEM_ADD:
+        return I2CBusArbiter.Priority.CRITICAL;
+
+      default:
+        return I2CBusArbiter.Priority.NORMAL;
+    }
+  }
+
+  private static I2CBusArbiter.Priority readPriority( int size )
+  {
+    return size > 2 ? I2CBusArbiter.Priority.BULK : I2CBusArbiter.Priority.NORMAL;
+  }
+
+  @Override
+  public int getAddress()
+  {
+    return device.getAddress();
+  }
+
+  @Override
+  public void write( byte b )
+      throws IOException
+  {
+    arbiter.acquire( cardNum, I2CBusArbiter.Priority.NORMAL );
+    try
+    {
+      device.write( b );
+    }
+    finally
+    {
+      arbiter.release();
+    }
+  }
+
+  @Override
+  public void write( byte[] buffer, int offset, int size )
+      throws IOException
+  {
+    arbiter.acquire( cardNum, I2CBusArbiter.Priority.NORMAL );
+    try
+    {
+      device.write( buffer, offset, size );
+    }
+    finally
+    {
+      arbiter.release();
+    }
+  }
+
+  @Override
+  public void write( byte[] buffer )
+      throws IOException
+  {
+    write( buffer, 0, buffer.length );
+  }
+
+  @Override
+  public void write( int address, byte b )
+      throws IOException
+  {
+    arbiter.acquire( cardNum, writePriority( address ));
+    try
+    {
+      device.write( address, b );
+    }
+    finally
+    {
+      arbiter.release();
+    }
+  }
+
+  @Override
+  public void write( int address, byte[] buffer, int offset, int size )
+      throws IOException
+  {
+    arbiter.acquire( cardNum, writePriority( address ));
+    try
+    {
+      device.write( address, buffer, offset, size );
+    }
+    finally
+    {
+      arbiter.release();
+    }
+  }
+
+  @Override
+  public void write( int address, byte[] buffer )
+      throws IOException
+  {
+    arbiter.acquire( cardNum, writePriority( address ));
+    try
+    {
+      device.write( address, buffer );
+    }
+    finally
+    {
+      arbiter.release();
+    }
+  }
+
+  @Override
+  public int read()
+      throws IOException
+  {
+    arbiter.acquire( cardNum, I2CBusArbiter.Priority.NORMAL );
+    try
+    {
+      return device.read();
+    }
+    finally
+    {
+      arbiter.release();
+    }
+  }
+
+  @Override
+  public int read( byte[] buffer, int offset, int size )
+      throws IOException
+  {
+    arbiter.acquire( cardNum, readPriority( size ));
+    try
+    {
+      return device.read( buffer, offset, size );
+    }
+    finally
+    {
+      arbiter.release();
+    }
+  }
+
+  @Override
+  public int read( int address )
+      throws IOException
+  {
+    arbiter.acquire( cardNum, I2CBusArbiter.Priority.NORMAL );
+    try
+    {
+      return device.read( address );
+    }
+    finally
+    {
+      arbiter.release();
+    }
+  }
+
+  @Override
+  public int read( int address, byte[] buffer, int offset, int size )
+      throws IOException
+  {
+    arbiter.acquire( cardNum, readPriority( size ));
+    try
+    {
+      return device.read( address, buffer, offset, size );
+    }
+    finally
+    {
+      arbiter.release();
+    }
+  }
+
+  @Override
+  public int read( byte[] writeBuffer, int writeOffset, int writeSize, byte[] readBuffer, int readOffset,
+                   int readSize )
+      throws IOException
+  {
+    arbiter.acquire( cardNum, readPriority( readSize ));
+    try
+    {
+      return device.read( writeBuffer, writeOffset, writeSize, readBuffer, readOffset, readSize );
+    }
+    finally
+    {
+      arbiter.release();
+    }
+  }
+
+  @Override
+  public void ioctl( long command, int value )
+      throws IOException
+  {
+    arbiter.acquire( cardNum, I2CBusArbiter.Priority.NORMAL );
+    try
+    {
+      device.ioctl( command, value );
+    }
+    finally
+    {
+      arbiter.release();
+    }
+  }
+
+  @Override
+  public void ioctl( long command, ByteBuffer data, IntBuffer offsets )
+      throws IOException
+  {
+    arbiter.acquire( cardNum, I2CBusArbiter.Priority.NORMAL );
+    try
+    {
+      device.ioctl( command, data, offsets );
+    }
+    finally
+    {
+      arbiter.release();
+    }
+  }
+}
@@ -0,0 +1,584 @@
+package com.sequentmicrosystems;
+
+import com.sequentmicrosystems.MegaIOMetrics.Operation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.sequentmicrosystems.Constants.*;
+
+/**
+ * A non-blocking facade over a MegaIOImpl. Every operation returns at once with a CompletableFuture, and the i2c
+ * transactions behind it run on an executor. The retries of triggerRelay, writeAnalog and setOCPin, and the
+ * pause between the two masks of an interrupt setting, are scheduled rather than slept, so no thread is held
+ * while the card settles. Retries follow the card's RetryPolicy, and a CircuitOpenException from the card's
+ * circuit breaker fails an operation at once. They are recorded in the card's MegaIOMetrics, retries, i2c errors
+ * and all, as its blocking operations are. Those operations take the card's lock for the group of registers
+ * they change, as its blocking operations do, and hold it until they complete, so neither kind can lose the
+ * other's updates.
+ * <p>
+ * Operations that fail with an IOException complete their future exceptionally with that IOException.
+ */
+public class AsyncMegaIO
+    implements Closeable
+{
+  /**
+   * An operation on the card which may fail with an IOException.
+   */
+  private interface CardOperation<T>
+  {
+    T run()
+        throws IOException;
+  }
+
+  private final MegaIOImpl card;
+  private final Executor executor;
+  private final ScheduledExecutorService scheduler;
+  private final boolean ownScheduler;
+  // operations with a step waiting on the scheduler, failed by close so that they release their locks
+  private final Set<CompletableFuture<?>> waiting = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Creates a facade whose i2c transactions run on the given executor, with delays timed by a scheduler thread
+   * of its own, which is shut down by close.
+   *
+   * @param card the card to operate
+   * @param executor runs the card's i2c transactions; see boundedExecutor and virtualThreadExecutor
+   */
+  public AsyncMegaIO( MegaIOImpl card, Executor executor )
+  {
+    this( card, executor, newScheduler(), true );
+  }
+
+  /**
+   * @param card the card to operate
+   * @param executor runs the card's i2c transactions; see boundedExecutor and virtualThreadExecutor
+   * @param scheduler times the delays between steps; it is never given i2c transactions to run
+   */
+  public AsyncMegaIO( MegaIOImpl card, Executor executor, ScheduledExecutorService scheduler )
+  {
+    this( card, executor, scheduler, false );
+  }
+
+  private AsyncMegaIO( MegaIOImpl card, Executor executor, ScheduledExecutorService scheduler,
+                       boolean ownScheduler )
+  {
+    this.card = card;
+    this.executor = executor;
+    this.scheduler = scheduler;
+    this.ownScheduler = ownScheduler;
+  }
+
+  private static ScheduledExecutorService newScheduler()
+  {
+    ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor( 1, daemonThreads( "megaio-async-timer" ));
+    scheduler.setRemoveOnCancelPolicy( true );
+    return scheduler;
+  }
+
+  private static ThreadFactory daemonThreads( String name )
+  {
+    AtomicInteger count = new AtomicInteger();
+    return runnable ->
+    {
+      Thread thread = new Thread( runnable, name + "-" + count.incrementAndGet() );
+      thread.setDaemon( true );
+      return thread;
+    };
+  }
+
+  /**
+   * Creates an executor with a fixed number of threads and a bounded queue. Operations submitted while the
+   * queue is full complete exceptionally with a RejectedExecutionException.
+   *
+   * @param threads the number of threads running i2c transactions
+   * @param queueCapacity the number of operations that may wait for a thread
+   */
+  public static ExecutorService boundedExecutor( int threads, int queueCapacity )
+  {
+    return new ThreadPoolExecutor( threads, threads, 0, TimeUnit.MILLISECONDS,
+                                   new ArrayBlockingQueue<>( queueCapacity ), daemonThreads( "megaio-async" ));
+  }
+
+  /**
+   * Creates an executor that runs each operation on a virtual thread of its own when the JVM supports them, or
+   * else a bounded executor.
+   *
+   * @param threads the number of threads of the bounded executor used when virtual threads are not available
+   * @param queueCapacity the queue capacity of that bounded executor
+   */
+  public static ExecutorService virtualThreadExecutor( int threads, int queueCapacity )
+  {
+    try
+    {
+      return (ExecutorService) Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+    }
+    catch( ReflectiveOperationException e )
+    {
+      return boundedExecutor( threads, queueCapacity );
+    }
+  }
+
+  /**
+   * Shuts down the scheduler, if this facade created it, failing the operations waiting on it. The executor
+   * belongs to the caller and is left running.
+   */
+  @Override
+  public void close()
+  {
+    if (ownScheduler)
+    {
+      scheduler.shutdownNow();
+      for (CompletableFuture<?> result : waiting)
+      {
+        result.completeExceptionally( new IOException( "AsyncMegaIO closed" ));
+      }
+      waiting.clear();
+    }
+  }
+
+  /* ------------- PLUMBING  -------------- */
+
+  private <T> CompletableFuture<T> submit( CardOperation<T> operation )
+  {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    run( result, () ->
+    {
+      try
+      {
+        result.complete( operation.run() );
+      }
+      catch( IOException | RuntimeException e )
+      {
+        result.completeExceptionally( e );
+      }
+    } );
+    return result;
+  }
+
+  /**
+   * Runs a step of an operation on the executor, failing the operation if the executor will not take it.
+   */
+  private void run( CompletableFuture<?> result, Runnable step )
+  {
+    try
+    {
+      executor.execute( step );
+    }
+    catch( RejectedExecutionException e )
+    {
+      result.completeExceptionally( e );
+    }
+  }
+
+  /**
+   * Runs a step of an operation on the executor once a delay has passed.
+   */
+  private void later( long millis, CompletableFuture<?> result, Runnable step )
+  {
+    if (millis <= 0)
+    {
+      run( result, step );
+      return;
+    }
+    try
+    {
+      waiting.add( result );
+      scheduler.schedule( () ->
+      {
+        waiting.remove( result );
+        run( result, step );
+      }, millis, TimeUnit.MILLISECONDS );
+    }
+    catch( RejectedExecutionException e )
+    {
+      waiting.remove( result );
+      result.completeExceptionally( e );
+    }
+  }
+
+  /**
+   * Starts an operation once it holds the lock of the card's group of registers it changes, as the card's own
+   * operations do, and releases the lock when the operation completes. The lock is held through the scheduled
+   * pauses, so no other operation on the group, blocking or not, can come between the steps.
+   */
+  private <T> CompletableFuture<T> locked( int register, CompletableFuture<T> result, Runnable start )
+  {
+    GroupLock lock = card.lockOf( register );
+    lock.lock( () ->
+    {
+      result.whenComplete( (value, error) -> lock.unlock() );
+      run( result, start );
+    } );
+    return result;
+  }
+
+  /**
+   * Makes attempts at an operation that writes to the card and reads back what it wrote, under the card's retry
+   * policy, with the waits between attempts scheduled.
+   *
+   * @param operation the operation to record in the card's metrics
+   * @param start the start of the operation, from the card's begin()
+   * @param attempt returns true once the card holds what was written
+   * @param took the value to complete the result with once an attempt takes
+   * @param gaveUp completes the result when the policy gives up after an attempt that did not fail on the bus
+   * @param attempts the number of attempts already made
+   * @param began the System.nanoTime() at which the first attempt began
+   */
+  private <T> void retry( CompletableFuture<T> result, Operation operation, long start,
+                          CardOperation<Boolean> attempt, T took, Runnable gaveUp, int attempts, long began )
+  {
+    IOException failure = null;
+    try
+    {
+      if (attempt.run())
+      {
+        card.end( operation, start, attempts, false );
+        result.complete( took );
+        return;
+      }
+    }
+    catch( CircuitOpenException open )
+    {
+      card.end( operation, start, attempts, true );
+      result.completeExceptionally( open );
+      return;
+    }
+    catch( IOException ioex )
+    {
+      card.i2cError( operation );
+      failure = ioex;
+    }
+    catch( RuntimeException e )
+    {
+      result.completeExceptionally( e );
+      return;
+    }
+
+    long wait = card.getRetryPolicy().nextDelay( attempts + 1, System.nanoTime() - began );
+    if (wait < 0)
+    {
+      // we've tried too many times, give up
+      card.end( operation, start, attempts, true );
+      if (null != failure)
+      {
+        result.completeExceptionally( failure );
+      }
+      else
+      {
+        gaveUp.run();
+      }
+      return;
+    }
+    // give other operations a turn on the executor before trying again
+    later( wait, result, () -> retry( result, operation, start, attempt, took, gaveUp, attempts + 1, began ));
+  }
+
+  /**
+   * Joins a future, unwrapping an IOException that completed it. For callers who must block after all.
+   */
+  public static <T> T await( CompletableFuture<T> future )
+      throws IOException
+  {
+    try
+    {
+      return future.join();
+    }
+    catch( CompletionException e )
+    {
+      if (e.getCause() instanceof IOException)
+      {
+        throw (IOException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /* ------------- RELAYS  -------------- */
+
+  public CompletableFuture<Integer> readRelays()
+  {
+    return submit( card::readRelays );
+  }
+
+  public CompletableFuture<Boolean> isRelayOn( int relayNumber )
+  {
+    return submit( () -> card.isRelayOn( relayNumber ));
+  }
+
+  /**
+   * @see MegaIO#triggerRelay(int, boolean)
+   */
+  public CompletableFuture<Boolean> triggerRelay( int relayNumber, boolean on )
+  {
+    CompletableFuture<Boolean> result = new CompletableFuture<>();
+    long began = System.nanoTime();
+    long start = card.begin();
+    return locked( RELAY_MEM_ADD, result, () -> triggerRelay( relayNumber, on, 0, began, start, null, result ));
+  }
+
+  /**
+   * Checks a relay and, if it is not yet as wanted, writes the command and checks again once it has settled.
+   *
+   * @param attempts the number of commands already written
+   * @param start the start of the operation, from the card's begin()
+   * @param failure the failure of the last command, if it failed on the bus
+   */
+  private void triggerRelay( int relayNumber, boolean on, int attempts, long began, long start,
+                             IOException failure, CompletableFuture<Boolean> result )
+  {
+    int retries = Math.max( 0, attempts - 1 );
+    try
+    {
+      if (on == card.readPin( RELAY_MEM_ADD, relayNumber ))
+      {
+        card.end( Operation.TRIGGER_RELAY, start, retries, false );
+        result.complete( true );
+        return;
+      }
+    }
+    catch( IOException ioex )
+    {
+      card.i2cError( Operation.TRIGGER_RELAY, ioex );
+      card.end( Operation.TRIGGER_RELAY, start, retries, true );
+      result.completeExceptionally( ioex );
+      return;
+    }
+    catch( RuntimeException e )
+    {
+      result.completeExceptionally( e );
+      return;
+    }
+
+    long wait = 0;
+    if (attempts > 0)
+    {
+      wait = card.getRetryPolicy().nextDelay( attempts, System.nanoTime() - began );
+      if (wait < 0)
+      {
+        // we've tried too many times, give up
+        card.end( Operation.TRIGGER_RELAY, start, retries, true );
+        if (null != failure)
+        {
+          result.completeExceptionally( failure );
+        }
+        else
+        {
+          result.complete( false );
+        }
+        return;
+      }
+    }
+
+    Runnable write = () ->
+    {
+      IOException writeFailure = null;
+      try
+      {
+        card.writeRegister( on ? RELAY_ON_MEM_ADD : RELAY_OFF_MEM_ADD, relayNumber & 0xFF );
+      }
+      catch( CircuitOpenException open )
+      {
+        card.end( Operation.TRIGGER_RELAY, start, attempts, true );
+        result.completeExceptionally( open );
+        return;
+      }
+      catch( IOException ioex )
+      {
+        card.i2cError( Operation.TRIGGER_RELAY );
+        writeFailure = ioex;
+      }
+      catch( RuntimeException e )
+      {
+        result.completeExceptionally( e );
+        return;
+      }
+      IOException last = writeFailure;
+      later( MegaIOImpl.RELAY_RETRY_DELAY, result,
+             () -> triggerRelay( relayNumber, on, attempts + 1, began, start, last, result ));
+    };
+    if (wait > 0)
+    {
+      later( wait, result, write );
+    }
+    else
+    {
+      write.run();
+    }
+  }
+
+  public CompletableFuture<Boolean> writeRelays( int mask )
+  {
+    return submit( () -> card.writeRelays( mask ));
+  }
+
+  public CompletableFuture<Boolean> updateRelays( int setMask, int clearMask )
+  {
+    return submit( () -> card.updateRelays( setMask, clearMask ));
+  }
+
+  /* ------------- ADC/DAC  -------------- */
+
+  public CompletableFuture<Integer> readAnalog( int channel )
+  {
+    return submit( () -> card.readAnalog( channel ));
+  }
+
+  /**
+   * @return a new array holding the values of all eight analog channels
+   */
+  public CompletableFuture<int[]> readAnalogAll()
+  {
+    return submit( () ->
+    {
+      int[] values = new int[ADC_CH_NR_MAX];
+      card.readAnalogAll( values );
+      return values;
+    } );
+  }
+
+  /**
+   * @see MegaIO#writeAnalog(int)
+   */
+  public CompletableFuture<Boolean> writeAnalog( int analogValue )
+  {
+    CompletableFuture<Boolean> result = new CompletableFuture<>();
+    byte[] byteStreamFromInteger = new byte[2];
+    byteStreamFromInteger[1] = (byte) (analogValue & 0xFF);
+    byteStreamFromInteger[0] = (byte) ((analogValue >> 8) & 0xF);
+    byte[] readBack = new byte[2];
+    CardOperation<Boolean> attempt = () ->
+    {
+      card.writeBlock( DAC_VAL_H_MEM_ADD, byteStreamFromInteger );
+      card.verifyBlock( DAC_VAL_H_MEM_ADD, readBack, 0, 2 );
+      return analogValue == ((readBack[0] << 8) | (readBack[1] & 0xFF));
+    };
+    long began = System.nanoTime();
+    long start = card.begin();
+    return locked( DAC_VAL_H_MEM_ADD, result, () -> retry( result, Operation.WRITE_ANALOG, start, attempt, true,
+                                                           () -> result.complete( false ), 0, began ));
+  }
+
+  /* ------------- GPIO pins  -------------- */
+
+  public CompletableFuture<Boolean> isGpioPinOutput( int gpioPinNumber )
+  {
+    return submit( () -> card.isGpioPinOutput( gpioPinNumber ));
+  }
+
+  public CompletableFuture<Boolean> setGpioPinDirection( int gpioPinNumber, boolean output )
+  {
+    return submit( () -> card.setGpioPinDirection( gpioPinNumber, output ));
+  }
+
+  public CompletableFuture<Boolean> setGpioPin( int gpioPinNumber, boolean on )
+  {
+    return submit( () -> card.setGpioPin( gpioPinNumber, on ));
+  }
+
+  public CompletableFuture<Boolean> readGpioPin( int gpioPinNumber )
+  {
+    return submit( () -> card.readGpioPin( gpioPinNumber ));
+  }
+
+  public CompletableFuture<IrqState> setIoIrq( int gpioPinNumber, IrqState state )
+  {
+    return setIrq( gpioPinNumber, state, GPIO_EXT_IT_RISING_MEM_ADD, GPIO_EXT_IT_FALLING_MEM_ADD );
+  }
+
+  /* ------------- OPTICALLY ISOLATED PINS  -------------- */
+
+  public CompletableFuture<Boolean> readOptoIn( int optoPinNumber )
+  {
+    return submit( () -> card.readOptoIn( optoPinNumber ));
+  }
+
+  public CompletableFuture<IrqState> setOptoIrq( int optoPinNumber, IrqState state )
+  {
+    return setIrq( optoPinNumber, state, OPTO_IT_RISING_MEM_ADD, OPTO_IT_FALLING_MEM_ADD );
+  }
+
+  /**
+   * Sets an interrupt mask in the same steps as MegaIOImpl, with the same pause between them and under the same
+   * lock, but without holding a thread through the pause.
+   */
+  private CompletableFuture<IrqState> setIrq( int pinNumber, IrqState state, int risingMemAddr,
+                                              int fallingMemAddr )
+  {
+    CompletableFuture<IrqState> result = new CompletableFuture<>();
+    int bitMask = 0x01 << (pinNumber - 1);
+    long start = card.begin();
+    return locked( risingMemAddr, result, () -> step( result, start, () ->
+    {
+      card.updateMask( risingMemAddr, bitMask, MegaIOImpl.risingMask( 0, bitMask, state ));
+      later( card.getIrqWriteDelay(), result, () -> step( result, start, () ->
+      {
+        card.updateMask( fallingMemAddr, bitMask, MegaIOImpl.fallingMask( 0, bitMask, state ));
+        card.end( Operation.CONFIGURE_IRQS, start, 0, false );
+        result.complete( state );
+        return null;
+      } ));
+      return null;
+    } ));
+  }
+
+  /**
+   * Runs one step of setting an interrupt mask, failing the operation if the step throws.
+   */
+  private void step( CompletableFuture<?> result, long start, CardOperation<Void> step )
+  {
+    try
+    {
+      step.run();
+    }
+    catch( IOException ioex )
+    {
+      card.i2cError( Operation.CONFIGURE_IRQS, ioex );
+      card.end( Operation.CONFIGURE_IRQS, start, 0, true );
+      result.completeExceptionally( ioex );
+    }
+    catch( RuntimeException e )
+    {
+      result.completeExceptionally( e );
+    }
+  }
+
+  /* ------------- OPEN COLLECTOR PINS  -------------- */
+
+  public CompletableFuture<Boolean> readOCPin( int ocPinNumber )
+  {
+    return submit( () -> card.readOCPin( ocPinNumber ));
+  }
+
+  /**
+   * @see MegaIO#setOCPin(int, boolean)
+   */
+  public CompletableFuture<Boolean> setOCPin( int ocPinNumber, boolean on )
+  {
+    CompletableFuture<Boolean> result = new CompletableFuture<>();
+    CardOperation<Boolean> attempt = () ->
+    {
+      card.writeRegister( on ? OC_OUT_SET_MEM_ADD : OC_OUT_CLR_MEM_ADD, ocPinNumber & 0xff );
+      return on == card.readPin( OC_OUT_VAL_MEM_ADD, ocPinNumber );
+    };
+    long began = System.nanoTime();
+    long start = card.begin();
+    return locked( OC_OUT_VAL_MEM_ADD, result, () -> retry( result, Operation.SET_OC_PIN, start, attempt, on,
+        () -> result.completeExceptionally( new IOException( "Too many attempts" )), 0, began ));
+  }
+}
@@ -0,0 +1,97 @@
+package com.sequentmicrosystems;
+
+/**
+ * A change in one register of a MegaIO card, found by a ChangePoller.
+ */
+public class ChangeEvent
+{
+  public enum Register
+  {
+    RELAYS,
+    OPTO,
+    OC,
+    GPIO;
+  }
+
+  private final int card;
+  private final Register register;
+  private final int previous;
+  private final int current;
+  private final long timestamp;
+
+  public ChangeEvent( int card, Register register, int previous, int current, long timestamp )
+  {
+    this.card = card;
+    this.register = register;
+    this.previous = previous;
+    this.current = current;
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * @return the number of the card whose register changed, from 0
+   */
+  public int getCard()
+  {
+    return card;
+  }
+
+  public Register getRegister()
+  {
+    return register;
+  }
+
+  /**
+   * @return the value of the register at the previous poll, bit 0 being channel 1
+   */
+  public int getPrevious()
+  {
+    return previous;
+  }
+
+  /**
+   * @return the value of the register now, bit 0 being channel 1
+   */
+  public int getCurrent()
+  {
+    return current;
+  }
+
+  /**
+   * @return a bit set for each channel that changed
+   */
+  public int getChanged()
+  {
+    return previous ^ current;
+  }
+
+  /**
+   * @return a bit set for each channel that went from 0 to 1
+   */
+  public int getRising()
+  {
+    return getChanged() & current;
+  }
+
+  /**
+   * @return a bit set for each channel that went from 1 to 0
+   */
+  public int getFalling()
+  {
+    return getChanged() & previous;
+  }
+
+  /**
+   * @return the value of System.nanoTime() when the poll that found the change started
+   */
+  public long getTimestamp()
+  {
+    return timestamp;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format( "card %d %s %02x -> %02x @%d", card, register, previous, current, timestamp );
+  }
+}
@@ -0,0 +1,15 @@
+package com.sequentmicrosystems;
+
+/**
+ * Receives the changes found by a ChangePoller.
+ */
+public interface ChangeListener
+{
+  /**
+   * Called from the poller's thread once for each register that has changed since the last poll. Implementations
+   * should return quickly, as no card is polled until they do.
+   *
+   * @param event the register that changed, with its previous and current values
+   */
+  void changeDetected( ChangeEvent event );
+}
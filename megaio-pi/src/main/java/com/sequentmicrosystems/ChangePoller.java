@@ -0,0 +1,269 @@
+package com.sequentmicrosystems;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Watches the relays, OptoCoupled inputs, open collectors and GPIO pins of one or more MegaIO cards by polling,
+ * for wiring on which the interrupt line is not available, and tells registered listeners about every register
+ * that changes.
+ * <p>
+ * Each poll reads the four registers of a card in a single batch and compares them with the previous poll, so
+ * listeners only hear of registers with changed bits. The interval between polls adapts to the activity of each
+ * card: it drops to the minimum as soon as a change is seen and doubles with every poll that finds nothing, up
+ * to the maximum. Idle cards therefore cost the bus little, while a burst of activity is followed closely. A
+ * change that comes and goes between two polls is not seen.
+ */
+public class ChangePoller
+    implements Closeable
+{
+  private static class Card
+  {
+    final int cardNum;
+    final MegaIOBatch batch;
+    final int[] values = new int[ChangeEvent.Register.values().length];
+    final int[] previous = new int[values.length];
+    boolean primed = false;
+    volatile long interval;
+    long nextPoll;
+
+    Card( int cardNum, MegaIO io, long interval )
+    {
+      this.cardNum = cardNum;
+      this.batch = io.batch().readRelays().readOptoIns().readOCPins().readGpioPins();
+      this.interval = interval;
+      this.nextPoll = System.nanoTime();
+    }
+  }
+
+  private final long minIntervalNanos;
+  private final long maxIntervalNanos;
+
+  private final List<Card> cards = new CopyOnWriteArrayList<>();
+  private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+  private final AtomicLong polls = new AtomicLong();
+  private final AtomicLong errorCount = new AtomicLong();
+  private volatile IOException lastError = null;
+  private final AtomicLong listenerErrorCount = new AtomicLong();
+  private volatile RuntimeException lastListenerError = null;
+
+  private volatile boolean running = false;
+  private Thread poller = null;
+
+  /**
+   * @param minInterval the interval between polls of a card that has just changed
+   * @param maxInterval the longest interval between polls of an idle card
+   * @param unit the unit of both intervals
+   */
+  public ChangePoller( long minInterval, long maxInterval, TimeUnit unit )
+  {
+    if (minInterval <= 0 || maxInterval < minInterval)
+    {
+      throw new IllegalArgumentException( "Invalid poll intervals " + minInterval + "-" + maxInterval );
+    }
+    this.minIntervalNanos = unit.toNanos( minInterval );
+    this.maxIntervalNanos = unit.toNanos( maxInterval );
+  }
+
+  /**
+   * Adds a card to be polled. Its first poll only records its registers, and reports no changes.
+   *
+   * @param cardNum the number of the card, reported in its events
+   * @param card the card itself
+   */
+  public void addCard( int cardNum, MegaIO card )
+  {
+    cards.add( new Card( cardNum, card, minIntervalNanos ));
+    LockSupport.unpark( poller );
+  }
+
+  public void addListener( ChangeListener listener )
+  {
+    listeners.add( listener );
+  }
+
+  public void removeListener( ChangeListener listener )
+  {
+    listeners.remove( listener );
+  }
+
+  /**
+   * Starts polling on a thread of the poller's own.
+   */
+  public synchronized void start()
+  {
+    if (running)
+    {
+      return;
+    }
+    running = true;
+    poller = new Thread( this::run, "megaio-change-poller" );
+    poller.setDaemon( true );
+    poller.start();
+  }
+
+  private void run()
+  {
+    while (running)
+    {
+      long now = System.nanoTime();
+      long next = now + maxIntervalNanos;
+      for (Card card : cards)
+      {
+        if (now - card.nextPoll >= 0)
+        {
+          poll( card, now );
+        }
+        if (card.nextPoll - next < 0)
+        {
+          next = card.nextPoll;
+        }
+      }
+      long wait = next - System.nanoTime();
+      if (wait > 0)
+      {
+        LockSupport.parkNanos( this, wait );
+      }
+    }
+  }
+
+  /**
+   * Polls one card, schedules its next poll, and dispatches an event for each register that changed.
+   */
+  private void poll( Card card, long timestamp )
+  {
+    int[] previous = card.previous;
+    int[] values = card.values;
+    boolean changed = false;
+    try
+    {
+      MegaIOBatch.Result result = card.batch.execute();
+      System.arraycopy( values, 0, previous, 0, values.length );
+      values[ChangeEvent.Register.RELAYS.ordinal()] = result.getRelays();
+      values[ChangeEvent.Register.OPTO.ordinal()] = result.getOptoIns();
+      values[ChangeEvent.Register.OC.ordinal()] = result.getOCPins();
+      values[ChangeEvent.Register.GPIO.ordinal()] = result.getGpioPins();
+      changed = card.primed && !Arrays.equals( previous, values );
+      card.primed = true;
+    }
+    catch( IOException ioex )
+    {
+      errorCount.incrementAndGet();
+      lastError = ioex;
+    }
+    polls.incrementAndGet();
+
+    card.interval = changed ? minIntervalNanos : Math.min( maxIntervalNanos, 2 * card.interval );
+    card.nextPoll = timestamp + card.interval;
+
+    if (changed)
+    {
+      for (ChangeEvent.Register register : ChangeEvent.Register.values())
+      {
+        int i = register.ordinal();
+        if (previous[i] != values[i])
+        {
+          ChangeEvent event = new ChangeEvent( card.cardNum, register, previous[i], values[i], timestamp );
+          for (ChangeListener listener : listeners)
+          {
+            try
+            {
+              listener.changeDetected( event );
+            }
+            catch( RuntimeException e )
+            {
+              // one failing listener must not stop the others, or the polling
+              listenerErrorCount.incrementAndGet();
+              lastListenerError = e;
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the current interval between polls of a card, or -1 if the card is not polled
+   */
+  public long getInterval( int cardNum, TimeUnit unit )
+  {
+    for (Card card : cards)
+    {
+      if (card.cardNum == cardNum)
+      {
+        return unit.convert( card.interval, TimeUnit.NANOSECONDS );
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the number of polls made, over all cards
+   */
+  public long getPollCount()
+  {
+    return polls.get();
+  }
+
+  /**
+   * @return the number of polls that failed because the registers of a card could not be read
+   */
+  public long getErrorCount()
+  {
+    return errorCount.get();
+  }
+
+  /**
+   * @return the most recent exception thrown by a poll, or null if there has been none
+   */
+  public IOException getLastError()
+  {
+    return lastError;
+  }
+
+  /**
+   * @return the number of times a listener has thrown a RuntimeException for an event
+   */
+  public long getListenerErrorCount()
+  {
+    return listenerErrorCount.get();
+  }
+
+  /**
+   * @return the most recent RuntimeException thrown by a listener, or null if there has been none
+   */
+  public RuntimeException getLastListenerError()
+  {
+    return lastListenerError;
+  }
+
+  /**
+   * Stops polling.
+   */
+  @Override
+  public synchronized void close()
+  {
+    if (!running)
+    {
+      return;
+    }
+    running = false;
+    LockSupport.unpark( poller );
+    try
+    {
+      poller.join();
+    }
+    catch( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+    }
+    poller = null;
+  }
+}
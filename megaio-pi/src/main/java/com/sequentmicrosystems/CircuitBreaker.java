@@ -0,0 +1,184 @@
+package com.sequentmicrosystems;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops a card that keeps failing on the bus from holding up everything else on it. Installed on a MegaIOImpl,
+ * the breaker sees every i2c transaction the card makes.
+ * <p>
+ * While the breaker is closed, transactions go to the bus and the consecutive failures are counted. When they
+ * reach the threshold the breaker opens, and for the open time every transaction fails at once with a
+ * CircuitOpenException instead of waiting on the bus. After that, the breaker is half open: a single transaction
+ * is let through as a probe, while the others still fail fast. If the probe succeeds the breaker closes; if it
+ * fails the breaker opens again for another open time.
+ */
+public class CircuitBreaker
+{
+  public enum State
+  {
+    CLOSED,
+    OPEN,
+    HALF_OPEN;
+  }
+
+  private final int failureThreshold;
+  private final long openNanos;
+
+  private volatile State state = State.CLOSED;
+  private long openedAt;
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+  private final AtomicLong trips = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong probes = new AtomicLong();
+
+  /**
+   * @param failureThreshold the number of consecutive failed transactions that opens the breaker
+   * @param openTime how long the breaker stays open before it lets a probe through
+   * @param unit the unit of the open time
+   */
+  public CircuitBreaker( int failureThreshold, long openTime, TimeUnit unit )
+  {
+    if (failureThreshold < 1 || openTime < 0)
+    {
+      throw new IllegalArgumentException( "Invalid circuit breaker " + failureThreshold + "/" + openTime );
+    }
+    this.failureThreshold = failureThreshold;
+    this.openNanos = unit.toNanos( openTime );
+  }
+
+  /**
+   * Called before a transaction.
+   *
+   * @throws CircuitOpenException if the breaker is open, or half open with a probe already under way
+   */
+  void admit()
+      throws CircuitOpenException
+  {
+    if (State.CLOSED == state)
+    {
+      return;
+    }
+    synchronized (this)
+    {
+      long retryAfter = 0;
+      switch (state)
+      {
+        case CLOSED:
+          return;
+
+        case OPEN:
+          retryAfter = openNanos - (System.nanoTime() - openedAt);
+          if (retryAfter <= 0)
+          {
+            // this transaction is the probe
+            state = State.HALF_OPEN;
+            probes.incrementAndGet();
+            return;
+          }
+          break;
+
+        default:
+          break;
+      }
+      rejected.incrementAndGet();
+      throw new CircuitOpenException( "Circuit breaker " + state, retryAfter );
+    }
+  }
+
+  /**
+   * Called after a transaction that succeeded.
+   */
+  void succeeded()
+  {
+    if (State.CLOSED == state)
+    {
+      if (0 != consecutiveFailures.get())
+      {
+        consecutiveFailures.set( 0 );
+      }
+      return;
+    }
+    synchronized (this)
+    {
+      if (State.HALF_OPEN == state)
+      {
+        consecutiveFailures.set( 0 );
+        state = State.CLOSED;
+      }
+    }
+  }
+
+  /**
+   * Called after a transaction that failed on the bus.
+   */
+  void failed()
+  {
+    if (State.CLOSED == state && consecutiveFailures.incrementAndGet() < failureThreshold)
+    {
+      return;
+    }
+    synchronized (this)
+    {
+      if (State.OPEN != state)
+      {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        trips.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Closes the breaker at once, forgetting any failures.
+   */
+  public synchronized void reset()
+  {
+    consecutiveFailures.set( 0 );
+    state = State.CLOSED;
+  }
+
+  /* ------------- STATISTICS  -------------- */
+
+  /**
+   * @return the breaker's state; an open breaker whose open time has passed reports OPEN until a probe is made
+   */
+  public State getState()
+  {
+    return state;
+  }
+
+  /**
+   * @return the number of transactions that have failed in a row
+   */
+  public int getConsecutiveFailures()
+  {
+    return consecutiveFailures.get();
+  }
+
+  /**
+   * @return the number of times the breaker has opened
+   */
+  public long getTrips()
+  {
+    return trips.get();
+  }
+
+  /**
+   * @return the number of transactions failed fast, without going to the bus
+   */
+  public long getRejected()
+  {
+    return rejected.get();
+  }
+
+  /**
+   * @return the number of probes let through while half open
+   */
+  public long getProbes()
+  {
+    return probes.get();
+  }
+}
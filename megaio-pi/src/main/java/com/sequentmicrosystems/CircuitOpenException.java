@@ -0,0 +1,28 @@
+package com.sequentmicrosystems;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thrown instead of going to the bus while a card's CircuitBreaker is open. It is never retried.
+ */
+public class CircuitOpenException extends IOException
+{
+  private static final long serialVersionUID = 1L;
+
+  private final long retryAfterNanos;
+
+  public CircuitOpenException( String message, long retryAfterNanos )
+  {
+    super( message );
+    this.retryAfterNanos = retryAfterNanos;
+  }
+
+  /**
+   * @return how long until the breaker lets a probe through, or 0 if a probe is already under way
+   */
+  public long getRetryAfter( TimeUnit unit )
+  {
+    return unit.convert( retryAfterNanos, TimeUnit.NANOSECONDS );
+  }
+}
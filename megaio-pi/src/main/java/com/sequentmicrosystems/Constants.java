@@ -56,8 +56,9 @@ public class Constants
  public static final int NO = 2;
 
  public static final byte MEGAIO_HW_I2C_BASE_ADD = 0x31;
+ public static final int CARD_NR_MAX = 4;   // up to four cards can be stacked, numbered from 0
 
- enum IrqState
+ public enum IrqState
  {
   DISABLED,
   RISING,
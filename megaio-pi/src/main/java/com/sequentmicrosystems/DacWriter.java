@@ -0,0 +1,263 @@
+package com.sequentmicrosystems;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.sequentmicrosystems.Constants.*;
+
+/**
+ * Drives the analog output of a card from setpoints that any number of threads may submit faster than the bus
+ * can take them.
+ * <p>
+ * A setpoint is handed over through a single slot: submitting one replaces whatever is waiting there, without
+ * locking, and a writer thread of its own takes the newest setpoint out of the slot and writes it. Setpoints
+ * replaced before they were written are counted as dropped rather than queued, so the output never lags behind
+ * a backlog of stale values. Writes are spaced to a configurable maximum rate, and by default only every Nth
+ * write is read back, which takes a little more than half the bus time of a verified write.
+ * <p>
+ * The latency from the submission of a setpoint to the end of its write is recorded in a histogram. Neither
+ * submitting nor writing allocates.
+ */
+public class DacWriter
+    implements Closeable
+{
+  /** How often a write is read back unless configured otherwise. */
+  public static final int DEFAULT_VERIFY_EVERY = 16;
+
+  // A slot holds a flag, the submission time in nanoseconds since the writer was created and the value.
+  private static final long EMPTY = 0;
+  private static final long PRESENT = 1L << 63;
+  private static final int VALUE_BITS = 12;
+  private static final long VALUE_MASK = (1L << VALUE_BITS) - 1;
+  // 51 bits of nanoseconds wrap after 26 days, far longer than any setpoint waits
+  private static final long TIME_MASK = (1L << (63 - VALUE_BITS)) - 1;
+
+  private final MegaIO card;
+  private final long minIntervalNanos;
+  private final long epoch = System.nanoTime();
+
+  private final AtomicLong slot = new AtomicLong( EMPTY );
+
+  private volatile int verifyEvery = DEFAULT_VERIFY_EVERY;
+
+  private final AtomicLong submitted = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong verifyFailures = new AtomicLong();
+  private final AtomicLong errorCount = new AtomicLong();
+  private volatile IOException lastError = null;
+  private volatile int lastWritten = -1;
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  private volatile boolean running = false;
+  private volatile Thread writer = null;
+
+  /**
+   * @param card the card whose analog output is driven
+   * @param maxRatePerSecond the largest number of writes per second, or Double.POSITIVE_INFINITY to write as
+   *                         fast as the bus allows
+   */
+  public DacWriter( MegaIO card, double maxRatePerSecond )
+  {
+    if (!(maxRatePerSecond > 0))
+    {
+      throw new IllegalArgumentException( "Invalid write rate " + maxRatePerSecond );
+    }
+    this.card = card;
+    this.minIntervalNanos = (long) (1_000_000_000L / maxRatePerSecond);
+  }
+
+  /**
+   * Reads back every Nth write, retrying it as writeAnalog does if the card does not hold the value.
+   *
+   * @param writes 1 to verify every write, or 0 never to verify
+   */
+  public DacWriter setVerifyEvery( int writes )
+  {
+    if (writes < 0)
+    {
+      throw new IllegalArgumentException( "Invalid verification interval " + writes );
+    }
+    verifyEvery = writes;
+    return this;
+  }
+
+  /**
+   * Starts writing on a thread of the writer's own.
+   */
+  public synchronized void start()
+  {
+    if (running)
+    {
+      return;
+    }
+    running = true;
+    writer = new Thread( this::run, "megaio-dac-writer" );
+    writer.setDaemon( true );
+    writer.start();
+  }
+
+  /* ------------- SETPOINTS  -------------- */
+
+  /**
+   * Submits a setpoint, replacing any that has not been written yet. May be called from any thread.
+   *
+   * @param analogValue a 12-bit value from 0 to 4095
+   */
+  public void set( int analogValue )
+  {
+    if (analogValue < ANALOG_VAL_MIN || analogValue > ANALOG_VAL_MAX)
+    {
+      throw new IllegalArgumentException( "Invalid analog value " + analogValue );
+    }
+    long entry = PRESENT | ((System.nanoTime() - epoch) & TIME_MASK) << VALUE_BITS | analogValue;
+    submitted.incrementAndGet();
+    if (EMPTY == slot.getAndSet( entry ))
+    {
+      // the writer may be waiting for a setpoint
+      LockSupport.unpark( writer );
+    }
+    else
+    {
+      dropped.incrementAndGet();
+    }
+  }
+
+  private void run()
+  {
+    long writes = 0;
+    long nextWrite = System.nanoTime();
+    while (running)
+    {
+      long wait = nextWrite - System.nanoTime();
+      if (wait > 0)
+      {
+        LockSupport.parkNanos( this, wait );
+        continue;
+      }
+      long entry = slot.getAndSet( EMPTY );
+      if (EMPTY == entry)
+      {
+        LockSupport.park( this );
+        continue;
+      }
+
+      int value = (int) (entry & VALUE_MASK);
+      int every = verifyEvery;
+      boolean verify = every > 0 && 0 == writes % every;
+      try
+      {
+        if (card.writeAnalog( value, verify ))
+        {
+          lastWritten = value;
+        }
+        else
+        {
+          verifyFailures.incrementAndGet();
+        }
+      }
+      catch( IOException ioex )
+      {
+        errorCount.incrementAndGet();
+        lastError = ioex;
+      }
+      writes++;
+      written.incrementAndGet();
+
+      long now = System.nanoTime();
+      latency.record( ((now - epoch) - (entry >>> VALUE_BITS)) & TIME_MASK );
+      nextWrite = now + minIntervalNanos;
+    }
+  }
+
+  /* ------------- STATISTICS  -------------- */
+
+  /**
+   * @return the number of setpoints submitted
+   */
+  public long getSubmitted()
+  {
+    return submitted.get();
+  }
+
+  /**
+   * @return the number of setpoints replaced by a newer one before they could be written
+   */
+  public long getDropped()
+  {
+    return dropped.get();
+  }
+
+  /**
+   * @return the number of writes attempted, successful or not
+   */
+  public long getWritten()
+  {
+    return written.get();
+  }
+
+  /**
+   * @return the number of verified writes the card did not hold after all retries
+   */
+  public long getVerifyFailures()
+  {
+    return verifyFailures.get();
+  }
+
+  /**
+   * @return the number of writes that failed on the bus
+   */
+  public long getErrorCount()
+  {
+    return errorCount.get();
+  }
+
+  /**
+   * @return the most recent exception thrown by a write, or null if there has been none
+   */
+  public IOException getLastError()
+  {
+    return lastError;
+  }
+
+  /**
+   * @return the last value written without an error, or -1 if none has been
+   */
+  public int getLastWritten()
+  {
+    return lastWritten;
+  }
+
+  /**
+   * @return the latencies from the submission of each written setpoint to the end of its write
+   */
+  public LatencyHistogram getLatency()
+  {
+    return latency;
+  }
+
+  /**
+   * Stops writing. A setpoint submitted but not yet written is left unwritten.
+   */
+  @Override
+  public synchronized void close()
+  {
+    if (!running)
+    {
+      return;
+    }
+    running = false;
+    LockSupport.unpark( writer );
+    try
+    {
+      writer.join();
+    }
+    catch( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+    }
+    writer = null;
+  }
+}
@@ -0,0 +1,74 @@
+package com.sequentmicrosystems;
+
+/**
+ * An edge detected on one OptoCoupled input or GPIO pin of a MegaIO card.
+ */
+public class EdgeEvent
+{
+  public enum Source
+  {
+    OPTO,
+    GPIO;
+  }
+
+  private final int card;
+  private final Source source;
+  private final int channel;
+  private final boolean rising;
+  private final long timestamp;
+
+  public EdgeEvent( int card, Source source, int channel, boolean rising, long timestamp )
+  {
+    this.card = card;
+    this.source = source;
+    this.channel = channel;
+    this.rising = rising;
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * @return the number of the card on which the edge was detected, from 0
+   */
+  public int getCard()
+  {
+    return card;
+  }
+
+  /**
+   * @return whether the edge was on an OptoCoupled input or a GPIO pin
+   */
+  public Source getSource()
+  {
+    return source;
+  }
+
+  /**
+   * @return the pin on which the edge was detected, from 1
+   */
+  public int getChannel()
+  {
+    return channel;
+  }
+
+  /**
+   * @return true if the pin is high after the edge, false if it is low
+   */
+  public boolean isRising()
+  {
+    return rising;
+  }
+
+  /**
+   * @return the value of System.nanoTime() when the interrupt line was asserted
+   */
+  public long getTimestamp()
+  {
+    return timestamp;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format( "card %d %s %d %s @%d", card, source, channel, rising ? "rising" : "falling", timestamp );
+  }
+}
@@ -0,0 +1,236 @@
+package com.sequentmicrosystems;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.sequentmicrosystems.Constants.*;
+
+/**
+ * Delivers the edges detected on the OptoCoupled inputs and GPIO pins of one or more MegaIO cards to registered
+ * listeners. Edges must first be enabled with setOptoIrq or setIoIrq; the cards then assert their shared
+ * interrupt line, which is watched by an EdgeSource. Each time the line is asserted the dispatcher's own thread
+ * reads and so acknowledges the interrupt flags of every card, reads the current value of any flagged inputs,
+ * and hands one EdgeEvent per flagged pin to every listener.
+ * <p>
+ * The direction of an edge is taken from the level of the pin when its flags are read, so a pulse shorter than
+ * the time taken to service the interrupt is reported as a single edge in the direction of its trailing edge.
+ */
+public class EdgeEventDispatcher
+    implements Closeable
+{
+  private static class Card
+  {
+    final int cardNum;
+    final MegaIO io;
+
+    Card( int cardNum, MegaIO io )
+    {
+      this.cardNum = cardNum;
+      this.io = io;
+    }
+  }
+
+  private final EdgeSource source;
+
+  private final List<Card> cards = new CopyOnWriteArrayList<>();
+  private final List<EdgeListener> listeners = new CopyOnWriteArrayList<>();
+
+  private final Semaphore pending = new Semaphore( 0 );
+  private volatile long interruptTime;
+
+  private final AtomicLong errorCount = new AtomicLong();
+  private volatile IOException lastError = null;
+  private final AtomicLong listenerErrorCount = new AtomicLong();
+  private volatile RuntimeException lastListenerError = null;
+
+  private volatile boolean running = false;
+  private Thread worker = null;
+
+  public EdgeEventDispatcher( EdgeSource source )
+  {
+    this.source = source;
+  }
+
+  /**
+   * Adds a card whose interrupt flags should be read each time the interrupt line is asserted.
+   *
+   * @param cardNum the number of the card, reported in its events
+   * @param card the card itself
+   */
+  public void addCard( int cardNum, MegaIO card )
+  {
+    cards.add( new Card( cardNum, card ));
+  }
+
+  public void addListener( EdgeListener listener )
+  {
+    listeners.add( listener );
+  }
+
+  public void removeListener( EdgeListener listener )
+  {
+    listeners.remove( listener );
+  }
+
+  /**
+   * Starts the dispatcher's thread and begins watching the interrupt line. Any interrupt already pending on the
+   * cards is serviced straight away, since its edge on the line has already been missed.
+   *
+   * @throws IOException thrown if the interrupt line cannot be configured
+   */
+  public synchronized void start()
+      throws IOException
+  {
+    if (running)
+    {
+      return;
+    }
+    running = true;
+    worker = new Thread( this::run, "megaio-edge-dispatcher" );
+    worker.setDaemon( true );
+    worker.start();
+    try
+    {
+      source.start( this::interrupted );
+    }
+    catch( IOException ioex )
+    {
+      close();
+      throw ioex;
+    }
+    interrupted();
+  }
+
+  /**
+   * Called by the EdgeSource when the interrupt line is asserted.
+   */
+  private void interrupted()
+  {
+    interruptTime = System.nanoTime();
+    pending.release();
+  }
+
+  private void run()
+  {
+    while (running)
+    {
+      try
+      {
+        pending.acquire();
+      }
+      catch( InterruptedException e )
+      {
+        continue;
+      }
+      // Any interrupts that arrived while the last one was being serviced are covered by one pass over the flags.
+      pending.drainPermits();
+      long timestamp = interruptTime;
+      for (Card card : cards)
+      {
+        service( card, timestamp );
+      }
+    }
+  }
+
+  /**
+   * Reads and acknowledges the interrupt flags of one card, and dispatches an event for every flagged pin.
+   */
+  void service( Card card, long timestamp )
+  {
+    try
+    {
+      int flags = card.io.readOptoIrqFlags();
+      if (0 != flags)
+      {
+        dispatch( card.cardNum, EdgeEvent.Source.OPTO, flags, card.io.readOptoIns(), OPTO_CH_NR_MAX, timestamp );
+      }
+      flags = card.io.readIoIrqFlags();
+      if (0 != flags)
+      {
+        dispatch( card.cardNum, EdgeEvent.Source.GPIO, flags, card.io.readGpioPins(), GPIO_CH_NR_MAX, timestamp );
+      }
+    }
+    catch( IOException ioex )
+    {
+      errorCount.incrementAndGet();
+      lastError = ioex;
+    }
+  }
+
+  private void dispatch( int cardNum, EdgeEvent.Source source, int flags, int values, int channels, long timestamp )
+  {
+    for (int channel = CHANNEL_NR_MIN; channel <= channels; channel++)
+    {
+      int bitMask = 0x01 << (channel - 1);
+      if (0 != (flags & bitMask))
+      {
+        EdgeEvent event = new EdgeEvent( cardNum, source, channel, 0 != (values & bitMask), timestamp );
+        for (EdgeListener listener : listeners)
+        {
+          try
+          {
+            listener.edgeDetected( event );
+          }
+          catch( RuntimeException e )
+          {
+            // one failing listener must not stop the others, or the dispatcher
+            listenerErrorCount.incrementAndGet();
+            lastListenerError = e;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of times the interrupt flags or inputs of a card could not be read
+   */
+  public long getErrorCount()
+  {
+    return errorCount.get();
+  }
+
+  /**
+   * @return the most recent exception thrown while servicing an interrupt, or null if there has been none
+   */
+  public IOException getLastError()
+  {
+    return lastError;
+  }
+
+  /**
+   * @return the number of times a listener has thrown a RuntimeException for an event
+   */
+  public long getListenerErrorCount()
+  {
+    return listenerErrorCount.get();
+  }
+
+  /**
+   * @return the most recent RuntimeException thrown by a listener, or null if there has been none
+   */
+  public RuntimeException getLastListenerError()
+  {
+    return lastListenerError;
+  }
+
+  /**
+   * Stops watching the interrupt line and stops the dispatcher's thread.
+   */
+  @Override
+  public synchronized void close()
+  {
+    if (!running)
+    {
+      return;
+    }
+    running = false;
+    source.stop();
+    worker.interrupt();
+    worker = null;
+  }
+}
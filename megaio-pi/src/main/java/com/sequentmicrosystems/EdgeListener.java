@@ -0,0 +1,15 @@
+package com.sequentmicrosystems;
+
+/**
+ * Receives the edges detected on the OptoCoupled inputs and GPIO pins of the MegaIO cards.
+ */
+public interface EdgeListener
+{
+  /**
+   * Called from the dispatcher's thread for every edge detected. Implementations should return quickly, as no
+   * further interrupts are serviced until they do.
+   *
+   * @param event the edge that was detected
+   */
+  void edgeDetected( EdgeEvent event );
+}
@@ -0,0 +1,24 @@
+package com.sequentmicrosystems;
+
+import java.io.IOException;
+
+/**
+ * Watches the interrupt line shared by the MegaIO cards and reports each time a card asserts it.
+ */
+public interface EdgeSource
+{
+  /**
+   * Begins watching the interrupt line.
+   *
+   * @param onInterrupt called, possibly from a thread owned by the source, each time the line is asserted. It
+   *                    must return quickly and must not touch the i2c bus.
+   * @throws IOException thrown if the interrupt line cannot be configured
+   */
+  void start( Runnable onInterrupt )
+      throws IOException;
+
+  /**
+   * Stops watching the interrupt line. No further calls will be made to the Runnable given to start.
+   */
+  void stop();
+}
@@ -0,0 +1,115 @@
+package com.sequentmicrosystems;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The lock of one group of a card's registers.
+ * <p>
+ * Unlike a ReentrantLock it belongs to no thread, so an operation that runs as a chain of scheduled steps, as
+ * those of AsyncMegaIO do, can take it in one step and release it in another, on a different thread. It can be
+ * waited for by blocking or by leaving a callback, and is granted to waiters of either kind in the order they
+ * asked for it. It is not reentrant.
+ */
+final class GroupLock
+{
+  private static final class Waiter
+  {
+    final Thread thread;
+    final Runnable granted;
+    volatile boolean done = false;
+
+    Waiter( Thread thread, Runnable granted )
+    {
+      this.thread = thread;
+      this.granted = granted;
+    }
+  }
+
+  // guarded by this
+  private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+  private boolean held = false;
+
+  /**
+   * Takes the lock, waiting as long as need be. Like ReentrantLock.lock, an interrupt does not end the wait but
+   * is left pending.
+   */
+  void lock()
+  {
+    Waiter waiter;
+    synchronized (this)
+    {
+      if (!held)
+      {
+        held = true;
+        return;
+      }
+      waiter = new Waiter( Thread.currentThread(), null );
+      waiters.add( waiter );
+    }
+    boolean interrupted = false;
+    while (!waiter.done)
+    {
+      LockSupport.park( this );
+      interrupted |= Thread.interrupted();
+    }
+    if (interrupted)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Takes the lock without waiting for it. The callback is run once the lock is held: at once on this thread if
+   * it is free, or else on the thread that releases it to this caller, so it should do no more than hand the
+   * work on.
+   */
+  void lock( Runnable granted )
+  {
+    synchronized (this)
+    {
+      if (held)
+      {
+        waiters.add( new Waiter( null, granted ));
+        return;
+      }
+      held = true;
+    }
+    granted.run();
+  }
+
+  /**
+   * Releases the lock, handing it straight to the longest waiter if there is one. Any thread may release it.
+   */
+  void unlock()
+  {
+    Waiter next;
+    synchronized (this)
+    {
+      if (!held)
+      {
+        throw new IllegalMonitorStateException( "Group lock is not held" );
+      }
+      next = waiters.poll();
+      if (next == null)
+      {
+        held = false;
+        return;
+      }
+    }
+    if (next.thread != null)
+    {
+      next.done = true;
+      LockSupport.unpark( next.thread );
+    }
+    else
+    {
+      next.granted.run();
+    }
+  }
+
+  synchronized boolean isLocked()
+  {
+    return held;
+  }
+}
@@ -0,0 +1,340 @@
+package com.sequentmicrosystems;
+
+import com.pi4j.io.i2c.I2CBus;
+import com.pi4j.io.i2c.I2CFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.sequentmicrosystems.Constants.*;
+
+/**
+ * Owns the single I2CBus shared by a stack of MegaIO cards and grants it to one transaction at a time.
+ * <p>
+ * Transactions waiting for the bus are queued per card and per priority class. When the bus is released it goes
+ * to the oldest waiting transaction of the highest priority class, taking the cards of that class in turn so
+ * that a busy card cannot starve the others. A steady stream of higher priority transactions will delay lower
+ * priority ones indefinitely, which is the point: a relay write must not wait behind an ADC sweep.
+ * <p>
+ * Devices handed out by getDevice classify each transaction by the register it addresses. Writes to the relay
+ * and open collector registers are CRITICAL, block reads of more than two bytes are BULK and everything else is
+ * NORMAL. Use exclusive to run a read-modify-write sequence, at a chosen priority, without another transaction
+ * being interleaved. Cards opened with openCard do so for their own read-modify-write operations.
+ */
+public class I2CBusArbiter
+    implements Closeable
+{
+  public enum Priority
+  {
+    CRITICAL,
+    NORMAL,
+    BULK;
+  }
+
+  /**
+   * An operation on the bus, run while the arbiter grants it exclusive use of the bus.
+   */
+  public interface BusOperation<T>
+  {
+    T run()
+        throws IOException;
+  }
+
+  private static class Ticket
+  {
+    final Thread thread = Thread.currentThread();
+    final long enqueued = System.nanoTime();
+    volatile boolean granted = false;
+  }
+
+  private static final int PRIORITIES = Priority.values().length;
+
+  private final I2CBus bus;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  @SuppressWarnings( { "unchecked", "rawtypes" } )
+  private final ArrayDeque<Ticket>[][] queues = new ArrayDeque[PRIORITIES][CARD_NR_MAX];
+  private final int[] nextCard = new int[PRIORITIES];
+  private Thread owner = null;
+  private int holdCount = 0;
+
+  // per card statistics, guarded by lock
+  private final int[] queueDepth = new int[CARD_NR_MAX];
+  private final long[] transactions = new long[CARD_NR_MAX];
+  private final long[] totalWaitNanos = new long[CARD_NR_MAX];
+  private final long[] maxWaitNanos = new long[CARD_NR_MAX];
+
+  /**
+   * Creates an arbiter for i2c bus 1, to which the MegaIO cards are connected on a Raspberry Pi.
+   */
+  public I2CBusArbiter()
+      throws IOException, I2CFactory.UnsupportedBusNumberException
+  {
+    this( I2CFactory.getInstance( I2CBus.BUS_1 ));
+  }
+
+  public I2CBusArbiter( I2CBus bus )
+  {
+    this.bus = bus;
+    for (int p = 0; p < PRIORITIES; p++)
+    {
+      for (int c = 0; c < CARD_NR_MAX; c++)
+      {
+        queues[p][c] = new ArrayDeque<>();
+      }
+    }
+  }
+
+  /**
+   * Returns a device for one card whose every transaction is arbitrated.
+   *
+   * @param cardNum the number of the card, from 0 to 3
+   */
+  public ArbitratedI2CDevice getDevice( int cardNum )
+      throws IOException
+  {
+    checkCard( cardNum );
+    return new ArbitratedI2CDevice( this, cardNum, bus.getDevice( MEGAIO_HW_I2C_BASE_ADD + cardNum ));
+  }
+
+  /**
+   * Returns a MegaIO card whose every transaction is arbitrated.
+   *
+   * @param cardNum the number of the card, from 0 to 3
+   */
+  public MegaIO openCard( int cardNum )
+      throws IOException
+  {
+    return new MegaIOImpl( getDevice( cardNum ), new GpioWrapper() );
+  }
+
+  /**
+   * Runs an operation, which may span several transactions on any arbitrated device, without any other thread's
+   * transactions being interleaved with it.
+   *
+   * @param cardNum the card whose queue the operation waits in
+   * @param priority the priority class of the operation
+   * @param operation the operation to run
+   * @return the result of the operation
+   * @throws IOException thrown by the operation, or if the thread is interrupted while waiting for the bus
+   */
+  public <T> T exclusive( int cardNum, Priority priority, BusOperation<T> operation )
+      throws IOException
+  {
+    checkCard( cardNum );
+    acquire( cardNum, priority );
+    try
+    {
+      return operation.run();
+    }
+    finally
+    {
+      release();
+    }
+  }
+
+  /**
+   * Waits until the calling thread is granted the bus. A thread that already holds the bus is granted it again
+   * at once, and must release it once for every time it is acquired.
+   */
+  void acquire( int cardNum, Priority priority )
+      throws InterruptedIOException
+  {
+    Ticket ticket;
+    lock.lock();
+    try
+    {
+      Thread current = Thread.currentThread();
+      if (owner == current)
+      {
+        holdCount++;
+        return;
+      }
+      if (null == owner)
+      {
+        owner = current;
+        holdCount = 1;
+        transactions[cardNum]++;
+        return;
+      }
+      ticket = new Ticket();
+      queues[priority.ordinal()][cardNum].addLast( ticket );
+      queueDepth[cardNum]++;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+
+    while (!ticket.granted)
+    {
+      LockSupport.park( this );
+      if (Thread.interrupted() && !ticket.granted)
+      {
+        lock.lock();
+        try
+        {
+          if (!ticket.granted)
+          {
+            queues[priority.ordinal()][cardNum].remove( ticket );
+            queueDepth[cardNum]--;
+            throw new InterruptedIOException( "Interrupted while waiting for the i2c bus" );
+          }
+        }
+        finally
+        {
+          lock.unlock();
+        }
+        // granted while we were handling the interrupt; keep the bus and the interrupt
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Releases the bus, handing it to the next waiting transaction if there is one.
+   */
+  void release()
+  {
+    lock.lock();
+    try
+    {
+      if (--holdCount > 0)
+      {
+        return;
+      }
+      owner = null;
+      for (int p = 0; p < PRIORITIES; p++)
+      {
+        for (int i = 0; i < CARD_NR_MAX; i++)
+        {
+          int c = (nextCard[p] + i) % CARD_NR_MAX;
+          Ticket ticket = queues[p][c].pollFirst();
+          if (null != ticket)
+          {
+            nextCard[p] = (c + 1) % CARD_NR_MAX;
+            long wait = System.nanoTime() - ticket.enqueued;
+            queueDepth[c]--;
+            transactions[c]++;
+            totalWaitNanos[c] += wait;
+            maxWaitNanos[c] = Math.max( maxWaitNanos[c], wait );
+
+            owner = ticket.thread;
+            holdCount = 1;
+            ticket.granted = true;
+            LockSupport.unpark( ticket.thread );
+            return;
+          }
+        }
+      }
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  private void checkCard( int cardNum )
+  {
+    if (cardNum < 0 || cardNum >= CARD_NR_MAX)
+    {
+      throw new IllegalArgumentException( "Invalid card number " + cardNum );
+    }
+  }
+
+  /**
+   * @return the number of transactions waiting for the bus on behalf of the card
+   */
+  public int getQueueDepth( int cardNum )
+  {
+    lock.lock();
+    try
+    {
+      return queueDepth[cardNum];
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of transactions waiting for the bus on behalf of all cards
+   */
+  public int getQueueDepth()
+  {
+    lock.lock();
+    try
+    {
+      int depth = 0;
+      for (int c = 0; c < CARD_NR_MAX; c++)
+      {
+        depth += queueDepth[c];
+      }
+      return depth;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of times the bus has been granted on behalf of the card
+   */
+  public long getTransactionCount( int cardNum )
+  {
+    lock.lock();
+    try
+    {
+      return transactions[cardNum];
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the mean time, in nanoseconds, that the card's transactions have waited for the bus
+   */
+  public long getAverageWaitNanos( int cardNum )
+  {
+    lock.lock();
+    try
+    {
+      return 0 == transactions[cardNum] ? 0 : totalWaitNanos[cardNum] / transactions[cardNum];
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the longest time, in nanoseconds, that one of the card's transactions has waited for the bus
+   */
+  public long getMaxWaitNanos( int cardNum )
+  {
+    lock.lock();
+    try
+    {
+      return maxWaitNanos[cardNum];
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void close()
+      throws IOException
+  {
+    bus.close();
+  }
+}
@@ -0,0 +1,299 @@
+package com.sequentmicrosystems;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The i2c transactions captured by a TracingI2CDevice, loaded from its trace file for inspection or for replay
+ * through a ReplayI2CDevice.
+ * <p>
+ * A trace file is a header followed by a ring of fixed-size entries, one per transaction. The header counts the
+ * transactions written; once there are more than the ring holds, the oldest have been overwritten. Each entry
+ * ends by writing its sequence number, so an entry that was being written when the process died is recognised
+ * and left out.
+ */
+public final class I2CTrace
+{
+  public enum Op
+  {
+    WRITE_BYTE,
+    WRITE_BUFFER,
+    WRITE_REGISTER_BYTE,
+    WRITE_REGISTER_BUFFER,
+    READ_BYTE,
+    READ_BUFFER,
+    READ_REGISTER,
+    READ_REGISTER_BUFFER,
+    WRITE_READ,
+    IOCTL;
+  }
+
+  static final int MAGIC = 0x4D494F54;    // "MIOT"
+  static final int VERSION = 1;
+
+  // Header layout.
+  static final int CAPACITY_OFFSET = 8;
+  static final int ENTRY_SIZE_OFFSET = 12;
+  static final int ADDRESS_OFFSET = 16;
+  static final int START_TIME_OFFSET = 24;
+  static final int WRITTEN_OFFSET = 32;
+  static final int HEADER_SIZE = 64;
+
+  // Entry layout.
+  static final int SEQUENCE = 0;
+  static final int START = 8;
+  static final int DURATION = 16;
+  static final int OP = 20;
+  static final int OUTCOME = 21;
+  static final int REGISTER = 22;
+  static final int LENGTH = 24;
+  static final int RESULT = 26;
+  static final int PAYLOAD = 32;
+  static final int ENTRY_SIZE = 64;
+
+  /** The most bytes of each transaction kept; the card's largest transfer, the ADC window, is 16. */
+  public static final int MAX_PAYLOAD = ENTRY_SIZE - PAYLOAD;
+
+  /**
+   * One transaction.
+   */
+  public static final class Transaction
+  {
+    private final long sequence;
+    private final long startNanos;
+    private final long durationNanos;
+    private final Op op;
+    private final boolean failed;
+    private final int register;
+    private final int length;
+    private final int result;
+    private final byte[] payload;
+
+    Transaction( long sequence, long startNanos, long durationNanos, Op op, boolean failed, int register,
+                 int length, int result, byte[] payload )
+    {
+      this.sequence = sequence;
+      this.startNanos = startNanos;
+      this.durationNanos = durationNanos;
+      this.op = op;
+      this.failed = failed;
+      this.register = register;
+      this.length = length;
+      this.result = result;
+      this.payload = payload;
+    }
+
+    /**
+     * @return the number of transactions traced before this one
+     */
+    public long getSequence()
+    {
+      return sequence;
+    }
+
+    /**
+     * @return when the transaction started, in nanoseconds since the trace began
+     */
+    public long getStartNanos()
+    {
+      return startNanos;
+    }
+
+    public long getDurationNanos()
+    {
+      return durationNanos;
+    }
+
+    public Op getOp()
+    {
+      return op;
+    }
+
+    /**
+     * @return true if the transaction threw an IOException
+     */
+    public boolean isFailed()
+    {
+      return failed;
+    }
+
+    /**
+     * @return the register addressed, or -1 for a transaction that names none
+     */
+    public int getRegister()
+    {
+      return register;
+    }
+
+    /**
+     * @return the number of bytes written or read, of which at most MAX_PAYLOAD are kept
+     */
+    public int getLength()
+    {
+      return length;
+    }
+
+    /**
+     * @return the value a read returned; for a single byte read, the byte
+     */
+    public int getResult()
+    {
+      return result;
+    }
+
+    /**
+     * @return the bytes written, or the bytes read, as far as they were kept
+     */
+    public byte[] getPayload()
+    {
+      return payload.clone();
+    }
+
+    byte payload( int index )
+    {
+      return payload[index];
+    }
+
+    int kept()
+    {
+      return payload.length;
+    }
+
+    @Override
+    public String toString()
+    {
+      StringBuilder text = new StringBuilder();
+      text.append( '#' ).append( sequence ).append( ' ' ).append( op );
+      if (register >= 0)
+      {
+        text.append( String.format( " reg 0x%02x", register ));
+      }
+      text.append( ' ' ).append( failed ? "FAILED" : "ok" ).append( " [" );
+      for (int i = 0; i < payload.length; i++)
+      {
+        text.append( String.format( i > 0 ? " %02x" : "%02x", payload[i] & 0xFF ));
+      }
+      return text.append( "] " ).append( durationNanos / 1000 ).append( "us" ).toString();
+    }
+  }
+
+  private final int address;
+  private final long startTimeMillis;
+  private final long written;
+  private final long torn;
+  private final List<Transaction> transactions;
+
+  private I2CTrace( int address, long startTimeMillis, long written, long torn, List<Transaction> transactions )
+  {
+    this.address = address;
+    this.startTimeMillis = startTimeMillis;
+    this.written = written;
+    this.torn = torn;
+    this.transactions = Collections.unmodifiableList( transactions );
+  }
+
+  /**
+   * Loads the transactions still held in a trace file, oldest first. The file may still be being written.
+   *
+   * @throws IOException thrown if the file cannot be read or is not a trace
+   */
+  public static I2CTrace load( Path path )
+      throws IOException
+  {
+    MappedByteBuffer buffer;
+    try (FileChannel file = FileChannel.open( path, StandardOpenOption.READ ))
+    {
+      buffer = file.map( FileChannel.MapMode.READ_ONLY, 0, file.size() );
+    }
+    if (buffer.capacity() < HEADER_SIZE || MAGIC != buffer.getInt( 0 ) || VERSION != buffer.getInt( 4 )
+        || ENTRY_SIZE != buffer.getInt( ENTRY_SIZE_OFFSET ))
+    {
+      throw new IOException( "Not an i2c trace: " + path );
+    }
+    int capacity = buffer.getInt( CAPACITY_OFFSET );
+    if (capacity < 1 || buffer.capacity() < HEADER_SIZE + (long) capacity * ENTRY_SIZE)
+    {
+      throw new IOException( "Truncated i2c trace: " + path );
+    }
+    long written = buffer.getLong( WRITTEN_OFFSET );
+    Op[] ops = Op.values();
+    List<Transaction> transactions = new ArrayList<>();
+    long torn = 0;
+    for (long sequence = Math.max( 0, written - capacity ); sequence < written; sequence++)
+    {
+      int entry = HEADER_SIZE + (int) (sequence % capacity) * ENTRY_SIZE;
+      int op = buffer.get( entry + OP );
+      if (sequence + 1 != buffer.getLong( entry + SEQUENCE ) || op < 0 || op >= ops.length)
+      {
+        torn++;
+        continue;
+      }
+      int length = buffer.getShort( entry + LENGTH ) & 0xFFFF;
+      byte[] payload = new byte[Math.min( length, MAX_PAYLOAD )];
+      for (int i = 0; i < payload.length; i++)
+      {
+        payload[i] = buffer.get( entry + PAYLOAD + i );
+      }
+      transactions.add( new Transaction( sequence, buffer.getLong( entry + START ),
+                                         buffer.getInt( entry + DURATION ) & 0xFFFFFFFFL, ops[op],
+                                         0 != buffer.get( entry + OUTCOME ), buffer.getShort( entry + REGISTER ),
+                                         length, buffer.getInt( entry + RESULT ), payload ));
+    }
+    return new I2CTrace( buffer.getInt( ADDRESS_OFFSET ), buffer.getLong( START_TIME_OFFSET ), written, torn,
+                         transactions );
+  }
+
+  /**
+   * @return the i2c address of the traced device
+   */
+  public int getAddress()
+  {
+    return address;
+  }
+
+  /**
+   * @return the wall clock time at which tracing began, in milliseconds since the epoch
+   */
+  public long getStartTimeMillis()
+  {
+    return startTimeMillis;
+  }
+
+  /**
+   * @return the transactions held, oldest first
+   */
+  public List<Transaction> getTransactions()
+  {
+    return transactions;
+  }
+
+  /**
+   * @return the number of transactions traced, including those since overwritten
+   */
+  public long getWritten()
+  {
+    return written;
+  }
+
+  /**
+   * @return the number of transactions overwritten by newer ones before the trace was loaded
+   */
+  public long getOverwritten()
+  {
+    return written - transactions.size() - torn;
+  }
+
+  /**
+   * @return the number of entries left out because they had not been completely written
+   */
+  public long getTorn()
+  {
+    return torn;
+  }
+}
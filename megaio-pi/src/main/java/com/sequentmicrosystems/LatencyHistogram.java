@@ -0,0 +1,147 @@
+package com.sequentmicrosystems;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds, with buckets spaced so that any recorded value is known to within
+ * about 6%, from 1 nanosecond up to a minute. Recording takes a few atomic increments and never locks or
+ * allocates, so it can be done on every i2c operation from any number of threads.
+ * <p>
+ * Each power of two is divided into 16 linear buckets, in the manner of an HdrHistogram with one significant
+ * digit. Values beyond the highest bucket are counted in it. Reads are not synchronised with recording, so a
+ * percentile taken while values are being recorded may not reflect the very latest of them.
+ */
+public class LatencyHistogram
+{
+  private static final int SUB_BITS = 4;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  // 2^36 nanoseconds is a little over a minute
+  private static final int MAX_EXPONENT = 36;
+  private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+  private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray( BUCKETS );
+  private final LongAdder count = new LongAdder();
+  private final LongAdder total = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records one latency.
+   *
+   * @param nanos the latency in nanoseconds; negative values are recorded as 0
+   */
+  public void record( long nanos )
+  {
+    long value = Math.max( 0, nanos );
+    counts.incrementAndGet( bucket( Math.min( value, MAX_VALUE )));
+    count.increment();
+    total.add( value );
+
+    long highest = max.get();
+    while (value > highest && !max.compareAndSet( highest, value ))
+    {
+      highest = max.get();
+    }
+  }
+
+  static int bucket( long value )
+  {
+    if (value < SUB_COUNT)
+    {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros( value );
+    int shift = exponent - SUB_BITS;
+    // the leading bit and the SUB_BITS below it, from SUB_COUNT to 2 * SUB_COUNT - 1
+    int mantissa = (int) (value >>> shift);
+    return shift * SUB_COUNT + mantissa;
+  }
+
+  /**
+   * @return the highest value that falls into the bucket
+   */
+  static long highestInBucket( int bucket )
+  {
+    if (bucket < 2 * SUB_COUNT)
+    {
+      return bucket;
+    }
+    int shift = bucket / SUB_COUNT - 1;
+    long mantissa = SUB_COUNT + bucket % SUB_COUNT;
+    return ((mantissa + 1) << shift) - 1;
+  }
+
+  /**
+   * @return the number of values recorded
+   */
+  public long getCount()
+  {
+    return count.sum();
+  }
+
+  /**
+   * @return the mean of the values recorded, or 0 if there are none
+   */
+  public long getMean()
+  {
+    long n = count.sum();
+    return 0 == n ? 0 : total.sum() / n;
+  }
+
+  /**
+   * @return the largest value recorded, exactly
+   */
+  public long getMax()
+  {
+    return max.get();
+  }
+
+  /**
+   * Returns a value that the given percentage of the recorded values do not exceed. It is the highest value of
+   * the bucket in which that percentile falls, but never more than the largest value recorded.
+   *
+   * @param percentile from 0 to 100
+   * @return the value at the percentile, or 0 if nothing has been recorded
+   */
+  public long getValueAtPercentile( double percentile )
+  {
+    long[] snapshot = new long[BUCKETS];
+    long n = 0;
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      snapshot[i] = counts.get( i );
+      n += snapshot[i];
+    }
+    if (0 == n)
+    {
+      return 0;
+    }
+    long rank = Math.max( 1, (long) Math.ceil( Math.min( percentile, 100.0 ) / 100.0 * n ));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      seen += snapshot[i];
+      if (seen >= rank)
+      {
+        return Math.min( highestInBucket( i ), max.get() );
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * Discards every value recorded. Values being recorded at the same time may be partly kept.
+   */
+  public void reset()
+  {
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      counts.set( i, 0 );
+    }
+    count.reset();
+    total.reset();
+    max.set( 0 );
+  }
+}
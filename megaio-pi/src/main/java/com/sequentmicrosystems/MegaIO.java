@@ -44,6 +44,29 @@ public interface MegaIO
   boolean triggerRelay( int relayNumber, boolean on )
               throws IOException;
 
+  /**
+   * Sets the state of all relays at once with a single register write, so that every relay changes together.
+   * Bit 0 of the mask represents relay number 1 and bit 7 represents relay number 8.
+   *
+   * @param mask the desired state of all relays as a single 8-bit number
+   * @return true if the relays were successfully set, false otherwise
+   * @throws IOException thrown in case byte cannot be written to the i2c device or i2c bus
+   */
+  boolean writeRelays( int mask )
+      throws IOException;
+
+  /**
+   * Turns some relays on and others off with a single register write, leaving the rest as they are. If every
+   * relay is already in the desired state, no attempt will be made to change them.
+   *
+   * @param setMask the relays to turn on, bit 0 representing relay number 1
+   * @param clearMask the relays to turn off, bit 0 representing relay number 1
+   * @return true if the relays were successfully set, false otherwise
+   * @throws IOException thrown in case byte cannot be read from or written to the i2c device or i2c bus
+   */
+  boolean updateRelays( int setMask, int clearMask )
+      throws IOException;
+
   /**
    * Reads an integer value from the specified analog to digital channel according to the voltage measured,
    * from 0 to 3.3v (which is the maximum allowable voltage on any A2D channel.
@@ -55,6 +78,28 @@ public interface MegaIO
   int readAnalog( int a2dChannel )
                   throws IOException;
 
+  /**
+   * Reads all eight analog to digital channels in a single i2c block transaction. The value of channel 1 is
+   * stored in dst[0] and the value of channel 8 in dst[7].
+   *
+   * @param dst an array of at least 8 elements to receive the 12-bit values, from 0 to 4095
+   * @throws IOException thrown in case bytes cannot be read from the i2c device or i2c bus
+   */
+  void readAnalogAll( int[] dst )
+      throws IOException;
+
+  /**
+   * Reads a contiguous range of analog to digital channels in a single i2c block transaction. The value of
+   * firstChannel is stored in dst[0], the value of the next channel in dst[1], and so on.
+   *
+   * @param firstChannel the first analog channel to read, from 1 to 8
+   * @param lastChannel the last analog channel to read, from firstChannel to 8
+   * @param dst an array large enough to receive (lastChannel - firstChannel + 1) 12-bit values
+   * @throws IOException thrown in case bytes cannot be read from the i2c device or i2c bus
+   */
+  void readAnalogRange( int firstChannel, int lastChannel, int[] dst )
+      throws IOException;
+
   /**
    * Writes an integer value, from 0 to 4095, to the digital to analog pin, producing a voltage between from 0 to 3.3v
    *
@@ -65,6 +110,19 @@ public interface MegaIO
   boolean writeAnalog( int analogValue )
                       throws IOException;
 
+  /**
+   * Writes an integer value, from 0 to 4095, to the digital to analog pin, optionally without reading it back.
+   * Skipping the read-back more than halves the time taken, for callers such as waveform generators that write
+   * often and can tolerate an occasional lost write.
+   *
+   * @param analogValue a 12-bit value from 0 to 4095
+   * @param verify true to read the value back and retry as writeAnalog( int ) does, false to write it once
+   * @return true if the value was successfully written, or was written at all when not verified
+   * @throws IOException thrown in case byte cannot be written to the i2c device or i2c bus
+   */
+  boolean writeAnalog( int analogValue, boolean verify )
+      throws IOException;
+
   /**
    * Reads the direction of a GPIO pin.
    *
@@ -107,6 +165,17 @@ public interface MegaIO
   Constants.IrqState setIoIrq( int gpioPinNumber, IrqState state )
       throws IOException;
 
+  /**
+   * Sets the interrupt request state of every GPIO pin at once, writing each of the rising and falling edge
+   * masks a single time.
+   *
+   * @param states the desired state of each pin, states[0] being pin 1. A null entry, or a missing one if the
+   *               array is shorter than 6, leaves that pin as it is, at the cost of reading both masks first.
+   * @throws IOException thrown in case byte cannot be read from or written to the i2c device or i2c bus
+   */
+  void configureIoIrqs( IrqState[] states )
+      throws IOException;
+
 
   /**
    * reads the value of a GPIO pin that has been set to input mode.
@@ -117,6 +186,25 @@ public interface MegaIO
   boolean readGpioPin(  int gpioPinNumber )
       throws IOException;
 
+  /**
+   * Reads the values of all GPIO pins as a single number, where bit 0 represents pin 1 and bit 5 represents pin 6.
+   *
+   * @return the values of all GPIO pins
+   * @throws IOException thrown in case byte cannot be read from the i2c device or i2c bus
+   */
+  int readGpioPins()
+      throws IOException;
+
+  /**
+   * Reads the pending interrupt flags of the GPIO pins, where bit 0 represents pin 1. Reading the flags
+   * acknowledges the interrupt on the card.
+   *
+   * @return the GPIO pins which have seen an enabled edge since the flags were last read
+   * @throws IOException thrown in case byte cannot be read from the i2c device or i2c bus
+   */
+  int readIoIrqFlags()
+      throws IOException;
+
   /**
    *
    * @param optoPinNumber  the OptoCoupled pin whose value to read, from 1 to 8.
@@ -125,6 +213,26 @@ public interface MegaIO
   boolean readOptoIn( int optoPinNumber )
       throws IOException;
 
+  /**
+   * Reads the values of all OptoCoupled pins as a single 8-bit number, where bit 0 represents pin 1 and bit 7
+   * represents pin 8.
+   *
+   * @return the values of all OptoCoupled pins
+   * @throws IOException thrown in case byte cannot be read from the i2c device or i2c bus
+   */
+  int readOptoIns()
+      throws IOException;
+
+  /**
+   * Reads the pending interrupt flags of the OptoCoupled pins, where bit 0 represents pin 1. Reading the flags
+   * acknowledges the interrupt on the card.
+   *
+   * @return the OptoCoupled pins which have seen an enabled edge since the flags were last read
+   * @throws IOException thrown in case byte cannot be read from the i2c device or i2c bus
+   */
+  int readOptoIrqFlags()
+      throws IOException;
+
   /**
    *
    * @param gpioPinNumber
@@ -135,6 +243,17 @@ public interface MegaIO
   IrqState setOptoIrq( int gpioPinNumber, IrqState state )
       throws IOException;
 
+  /**
+   * Sets the interrupt request state of every OptoCoupled pin at once, writing each of the rising and falling
+   * edge masks a single time.
+   *
+   * @param states the desired state of each pin, states[0] being pin 1. A null entry, or a missing one if the
+   *               array is shorter than 8, leaves that pin as it is, at the cost of reading both masks first.
+   * @throws IOException thrown in case byte cannot be read from or written to the i2c device or i2c bus
+   */
+  void configureOptoIrqs( IrqState[] states )
+      throws IOException;
+
   /**
    *
    * @param ocPinNumber
@@ -153,4 +272,12 @@ public interface MegaIO
    */
   boolean setOCPin( int ocPinNumber, boolean on )
       throws IOException;
+
+  /**
+   * Starts a batch of operations on the card. The operations are queued on the returned batch, and made together
+   * in as few i2c transactions as possible when it is executed.
+   *
+   * @return an empty batch
+   */
+  MegaIOBatch batch();
 }
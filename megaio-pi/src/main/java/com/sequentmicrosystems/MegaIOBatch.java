@@ -0,0 +1,754 @@
+package com.sequentmicrosystems;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.sequentmicrosystems.Constants.*;
+
+/**
+ * A batch of reads and writes on one MegaIO card, made together in as few i2c transactions as possible. Obtain
+ * one from MegaIO.batch, queue operations on it and call execute.
+ * <p>
+ * The writes are made first, in the order the outputs were queued, and then every read, so the reads see the
+ * effect of the writes. Several relay or open collector changes are folded into one write of the whole
+ * register, adjacent registers are written together, and the registers to be read, including those read back
+ * to verify the relay, open collector and DAC writes, are merged into as few block reads as possible. A read
+ * serves both the caller and the verification when they want the same register. For instance the opto inputs,
+ * open collectors and all eight analog channels are one block read.
+ * <p>
+ * A batch is not atomic: another thread's transactions may be interleaved with it, though on a shared bus not
+ * between the read and the write of a register that changes are folded into, and if an IOException is thrown
+ * some writes may have been made and others not. A batch can be executed any number of times, and clear empties
+ * it for reuse.
+ */
+public class MegaIOBatch
+{
+  /**
+   * Carries out a batch, on the card itself or, for a remote card, on the far side of a connection.
+   */
+  interface Executor
+  {
+    Result execute( MegaIOBatch batch )
+        throws IOException;
+  }
+
+  /**
+   * The registers of a card as seen by a batch.
+   */
+  interface RegisterAccess
+  {
+    /**
+     * @param verify true if the value must come from the card rather than a register cache
+     */
+    void read( int address, byte[] buffer, int offset, int size, boolean verify )
+        throws IOException;
+
+    void write( int address, byte[] buffer, int offset, int size )
+        throws IOException;
+
+    void delay( long millis );
+
+    /**
+     * @return the policy deciding how often a write that did not take is made again
+     */
+    RetryPolicy retryPolicy();
+
+    /**
+     * Runs a read-modify-write without another transaction on a shared bus coming between the read and the write.
+     */
+    <T> T exclusive( I2CBusArbiter.BusOperation<T> operation )
+        throws IOException;
+  }
+
+  /**
+   * The values read by a batch.
+   */
+  public static class Result
+  {
+    private final byte[] registers = new byte[REGISTER_COUNT];
+    private final long read;
+    private final boolean verified;
+
+    Result( byte[] registers, long read, boolean verified )
+    {
+      System.arraycopy( registers, 0, this.registers, 0, REGISTER_COUNT );
+      this.read = read;
+      this.verified = verified;
+    }
+
+    private int register( int address )
+    {
+      if (0 == (read & (1L << address)))
+      {
+        throw new IllegalStateException( String.format( "Register 0x%02x was not read by the batch", address ));
+      }
+      return registers[address] & 0xFF;
+    }
+
+    /**
+     * @return true if every relay, open collector and DAC write was read back as written, possibly after retries
+     */
+    public boolean isVerified()
+    {
+      return verified;
+    }
+
+    public int getRelays()
+    {
+      return register( RELAY_MEM_ADD );
+    }
+
+    public boolean isRelayOn( int relayNumber )
+    {
+      return 0 != (getRelays() & bit( relayNumber ));
+    }
+
+    public int getOptoIns()
+    {
+      return register( OPTO_IN_MEM_ADD );
+    }
+
+    public boolean readOptoIn( int optoPinNumber )
+    {
+      return 0 != (getOptoIns() & bit( optoPinNumber ));
+    }
+
+    public int getOCPins()
+    {
+      return register( OC_OUT_VAL_MEM_ADD );
+    }
+
+    public boolean readOCPin( int ocPinNumber )
+    {
+      return 0 != (getOCPins() & bit( ocPinNumber ));
+    }
+
+    public int getGpioPins()
+    {
+      return register( GPIO_VAL_MEM_ADD );
+    }
+
+    public boolean readGpioPin( int gpioPinNumber )
+    {
+      return 0 != (getGpioPins() & bit( gpioPinNumber ));
+    }
+
+    public int getOptoIrqFlags()
+    {
+      return register( OPTO_IT_FLAGS_MEM_ADD );
+    }
+
+    public int getIoIrqFlags()
+    {
+      return register( GPIO_IT_FLAGS_MEM_ADD );
+    }
+
+    /**
+     * @param channel the analog channel, from 1 to 8
+     * @return the 12-bit value of the channel
+     */
+    public int getAnalog( int channel )
+    {
+      int address = ADC_VAL_MEM_ADD + 2 * (channel - 1);
+      return (register( address ) << 8) | register( address + 1 );
+    }
+
+    /**
+     * @return the value read back from the DAC, from 0 to 4095
+     */
+    public int getAnalogOutput()
+    {
+      return (register( DAC_VAL_H_MEM_ADD ) << 8) | register( DAC_VAL_L_MEM_ADD );
+    }
+
+    byte[] registers()
+    {
+      return registers;
+    }
+
+    /**
+     * @return a bit for each register that was read, bit n standing for register n
+     */
+    long readMask()
+    {
+      return read;
+    }
+  }
+
+  // The queued operations, kept as codes and arguments so that a batch can be sent over the wire as it is.
+  static final int READ_RELAYS = 1;
+  static final int READ_OPTO_INS = 2;
+  static final int READ_OC_PINS = 3;
+  static final int READ_GPIO_PINS = 4;
+  static final int READ_ANALOG = 5;
+  static final int READ_OPTO_IRQ_FLAGS = 6;
+  static final int READ_IO_IRQ_FLAGS = 7;
+  static final int WRITE_RELAYS = 8;
+  static final int TRIGGER_RELAY = 9;
+  static final int SET_OC_PIN = 10;
+  static final int SET_GPIO_PIN = 11;
+  static final int WRITE_ANALOG = 12;
+
+  static final int REGISTER_COUNT = 0x40;
+
+  // registers that are not read unless asked for, because reading them acknowledges interrupts
+  private static final long READ_SENSITIVE = (1L << OPTO_IT_FLAGS_MEM_ADD) | (1L << GPIO_IT_FLAGS_MEM_ADD);
+
+  // the most unwanted registers read to join two reads into one; each costs a byte on the bus, a transaction
+  // about four bytes plus the time spent in the driver
+  static final int MAX_GAP = 3;
+
+  // the relays and the open collectors, which are written either by command or as a whole
+  private static final int RELAYS = 0;
+  private static final int OC = 1;
+  private static final int[] VALUE_REGISTER = { RELAY_MEM_ADD, OC_OUT_VAL_MEM_ADD };
+  private static final int[] SET_REGISTER = { RELAY_ON_MEM_ADD, OC_OUT_SET_MEM_ADD };
+  private static final int[] CLEAR_REGISTER = { RELAY_OFF_MEM_ADD, OC_OUT_CLR_MEM_ADD };
+  private static final int[] WIDTH_MASK = { 0xFF, 0x0F };
+  // milliseconds to wait after writing before the outputs can be read back as written
+  private static final long[] SETTLE_DELAY = { MegaIOImpl.RELAY_RETRY_DELAY, 0 };
+
+  private final Executor executor;
+
+  private int[] codes = new int[16];
+  private int[] args = new int[16];
+  private int size = 0;
+
+  MegaIOBatch( Executor executor )
+  {
+    this.executor = executor;
+  }
+
+  private static int bit( int channel )
+  {
+    return 0x01 << (channel - 1);
+  }
+
+  private static void checkChannel( int channel, int max, String what )
+  {
+    if (channel < CHANNEL_NR_MIN || channel > max)
+    {
+      throw new IllegalArgumentException( "Invalid " + what + " " + channel );
+    }
+  }
+
+  private MegaIOBatch add( int code, int arg )
+  {
+    if (size == codes.length)
+    {
+      codes = Arrays.copyOf( codes, 2 * size );
+      args = Arrays.copyOf( args, 2 * size );
+    }
+    codes[size] = code;
+    args[size] = arg;
+    size++;
+    return this;
+  }
+
+  /* ------------- READS  -------------- */
+
+  public MegaIOBatch readRelays()
+  {
+    return add( READ_RELAYS, 0 );
+  }
+
+  public MegaIOBatch readOptoIns()
+  {
+    return add( READ_OPTO_INS, 0 );
+  }
+
+  public MegaIOBatch readOCPins()
+  {
+    return add( READ_OC_PINS, 0 );
+  }
+
+  public MegaIOBatch readGpioPins()
+  {
+    return add( READ_GPIO_PINS, 0 );
+  }
+
+  /**
+   * Reads the interrupt flags of the OptoCoupled inputs, which acknowledges them.
+   */
+  public MegaIOBatch readOptoIrqFlags()
+  {
+    return add( READ_OPTO_IRQ_FLAGS, 0 );
+  }
+
+  /**
+   * Reads the interrupt flags of the GPIO pins, which acknowledges them.
+   */
+  public MegaIOBatch readIoIrqFlags()
+  {
+    return add( READ_IO_IRQ_FLAGS, 0 );
+  }
+
+  /**
+   * @param channel the analog channel to read, from 1 to 8
+   */
+  public MegaIOBatch readAnalog( int channel )
+  {
+    checkChannel( channel, ADC_CH_NR_MAX, "analog channel" );
+    return add( READ_ANALOG, channel );
+  }
+
+  public MegaIOBatch readAnalogAll()
+  {
+    for (int channel = CHANNEL_NR_MIN; channel <= ADC_CH_NR_MAX; channel++)
+    {
+      add( READ_ANALOG, channel );
+    }
+    return this;
+  }
+
+  /* ------------- WRITES  -------------- */
+
+  /**
+   * Sets every relay, replacing any relay changes queued before it.
+   *
+   * @param mask the desired state of all relays, bit 0 being relay 1
+   */
+  public MegaIOBatch writeRelays( int mask )
+  {
+    return add( WRITE_RELAYS, mask & 0xFF );
+  }
+
+  /**
+   * @param relayNumber the relay to turn on or off, from 1 to 8
+   */
+  public MegaIOBatch triggerRelay( int relayNumber, boolean on )
+  {
+    checkChannel( relayNumber, RELAY_CH_NR_MAX, "relay" );
+    return add( TRIGGER_RELAY, on ? relayNumber : -relayNumber );
+  }
+
+  /**
+   * @param ocPinNumber the open collector output to turn on or off, from 1 to 4
+   */
+  public MegaIOBatch setOCPin( int ocPinNumber, boolean on )
+  {
+    checkChannel( ocPinNumber, OC_CH_NR_MAX, "open collector output" );
+    return add( SET_OC_PIN, on ? ocPinNumber : -ocPinNumber );
+  }
+
+  /**
+   * Sets a GPIO pin configured as an output. GPIO writes are not verified, as the pins read back their level
+   * rather than what was written.
+   *
+   * @param gpioPinNumber the pin to set or clear, from 1 to 6
+   */
+  public MegaIOBatch setGpioPin( int gpioPinNumber, boolean on )
+  {
+    checkChannel( gpioPinNumber, GPIO_CH_NR_MAX, "GPIO pin" );
+    return add( SET_GPIO_PIN, on ? gpioPinNumber : -gpioPinNumber );
+  }
+
+  /**
+   * @param analogValue the value to write to the DAC, from 0 to 4095
+   */
+  public MegaIOBatch writeAnalog( int analogValue )
+  {
+    return add( WRITE_ANALOG, analogValue & 0xFFF );
+  }
+
+  /* ------------- EXECUTION  -------------- */
+
+  /**
+   * @return the number of operations queued
+   */
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * Empties the batch so it can be reused.
+   */
+  public MegaIOBatch clear()
+  {
+    size = 0;
+    return this;
+  }
+
+  /**
+   * Makes every queued operation. The batch keeps its operations, and can be executed again.
+   *
+   * @return the values read
+   * @throws IOException thrown in case bytes cannot be read from or written to the i2c device or i2c bus
+   */
+  public Result execute()
+      throws IOException
+  {
+    return executor.execute( this );
+  }
+
+  int code( int index )
+  {
+    return codes[index];
+  }
+
+  int arg( int index )
+  {
+    return args[index];
+  }
+
+  /**
+   * Queues an operation received as a code and argument, checking it as the public methods do.
+   */
+  MegaIOBatch queue( int code, int arg )
+  {
+    switch (code)
+    {
+      case READ_RELAYS:
+        return readRelays();
+      case READ_OPTO_INS:
+        return readOptoIns();
+      case READ_OC_PINS:
+        return readOCPins();
+      case READ_GPIO_PINS:
+        return readGpioPins();
+      case READ_ANALOG:
+        return readAnalog( arg );
+      case READ_OPTO_IRQ_FLAGS:
+        return readOptoIrqFlags();
+      case READ_IO_IRQ_FLAGS:
+        return readIoIrqFlags();
+      case WRITE_RELAYS:
+        return writeRelays( arg );
+      case TRIGGER_RELAY:
+        return triggerRelay( Math.abs( arg ), arg > 0 );
+      case SET_OC_PIN:
+        return setOCPin( Math.abs( arg ), arg > 0 );
+      case SET_GPIO_PIN:
+        return setGpioPin( Math.abs( arg ), arg > 0 );
+      case WRITE_ANALOG:
+        return writeAnalog( arg );
+      default:
+        throw new IllegalArgumentException( "Unknown batch operation " + code );
+    }
+  }
+
+  /**
+   * Carries out the batch on a card's registers.
+   */
+  Result run( RegisterAccess card )
+      throws IOException
+  {
+    // fold the queued operations into what is to be written and read
+    int[] set = new int[2];
+    int[] clear = new int[2];
+    boolean[] whole = new boolean[2];
+    int gpioSet = 0;
+    int gpioClear = 0;
+    int dac = -1;
+    long reads = 0;
+    for (int i = 0; i < size; i++)
+    {
+      int arg = args[i];
+      switch (codes[i])
+      {
+        case READ_RELAYS:
+          reads |= 1L << RELAY_MEM_ADD;
+          break;
+        case READ_OPTO_INS:
+          reads |= 1L << OPTO_IN_MEM_ADD;
+          break;
+        case READ_OC_PINS:
+          reads |= 1L << OC_OUT_VAL_MEM_ADD;
+          break;
+        case READ_GPIO_PINS:
+          reads |= 1L << GPIO_VAL_MEM_ADD;
+          break;
+        case READ_ANALOG:
+          reads |= 3L << (ADC_VAL_MEM_ADD + 2 * (arg - 1));
+          break;
+        case READ_OPTO_IRQ_FLAGS:
+          reads |= 1L << OPTO_IT_FLAGS_MEM_ADD;
+          break;
+        case READ_IO_IRQ_FLAGS:
+          reads |= 1L << GPIO_IT_FLAGS_MEM_ADD;
+          break;
+        case WRITE_RELAYS:
+          whole[RELAYS] = true;
+          set[RELAYS] = arg;
+          clear[RELAYS] = ~arg & 0xFF;
+          break;
+        case TRIGGER_RELAY:
+        case SET_OC_PIN:
+        {
+          int output = TRIGGER_RELAY == codes[i] ? RELAYS : OC;
+          int mask = bit( Math.abs( arg ));
+          set[output] = arg > 0 ? set[output] | mask : set[output] & ~mask;
+          clear[output] = arg > 0 ? clear[output] & ~mask : clear[output] | mask;
+          break;
+        }
+        case SET_GPIO_PIN:
+        {
+          int mask = bit( Math.abs( arg ));
+          gpioSet = arg > 0 ? gpioSet | mask : gpioSet & ~mask;
+          gpioClear = arg > 0 ? gpioClear & ~mask : gpioClear | mask;
+          break;
+        }
+        case WRITE_ANALOG:
+          dac = arg;
+          break;
+        default:
+          throw new IllegalArgumentException( "Unknown batch operation " + codes[i] );
+      }
+    }
+
+    byte[] registers = new byte[REGISTER_COUNT];
+
+    // Changing more than one relay or open collector is a read and a write of the whole register, instead of a
+    // command for each. One change is a single command.
+    long wanted = 0;
+    for (int output = RELAYS; output <= OC; output++)
+    {
+      if (!whole[output] && Integer.bitCount( set[output] | clear[output] ) > 1)
+      {
+        wanted |= 1L << VALUE_REGISTER[output];
+      }
+    }
+    if (0 == wanted)
+    {
+      writeWhole( card, 0, set, clear, whole, dac, registers );
+    }
+    else
+    {
+      long read = wanted;
+      int analog = dac;
+      card.exclusive( () -> writeWhole( card, read, set, clear, whole, analog, registers ));
+    }
+
+    // then the commands
+    long verify = 0;
+    for (int output = RELAYS; output <= OC; output++)
+    {
+      if (whole[output] || 0 != (set[output] | clear[output]))
+      {
+        verify |= 1L << VALUE_REGISTER[output];
+      }
+    }
+    if (dac >= 0)
+    {
+      verify |= 3L << DAC_VAL_H_MEM_ADD;
+    }
+    for (int output = RELAYS; output <= OC; output++)
+    {
+      if (!whole[output])
+      {
+        command( card, SET_REGISTER[output], set[output] );
+        command( card, CLEAR_REGISTER[output], clear[output] );
+      }
+    }
+    command( card, GPIO_SET_MEM_ADD, gpioSet );
+    command( card, GPIO_CLR_MEM_ADD, gpioClear );
+
+    // relays take time to switch, so wait for them before the verifying read
+    long settle = 0;
+    for (int output = RELAYS; output <= OC; output++)
+    {
+      if (0 != (verify & (1L << VALUE_REGISTER[output])))
+      {
+        settle = Math.max( settle, SETTLE_DELAY[output] );
+      }
+    }
+    if (settle > 0)
+    {
+      card.delay( settle );
+    }
+
+    // one pass of reads serves the caller and the verification
+    Arrays.fill( registers, (byte) 0 );
+    readRanges( card, reads | verify, verify, registers );
+
+    boolean verified = true;
+    for (int output = RELAYS; output <= OC; output++)
+    {
+      if (0 != (verify & (1L << VALUE_REGISTER[output])))
+      {
+        int care = whole[output] ? WIDTH_MASK[output] : set[output] | clear[output];
+        verified &= rewrite( card, VALUE_REGISTER[output], 1, set[output], care, SETTLE_DELAY[output], registers );
+      }
+    }
+    if (dac >= 0)
+    {
+      verified &= rewrite( card, DAC_VAL_H_MEM_ADD, 2, dac, 0xFFF, 0, registers );
+    }
+    return new Result( registers, reads | verify, verified );
+  }
+
+  /**
+   * Reads the relays and open collectors whose changes are folded into a write of the whole register, then
+   * writes the whole registers, merging adjacent ones.
+   *
+   * @param wanted the value registers to read and fold the changes into
+   */
+  private static Void writeWhole( RegisterAccess card, long wanted, int[] set, int[] clear, boolean[] whole, int dac,
+                                  byte[] registers )
+      throws IOException
+  {
+    readRanges( card, wanted, wanted, registers );
+    for (int output = RELAYS; output <= OC; output++)
+    {
+      if (0 != (wanted & (1L << VALUE_REGISTER[output])))
+      {
+        whole[output] = true;
+        set[output] = ((registers[VALUE_REGISTER[output]] & 0xFF) | set[output]) & ~clear[output];
+        clear[output] = ~set[output];
+      }
+    }
+
+    long writes = 0;
+    for (int output = RELAYS; output <= OC; output++)
+    {
+      if (whole[output])
+      {
+        registers[VALUE_REGISTER[output]] = (byte) (set[output] & WIDTH_MASK[output]);
+        writes |= 1L << VALUE_REGISTER[output];
+      }
+    }
+    if (dac >= 0)
+    {
+      registers[DAC_VAL_H_MEM_ADD] = (byte) (dac >> 8);
+      registers[DAC_VAL_L_MEM_ADD] = (byte) dac;
+      writes |= 3L << DAC_VAL_H_MEM_ADD;
+    }
+    writeRanges( card, writes, registers );
+    return null;
+  }
+
+  private static void command( RegisterAccess card, int register, int mask )
+      throws IOException
+  {
+    byte[] channel = new byte[1];
+    for (int i = 0; i < 8; i++)
+    {
+      if (0 != (mask & (1 << i)))
+      {
+        channel[0] = (byte) (i + 1);
+        card.write( register, channel, 0, 1 );
+      }
+    }
+  }
+
+  /**
+   * Checks that a register, of one or two bytes, holds what was written to it, and writes it again for as long
+   * as the card's retry policy allows while it does not.
+   *
+   * @param settle the time to wait after each write before reading the register back
+   * @return true if the register holds what was written
+   */
+  private static boolean rewrite( RegisterAccess card, int register, int length, int expected, int care,
+                                  long settle, byte[] registers )
+      throws IOException
+  {
+    RetryPolicy policy = card.retryPolicy();
+    long began = System.nanoTime();
+    // the batch's own write was the first attempt
+    int attempts = 1;
+    IOException failure = null;
+    while (true)
+    {
+      int actual = 1 == length
+                   ? registers[register] & 0xFF
+                   : ((registers[register] & 0xFF) << 8) | (registers[register + 1] & 0xFF);
+      if (null == failure && (actual & care) == (expected & care))
+      {
+        return true;
+      }
+      long wait = policy.nextDelay( attempts, System.nanoTime() - began );
+      if (wait < 0)
+      {
+        // we've tried too many times, give up
+        if (null != failure)
+        {
+          throw failure;
+        }
+        return false;
+      }
+      if (wait > 0)
+      {
+        card.delay( wait );
+      }
+      int value = (actual & ~care) | (expected & care);
+      byte[] buffer = 1 == length ? new byte[] { (byte) value } : new byte[] { (byte) (value >> 8), (byte) value };
+      attempts++;
+      try
+      {
+        card.write( register, buffer, 0, length );
+        if (settle > 0)
+        {
+          card.delay( settle );
+        }
+        card.read( register, registers, register, length, true );
+        failure = null;
+      }
+      catch( CircuitOpenException open )
+      {
+        throw open;
+      }
+      catch( IOException ioex )
+      {
+        failure = ioex;
+      }
+    }
+  }
+
+  /**
+   * Reads the registers whose bits are set, joining runs separated by a few unwanted registers into one read.
+   *
+   * @param verify the registers that must be read from the card rather than a cache
+   */
+  static void readRanges( RegisterAccess card, long wanted, long verify, byte[] registers )
+      throws IOException
+  {
+    int address = 0;
+    while (address < REGISTER_COUNT)
+    {
+      if (0 == (wanted >>> address))
+      {
+        return;
+      }
+      address += Long.numberOfTrailingZeros( wanted >>> address );
+      int last = address;
+      int next = last + 1;
+      while (next < REGISTER_COUNT)
+      {
+        long rest = wanted >>> next;
+        if (0 == rest)
+        {
+          break;
+        }
+        int candidate = next + Long.numberOfTrailingZeros( rest );
+        long gap = (candidate == next ? 0 : -1L >>> (64 - (candidate - next))) << next;
+        if (candidate - next > MAX_GAP || 0 != (gap & READ_SENSITIVE))
+        {
+          break;
+        }
+        last = candidate;
+        next = candidate + 1;
+      }
+      int size = last - address + 1;
+      long range = (-1L >>> (64 - size)) << address;
+      card.read( address, registers, address, size, 0 != (range & verify) );
+      address = last + 1;
+    }
+  }
+
+  /**
+   * Writes the registers whose bits are set, joining adjacent ones into one write.
+   */
+  static void writeRanges( RegisterAccess card, long writes, byte[] registers )
+      throws IOException
+  {
+    int address = 0;
+    while (address < REGISTER_COUNT && 0 != (writes >>> address))
+    {
+      address += Long.numberOfTrailingZeros( writes >>> address );
+      int size = Long.numberOfTrailingZeros( ~(writes >>> address) );
+      card.write( address, registers, address, size );
+      address += size;
+    }
+  }
+}
@@ -0,0 +1,601 @@
+package com.sequentmicrosystems;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.sequentmicrosystems.Constants.*;
+import static com.sequentmicrosystems.MegaIOProtocol.*;
+
+/**
+ * A MegaIO card served by a MegaIOServer, used exactly as a local one.
+ * <p>
+ * Each operation is a request to the server, which makes it on the card and replies. The client is thread safe:
+ * any number of threads may use it at once, and their requests share the one connection, pipelined rather than
+ * taking turns. A single thread can pipeline batches with submit. A batch is sent as one request, whatever its
+ * size.
+ * <p>
+ * An IOException on the card is thrown by the client as an IOException with the same message, and so is a
+ * failure of the connection. After the connection fails every operation throws, and a new client is needed.
+ */
+public class MegaIOClient
+    implements MegaIO, Closeable
+{
+  private static final ChangeEvent.Register[] REGISTERS = ChangeEvent.Register.values();
+
+  private final SocketChannel channel;
+  private final int cardNum;
+  private final Map<Integer, CompletableFuture<int[]>> pending = new ConcurrentHashMap<>();
+  private final AtomicInteger ids = new AtomicInteger();
+  private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+  private final Object writeLock = new Object();
+  private final Thread reader;
+
+  private volatile long timeoutNanos = TimeUnit.SECONDS.toNanos( 5 );
+  private volatile IOException failure = null;
+  private final AtomicLong listenerErrorCount = new AtomicLong();
+  private volatile RuntimeException lastListenerError = null;
+
+  /**
+   * Connects to a server.
+   *
+   * @param address the address of the server
+   * @param cardNum the number the server gives the card
+   * @throws IOException thrown if the server cannot be reached
+   */
+  public MegaIOClient( InetSocketAddress address, int cardNum )
+      throws IOException
+  {
+    if (cardNum < 0 || cardNum > 0xFF)
+    {
+      throw new IllegalArgumentException( "Invalid card number " + cardNum );
+    }
+    this.cardNum = cardNum;
+    this.channel = SocketChannel.open( address );
+    channel.setOption( StandardSocketOptions.TCP_NODELAY, true );
+    reader = new Thread( this::read, "megaio-client-" + address.getPort() + "-" + cardNum );
+    reader.setDaemon( true );
+    reader.start();
+  }
+
+  /**
+   * Sets how long an operation waits for its reply before it throws, 5 seconds by default.
+   */
+  public MegaIOClient setTimeout( long timeout, TimeUnit unit )
+  {
+    this.timeoutNanos = unit.toNanos( timeout );
+    return this;
+  }
+
+  /* ------------- REQUESTS  -------------- */
+
+  /**
+   * Sends a request without waiting for its reply.
+   */
+  private CompletableFuture<int[]> send( Op op, int[] args, int count )
+  {
+    CompletableFuture<int[]> reply = new CompletableFuture<>();
+    int id;
+    do
+    {
+      id = ids.incrementAndGet();
+    }
+    while (PUSH_ID == id || null != pending.putIfAbsent( id, reply ));
+    ByteBuffer frame = request( id, op, cardNum, args, count );
+    try
+    {
+      synchronized (writeLock)
+      {
+        if (null != failure)
+        {
+          throw failure;
+        }
+        while (frame.hasRemaining())
+        {
+          channel.write( frame );
+        }
+      }
+    }
+    catch( IOException ioex )
+    {
+      pending.remove( id );
+      reply.completeExceptionally( ioex );
+    }
+    return reply;
+  }
+
+  /**
+   * Sends a request and waits for its reply.
+   */
+  private int[] call( Op op, int... args )
+      throws IOException
+  {
+    return await( send( op, args, args.length ));
+  }
+
+  private int[] await( CompletableFuture<int[]> reply )
+      throws IOException
+  {
+    try
+    {
+      return reply.get( timeoutNanos, TimeUnit.NANOSECONDS );
+    }
+    catch( ExecutionException e )
+    {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+      {
+        throw new IOException( cause.getMessage(), cause );
+      }
+      if (cause instanceof RuntimeException)
+      {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException( cause );
+    }
+    catch( TimeoutException e )
+    {
+      reply.cancel( false );
+      throw new IOException( "No reply from the server within " + timeoutNanos / 1_000_000 + " ms" );
+    }
+    catch( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException( "Interrupted waiting for the server" );
+    }
+  }
+
+  private int single( Op op, int... args )
+      throws IOException
+  {
+    return call( op, args )[0];
+  }
+
+  private boolean bool( Op op, int... args )
+      throws IOException
+  {
+    return 0 != call( op, args )[0];
+  }
+
+  /**
+   * Reads replies and pushes until the connection closes.
+   */
+  private void read()
+  {
+    ByteBuffer in = ByteBuffer.allocate( 2 * MAX_FRAME + 4 );
+    try
+    {
+      while (channel.read( in ) >= 0)
+      {
+        in.flip();
+        int length;
+        while ((length = frameLength( in )) > 0)
+        {
+          int end = in.position() + 4 + length;
+          in.position( in.position() + 4 );
+          ByteBuffer frame = in.duplicate();
+          frame.limit( end );
+          in.position( end );
+          receive( frame );
+        }
+        in.compact();
+      }
+      fail( new IOException( "Connection closed by the server" ));
+    }
+    catch( IOException ioex )
+    {
+      fail( ioex );
+    }
+    catch( IllegalArgumentException | BufferUnderflowException e )
+    {
+      fail( new IOException( "Invalid reply from the server", e ));
+    }
+  }
+
+  private void receive( ByteBuffer frame )
+  {
+    int id = getVarInt( frame );
+    int status = frame.get();
+    if (STATUS_PUSH == status)
+    {
+      int[] values = values( frame );
+      if (values.length >= 4 && values[1] >= 0 && values[1] < REGISTERS.length)
+      {
+        // the server's timestamp means nothing here, so the event is timed by its arrival
+        dispatch( new ChangeEvent( values[0], REGISTERS[values[1]], values[2], values[3], System.nanoTime() ));
+      }
+      return;
+    }
+    CompletableFuture<int[]> reply = pending.remove( id );
+    if (null == reply)
+    {
+      // the caller gave up waiting
+      return;
+    }
+    switch (status)
+    {
+      case STATUS_OK:
+        reply.complete( values( frame ));
+        break;
+      case STATUS_IO_ERROR:
+        reply.completeExceptionally( new IOException( message( frame )));
+        break;
+      case STATUS_ILLEGAL_ARGUMENT:
+        reply.completeExceptionally( new IllegalArgumentException( message( frame )));
+        break;
+      default:
+        reply.completeExceptionally( new IOException( "Server failed: " + message( frame )));
+        break;
+    }
+  }
+
+  /**
+   * Hands a pushed change to every listener. What a listener throws is its own failure, not the connection's, so
+   * it neither stops the other listeners nor the reading thread.
+   */
+  private void dispatch( ChangeEvent event )
+  {
+    for (ChangeListener listener : listeners)
+    {
+      try
+      {
+        listener.changeDetected( event );
+      }
+      catch( RuntimeException e )
+      {
+        listenerErrorCount.incrementAndGet();
+        lastListenerError = e;
+      }
+    }
+  }
+
+  private static int[] values( ByteBuffer frame )
+  {
+    int count = getVarInt( frame );
+    if (count < 0 || count > frame.remaining())
+    {
+      throw new IllegalArgumentException( "Invalid value count " + count );
+    }
+    int[] values = new int[count];
+    for (int i = 0; i < count; i++)
+    {
+      values[i] = getVarInt( frame );
+    }
+    return values;
+  }
+
+  private void fail( IOException ioex )
+  {
+    synchronized (writeLock)
+    {
+      if (null == failure)
+      {
+        failure = ioex;
+      }
+    }
+    for (Integer id : pending.keySet())
+    {
+      CompletableFuture<int[]> reply = pending.remove( id );
+      if (null != reply)
+      {
+        reply.completeExceptionally( ioex );
+      }
+    }
+  }
+
+  /* ------------- STATUS_PUSH  -------------- */
+
+  /**
+   * Adds a listener for the changes the server finds on the card, subscribing to them with the first. The server
+   * must have push enabled. Listeners are called on the client's reading thread, and should return quickly.
+   *
+   * @throws IOException thrown if the subscription cannot be made
+   */
+  public void addChangeListener( ChangeListener listener )
+      throws IOException
+  {
+    listeners.add( listener );
+    if (1 == listeners.size())
+    {
+      call( Op.SUBSCRIBE );
+    }
+  }
+
+  public void removeChangeListener( ChangeListener listener )
+      throws IOException
+  {
+    if (listeners.remove( listener ) && listeners.isEmpty())
+    {
+      call( Op.UNSUBSCRIBE );
+    }
+  }
+
+  /**
+   * @return the number of times a listener has thrown a RuntimeException for a change
+   */
+  public long getListenerErrorCount()
+  {
+    return listenerErrorCount.get();
+  }
+
+  /**
+   * @return the most recent RuntimeException thrown by a listener, or null if there has been none
+   */
+  public RuntimeException getLastListenerError()
+  {
+    return lastListenerError;
+  }
+
+  /* ------------- BATCHES  -------------- */
+
+  @Override
+  public MegaIOBatch batch()
+  {
+    return new MegaIOBatch( batch -> resultOf( await( sendBatch( batch ))));
+  }
+
+  /**
+   * Sends a batch without waiting for it to be made, so that one thread can have many in flight.
+   *
+   * @param batch a batch of this client's
+   * @return the values read, once the server has made the batch
+   */
+  public CompletableFuture<MegaIOBatch.Result> submit( MegaIOBatch batch )
+  {
+    return sendBatch( batch ).thenApply( MegaIOClient::resultOf );
+  }
+
+  private CompletableFuture<int[]> sendBatch( MegaIOBatch batch )
+  {
+    int[] args = new int[2 * batch.size()];
+    for (int i = 0; i < batch.size(); i++)
+    {
+      args[2 * i] = batch.code( i );
+      args[2 * i + 1] = batch.arg( i );
+    }
+    return send( Op.BATCH, args, args.length );
+  }
+
+  private static MegaIOBatch.Result resultOf( int[] values )
+  {
+    long mask = (values[0] & 0xFFFFFFFFL) | ((long) values[1] << 32);
+    byte[] registers = new byte[MegaIOBatch.REGISTER_COUNT];
+    int next = 3;
+    for (int register = 0; register < registers.length; register++)
+    {
+      if (0 != (mask & (1L << register)))
+      {
+        registers[register] = (byte) values[next++];
+      }
+    }
+    return new MegaIOBatch.Result( registers, mask, 0 != values[2] );
+  }
+
+  /* ------------- MegaIO  -------------- */
+
+  @Override
+  public int readRelays()
+      throws IOException
+  {
+    return single( Op.READ_RELAYS );
+  }
+
+  @Override
+  public boolean isRelayOn( int relayNumber )
+      throws IOException
+  {
+    return bool( Op.IS_RELAY_ON, relayNumber );
+  }
+
+  @Override
+  public boolean triggerRelay( int relayNumber, boolean on )
+      throws IOException
+  {
+    return bool( Op.TRIGGER_RELAY, relayNumber, on ? 1 : 0 );
+  }
+
+  @Override
+  public boolean writeRelays( int mask )
+      throws IOException
+  {
+    return bool( Op.WRITE_RELAYS, mask );
+  }
+
+  @Override
+  public boolean updateRelays( int setMask, int clearMask )
+      throws IOException
+  {
+    return bool( Op.UPDATE_RELAYS, setMask, clearMask );
+  }
+
+  @Override
+  public int readAnalog( int a2dChannel )
+      throws IOException
+  {
+    return single( Op.READ_ANALOG, a2dChannel );
+  }
+
+  @Override
+  public void readAnalogAll( int[] dst )
+      throws IOException
+  {
+    readAnalogRange( CHANNEL_NR_MIN, ADC_CH_NR_MAX, dst );
+  }
+
+  @Override
+  public void readAnalogRange( int firstChannel, int lastChannel, int[] dst )
+      throws IOException
+  {
+    if (dst.length < lastChannel - firstChannel + 1)
+    {
+      throw new IllegalArgumentException( "Destination array too small for channels " + firstChannel + "-"
+                                          + lastChannel );
+    }
+    int[] values = call( Op.READ_ANALOG_RANGE, firstChannel, lastChannel );
+    System.arraycopy( values, 0, dst, 0, values.length );
+  }
+
+  @Override
+  public boolean writeAnalog( int analogValue )
+      throws IOException
+  {
+    return writeAnalog( analogValue, true );
+  }
+
+  @Override
+  public boolean writeAnalog( int analogValue, boolean verify )
+      throws IOException
+  {
+    return bool( Op.WRITE_ANALOG, analogValue, verify ? 1 : 0 );
+  }
+
+  @Override
+  public boolean isGpioPinOutput( int gpioPinNumber )
+      throws IOException
+  {
+    return bool( Op.IS_GPIO_OUTPUT, gpioPinNumber );
+  }
+
+  @Override
+  public boolean setGpioPinDirection( int gpioPinNumber, boolean output )
+      throws IOException
+  {
+    return bool( Op.SET_GPIO_DIRECTION, gpioPinNumber, output ? 1 : 0 );
+  }
+
+  @Override
+  public boolean setGpioPin( int gpioPinNumber, boolean on )
+      throws IOException
+  {
+    return bool( Op.SET_GPIO_PIN, gpioPinNumber, on ? 1 : 0 );
+  }
+
+  @Override
+  public IrqState setIoIrq( int gpioPinNumber, IrqState state )
+      throws IOException
+  {
+    return IrqState.values()[single( Op.SET_IO_IRQ, gpioPinNumber, state.ordinal() )];
+  }
+
+  @Override
+  public void configureIoIrqs( IrqState[] states )
+      throws IOException
+  {
+    call( Op.CONFIGURE_IO_IRQS, ordinals( states ));
+  }
+
+  @Override
+  public boolean readGpioPin( int gpioPinNumber )
+      throws IOException
+  {
+    return bool( Op.READ_GPIO_PIN, gpioPinNumber );
+  }
+
+  @Override
+  public int readGpioPins()
+      throws IOException
+  {
+    return single( Op.READ_GPIO_PINS );
+  }
+
+  @Override
+  public int readIoIrqFlags()
+      throws IOException
+  {
+    return single( Op.READ_IO_IRQ_FLAGS );
+  }
+
+  @Override
+  public boolean readOptoIn( int optoPinNumber )
+      throws IOException
+  {
+    return bool( Op.READ_OPTO_IN, optoPinNumber );
+  }
+
+  @Override
+  public int readOptoIns()
+      throws IOException
+  {
+    return single( Op.READ_OPTO_INS );
+  }
+
+  @Override
+  public int readOptoIrqFlags()
+      throws IOException
+  {
+    return single( Op.READ_OPTO_IRQ_FLAGS );
+  }
+
+  @Override
+  public IrqState setOptoIrq( int gpioPinNumber, IrqState state )
+      throws IOException
+  {
+    return IrqState.values()[single( Op.SET_OPTO_IRQ, gpioPinNumber, state.ordinal() )];
+  }
+
+  @Override
+  public void configureOptoIrqs( IrqState[] states )
+      throws IOException
+  {
+    call( Op.CONFIGURE_OPTO_IRQS, ordinals( states ));
+  }
+
+  @Override
+  public boolean readOCPin( int ocPinNumber )
+      throws IOException
+  {
+    return bool( Op.READ_OC_PIN, ocPinNumber );
+  }
+
+  @Override
+  public boolean setOCPin( int ocPinNumber, boolean on )
+      throws IOException
+  {
+    return bool( Op.SET_OC_PIN, ocPinNumber, on ? 1 : 0 );
+  }
+
+  /**
+   * @return the ordinal of each state, -1 standing for null
+   */
+  private static int[] ordinals( IrqState[] states )
+  {
+    int[] ordinals = new int[states.length];
+    for (int i = 0; i < states.length; i++)
+    {
+      ordinals[i] = null == states[i] ? -1 : states[i].ordinal();
+    }
+    return ordinals;
+  }
+
+  /**
+   * Closes the connection. Operations still waiting for their replies throw.
+   */
+  @Override
+  public void close()
+  {
+    fail( new IOException( "Client closed" ));
+    try
+    {
+      channel.close();
+    }
+    catch( IOException ignored )
+    {
+      // closing anyway
+    }
+  }
+}
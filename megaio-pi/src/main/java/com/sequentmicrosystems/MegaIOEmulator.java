@@ -0,0 +1,575 @@
+package com.sequentmicrosystems;
+
+import com.pi4j.io.i2c.I2CDevice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.sequentmicrosystems.Constants.*;
+
+/**
+ * A software MegaIO card, for running this library without the hardware.
+ * <p>
+ * The emulator honours the card's register map: the relay ON and OFF commands and the open collector and GPIO
+ * set and clear commands act on their value registers, the ADC window reads back whatever analog inputs have
+ * been applied, the DAC registers hold the last value written, and the revision bytes report a configurable
+ * version. Inputs are driven with setOptoInput, setGpioInput and setAnalogInput; an edge enabled in the rising
+ * or falling interrupt masks raises its interrupt flag, and asserts the interrupt line returned by
+ * getInterruptLine. Reading a flag register clears it.
+ * <p>
+ * Each transaction can be made to take a fixed time plus a time per byte, to fail with a NACK at a given rate,
+ * and any register can be given stuck bits, which it reads back as set or clear whatever was written. Faults are
+ * drawn from a seeded random source so that a failing run can be repeated. Transactions are serialised, as they
+ * would be on a real bus.
+ */
+public class MegaIOEmulator implements I2CDevice
+{
+  private static final int REGISTER_COUNT = 0x40;
+
+  // parking is too coarse for short waits, so the last part of each wait is spent spinning
+  private static final long SPIN_NANOS = 50_000;
+
+  private final int address;
+  private final int[] registers = new int[REGISTER_COUNT];
+  private final int[] stuckHigh = new int[REGISTER_COUNT];
+  private final int[] stuckLow = new int[REGISTER_COUNT];
+
+  private int optoInputs = 0;
+  private int gpioInputs = 0;
+  private int gpioOutputs = 0;
+
+  private long transactionNanos = 0;
+  private long byteNanos = 0;
+  private double nackRate = 0;
+  private Random random = new Random( 0 );
+
+  private long transactions = 0;
+  private long nacks = 0;
+
+  private volatile Runnable interruptHandler = null;
+
+  /**
+   * Creates the emulation of card number 0.
+   */
+  public MegaIOEmulator()
+  {
+    this( 0 );
+  }
+
+  /**
+   * @param cardNum the stack level of the emulated card, from 0 to 3, which sets its i2c address
+   */
+  public MegaIOEmulator( int cardNum )
+  {
+    address = MEGAIO_HW_I2C_BASE_ADD + cardNum;
+    setRevision( 1, 0, 1, 0 );
+  }
+
+  /* ------------- CONFIGURATION  -------------- */
+
+  /**
+   * Sets the time each transaction takes.
+   *
+   * @param transactionNanos the fixed cost of every transaction, in nanoseconds
+   * @param byteNanos the additional cost of each byte on the wire, including the address and register bytes
+   */
+  public synchronized void setLatency( long transactionNanos, long byteNanos )
+  {
+    this.transactionNanos = transactionNanos;
+    this.byteNanos = byteNanos;
+  }
+
+  /**
+   * Sets the time each transaction takes to that of a bus running at the given clock.
+   *
+   * @param busKHz the bus clock in kHz, typically 100 or 400
+   * @param transactionNanos the fixed cost of every transaction, in nanoseconds, apart from the bytes on the wire
+   */
+  public void setBusSpeed( int busKHz, long transactionNanos )
+  {
+    // nine clocks per byte, counting the acknowledgement
+    setLatency( transactionNanos, 9_000_000L / busKHz );
+  }
+
+  /**
+   * @param nackRate the probability, from 0 to 1, that any one transaction fails with an IOException
+   */
+  public synchronized void setNackRate( double nackRate )
+  {
+    this.nackRate = nackRate;
+  }
+
+  /**
+   * Reseeds the random source from which NACKs are drawn.
+   */
+  public synchronized void setSeed( long seed )
+  {
+    random = new Random( seed );
+  }
+
+  /**
+   * Makes bits of a register read back as set or clear, whatever is written to it.
+   *
+   * @param register the register whose bits are stuck
+   * @param high the bits that always read as set
+   * @param low the bits that always read as clear
+   */
+  public synchronized void setStuckBits( int register, int high, int low )
+  {
+    stuckHigh[register] = high & 0xFF;
+    stuckLow[register] = low & 0xFF;
+  }
+
+  /**
+   * Sets the version reported in the revision registers.
+   */
+  public synchronized void setRevision( int hwMajor, int hwMinor, int fwMajor, int fwMinor )
+  {
+    registers[REVISION_HW_MAJOR_MEM_ADD] = hwMajor & 0xFF;
+    registers[REVISION_HW_MINOR_MEM_ADD] = hwMinor & 0xFF;
+    registers[REVISION_MAJOR_MEM_ADD] = fwMajor & 0xFF;
+    registers[REVISION_MINOR_MEM_ADD] = fwMinor & 0xFF;
+  }
+
+  /* ------------- INPUTS AND OUTPUTS  -------------- */
+
+  /**
+   * Applies a voltage to an OptoCoupled input.
+   *
+   * @param channel the input, from 1 to 8
+   * @param on true if a voltage is present
+   */
+  public void setOptoInput( int channel, boolean on )
+  {
+    boolean interrupt;
+    synchronized (this)
+    {
+      int previous = optoInputs;
+      optoInputs = on ? previous | bit( channel ) : previous & ~bit( channel );
+      interrupt = edge( previous, optoInputs, OPTO_IT_RISING_MEM_ADD, OPTO_IT_FALLING_MEM_ADD,
+                        OPTO_IT_FLAGS_MEM_ADD );
+    }
+    if (interrupt)
+    {
+      assertInterrupt();
+    }
+  }
+
+  /**
+   * Applies a voltage to a GPIO pin. It is only seen while the pin is configured as an input.
+   *
+   * @param pin the pin, from 1 to 6
+   * @param on true if a voltage is present
+   */
+  public void setGpioInput( int pin, boolean on )
+  {
+    boolean interrupt;
+    synchronized (this)
+    {
+      int previous = gpioValue();
+      gpioInputs = on ? gpioInputs | bit( pin ) : gpioInputs & ~bit( pin );
+      interrupt = edge( previous, gpioValue(), GPIO_EXT_IT_RISING_MEM_ADD, GPIO_EXT_IT_FALLING_MEM_ADD,
+                        GPIO_IT_FLAGS_MEM_ADD );
+    }
+    if (interrupt)
+    {
+      assertInterrupt();
+    }
+  }
+
+  /**
+   * Applies a voltage to an analog input.
+   *
+   * @param channel the input, from 1 to 8
+   * @param value the value the ADC reads, from 0 to 4095
+   */
+  public synchronized void setAnalogInput( int channel, int value )
+  {
+    int register = ADC_VAL_MEM_ADD + 2 * (channel - 1);
+    registers[register] = (value >> 8) & 0x0F;
+    registers[register + 1] = value & 0xFF;
+  }
+
+  /**
+   * @return the value last written to the DAC, from 0 to 4095
+   */
+  public synchronized int getAnalogOutput()
+  {
+    return (registers[DAC_VAL_H_MEM_ADD] & 0x0F) << 8 | registers[DAC_VAL_L_MEM_ADD];
+  }
+
+  /**
+   * @return the state of the relays, bit 0 being relay 1
+   */
+  public synchronized int getRelays()
+  {
+    return value( RELAY_MEM_ADD );
+  }
+
+  /**
+   * @return the state of the open collector outputs, bit 0 being output 1
+   */
+  public synchronized int getOCOutputs()
+  {
+    return value( OC_OUT_VAL_MEM_ADD );
+  }
+
+  /**
+   * @return the number of transactions attempted, including those that failed
+   */
+  public synchronized long getTransactionCount()
+  {
+    return transactions;
+  }
+
+  /**
+   * @return the number of transactions that failed with a NACK
+   */
+  public synchronized long getNackCount()
+  {
+    return nacks;
+  }
+
+  /**
+   * Returns the card's interrupt line, which is asserted each time an interrupt flag is raised while none was
+   * pending. The handler is called on the thread that changed the input.
+   */
+  public EdgeSource getInterruptLine()
+  {
+    return new EdgeSource()
+    {
+      @Override
+      public void start( Runnable onInterrupt )
+      {
+        interruptHandler = onInterrupt;
+      }
+
+      @Override
+      public void stop()
+      {
+        interruptHandler = null;
+      }
+    };
+  }
+
+  private void assertInterrupt()
+  {
+    Runnable handler = interruptHandler;
+    if (null != handler)
+    {
+      handler.run();
+    }
+  }
+
+  /* ------------- REGISTER SEMANTICS  -------------- */
+
+  private static int bit( int channel )
+  {
+    return 0x01 << ((channel - 1) & 0x07);
+  }
+
+  private int gpioValue()
+  {
+    int outputs = registers[GPIO_DIR_MEM_ADD];
+    return ((gpioOutputs & outputs) | (gpioInputs & ~outputs)) & 0x3F;
+  }
+
+  /**
+   * Raises the interrupt flags of any enabled edges between two input states.
+   *
+   * @return true if the interrupt line should be asserted
+   */
+  private boolean edge( int previous, int current, int risingMemAddr, int fallingMemAddr, int flagsMemAddr )
+  {
+    int changed = previous ^ current;
+    int raised = (changed & current & registers[risingMemAddr]) | (changed & ~current & registers[fallingMemAddr]);
+    if (0 == raised)
+    {
+      return false;
+    }
+    boolean idle = 0 == registers[OPTO_IT_FLAGS_MEM_ADD] && 0 == registers[GPIO_IT_FLAGS_MEM_ADD];
+    registers[flagsMemAddr] |= raised;
+    return idle;
+  }
+
+  /**
+   * Reads a register as the card would, with the side effects of doing so.
+   */
+  private int load( int register )
+  {
+    int value;
+    switch (register)
+    {
+      case OPTO_IN_MEM_ADD:
+        value = optoInputs;
+        break;
+
+      case GPIO_VAL_MEM_ADD:
+        value = gpioValue();
+        break;
+
+      case OPTO_IT_FLAGS_MEM_ADD:
+      case GPIO_IT_FLAGS_MEM_ADD:
+        value = registers[register];
+        registers[register] = 0;
+        break;
+
+      default:
+        value = register < REGISTER_COUNT ? registers[register] : 0;
+        break;
+    }
+    return stuck( register, value );
+  }
+
+  private int value( int register )
+  {
+    return stuck( register, registers[register] );
+  }
+
+  private int stuck( int register, int value )
+  {
+    if (register >= REGISTER_COUNT)
+    {
+      return value;
+    }
+    return ((value | stuckHigh[register]) & ~stuckLow[register]) & 0xFF;
+  }
+
+  /**
+   * Writes a register as the card would, with the side effects of doing so.
+   */
+  private void store( int register, int value )
+  {
+    value &= 0xFF;
+    switch (register)
+    {
+      case RELAY_ON_MEM_ADD:
+        if (value >= CHANNEL_NR_MIN && value <= RELAY_CH_NR_MAX)
+        {
+          registers[RELAY_MEM_ADD] = value( RELAY_MEM_ADD ) | bit( value );
+        }
+        break;
+
+      case RELAY_OFF_MEM_ADD:
+        if (value >= CHANNEL_NR_MIN && value <= RELAY_CH_NR_MAX)
+        {
+          registers[RELAY_MEM_ADD] = value( RELAY_MEM_ADD ) & ~bit( value );
+        }
+        break;
+
+      case OC_OUT_VAL_MEM_ADD:
+        registers[OC_OUT_VAL_MEM_ADD] = value & 0x0F;
+        break;
+
+      case OC_OUT_SET_MEM_ADD:
+        if (value >= CHANNEL_NR_MIN && value <= OC_CH_NR_MAX)
+        {
+          registers[OC_OUT_VAL_MEM_ADD] = value( OC_OUT_VAL_MEM_ADD ) | bit( value );
+        }
+        break;
+
+      case OC_OUT_CLR_MEM_ADD:
+        if (value >= CHANNEL_NR_MIN && value <= OC_CH_NR_MAX)
+        {
+          registers[OC_OUT_VAL_MEM_ADD] = value( OC_OUT_VAL_MEM_ADD ) & ~bit( value );
+        }
+        break;
+
+      case GPIO_VAL_MEM_ADD:
+        gpioOutputs = value & 0x3F;
+        break;
+
+      case GPIO_SET_MEM_ADD:
+        if (value >= CHANNEL_NR_MIN && value <= GPIO_CH_NR_MAX)
+        {
+          gpioOutputs |= bit( value );
+        }
+        break;
+
+      case GPIO_CLR_MEM_ADD:
+        if (value >= CHANNEL_NR_MIN && value <= GPIO_CH_NR_MAX)
+        {
+          gpioOutputs &= ~bit( value );
+        }
+        break;
+
+      case GPIO_DIR_MEM_ADD:
+        registers[GPIO_DIR_MEM_ADD] = value & 0x3F;
+        break;
+
+      case RELAY_MEM_ADD:
+      case DAC_VAL_H_MEM_ADD:
+      case DAC_VAL_L_MEM_ADD:
+      case OPTO_IT_RISING_MEM_ADD:
+      case OPTO_IT_FALLING_MEM_ADD:
+      case GPIO_EXT_IT_RISING_MEM_ADD:
+      case GPIO_EXT_IT_FALLING_MEM_ADD:
+        registers[register] = value;
+        break;
+
+      default:
+        // inputs, interrupt flags and revisions are read only
+        break;
+    }
+  }
+
+  /**
+   * Accounts for one transaction: fails it at the NACK rate, and otherwise waits for as long as it takes.
+   */
+  private void transaction( int bytes )
+      throws IOException
+  {
+    transactions++;
+    long cost = transactionNanos + bytes * byteNanos;
+    long end = System.nanoTime() + cost;
+    if (nackRate > 0 && random.nextDouble() < nackRate)
+    {
+      nacks++;
+      // the card gives up after its address byte
+      end = System.nanoTime() + transactionNanos + byteNanos;
+      waitUntil( end );
+      throw new IOException( String.format( "No acknowledgement from i2c device 0x%02x", address ));
+    }
+    waitUntil( end );
+  }
+
+  private static void waitUntil( long end )
+  {
+    long remaining = end - System.nanoTime();
+    if (remaining > SPIN_NANOS)
+    {
+      LockSupport.parkNanos( remaining - SPIN_NANOS );
+    }
+    while (System.nanoTime() < end)
+    {
+      // spin for the last few microseconds
+    }
+  }
+
+  /* ------------- I2CDevice  -------------- */
+
+  @Override
+  public int getAddress()
+  {
+    return address;
+  }
+
+  @Override
+  public synchronized void write( byte b )
+      throws IOException
+  {
+    transaction( 2 );
+  }
+
+  @Override
+  public synchronized void write( byte[] buffer, int offset, int size )
+      throws IOException
+  {
+    transaction( 1 + size );
+    // the first byte selects the register, the rest are written from there on
+    for (int i = 1; i < size; i++)
+    {
+      store( (buffer[offset] & 0xFF) + i - 1, buffer[offset + i] );
+    }
+  }
+
+  @Override
+  public void write( byte[] buffer )
+      throws IOException
+  {
+    write( buffer, 0, buffer.length );
+  }
+
+  @Override
+  public synchronized void write( int register, byte b )
+      throws IOException
+  {
+    transaction( 3 );
+    store( register, b );
+  }
+
+  @Override
+  public synchronized void write( int register, byte[] buffer, int offset, int size )
+      throws IOException
+  {
+    transaction( 2 + size );
+    for (int i = 0; i < size; i++)
+    {
+      store( register + i, buffer[offset + i] );
+    }
+  }
+
+  @Override
+  public void write( int register, byte[] buffer )
+      throws IOException
+  {
+    write( register, buffer, 0, buffer.length );
+  }
+
+  @Override
+  public synchronized int read()
+      throws IOException
+  {
+    transaction( 2 );
+    return load( RELAY_MEM_ADD );
+  }
+
+  @Override
+  public synchronized int read( byte[] buffer, int offset, int size )
+      throws IOException
+  {
+    transaction( 1 + size );
+    for (int i = 0; i < size; i++)
+    {
+      buffer[offset + i] = (byte) load( i );
+    }
+    return size;
+  }
+
+  @Override
+  public synchronized int read( int register )
+      throws IOException
+  {
+    transaction( 4 );
+    return load( register );
+  }
+
+  @Override
+  public synchronized int read( int register, byte[] buffer, int offset, int size )
+      throws IOException
+  {
+    transaction( 4 + size - 1 );
+    for (int i = 0; i < size; i++)
+    {
+      buffer[offset + i] = (byte) load( register + i );
+    }
+    return size;
+  }
+
+  @Override
+  public synchronized int read( byte[] writeBuffer, int writeOffset, int writeSize, byte[] readBuffer,
+                                int readOffset, int readSize )
+      throws IOException
+  {
+    transaction( 2 + writeSize + readSize );
+    int register = writeSize > 0 ? writeBuffer[writeOffset] & 0xFF : RELAY_MEM_ADD;
+    for (int i = 0; i < readSize; i++)
+    {
+      readBuffer[readOffset + i] = (byte) load( register + i );
+    }
+    return readSize;
+  }
+
+  @Override
+  public void ioctl( long command, int value )
+  {
+  }
+
+  @Override
+  public void ioctl( long command, ByteBuffer data, IntBuffer offsets )
+  {
+  }
+}
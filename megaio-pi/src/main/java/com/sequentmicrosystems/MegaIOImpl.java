@@ -3,6 +3,7 @@ package com.sequentmicrosystems;
 import com.pi4j.io.i2c.I2CBus;
 import com.pi4j.io.i2c.I2CDevice;
 import com.pi4j.io.i2c.I2CFactory;
+import com.sequentmicrosystems.MegaIOMetrics.Operation;
 
 import java.io.IOException;
 
@@ -10,13 +11,54 @@ import static com.sequentmicrosystems.Constants.*;
 
 /**
  * Created by lpassey on 7/23/18.
+ * <p>
+ * A card may be shared by any number of threads. Operations that read a register, change it and write it back,
+ * or write a register and retry until it reads back as written, hold a lock for the group of registers they
+ * touch: the relays, the open collectors, the GPIO directions, the opto interrupt masks, the GPIO interrupt
+ * masks and the DAC. Operations on different groups run concurrently, and plain reads, such as of the ADC or
+ * the inputs, take no lock at all. The register cache, if installed, is safe to share in the same way. An
+ * AsyncMegaIO on the card takes the same locks, holding them across the scheduled steps of its operations.
  */
 public class MegaIOImpl implements MegaIO
 {
+  // milliseconds to wait before checking a relay again, and by default between the steps of setting interrupt masks
+  static final long RELAY_RETRY_DELAY = 5;
+  static final long IRQ_WRITE_DELAY = 10;
+
+  /** Up to RETRY_TIMES attempts, one straight after another. */
+  public static final RetryPolicy DEFAULT_RETRY_POLICY = RetryPolicy.fixed( RETRY_TIMES, 0 );
+
   private I2CDevice device = null;
 
   private GpioWrapper gpioWrapper = new GpioWrapper();
 
+  // Reused by the bulk ADC reads so a full sweep does not allocate; one per thread, as the reads are not locked.
+  private final ThreadLocal<byte[]> adcBuffer = ThreadLocal.withInitial( () -> new byte[2 * ADC_CH_NR_MAX] );
+  // Reused by the unverified DAC writes, which may be made thousands of times a second; one per thread, so that
+  // the buffer is never shared whatever locks the write takes.
+  private final ThreadLocal<byte[]> dacBuffer = ThreadLocal.withInitial( () -> new byte[2] );
+
+  // One lock for each group of registers that is read, modified and written back, or written and verified.
+  // A thread that needs more than one takes them in the order declared here.
+  private final GroupLock relayLock = new GroupLock();
+  private final GroupLock ocLock = new GroupLock();
+  private final GroupLock gpioDirLock = new GroupLock();
+  private final GroupLock optoIrqLock = new GroupLock();
+  private final GroupLock ioIrqLock = new GroupLock();
+  private final GroupLock dacLock = new GroupLock();
+
+  // Optional shadow of the card's registers; when null every access goes to the bus.
+  private volatile RegisterCache cache = null;
+
+  private volatile long irqWriteDelay = IRQ_WRITE_DELAY;
+
+  // Optional operation metrics; when null nothing is measured.
+  private volatile MegaIOMetrics metrics = null;
+
+  private volatile RetryPolicy retryPolicy = DEFAULT_RETRY_POLICY;
+  // Optional circuit breaker; when null every transaction goes to the bus.
+  private volatile CircuitBreaker breaker = null;
+
   private MegaIOImpl()  {}
 
   public MegaIOImpl( int cardNum )
@@ -25,28 +67,750 @@ public class MegaIOImpl implements MegaIO
     // get the I2C bus to communicate on
     I2CBus i2c = I2CFactory.getInstance( I2CBus.BUS_1 );
 
-    // create an I2C device object for the MegaIO card, typically 0x31
-    device = i2c.getDevice( MEGAIO_HW_I2C_BASE_ADD + cardNum );
+    // create an I2C device object for the MegaIO card, typically 0x31
+    device = i2c.getDevice( MEGAIO_HW_I2C_BASE_ADD + cardNum );
+  }
+
+  /**
+   * Creates a card on an i2c device obtained elsewhere, such as a shared bus or a MegaIOEmulator. Retries are
+   * paced with Thread.sleep, so no native library is needed; to pace them with wiringPi's delay instead, pass a
+   * GpioWrapper to the two argument constructor.
+   *
+   * @param device the i2c device of the MegaIO card
+   */
+  public MegaIOImpl( I2CDevice device )
+  {
+    this( device, new SleepingGpioWrapper() );
+  }
+
+  /**
+   * Creates a card on an i2c device obtained elsewhere, such as a shared bus or a stand-in for testing.
+   *
+   * @param device the i2c device of the MegaIO card
+   * @param gpioWrapper the source of the delays between retries
+   */
+  public MegaIOImpl( I2CDevice device, GpioWrapper gpioWrapper )
+  {
+    this.device = device;
+    this.gpioWrapper = gpioWrapper;
+  }
+
+  String getHardwareVersion()
+      throws IOException
+  {
+    int dev, hwMajor, hwMinor;
+
+    hwMajor = readRegister( REVISION_HW_MAJOR_MEM_ADD );
+    hwMinor = readRegister( REVISION_HW_MINOR_MEM_ADD );
+    return String.format( "%d.%d", hwMajor, hwMinor );
+  }
+
+  String getFirmwareVersion()
+      throws IOException
+  {
+    int minor, major;
+
+    major = readRegister( REVISION_MAJOR_MEM_ADD );
+    minor = readRegister( REVISION_MINOR_MEM_ADD );
+    return String.format( "%d.%d", major, minor );
+  }
+
+  /* ------------- REGISTER ACCESS  -------------- */
+
+  /**
+   * Installs a shadow of the card's registers so reads of state this library owns, or has recently read, can be
+   * served without going to the bus. Writes are still verified by reading the card itself.
+   *
+   * @param cache the register cache to use, or null to send every access to the bus
+   */
+  public void setRegisterCache( RegisterCache cache )
+  {
+    this.cache = cache;
+  }
+
+  public RegisterCache getRegisterCache()
+  {
+    return cache;
+  }
+
+  /**
+   * Discards everything in the register cache, so that the next access to any register goes to the bus.
+   */
+  public void invalidate()
+  {
+    RegisterCache cache = this.cache;
+    if (null != cache)
+    {
+      cache.invalidate();
+    }
+  }
+
+  /**
+   * Reloads the register cache from the card: registers 0x00 through the interrupt masks in one block read, and
+   * the revision bytes in another. The interrupt flag registers are not read, as reading them acknowledges any
+   * pending interrupt.
+   *
+   * @throws IOException thrown in case bytes cannot be read from the i2c device or i2c bus
+   */
+  public void refresh()
+      throws IOException
+  {
+    RegisterCache cache = this.cache;
+    if (null == cache)
+    {
+      return;
+    }
+    cache.invalidate();
+    byte[] registers = new byte[GPIO_EXT_IT_FALLING_MEM_ADD + 1];
+    readBlock( RELAY_MEM_ADD, registers, 0, registers.length );
+    readBlock( REVISION_HW_MAJOR_MEM_ADD, registers, 0, 4 );
+  }
+
+  int readRegister( int address )
+      throws IOException
+  {
+    RegisterCache cache = this.cache;
+    if (null != cache)
+    {
+      int value = cache.get( address );
+      if (value >= 0)
+      {
+        return value;
+      }
+      long stamp = cache.stamp();
+      value = busRead( address );
+      cache.loaded( address, value, stamp );
+      return value;
+    }
+    return busRead( address );
+  }
+
+  /**
+   * Reads a register from the card even when it is cached, to confirm that a write took effect.
+   */
+  private int verifyRegister( int address )
+      throws IOException
+  {
+    RegisterCache cache = this.cache;
+    long stamp = null == cache ? 0 : cache.stamp();
+    int value = busRead( address );
+    if (null != cache)
+    {
+      cache.loaded( address, value, stamp );
+    }
+    return value;
+  }
+
+  void writeRegister( int address, int value )
+      throws IOException
+  {
+    busWrite( address, (byte) value );
+    RegisterCache cache = this.cache;
+    if (null != cache)
+    {
+      cache.written( address, value );
+    }
+  }
+
+  void readBlock( int address, byte[] buffer, int offset, int size )
+      throws IOException
+  {
+    RegisterCache cache = this.cache;
+    long stamp = 0;
+    if (null != cache)
+    {
+      stamp = cache.stamp();
+      boolean hit = true;
+      for (int i = 0; i < size && hit; i++)
+      {
+        int value = cache.get( address + i );
+        hit = value >= 0;
+        buffer[offset + i] = (byte) value;
+      }
+      if (hit)
+      {
+        return;
+      }
+    }
+    busRead( address, buffer, offset, size );
+    if (null != cache)
+    {
+      for (int i = 0; i < size; i++)
+      {
+        cache.loaded( address + i, buffer[offset + i], stamp );
+      }
+    }
+  }
+
+  /**
+   * Reads a block of registers from the card even when they are cached, to confirm that writes took effect.
+   */
+  void verifyBlock( int address, byte[] buffer, int offset, int size )
+      throws IOException
+  {
+    RegisterCache cache = this.cache;
+    long stamp = null == cache ? 0 : cache.stamp();
+    busRead( address, buffer, offset, size );
+    if (null != cache)
+    {
+      for (int i = 0; i < size; i++)
+      {
+        cache.loaded( address + i, buffer[offset + i], stamp );
+      }
+    }
+  }
+
+  void writeBlock( int address, byte[] buffer )
+      throws IOException
+  {
+    busWrite( address, buffer );
+    RegisterCache cache = this.cache;
+    if (null != cache)
+    {
+      for (int i = 0; i < buffer.length; i++)
+      {
+        cache.written( address + i, buffer[i] );
+      }
+    }
+  }
+
+  void writeBlock( int address, byte[] buffer, int offset, int size )
+      throws IOException
+  {
+    busWrite( address, buffer, offset, size );
+    RegisterCache cache = this.cache;
+    if (null != cache)
+    {
+      for (int i = 0; i < size; i++)
+      {
+        cache.written( address + i, buffer[offset + i] );
+      }
+    }
+  }
+
+  /* ------------- BUS  -------------- */
+
+  /**
+   * Runs a read-modify-write sequence. On a device handed out by an I2CBusArbiter the bus is held for the whole
+   * sequence, so that no other card object or thread sharing the arbiter can write the register in between.
+   * Callers take the group lock first, so that the two are always taken in the same order.
+   */
+  private <T> T exclusive( I2CBusArbiter.Priority priority, I2CBusArbiter.BusOperation<T> operation )
+      throws IOException
+  {
+    I2CDevice device = this.device;
+    if (device instanceof ArbitratedI2CDevice)
+    {
+      return ((ArbitratedI2CDevice) device).exclusive( priority, operation );
+    }
+    return operation.run();
+  }
+
+  // Every transaction with the card goes through one of these, so that the circuit breaker sees them all.
+
+  private int busRead( int address )
+      throws IOException
+  {
+    CircuitBreaker breaker = admit();
+    boolean succeeded = false;
+    try
+    {
+      int value = device.read( address );
+      succeeded = true;
+      return value;
+    }
+    finally
+    {
+      completed( breaker, succeeded );
+    }
+  }
+
+  private void busRead( int address, byte[] buffer, int offset, int size )
+      throws IOException
+  {
+    CircuitBreaker breaker = admit();
+    boolean succeeded = false;
+    try
+    {
+      device.read( address, buffer, offset, size );
+      succeeded = true;
+    }
+    finally
+    {
+      completed( breaker, succeeded );
+    }
+  }
+
+  private void busWrite( int address, byte value )
+      throws IOException
+  {
+    CircuitBreaker breaker = admit();
+    boolean succeeded = false;
+    try
+    {
+      device.write( address, value );
+      succeeded = true;
+    }
+    finally
+    {
+      completed( breaker, succeeded );
+    }
+  }
+
+  private void busWrite( int address, byte[] buffer )
+      throws IOException
+  {
+    CircuitBreaker breaker = admit();
+    boolean succeeded = false;
+    try
+    {
+      device.write( address, buffer );
+      succeeded = true;
+    }
+    finally
+    {
+      completed( breaker, succeeded );
+    }
+  }
+
+  private void busWrite( int address, byte[] buffer, int offset, int size )
+      throws IOException
+  {
+    CircuitBreaker breaker = admit();
+    boolean succeeded = false;
+    try
+    {
+      device.write( address, buffer, offset, size );
+      succeeded = true;
+    }
+    finally
+    {
+      completed( breaker, succeeded );
+    }
+  }
+
+  /**
+   * @return the circuit breaker, which has let a transaction through, or null if there is none
+   */
+  private CircuitBreaker admit()
+      throws CircuitOpenException
+  {
+    CircuitBreaker breaker = this.breaker;
+    if (null != breaker)
+    {
+      breaker.admit();
+    }
+    return breaker;
+  }
+
+  /**
+   * Tells the circuit breaker how a transaction it let through went. Anything but a normal return, an unchecked
+   * exception as much as an IOException, counts as a failure, so that a half-open breaker never waits for ever on
+   * a probe that did not finish.
+   */
+  private static void completed( CircuitBreaker breaker, boolean succeeded )
+  {
+    if (null == breaker)
+    {
+      return;
+    }
+    if (succeeded)
+    {
+      breaker.succeeded();
+    }
+    else
+    {
+      breaker.failed();
+    }
+  }
+
+  // the card's registers as a batch sees them
+  private final MegaIOBatch.RegisterAccess batchAccess = new MegaIOBatch.RegisterAccess()
+  {
+    @Override
+    public void read( int address, byte[] buffer, int offset, int size, boolean verify )
+        throws IOException
+    {
+      if (verify)
+      {
+        verifyBlock( address, buffer, offset, size );
+      }
+      else
+      {
+        readBlock( address, buffer, offset, size );
+      }
+    }
+
+    @Override
+    public void write( int address, byte[] buffer, int offset, int size )
+        throws IOException
+    {
+      writeBlock( address, buffer, offset, size );
+    }
+
+    @Override
+    public void delay( long millis )
+    {
+      gpioWrapper.delay( millis );
+    }
+
+    @Override
+    public RetryPolicy retryPolicy()
+    {
+      return retryPolicy;
+    }
+
+    @Override
+    public <T> T exclusive( I2CBusArbiter.BusOperation<T> operation )
+        throws IOException
+    {
+      return MegaIOImpl.this.exclusive( I2CBusArbiter.Priority.CRITICAL, operation );
+    }
+  };
+
+  /* ------------- METRICS  -------------- */
+
+  /**
+   * Installs the metrics in which every operation on the card records its latency, retries and errors.
+   *
+   * @param metrics the metrics to record in, or null to record nothing
+   */
+  public void setMetrics( MegaIOMetrics metrics )
+  {
+    this.metrics = metrics;
+  }
+
+  public MegaIOMetrics getMetrics()
+  {
+    return metrics;
+  }
+
+  /**
+   * @return the start time of an operation, or 0 if no metrics are being recorded
+   */
+  long begin()
+  {
+    return null == metrics ? 0 : System.nanoTime();
+  }
+
+  void end( Operation operation, long start, int retries, boolean gaveUp )
+  {
+    MegaIOMetrics m = metrics;
+    if (null != m && 0 != start)
+    {
+      m.get( operation ).completed( start, retries, gaveUp );
+    }
+  }
+
+  void i2cError( Operation operation )
+  {
+    MegaIOMetrics m = metrics;
+    if (null != m)
+    {
+      m.get( operation ).i2cError();
+    }
+  }
+
+  /**
+   * The body of an operation that is measured as a whole.
+   */
+  private interface Measured<T>
+  {
+    T run()
+        throws IOException;
+  }
+
+  /**
+   * Runs an operation made of one attempt, recording its latency in the metrics, and as an i2c error and a
+   * failure if it throws. A call turned away by an open circuit breaker never reached the bus, so is a failure
+   * but not an i2c error.
+   */
+  private <T> T metered( Operation operation, Measured<T> body )
+      throws IOException
+  {
+    long start = begin();
+    boolean failed = true;
+    try
+    {
+      T result = body.run();
+      failed = false;
+      return result;
+    }
+    catch( IOException ioex )
+    {
+      i2cError( operation, ioex );
+      throw ioex;
+    }
+    finally
+    {
+      end( operation, start, 0, failed );
+    }
+  }
+
+  /**
+   * A single transfer with the card, of one register or of a block of them.
+   */
+  private interface Transfer
+  {
+    /**
+     * @return the register read, or 0 for a block
+     */
+    int run( int address, byte[] buffer, int size )
+        throws IOException;
+  }
+
+  // Made once, rather than a lambda a call, so that reading the inputs and writing the DAC allocate nothing.
+  private final Transfer registerRead = (address, buffer, size) -> readRegister( address );
+  private final Transfer blockRead = (address, buffer, size) ->
+  {
+    readBlock( address, buffer, 0, size );
+    return 0;
+  };
+  // writes the whole buffer
+  private final Transfer blockWrite = (address, buffer, size) ->
+  {
+    writeBlock( address, buffer );
+    return 0;
+  };
+
+  /**
+   * As metered, for an operation made of a single transfer, without allocating.
+   */
+  private int metered( Operation operation, Transfer transfer, int address, byte[] buffer, int size )
+      throws IOException
+  {
+    long start = begin();
+    boolean failed = true;
+    try
+    {
+      int value = transfer.run( address, buffer, size );
+      failed = false;
+      return value;
+    }
+    catch( IOException ioex )
+    {
+      i2cError( operation, ioex );
+      throw ioex;
+    }
+    finally
+    {
+      end( operation, start, 0, failed );
+    }
+  }
+
+  /**
+   * Counts an i2c error, unless the call was turned away by an open circuit breaker and never reached the bus.
+   */
+  void i2cError( Operation operation, IOException ioex )
+  {
+    if (!(ioex instanceof CircuitOpenException))
+    {
+      i2cError( operation );
+    }
+  }
+
+  /**
+   * Reads a register as a measured operation of its own.
+   */
+  private int readRegister( Operation operation, int address )
+      throws IOException
+  {
+    return metered( operation, registerRead, address, null, 0 );
+  }
+
+  /* ------------- RETRIES  -------------- */
+
+  /**
+   * Sets how often, and after how long, the operations that write to the card and read back what they wrote are
+   * tried again when the value does not take. Relays are always given time to settle between attempts.
+   *
+   * @param retryPolicy the policy, or null for DEFAULT_RETRY_POLICY
+   */
+  public void setRetryPolicy( RetryPolicy retryPolicy )
+  {
+    this.retryPolicy = null == retryPolicy ? DEFAULT_RETRY_POLICY : retryPolicy;
+  }
+
+  public RetryPolicy getRetryPolicy()
+  {
+    return retryPolicy;
+  }
+
+  /**
+   * Installs a circuit breaker to see every transaction with the card, so that a card which keeps failing fails
+   * fast rather than holding up the bus. A breaker must not be shared between cards.
+   *
+   * @param breaker the breaker, or null to send every transaction to the bus
+   */
+  public void setCircuitBreaker( CircuitBreaker breaker )
+  {
+    this.breaker = breaker;
+  }
+
+  public CircuitBreaker getCircuitBreaker()
+  {
+    return breaker;
+  }
+
+  /**
+   * One attempt at an operation that writes to the card and reads back what it wrote.
+   */
+  private interface Attempt
+  {
+    /**
+     * @return true if the card holds what was written
+     */
+    boolean run()
+        throws IOException;
+  }
+
+  /**
+   * Makes attempts at an operation until one takes or the retry policy gives up, and records the operation in
+   * the metrics. An open circuit breaker ends the operation at once.
+   *
+   * @param start the start of the operation, from begin()
+   * @param pause the least time to wait between attempts, in milliseconds
+   * @return true if an attempt took, false if the policy gave up after an attempt that did not
+   * @throws IOException the failure of the last attempt, if it failed on the bus
+   */
+  private boolean attempt( Operation operation, long start, long pause, Attempt attempt )
+      throws IOException
+  {
+    RetryPolicy policy = retryPolicy;
+    long began = System.nanoTime();
+    int attempts = 0;
+    while (true)
+    {
+      IOException failure = null;
+      boolean took = false;
+      attempts++;
+      try
+      {
+        took = attempt.run();
+      }
+      catch( CircuitOpenException open )
+      {
+        end( operation, start, attempts - 1, true );
+        throw open;
+      }
+      catch( IOException ioex )
+      {
+        i2cError( operation );
+        failure = ioex;
+      }
+      if (took)
+      {
+        end( operation, start, attempts - 1, false );
+        return true;
+      }
+
+      long wait = policy.nextDelay( attempts, System.nanoTime() - began );
+      if (wait < 0)
+      {
+        // we've tried too many times, give up
+        end( operation, start, attempts - 1, true );
+        if (null != failure)
+        {
+          throw failure;
+        }
+        return false;
+      }
+      wait = Math.max( wait, pause );
+      if (wait > 0)
+      {
+        gpioWrapper.delay( wait );
+      }
+    }
+  }
+
+  /* ------------- BATCHES  -------------- */
+
+  @Override
+  public MegaIOBatch batch()
+  {
+    return new MegaIOBatch( this::executeBatch );
+  }
+
+  private MegaIOBatch.Result executeBatch( MegaIOBatch batch )
+      throws IOException
+  {
+    boolean relays = false;
+    boolean oc = false;
+    boolean dac = false;
+    for (int i = 0; i < batch.size(); i++)
+    {
+      switch (batch.code( i ))
+      {
+        case MegaIOBatch.WRITE_RELAYS:
+        case MegaIOBatch.TRIGGER_RELAY:
+          relays = true;
+          break;
+
+        case MegaIOBatch.SET_OC_PIN:
+          oc = true;
+          break;
+
+        case MegaIOBatch.WRITE_ANALOG:
+          dac = true;
+          break;
+
+        default:
+          break;
+      }
+    }
+
+    // in the declared order, so that a batch cannot deadlock with another batch or operation
+    lock( relays, relayLock );
+    lock( oc, ocLock );
+    lock( dac, dacLock );
+    try
+    {
+      return runBatch( batch );
+    }
+    finally
+    {
+      unlock( dac, dacLock );
+      unlock( oc, ocLock );
+      unlock( relays, relayLock );
+    }
   }
 
-  String getHardwareVersion()
-      throws IOException
+  private static void lock( boolean needed, GroupLock lock )
   {
-    int dev, hwMajor, hwMinor;
+    if (needed)
+    {
+      lock.lock();
+    }
+  }
 
-    hwMajor = device.read( REVISION_HW_MAJOR_MEM_ADD );
-    hwMinor = device.read( REVISION_HW_MINOR_MEM_ADD );
-    return String.format( "%d.%d", hwMajor, hwMinor );
+  private static void unlock( boolean held, GroupLock lock )
+  {
+    if (held)
+    {
+      lock.unlock();
+    }
   }
 
-  String getFirmwareVersion()
+  private MegaIOBatch.Result runBatch( MegaIOBatch batch )
       throws IOException
   {
-    int minor, major;
-
-    major = device.read( REVISION_MAJOR_MEM_ADD );
-    minor = device.read( REVISION_MINOR_MEM_ADD );
-    return String.format( "%d.%d", major, minor );
+    long start = begin();
+    boolean failed = true;
+    try
+    {
+      MegaIOBatch.Result result = batch.run( batchAccess );
+      failed = !result.isVerified();
+      return result;
+    }
+    catch( IOException ioex )
+    {
+      i2cError( Operation.BATCH, ioex );
+      throw ioex;
+    }
+    finally
+    {
+      end( Operation.BATCH, start, 0, failed );
+    }
   }
 
   /* ------------- RELAYS  -------------- */
@@ -54,47 +818,115 @@ public class MegaIOImpl implements MegaIO
   public int readRelays()
       throws IOException
   {
-    return device.read( RELAY_MEM_ADD );
+    return readRegister( Operation.READ_RELAYS, RELAY_MEM_ADD );
   }
 
   @Override
   public boolean isRelayOn( int relayNumber )
       throws IOException
   {
-    return readPin( RELAY_MEM_ADD, relayNumber );
+    return readPin( Operation.READ_RELAYS, RELAY_MEM_ADD, relayNumber );
   }
 
   @Override
   public boolean triggerRelay( int relayNumber, boolean on )
       throws IOException
   {
-    int retry = RETRY_TIMES;
+    relayLock.lock();
+    try
+    {
+      return triggerRelayLocked( relayNumber, on );
+    }
+    finally
+    {
+      relayLock.unlock();
+    }
+  }
 
-    while (on != isRelayOn( relayNumber ) && retry > 0)
+  private boolean triggerRelayLocked( int relayNumber, boolean on )
+      throws IOException
+  {
+    long start = begin();
+    try
     {
-      try
-      {
-        device.write( on ? RELAY_ON_MEM_ADD : RELAY_OFF_MEM_ADD, (byte) (relayNumber & 0xFF) );
-      }
-      catch( IOException ioex )
+      if (on == readPin( RELAY_MEM_ADD, relayNumber ))
       {
-        if (1 == retry)
-        {
-          throw ioex;
-        }
+        end( Operation.TRIGGER_RELAY, start, 0, false );
+        return true;
       }
-      gpioWrapper.delay( 5 );
-       --retry;
     }
-    return retry > 0;
+    catch( IOException ioex )
+    {
+      i2cError( Operation.TRIGGER_RELAY, ioex );
+      end( Operation.TRIGGER_RELAY, start, 0, true );
+      throw ioex;
+    }
+    return attempt( Operation.TRIGGER_RELAY, start, 0, () ->
+    {
+      writeRegister( on ? RELAY_ON_MEM_ADD : RELAY_OFF_MEM_ADD, relayNumber & 0xFF );
+      gpioWrapper.delay( RELAY_RETRY_DELAY );
+      return on == readPin( RELAY_MEM_ADD, relayNumber );
+    } );
+  }
+
+  @Override
+  public boolean writeRelays( int mask )
+      throws IOException
+  {
+    relayLock.lock();
+    try
+    {
+      return writeRelaysLocked( mask & 0xFF );
+    }
+    finally
+    {
+      relayLock.unlock();
+    }
+  }
+
+  private boolean writeRelaysLocked( int mask )
+      throws IOException
+  {
+    return attempt( Operation.WRITE_RELAYS, begin(), RELAY_RETRY_DELAY, () ->
+    {
+      writeRegister( RELAY_MEM_ADD, mask );
+      return mask == verifyRegister( RELAY_MEM_ADD );
+    } );
+  }
+
+  @Override
+  public boolean updateRelays( int setMask, int clearMask )
+      throws IOException
+  {
+    relayLock.lock();
+    try
+    {
+      // the bus is held from the read to the read back of each attempt, but not while waiting between attempts
+      return attempt( Operation.WRITE_RELAYS, begin(), RELAY_RETRY_DELAY, () ->
+          exclusive( I2CBusArbiter.Priority.CRITICAL, () ->
+          {
+            int relays = readRegister( RELAY_MEM_ADD );
+            int desired = (relays | setMask) & ~clearMask & 0xFF;
+            if (desired == relays)
+            {
+              return true;
+            }
+            writeRegister( RELAY_MEM_ADD, desired );
+            return desired == verifyRegister( RELAY_MEM_ADD );
+          } ));
+    }
+    finally
+    {
+      relayLock.unlock();
+    }
   }
 
   /* ------------- ADC/DAC  -------------- */
-  private int readShort( int address )
+  int readShort( int address )
       throws IOException
   {
     byte[] buffer = new byte[2];
-    device.read( address, buffer, 0, 2 );
+    readBlock( address, buffer, 0, 2 );
     return (buffer[0] << 8) | (buffer[1] & 0xFF );
 
   }
@@ -104,46 +936,107 @@ public class MegaIOImpl implements MegaIO
       throws IOException
   {
     int address = ADC_VAL_MEM_ADD + 2 * (channel - 1);
-    return readShort( address );
+    return metered( Operation.READ_ANALOG, () -> readShort( address ));
+  }
+
+  @Override
+  public void readAnalogAll( int[] dst )
+      throws IOException
+  {
+    readAnalogRange( CHANNEL_NR_MIN, ADC_CH_NR_MAX, dst );
+  }
+
+  @Override
+  public void readAnalogRange( int firstChannel, int lastChannel, int[] dst )
+      throws IOException
+  {
+    if (firstChannel < CHANNEL_NR_MIN || lastChannel > ADC_CH_NR_MAX || lastChannel < firstChannel)
+    {
+      throw new IllegalArgumentException( "Invalid analog channel range " + firstChannel + "-" + lastChannel );
+    }
+    int count = lastChannel - firstChannel + 1;
+    if (dst.length < count)
+    {
+      throw new IllegalArgumentException( "Destination array too small for " + count + " channels" );
+    }
+
+    // The channels are laid out high byte first, two bytes apiece, so the whole range is one block read.
+    byte[] adcBuffer = this.adcBuffer.get();
+    metered( Operation.READ_ANALOG, blockRead, ADC_VAL_MEM_ADD + 2 * (firstChannel - 1), adcBuffer, 2 * count );
+    for (int i = 0; i < count; i++)
+    {
+      dst[i] = (adcBuffer[2 * i] << 8) | (adcBuffer[2 * i + 1] & 0xFF);
+    }
+  }
+
+  @Override
+  public boolean writeAnalog( int analogValue, boolean verify )
+      throws IOException
+  {
+    if (verify)
+    {
+      return writeAnalog( analogValue );
+    }
+    byte[] dacBuffer = this.dacBuffer.get();
+    dacBuffer[0] = (byte) ((analogValue >> 8) & 0xF);
+    dacBuffer[1] = (byte) (analogValue & 0xFF);
+    // the lock keeps this write from landing in the middle of a verified one
+    dacLock.lock();
+    try
+    {
+      metered( Operation.WRITE_ANALOG, blockWrite, DAC_VAL_H_MEM_ADD, dacBuffer, 2 );
+      return true;
+    }
+    finally
+    {
+      dacLock.unlock();
+    }
   }
 
   @Override
   public boolean writeAnalog( int analogValue )
       throws IOException
+  {
+    dacLock.lock();
+    try
+    {
+      return writeAnalogLocked( analogValue );
+    }
+    finally
+    {
+      dacLock.unlock();
+    }
+  }
+
+  private boolean writeAnalogLocked( int analogValue )
+      throws IOException
   {
     byte[] byteStreamFromInteger = new byte[2];
     byteStreamFromInteger[1] = (byte) (analogValue & 0xFF);
     byteStreamFromInteger[0] = (byte) ((analogValue >> 8) & 0xF);
 
-    int retry = RETRY_TIMES;
-    while (retry > 0)
+    return attempt( Operation.WRITE_ANALOG, begin(), 0, () ->
     {
-      try
-      {
-        device.write( DAC_VAL_H_MEM_ADD, byteStreamFromInteger );
-        if (analogValue == readShort( DAC_VAL_H_MEM_ADD ))
-        {
-          break;
-        }
-      }
-      catch( IOException ioex )
-      {
-        if ( 1 == retry)
-        {
-          // we've tried too many times, give up
-          throw ioex;
-        }
-      }
-      retry--;
-    }
-    return retry != 0;
+      writeBlock( DAC_VAL_H_MEM_ADD, byteStreamFromInteger );
+      byte[] readBack = new byte[2];
+      verifyBlock( DAC_VAL_H_MEM_ADD, readBack, 0, 2 );
+      return analogValue == ((readBack[0] << 8) | (readBack[1] & 0xFF));
+    } );
   }
 
-  private boolean readPin( int memoryAddress, int pinNumber )
+  boolean readPin( int memoryAddress, int pinNumber )
       throws IOException
   {
     int bitMask = 0x01 << (pinNumber - 1);    // Isolate the one pin whose status interests us.
-    int pinValues = device.read( memoryAddress );
+    int pinValues = readRegister( memoryAddress );
+    return 0 != (pinValues & bitMask);
+  }
+
+  private boolean readPin( Operation operation, int memoryAddress, int pinNumber )
+      throws IOException
+  {
+    int bitMask = 0x01 << (pinNumber - 1);
+    int pinValues = readRegister( operation, memoryAddress );
     return 0 != (pinValues & bitMask);
   }
 
@@ -152,101 +1045,254 @@ public class MegaIOImpl implements MegaIO
   public boolean isGpioPinOutput( int gpioPinNumber )
       throws IOException
   {
-    return readPin( GPIO_DIR_MEM_ADD, gpioPinNumber );
+    return readPin( Operation.READ_GPIO, GPIO_DIR_MEM_ADD, gpioPinNumber );
   }
 
   @Override
   public boolean setGpioPinDirection( int gpioPinNumber, boolean output )
       throws IOException
   {
-    // get direction flags for all pins
-    int pinDirections = device.read( GPIO_DIR_MEM_ADD );
-    int bitMask = 0x01 << (gpioPinNumber - 1);    // Isolate the one pin whose status interests us.
-
-    if (output)
+    return metered( Operation.WRITE_GPIO, () ->
     {
-      pinDirections = pinDirections | bitMask;
-    }
-    else
-    {
-      pinDirections = pinDirections & ~bitMask;
-    }
+      gpioDirLock.lock();
+      try
+      {
+        return exclusive( I2CBusArbiter.Priority.NORMAL, () ->
+        {
+          // get direction flags for all pins
+          int pinDirections = readRegister( GPIO_DIR_MEM_ADD );
+          int bitMask = 0x01 << (gpioPinNumber - 1);    // Isolate the one pin whose status interests us.
+
+          if (output)
+          {
+            pinDirections = pinDirections | bitMask;
+          }
+          else
+          {
+            pinDirections = pinDirections & ~bitMask;
+          }
 
-    device.write( GPIO_DIR_MEM_ADD, (byte) ( 0xff & pinDirections ));
-    return readPin( GPIO_DIR_MEM_ADD, gpioPinNumber );
+          writeRegister( GPIO_DIR_MEM_ADD, 0xff & pinDirections );
+          return 0 != (verifyRegister( GPIO_DIR_MEM_ADD ) & bitMask);
+        } );
+      }
+      finally
+      {
+        gpioDirLock.unlock();
+      }
+    } );
   }
 
   @Override
   public boolean setGpioPin( int gpioPinNumber, boolean on )
       throws IOException
   {
-    if (on)
+    metered( Operation.WRITE_GPIO, () ->
     {
-      device.write( GPIO_SET_MEM_ADD, (byte) gpioPinNumber );
-    }
-    else
+      writeRegister( on ? GPIO_SET_MEM_ADD : GPIO_CLR_MEM_ADD, gpioPinNumber );
+      return null;
+    } );
+    return on;
+  }
+
+  @Override
+  public int readIoIrqFlags()
+      throws IOException
+  {
+    int flags = readRegister( Operation.READ_IRQ_FLAGS, GPIO_IT_FLAGS_MEM_ADD );
+    RegisterCache cache = this.cache;
+    if (0 != flags && null != cache)
     {
-      device.write( GPIO_CLR_MEM_ADD, (byte) gpioPinNumber );
+      // at least one pin has changed since it was last read
+      cache.invalidate( GPIO_VAL_MEM_ADD );
     }
-    return on;
+    return flags;
   }
 
-  /*
-  * doIoIt
-  * Read the pending interrupt(s) on XPIO Pin(s)\n");
-  ******************************************************************************************
-  *
-    if (argc == 3)
+  /**
+   * @return the rising edge interrupt mask with the masked pins set to the given state
+   */
+  static int risingMask( int rValRising, int bitMask, IrqState state )
+  {
+    if (IrqState.RISING == state || IrqState.BOTH == state)
     {
-      val = readReg8(dev,GPIO_IT_FLAGS_MEM_ADD );
-      printf("%d\n", val);
+      return rValRising | bitMask;
     }
-    else
+    return rValRising & ~bitMask;
+  }
+
+  /**
+   * @return the falling edge interrupt mask with the masked pins set to the given state
+   */
+  static int fallingMask( int rValFalling, int bitMask, IrqState state )
+  {
+    if (IrqState.FALLING == state || IrqState.BOTH == state)
     {
-      printf( "Invalid command\n");
-      exit(1);
+      return rValFalling | bitMask;
     }
+    return rValFalling & ~bitMask;
   }
-  */
 
   private IrqState setIrq( int pinNumber, IrqState state, int risingMemAddr, int fallingMemAddr )
       throws IOException
   {
-    int bitMask = 0x01 << (pinNumber - 1);    // Isolate the one pin whose status interests us.
-    int rValRising = device.read( risingMemAddr );
-    gpioWrapper.delay( 10 );
-    int rValFalling = device.read( fallingMemAddr );
-    switch (state)
-    {
-      case DISABLED:
-        rValRising &= ~(bitMask);
-        rValFalling &= ~(bitMask);
-        break;
-
-      case RISING:
-        rValRising |= bitMask;
-        rValFalling &= ~(bitMask);
-        break;
-
-      case FALLING:
-        rValFalling |= bitMask;
-        rValRising &= ~(bitMask);
-        break;
-
-      case BOTH:
-        rValFalling |= bitMask;
-        rValRising |= bitMask;
-        break;
+    GroupLock lock = irqLock( risingMemAddr );
+    metered( Operation.CONFIGURE_IRQS, () ->
+    {
+      lock.lock();
+      try
+      {
+        writeIrq( pinNumber, state, risingMemAddr, fallingMemAddr );
+        return null;
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    } );
+    return state;
+  }
+
+  /**
+   * @return the lock guarding the pair of interrupt masks that starts at the given register
+   */
+  private GroupLock irqLock( int risingMemAddr )
+  {
+    return OPTO_IT_RISING_MEM_ADD == risingMemAddr ? optoIrqLock : ioIrqLock;
+  }
 
+  /**
+   * @return the lock of the group of registers a register belongs to, or null for a register in no group; for
+   *         AsyncMegaIO, which takes it without blocking and holds it across the steps of an operation
+   */
+  GroupLock lockOf( int register )
+  {
+    switch (register)
+    {
+      case RELAY_MEM_ADD:
+      case RELAY_ON_MEM_ADD:
+      case RELAY_OFF_MEM_ADD:
+        return relayLock;
+      case OC_OUT_VAL_MEM_ADD:
+      case OC_OUT_SET_MEM_ADD:
+      case OC_OUT_CLR_MEM_ADD:
+        return ocLock;
+      case GPIO_DIR_MEM_ADD:
+        return gpioDirLock;
+      case OPTO_IT_RISING_MEM_ADD:
+      case OPTO_IT_FALLING_MEM_ADD:
+        return optoIrqLock;
+      case GPIO_EXT_IT_RISING_MEM_ADD:
+      case GPIO_EXT_IT_FALLING_MEM_ADD:
+        return ioIrqLock;
+      case DAC_VAL_H_MEM_ADD:
+      case DAC_VAL_L_MEM_ADD:
+        return dacLock;
       default:
-        break;
+        return null;
     }
-    gpioWrapper.delay( 10 );
+  }
 
-    device.write( risingMemAddr, (byte) (0xff & rValRising) );
-    gpioWrapper.delay( 10 );
-    device.write( fallingMemAddr, (byte) (0xff & rValFalling) );
-    return state;
+  private void writeIrq( int pinNumber, IrqState state, int risingMemAddr, int fallingMemAddr )
+      throws IOException
+  {
+    int bitMask = 0x01 << (pinNumber - 1);    // Isolate the one pin whose status interests us.
+    updateMask( risingMemAddr, bitMask, risingMask( 0, bitMask, state ));
+    irqPause();
+    updateMask( fallingMemAddr, bitMask, fallingMask( 0, bitMask, state ));
+  }
+
+  /**
+   * Sets some of the pins of an interrupt mask, leaving the others alone. On a shared bus nothing comes between
+   * the read and the write back, which is why the pauses the card needs are made between masks, not within one.
+   *
+   * @param pins the pins to set
+   * @param values the values of those pins
+   */
+  void updateMask( int memAddr, int pins, int values )
+      throws IOException
+  {
+    exclusive( I2CBusArbiter.Priority.NORMAL, () ->
+    {
+      int rVal = readRegister( memAddr );
+      writeRegister( memAddr, 0xff & ((rVal & ~pins) | (values & pins)) );
+      return null;
+    } );
+  }
+
+  private void configureIrqs( IrqState[] states, int pinCount, int risingMemAddr, int fallingMemAddr )
+      throws IOException
+  {
+    GroupLock lock = irqLock( risingMemAddr );
+    metered( Operation.CONFIGURE_IRQS, () ->
+    {
+      lock.lock();
+      try
+      {
+        writeIrqs( states, pinCount, risingMemAddr, fallingMemAddr );
+        return null;
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    } );
+  }
+
+  private void writeIrqs( IrqState[] states, int pinCount, int risingMemAddr, int fallingMemAddr )
+      throws IOException
+  {
+    int count = Math.min( states.length, pinCount );
+    int pins = 0;
+    int rValRising = 0;
+    int rValFalling = 0;
+    for (int i = 0; i < count; i++)
+    {
+      if (null != states[i])
+      {
+        pins |= 0x01 << i;
+        rValRising = risingMask( rValRising, 0x01 << i, states[i] );
+        rValFalling = fallingMask( rValFalling, 0x01 << i, states[i] );
+      }
+    }
+
+    if (pins != (0x01 << pinCount) - 1)
+    {
+      // some pins are to be left alone, so we need to know their current state
+      updateMask( risingMemAddr, pins, rValRising );
+      irqPause();
+      updateMask( fallingMemAddr, pins, rValFalling );
+      return;
+    }
+    writeRegister( risingMemAddr, 0xff & rValRising );
+    irqPause();
+    writeRegister( fallingMemAddr, 0xff & rValFalling );
+  }
+
+  /**
+   * Sets how long to wait between updating the rising and the falling edge interrupt masks, giving the card's
+   * firmware time to process each. The default is 10 milliseconds; with firmware known to keep up without it, set it to
+   * 0 to skip the waits entirely.
+   *
+   * @param millis the number of milliseconds to wait between accesses, or 0 not to wait
+   */
+  public void setIrqWriteDelay( long millis )
+  {
+    irqWriteDelay = millis;
+  }
+
+  public long getIrqWriteDelay()
+  {
+    return irqWriteDelay;
+  }
+
+  private void irqPause()
+  {
+    long millis = irqWriteDelay;
+    if (millis > 0)
+    {
+      gpioWrapper.delay( millis );
+    }
   }
 
   @Override
@@ -256,11 +1302,25 @@ public class MegaIOImpl implements MegaIO
     return setIrq( gpioPinNumber, state, GPIO_EXT_IT_RISING_MEM_ADD, GPIO_EXT_IT_FALLING_MEM_ADD );
   }
 
+  @Override
+  public void configureIoIrqs( IrqState[] states )
+      throws IOException
+  {
+    configureIrqs( states, GPIO_CH_NR_MAX, GPIO_EXT_IT_RISING_MEM_ADD, GPIO_EXT_IT_FALLING_MEM_ADD );
+  }
+
   @Override
   public boolean readGpioPin( int gpioPinNumber )
       throws IOException
   {
-    return readPin( GPIO_VAL_MEM_ADD, gpioPinNumber );
+    return readPin( Operation.READ_GPIO, GPIO_VAL_MEM_ADD, gpioPinNumber );
+  }
+
+  @Override
+  public int readGpioPins()
+      throws IOException
+  {
+    return readRegister( Operation.READ_GPIO, GPIO_VAL_MEM_ADD );
   }
 
   /* ------------- OPTICALLY ISOLATED PINS  -------------- */
@@ -268,35 +1328,29 @@ public class MegaIOImpl implements MegaIO
   public boolean readOptoIn( int optoPinNumber )
       throws IOException
   {
-    return readPin( OPTO_IN_MEM_ADD, optoPinNumber );
+    return readPin( Operation.READ_OPTO, OPTO_IN_MEM_ADD, optoPinNumber );
   }
 
-  /*
-  * doOptoInIt
-  * Read the rise event by opto in pins..
-  ******************************************************************************************
-
-  static void doOptoInIt(int argc)
+  @Override
+  public int readOptoIns()
+      throws IOException
   {
-    int dev, val;
+    return readRegister( Operation.READ_OPTO, OPTO_IN_MEM_ADD );
+  }
 
-    dev = doBoardInit (gHwAdd);
-    if(dev <= 0)
-    {
-      exit(1);
-    }
-    if (argc == 3)
-    {
-      val = readReg8(dev,OPTO_IT_FLAGS_MEM_ADD );
-      printf("%d\n", val);
-    }
-    else
+  @Override
+  public int readOptoIrqFlags()
+      throws IOException
+  {
+    int flags = readRegister( Operation.READ_IRQ_FLAGS, OPTO_IT_FLAGS_MEM_ADD );
+    RegisterCache cache = this.cache;
+    if (0 != flags && null != cache)
     {
-      printf( "Invalid command\n");
-      exit(1);
+      // at least one input has changed since it was last read
+      cache.invalidate( OPTO_IN_MEM_ADD );
     }
+    return flags;
   }
-  */
 
   @Override
   public IrqState setOptoIrq( int gpioPinNumber, IrqState state )
@@ -305,49 +1359,47 @@ public class MegaIOImpl implements MegaIO
     return setIrq( gpioPinNumber, state, OPTO_IT_RISING_MEM_ADD, OPTO_IT_FALLING_MEM_ADD );
   }
 
+  @Override
+  public void configureOptoIrqs( IrqState[] states )
+      throws IOException
+  {
+    configureIrqs( states, OPTO_CH_NR_MAX, OPTO_IT_RISING_MEM_ADD, OPTO_IT_FALLING_MEM_ADD );
+  }
+
   @Override
   public boolean readOCPin( int ocPinNumber )
       throws IOException
   {
-    return readPin( OC_OUT_VAL_MEM_ADD, ocPinNumber );
+    return readPin( Operation.READ_OC, OC_OUT_VAL_MEM_ADD, ocPinNumber );
   }
 
   @Override
   public boolean setOCPin( int ocPinNumber, boolean on )
       throws IOException
   {
-    int retry = RETRY_TIMES;
-    boolean setting;
-    while (retry > 0)
+    ocLock.lock();
+    try
     {
-      try
-      {
-        if (on)
-        {
-          device.write( OC_OUT_SET_MEM_ADD, (byte) (ocPinNumber & 0xff) );
-        }
-        else
-        {
-          device.write( OC_OUT_CLR_MEM_ADD, (byte) (ocPinNumber & 0xff) );
-        }
-        setting = readOCPin( ocPinNumber );
-        if (on == setting)
-        {
-          // We got what we wanted, we're good.
-          return setting;
-        }
-        // else try again;
-      }
-      catch( IOException ioex )
-      {
-        if (1 == retry)
-        {
-          // we've tried too many times, give up
-          throw ioex;
-        }
-      }
-      retry--;
+      return setOCPinLocked( ocPinNumber, on );
+    }
+    finally
+    {
+      ocLock.unlock();
     }
-    throw new IOException( "Too many attempts" );
+  }
+
+  private boolean setOCPinLocked( int ocPinNumber, boolean on )
+      throws IOException
+  {
+    boolean took = attempt( Operation.SET_OC_PIN, begin(), 0, () ->
+    {
+      writeRegister( on ? OC_OUT_SET_MEM_ADD : OC_OUT_CLR_MEM_ADD, ocPinNumber & 0xff );
+      return on == readPin( OC_OUT_VAL_MEM_ADD, ocPinNumber );
+    } );
+    if (!took)
+    {
+      throw new IOException( "Too many attempts" );
+    }
+    return on;
   }
 }
@@ -0,0 +1,154 @@
+package com.sequentmicrosystems;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * The operation metrics of one MegaIO card: for each kind of operation, how many were made, how long they took,
+ * how many retries they needed, how many gave up and how many i2c errors they met. Install an instance with
+ * MegaIOImpl.setMetrics.
+ * <p>
+ * Recording is lock-free and does not allocate. The metrics can be read directly, exported through JMX with
+ * registerMBeans, or pushed to a monitoring system through a MetricsSink with publish. A climbing retry or i2c
+ * error count is usually the first sign of a noisy bus or a failing card.
+ */
+public class MegaIOMetrics
+{
+  public enum Operation
+  {
+    /** readRelays and isRelayOn */
+    READ_RELAYS,
+    TRIGGER_RELAY,
+    /** writeRelays and updateRelays */
+    WRITE_RELAYS,
+    /** readAnalog, readAnalogAll and readAnalogRange */
+    READ_ANALOG,
+    WRITE_ANALOG,
+    /** readGpioPin, readGpioPins and isGpioPinOutput */
+    READ_GPIO,
+    /** setGpioPin and setGpioPinDirection */
+    WRITE_GPIO,
+    /** readOptoIn and readOptoIns */
+    READ_OPTO,
+    /** readOptoIrqFlags and readIoIrqFlags */
+    READ_IRQ_FLAGS,
+    /** setOptoIrq, setIoIrq, configureOptoIrqs and configureIoIrqs */
+    CONFIGURE_IRQS,
+    READ_OC,
+    SET_OC_PIN,
+    /** the execution of a MegaIOBatch */
+    BATCH;
+  }
+
+  static final String JMX_DOMAIN = "com.sequentmicrosystems";
+
+  private final int cardNum;
+  private final OperationMetrics[] operations;
+
+  /**
+   * @param cardNum the number of the card whose operations are measured, used to label the metrics
+   */
+  public MegaIOMetrics( int cardNum )
+  {
+    this.cardNum = cardNum;
+    Operation[] values = Operation.values();
+    operations = new OperationMetrics[values.length];
+    for (Operation operation : values)
+    {
+      operations[operation.ordinal()] = new OperationMetrics( cardNum, operation );
+    }
+  }
+
+  public int getCardNum()
+  {
+    return cardNum;
+  }
+
+  /**
+   * @return the metrics of one kind of operation
+   */
+  public OperationMetrics get( Operation operation )
+  {
+    return operations[operation.ordinal()];
+  }
+
+  /**
+   * Reports the metrics of every kind of operation to a sink, in the order of the Operation enum.
+   */
+  public void publish( MetricsSink sink )
+  {
+    for (OperationMetrics metrics : operations)
+    {
+      sink.report( metrics );
+    }
+  }
+
+  /**
+   * Sets the metrics of every kind of operation back to 0.
+   */
+  public void reset()
+  {
+    for (OperationMetrics metrics : operations)
+    {
+      metrics.reset();
+    }
+  }
+
+  /**
+   * Registers an MXBean for each kind of operation with the platform MBean server.
+   *
+   * @see #registerMBeans(MBeanServer)
+   */
+  public void registerMBeans()
+      throws JMException
+  {
+    registerMBeans( ManagementFactory.getPlatformMBeanServer() );
+  }
+
+  /**
+   * Registers an MXBean for each kind of operation, named
+   * com.sequentmicrosystems:type=MegaIO,card=<i>cardNum</i>,operation=<i>OPERATION</i>.
+   *
+   * @throws JMException thrown if the beans cannot be registered, for instance because another MegaIOMetrics for
+   *                     the same card number already is
+   */
+  public void registerMBeans( MBeanServer server )
+      throws JMException
+  {
+    for (OperationMetrics metrics : operations)
+    {
+      server.registerMBean( metrics, objectName( cardNum, metrics.getOperation() ));
+    }
+  }
+
+  /**
+   * Unregisters the MXBeans registered by registerMBeans, ignoring any that are not registered.
+   */
+  public void unregisterMBeans( MBeanServer server )
+      throws JMException
+  {
+    for (Operation operation : Operation.values())
+    {
+      ObjectName name = objectName( cardNum, operation );
+      if (server.isRegistered( name ))
+      {
+        server.unregisterMBean( name );
+      }
+    }
+  }
+
+  public void unregisterMBeans()
+      throws JMException
+  {
+    unregisterMBeans( ManagementFactory.getPlatformMBeanServer() );
+  }
+
+  static ObjectName objectName( int cardNum, Operation operation )
+      throws MalformedObjectNameException
+  {
+    return new ObjectName( JMX_DOMAIN + ":type=MegaIO,card=" + cardNum + ",operation=" + operation );
+  }
+}
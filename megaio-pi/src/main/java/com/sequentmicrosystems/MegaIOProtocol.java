@@ -0,0 +1,178 @@
+package com.sequentmicrosystems;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The wire format shared by MegaIOServer and MegaIOClient.
+ * <p>
+ * Every frame is a 4-byte length followed by that many bytes. A request is the request id, the operation and
+ * the card, followed by a count of arguments and the arguments; a reply is the id of the request it answers and
+ * a status, followed when the status is OK by a count of values and the values, and otherwise by an error
+ * message. Ids, counts, arguments and values are zigzag varints, so the small numbers that make up almost all of
+ * the traffic take a byte each. A client may send any number of requests without waiting, and the replies, which may come back in
+ * a different order, are matched to them by id. A push is a reply with id 0 and the values of a ChangeEvent.
+ */
+final class MegaIOProtocol
+{
+  enum Op
+  {
+    READ_RELAYS,
+    IS_RELAY_ON,
+    TRIGGER_RELAY,
+    WRITE_RELAYS,
+    UPDATE_RELAYS,
+    READ_ANALOG,
+    READ_ANALOG_RANGE,
+    WRITE_ANALOG,
+    IS_GPIO_OUTPUT,
+    SET_GPIO_DIRECTION,
+    SET_GPIO_PIN,
+    SET_IO_IRQ,
+    CONFIGURE_IO_IRQS,
+    READ_GPIO_PIN,
+    READ_GPIO_PINS,
+    READ_IO_IRQ_FLAGS,
+    READ_OPTO_IN,
+    READ_OPTO_INS,
+    READ_OPTO_IRQ_FLAGS,
+    SET_OPTO_IRQ,
+    CONFIGURE_OPTO_IRQS,
+    READ_OC_PIN,
+    SET_OC_PIN,
+    // the arguments are the code and argument of each operation of the batch in turn
+    BATCH,
+    // asks for the card's changes to be pushed to the connection, or no longer
+    SUBSCRIBE,
+    UNSUBSCRIBE;
+
+    private static final Op[] OPS = values();
+
+    static Op of( int ordinal )
+    {
+      if (ordinal < 0 || ordinal >= OPS.length)
+      {
+        throw new IllegalArgumentException( "Unknown operation " + ordinal );
+      }
+      return OPS[ordinal];
+    }
+  }
+
+  // Reply statuses.
+  static final int STATUS_OK = 0;
+  static final int STATUS_IO_ERROR = 1;
+  static final int STATUS_ILLEGAL_ARGUMENT = 2;
+  static final int STATUS_FAILED = 3;
+  static final int STATUS_PUSH = 4;
+
+  static final int PUSH_ID = 0;
+
+  /** The longest frame either side accepts; a longer one closes the connection. */
+  static final int MAX_FRAME = 16 * 1024;
+
+  private MegaIOProtocol()
+  {
+  }
+
+  static ByteBuffer request( int id, Op op, int card, int[] args, int count )
+  {
+    ByteBuffer frame = ByteBuffer.allocate( 4 + 5 + 2 + 5 + 5 * count );
+    frame.position( 4 );
+    putVarInt( frame, id );
+    frame.put( (byte) op.ordinal() );
+    frame.put( (byte) card );
+    putVarInt( frame, count );
+    for (int i = 0; i < count; i++)
+    {
+      putVarInt( frame, args[i] );
+    }
+    return finish( frame );
+  }
+
+  static ByteBuffer reply( int id, int status, int[] values, int count )
+  {
+    ByteBuffer frame = ByteBuffer.allocate( 4 + 5 + 1 + 5 + 5 * count );
+    frame.position( 4 );
+    putVarInt( frame, id );
+    frame.put( (byte) status );
+    putVarInt( frame, count );
+    for (int i = 0; i < count; i++)
+    {
+      putVarInt( frame, values[i] );
+    }
+    return finish( frame );
+  }
+
+  static ByteBuffer error( int id, int status, String message )
+  {
+    byte[] text = String.valueOf( message ).getBytes( StandardCharsets.UTF_8 );
+    int length = Math.min( text.length, MAX_FRAME / 2 );
+    ByteBuffer frame = ByteBuffer.allocate( 4 + 5 + 1 + 5 + length );
+    frame.position( 4 );
+    putVarInt( frame, id );
+    frame.put( (byte) status );
+    putVarInt( frame, length );
+    frame.put( text, 0, length );
+    return finish( frame );
+  }
+
+  static String message( ByteBuffer frame )
+  {
+    int length = getVarInt( frame );
+    byte[] text = new byte[length];
+    frame.get( text );
+    return new String( text, StandardCharsets.UTF_8 );
+  }
+
+  private static ByteBuffer finish( ByteBuffer frame )
+  {
+    frame.putInt( 0, frame.position() - 4 );
+    frame.flip();
+    return frame;
+  }
+
+  /**
+   * @return the length of the complete frame at the start of the buffer, not counting its length, or -1 if the
+   *         frame has not all arrived
+   * @throws IllegalArgumentException if the length is not that of a valid frame
+   */
+  static int frameLength( ByteBuffer buffer )
+  {
+    if (buffer.remaining() < 4)
+    {
+      return -1;
+    }
+    int length = buffer.getInt( buffer.position() );
+    if (length < 1 || length > MAX_FRAME)
+    {
+      throw new IllegalArgumentException( "Invalid frame length " + length );
+    }
+    return buffer.remaining() - 4 >= length ? length : -1;
+  }
+
+  static void putVarInt( ByteBuffer buffer, int value )
+  {
+    int zigzag = (value << 1) ^ (value >> 31);
+    while ((zigzag & ~0x7F) != 0)
+    {
+      buffer.put( (byte) ((zigzag & 0x7F) | 0x80) );
+      zigzag >>>= 7;
+    }
+    buffer.put( (byte) zigzag );
+  }
+
+  static int getVarInt( ByteBuffer buffer )
+  {
+    int zigzag = 0;
+    for (int shift = 0; shift < 35; shift += 7)
+    {
+      byte b = buffer.get();
+      zigzag |= (b & 0x7F) << shift;
+      if (b >= 0)
+      {
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+      }
+    }
+    throw new IllegalArgumentException( "Malformed varint" );
+  }
+}
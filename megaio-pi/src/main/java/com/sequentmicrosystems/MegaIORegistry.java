@@ -0,0 +1,328 @@
+package com.sequentmicrosystems;
+
+import com.pi4j.io.i2c.I2CBus;
+import com.pi4j.io.i2c.I2CDevice;
+import com.pi4j.io.i2c.I2CFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.sequentmicrosystems.Constants.*;
+
+/**
+ * Finds the MegaIO cards on the bus and hands out a MegaIOImpl for each, all sharing one bus handle that is
+ * opened when first needed.
+ * <p>
+ * A probe reads the four revision registers of every card address, from MEGAIO_HW_I2C_BASE_ADD up, in a single
+ * block read per address. The addresses are probed at the same time, on a thread each, so a probe takes about
+ * as long as the slowest address, which is usually an empty one failing to acknowledge. The revisions of the
+ * cards found are kept, so asking for them later costs nothing. After a bus fault, reset drops the handle and
+ * everything learnt through it, and the next probe or open starts afresh.
+ */
+public class MegaIORegistry
+    implements Closeable
+{
+  /**
+   * Opens the bus the first time it is needed.
+   */
+  interface BusOpener
+  {
+    I2CBus open()
+        throws IOException, I2CFactory.UnsupportedBusNumberException;
+  }
+
+  /**
+   * A card found by a probe, with its revisions.
+   */
+  public static final class CardInfo
+  {
+    private final int cardNum;
+    private final int hwMajor;
+    private final int hwMinor;
+    private final int fwMajor;
+    private final int fwMinor;
+
+    CardInfo( int cardNum, byte[] revision )
+    {
+      this.cardNum = cardNum;
+      this.hwMajor = revision[0] & 0xFF;
+      this.hwMinor = revision[1] & 0xFF;
+      this.fwMajor = revision[2] & 0xFF;
+      this.fwMinor = revision[3] & 0xFF;
+    }
+
+    public int getCardNum()
+    {
+      return cardNum;
+    }
+
+    public int getAddress()
+    {
+      return MEGAIO_HW_I2C_BASE_ADD + cardNum;
+    }
+
+    public int getHardwareMajor()
+    {
+      return hwMajor;
+    }
+
+    public int getHardwareMinor()
+    {
+      return hwMinor;
+    }
+
+    public int getFirmwareMajor()
+    {
+      return fwMajor;
+    }
+
+    public int getFirmwareMinor()
+    {
+      return fwMinor;
+    }
+
+    /**
+     * @return the hardware revision as major.minor, in the form of MegaIOImpl.getHardwareVersion
+     */
+    public String getHardwareVersion()
+    {
+      return hwMajor + "." + hwMinor;
+    }
+
+    /**
+     * @return the firmware revision as major.minor, in the form of MegaIOImpl.getFirmwareVersion
+     */
+    public String getFirmwareVersion()
+    {
+      return fwMajor + "." + fwMinor;
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format( "card %d at 0x%02x, hardware %s, firmware %s", cardNum, getAddress(),
+                            getHardwareVersion(), getFirmwareVersion() );
+    }
+  }
+
+  // the attempts made at each address before it is taken to be empty, so one lost transaction does not hide a card
+  static final int PROBE_ATTEMPTS = 2;
+
+  private static final int REVISION_SIZE = REVISION_MINOR_MEM_ADD - REVISION_HW_MAJOR_MEM_ADD + 1;
+
+  private final BusOpener opener;
+  private final boolean ownsBus;
+  private final GpioWrapper gpioWrapper;
+
+  // guarded by this
+  private I2CBus bus = null;
+  private final I2CDevice[] devices = new I2CDevice[CARD_NR_MAX];
+  private final MegaIOImpl[] cards = new MegaIOImpl[CARD_NR_MAX];
+  // indexed by card number, null for an empty address; null until the first probe
+  private CardInfo[] found = null;
+
+  /**
+   * Creates a registry for i2c bus 1, to which the MegaIO cards are connected on a Raspberry Pi. The bus is not
+   * opened until it is needed, and is closed by close and reset.
+   */
+  public MegaIORegistry()
+  {
+    this( () -> I2CFactory.getInstance( I2CBus.BUS_1 ), true, new GpioWrapper() );
+  }
+
+  /**
+   * Creates a registry for a bus opened elsewhere, which is left open by close and reset.
+   *
+   * @param bus the bus the cards are connected to
+   * @param gpioWrapper the source of the delays between retries of the cards handed out
+   */
+  public MegaIORegistry( I2CBus bus, GpioWrapper gpioWrapper )
+  {
+    this( () -> bus, false, gpioWrapper );
+  }
+
+  MegaIORegistry( BusOpener opener, boolean ownsBus, GpioWrapper gpioWrapper )
+  {
+    this.opener = opener;
+    this.ownsBus = ownsBus;
+    this.gpioWrapper = gpioWrapper;
+  }
+
+  private I2CDevice device( int cardNum )
+      throws IOException
+  {
+    if (null == bus)
+    {
+      try
+      {
+        bus = opener.open();
+      }
+      catch( I2CFactory.UnsupportedBusNumberException e )
+      {
+        throw new IOException( "Cannot open the i2c bus", e );
+      }
+    }
+    if (null == devices[cardNum])
+    {
+      devices[cardNum] = bus.getDevice( MEGAIO_HW_I2C_BASE_ADD + cardNum );
+    }
+    return devices[cardNum];
+  }
+
+  private static void checkCard( int cardNum )
+  {
+    if (cardNum < 0 || cardNum >= CARD_NR_MAX)
+    {
+      throw new IllegalArgumentException( "Invalid card number " + cardNum );
+    }
+  }
+
+  /**
+   * Probes every card address, replacing what earlier probes found.
+   *
+   * @return the cards found, in order of card number
+   * @throws IOException thrown if the bus cannot be opened, or the thread is interrupted while probing
+   */
+  public synchronized List<CardInfo> probe()
+      throws IOException
+  {
+    CardInfo[] results = new CardInfo[CARD_NR_MAX];
+    Thread[] probes = new Thread[CARD_NR_MAX];
+    for (int cardNum = 0; cardNum < CARD_NR_MAX; cardNum++)
+    {
+      int card = cardNum;
+      I2CDevice device = device( card );
+      probes[card] = new Thread( () -> results[card] = probe( card, device ), "megaio-probe-" + card );
+      probes[card].setDaemon( true );
+      probes[card].start();
+    }
+    try
+    {
+      for (Thread probe : probes)
+      {
+        probe.join();
+      }
+    }
+    catch( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException( "Interrupted while probing for cards" );
+    }
+    found = results;
+    return getCards();
+  }
+
+  private static CardInfo probe( int cardNum, I2CDevice device )
+  {
+    byte[] revision = new byte[REVISION_SIZE];
+    for (int attempt = 0; attempt < PROBE_ATTEMPTS; attempt++)
+    {
+      try
+      {
+        if (REVISION_SIZE == device.read( REVISION_HW_MAJOR_MEM_ADD, revision, 0, REVISION_SIZE ))
+        {
+          return new CardInfo( cardNum, revision );
+        }
+      }
+      catch( IOException ioex )
+      {
+        // no card, or a lost transaction; try again
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the cards found by the last probe, in order of card number, probing first if there has been none
+   */
+  public synchronized List<CardInfo> getCards()
+      throws IOException
+  {
+    if (null == found)
+    {
+      return probe();
+    }
+    List<CardInfo> cards = new ArrayList<>();
+    for (CardInfo info : found)
+    {
+      if (null != info)
+      {
+        cards.add( info );
+      }
+    }
+    return Collections.unmodifiableList( cards );
+  }
+
+  /**
+   * @return the card found at a card number by the last probe, probing first if there has been none, or null if
+   *         there is no card there
+   */
+  public synchronized CardInfo getCard( int cardNum )
+      throws IOException
+  {
+    checkCard( cardNum );
+    if (null == found)
+    {
+      probe();
+    }
+    return found[cardNum];
+  }
+
+  /**
+   * Returns the card at a card number, the same instance every time until reset. The card is not probed for;
+   * but if a probe has been made and found no card there, an exception is thrown.
+   *
+   * @param cardNum the number of the card, from 0 to 3
+   * @throws IOException thrown if the bus cannot be opened, or the last probe found no card
+   */
+  public synchronized MegaIOImpl open( int cardNum )
+      throws IOException
+  {
+    checkCard( cardNum );
+    if (null != found && null == found[cardNum])
+    {
+      throw new IOException( String.format( "No MegaIO card at 0x%02x", MEGAIO_HW_I2C_BASE_ADD + cardNum ));
+    }
+    if (null == cards[cardNum])
+    {
+      cards[cardNum] = new MegaIOImpl( device( cardNum ), gpioWrapper );
+    }
+    return cards[cardNum];
+  }
+
+  /**
+   * Forgets the bus handle, the cards handed out and what was probed, closing the bus if the registry opened
+   * it. Cards handed out earlier must not be used afterwards; open them again.
+   */
+  public synchronized void reset()
+  {
+    if (null != bus && ownsBus)
+    {
+      try
+      {
+        bus.close();
+      }
+      catch( IOException ioex )
+      {
+        // the bus is being dropped because it failed; there is nothing more to be done with it
+      }
+    }
+    bus = null;
+    for (int cardNum = 0; cardNum < CARD_NR_MAX; cardNum++)
+    {
+      devices[cardNum] = null;
+      cards[cardNum] = null;
+    }
+    found = null;
+  }
+
+  @Override
+  public void close()
+  {
+    reset();
+  }
+}
@@ -0,0 +1,724 @@
+package com.sequentmicrosystems;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.sequentmicrosystems.Constants.*;
+import static com.sequentmicrosystems.MegaIOProtocol.*;
+
+/**
+ * Owns one or more MegaIO cards and serves them to MegaIOClients over TCP, so that any number of processes can
+ * share the cards without fighting over the bus.
+ * <p>
+ * A single selector thread accepts the connections and does all of their reading and writing, so hundreds of
+ * clients cost a buffer each rather than a thread each. The operations themselves run on a thread for each card,
+ * in the order they arrived, so a slow card holds up neither the network nor the other cards; requests from one
+ * connection to one card are made in the order they were sent, however many are in flight. A connection may have
+ * up to MAX_PIPELINE requests waiting before the server stops reading from it.
+ * <p>
+ * With push enabled, the server polls its cards with a ChangePoller and sends each change to the connections
+ * that have subscribed to the card.
+ */
+public class MegaIOServer
+    implements Closeable, ChangeListener
+{
+  /** The most requests of one connection waiting to be answered before the server stops reading it. */
+  public static final int MAX_PIPELINE = 1024;
+
+  private static final int BUFFER_SIZE = 2 * MAX_FRAME + 4;
+
+  private static class Request
+  {
+    final Connection connection;
+    final int id;
+    final Op op;
+    final int[] args;
+
+    Request( Connection connection, int id, Op op, int[] args )
+    {
+      this.connection = connection;
+      this.id = id;
+      this.op = op;
+      this.args = args;
+    }
+  }
+
+  private static class Connection
+  {
+    final SocketChannel channel;
+    final SelectionKey key;
+    final ByteBuffer in = ByteBuffer.allocate( BUFFER_SIZE );
+    final ByteBuffer out = ByteBuffer.allocateDirect( BUFFER_SIZE );
+    final Queue<ByteBuffer> replies = new ConcurrentLinkedQueue<>();
+    final AtomicBoolean scheduled = new AtomicBoolean();
+    final AtomicInteger inFlight = new AtomicInteger();
+    final Set<Integer> subscriptions = ConcurrentHashMap.newKeySet();
+    volatile boolean open = true;
+
+    Connection( SocketChannel channel, SelectionKey key )
+    {
+      this.channel = channel;
+      this.key = key;
+    }
+  }
+
+  private class Card
+  {
+    final int cardNum;
+    final MegaIO io;
+    final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+    Thread worker;
+
+    Card( int cardNum, MegaIO io )
+    {
+      this.cardNum = cardNum;
+      this.io = io;
+    }
+
+    void run()
+    {
+      while (running)
+      {
+        Request request;
+        try
+        {
+          request = requests.take();
+        }
+        catch( InterruptedException e )
+        {
+          return;
+        }
+        ByteBuffer reply;
+        try
+        {
+          reply = request.connection.open ? answer( io, request ) : null;
+        }
+        catch( Throwable e )
+        {
+          // answer catches what the card throws; this is an Error, which must not take the worker with it
+          reply = error( request.id, STATUS_FAILED, e.toString() );
+        }
+        // counted out before the reply is queued, so that writing it finds room in the pipeline
+        request.connection.inFlight.decrementAndGet();
+        if (null != reply)
+        {
+          respond( request.connection, reply );
+        }
+      }
+    }
+  }
+
+  private final InetSocketAddress address;
+  private final Map<Integer, Card> cards = new ConcurrentHashMap<>();
+  private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+  private final Queue<Connection> ready = new ConcurrentLinkedQueue<>();
+
+  private ChangePoller poller = null;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong pushes = new AtomicLong();
+  private final AtomicLong protocolErrors = new AtomicLong();
+
+  private volatile boolean running = false;
+  private Selector selector;
+  private ServerSocketChannel server;
+  private Thread selectorThread;
+
+  /**
+   * @param address the address to listen on; a port of 0 picks a free port, reported by getAddress once started
+   */
+  public MegaIOServer( InetSocketAddress address )
+  {
+    this.address = address;
+  }
+
+  /**
+   * Adds a card to be served. Cards are added before the server is started.
+   *
+   * @param cardNum the number by which clients name the card, from 0 to 255
+   */
+  public MegaIOServer addCard( int cardNum, MegaIO card )
+  {
+    if (cardNum < 0 || cardNum > 0xFF)
+    {
+      throw new IllegalArgumentException( "Invalid card number " + cardNum );
+    }
+    cards.put( cardNum, new Card( cardNum, card ));
+    return this;
+  }
+
+  /**
+   * Polls the cards for changes while the server runs, for clients that subscribe to them.
+   *
+   * @see ChangePoller
+   */
+  public synchronized MegaIOServer enablePush( long minInterval, long maxInterval, TimeUnit unit )
+  {
+    poller = new ChangePoller( minInterval, maxInterval, unit );
+    poller.addListener( this );
+    return this;
+  }
+
+  /**
+   * Binds the server's address and starts serving.
+   *
+   * @throws IOException thrown if the address cannot be bound
+   */
+  public synchronized void start()
+      throws IOException
+  {
+    if (running)
+    {
+      return;
+    }
+    selector = Selector.open();
+    server = ServerSocketChannel.open();
+    server.bind( address );
+    server.configureBlocking( false );
+    server.register( selector, SelectionKey.OP_ACCEPT );
+    running = true;
+
+    for (Card card : cards.values())
+    {
+      card.worker = new Thread( card::run, "megaio-server-card-" + card.cardNum );
+      card.worker.setDaemon( true );
+      card.worker.start();
+      if (null != poller)
+      {
+        poller.addCard( card.cardNum, card.io );
+      }
+    }
+    if (null != poller)
+    {
+      poller.start();
+    }
+    selectorThread = new Thread( this::run, "megaio-server" );
+    selectorThread.setDaemon( true );
+    selectorThread.start();
+  }
+
+  /**
+   * @return the address the server is listening on
+   */
+  public InetSocketAddress getAddress()
+      throws IOException
+  {
+    return (InetSocketAddress) server.getLocalAddress();
+  }
+
+  /* ------------- THE SELECTOR  -------------- */
+
+  private void run()
+  {
+    while (running)
+    {
+      try
+      {
+        selector.select();
+      }
+      catch( IOException ioex )
+      {
+        break;
+      }
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext())
+      {
+        SelectionKey key = keys.next();
+        keys.remove();
+        if (!key.isValid())
+        {
+          continue;
+        }
+        if (key.isAcceptable())
+        {
+          accept();
+          continue;
+        }
+        Connection connection = (Connection) key.attachment();
+        if (key.isReadable())
+        {
+          read( connection );
+        }
+        if (key.isValid() && key.isWritable())
+        {
+          flush( connection );
+        }
+      }
+      // the replies queued by the cards, and by the requests just read
+      Connection connection;
+      while (null != (connection = ready.poll()))
+      {
+        connection.scheduled.set( false );
+        flush( connection );
+      }
+    }
+  }
+
+  private void accept()
+  {
+    try
+    {
+      SocketChannel channel;
+      while (null != (channel = server.accept()))
+      {
+        channel.configureBlocking( false );
+        channel.setOption( StandardSocketOptions.TCP_NODELAY, true );
+        SelectionKey key = channel.register( selector, SelectionKey.OP_READ );
+        Connection connection = new Connection( channel, key );
+        key.attach( connection );
+        connections.add( connection );
+      }
+    }
+    catch( IOException ioex )
+    {
+      // the client went away before it could be accepted
+    }
+  }
+
+  private void read( Connection connection )
+  {
+    try
+    {
+      if (connection.channel.read( connection.in ) < 0)
+      {
+        disconnect( connection );
+        return;
+      }
+      process( connection );
+    }
+    catch( IOException ioex )
+    {
+      disconnect( connection );
+    }
+  }
+
+  /**
+   * Takes the complete frames out of a connection's input buffer and hands their requests to the cards, until
+   * the buffer is empty or the connection has as many requests in flight as it may.
+   */
+  private void process( Connection connection )
+  {
+    ByteBuffer in = connection.in;
+    in.flip();
+    try
+    {
+      int length;
+      while (connection.inFlight.get() < MAX_PIPELINE && (length = frameLength( in )) > 0)
+      {
+        int end = in.position() + 4 + length;
+        in.position( in.position() + 4 );
+        ByteBuffer frame = in.duplicate();
+        frame.limit( end );
+        in.position( end );
+        dispatch( connection, frame );
+      }
+    }
+    catch( IllegalArgumentException | BufferUnderflowException e )
+    {
+      // the client is not speaking the protocol, and nothing more it sends can be trusted
+      protocolErrors.incrementAndGet();
+      in.clear();
+      disconnect( connection );
+      return;
+    }
+    in.compact();
+    int interest = connection.inFlight.get() < MAX_PIPELINE ? SelectionKey.OP_READ : 0;
+    connection.key.interestOps( (connection.key.interestOps() & ~SelectionKey.OP_READ) | interest );
+  }
+
+  private void dispatch( Connection connection, ByteBuffer frame )
+  {
+    int id = getVarInt( frame );
+    Op op = Op.of( frame.get() );
+    int cardNum = frame.get() & 0xFF;
+    int count = getVarInt( frame );
+    if (count < 0 || count > frame.remaining())
+    {
+      throw new IllegalArgumentException( "Invalid argument count " + count );
+    }
+    int[] args = new int[count];
+    for (int i = 0; i < count; i++)
+    {
+      args[i] = getVarInt( frame );
+    }
+    requests.incrementAndGet();
+
+    Card card = cards.get( cardNum );
+    if (null == card)
+    {
+      respond( connection, error( id, STATUS_IO_ERROR, "No card " + cardNum + " on this server" ));
+      return;
+    }
+    switch (op)
+    {
+      case SUBSCRIBE:
+        connection.subscriptions.add( cardNum );
+        respond( connection, reply( id, STATUS_OK, args, 0 ));
+        return;
+
+      case UNSUBSCRIBE:
+        connection.subscriptions.remove( cardNum );
+        respond( connection, reply( id, STATUS_OK, args, 0 ));
+        return;
+
+      default:
+        connection.inFlight.incrementAndGet();
+        card.requests.add( new Request( connection, id, op, args ));
+    }
+  }
+
+  /**
+   * Queues a frame for a connection, and has the selector thread write it.
+   */
+  private void respond( Connection connection, ByteBuffer frame )
+  {
+    connection.replies.add( frame );
+    if (connection.scheduled.compareAndSet( false, true ))
+    {
+      ready.add( connection );
+      if (Thread.currentThread() != selectorThread)
+      {
+        selector.wakeup();
+      }
+    }
+  }
+
+  /**
+   * Writes as many of a connection's frames as its socket will take, copying them into one buffer so that many
+   * small replies are one write.
+   */
+  private void flush( Connection connection )
+  {
+    if (!connection.open)
+    {
+      connection.replies.clear();
+      return;
+    }
+    ByteBuffer out = connection.out;
+    try
+    {
+      while (true)
+      {
+        ByteBuffer frame;
+        while (null != (frame = connection.replies.peek()) && frame.remaining() <= out.remaining())
+        {
+          out.put( frame );
+          connection.replies.poll();
+        }
+        out.flip();
+        connection.channel.write( out );
+        boolean written = !out.hasRemaining();
+        out.compact();
+        if (!written)
+        {
+          connection.key.interestOps( connection.key.interestOps() | SelectionKey.OP_WRITE );
+          break;
+        }
+        if (connection.replies.isEmpty())
+        {
+          connection.key.interestOps( connection.key.interestOps() & ~SelectionKey.OP_WRITE );
+          break;
+        }
+      }
+      // requests held back while the pipeline was full can go now
+      if (0 == (connection.key.interestOps() & SelectionKey.OP_READ)
+          && connection.inFlight.get() < MAX_PIPELINE)
+      {
+        process( connection );
+      }
+    }
+    catch( IOException ioex )
+    {
+      disconnect( connection );
+    }
+  }
+
+  private void disconnect( Connection connection )
+  {
+    connection.open = false;
+    connections.remove( connection );
+    connection.key.cancel();
+    try
+    {
+      connection.channel.close();
+    }
+    catch( IOException ignored )
+    {
+      // already gone
+    }
+  }
+
+  /* ------------- THE CARDS  -------------- */
+
+  /**
+   * Makes a request on a card.
+   *
+   * @return the reply
+   */
+  private static ByteBuffer answer( MegaIO card, Request request )
+  {
+    try
+    {
+      int[] values = execute( card, request.op, request.args );
+      return reply( request.id, STATUS_OK, values, values.length );
+    }
+    catch( IOException ioex )
+    {
+      return error( request.id, STATUS_IO_ERROR, ioex.getMessage() );
+    }
+    catch( IllegalArgumentException | IndexOutOfBoundsException e )
+    {
+      return error( request.id, STATUS_ILLEGAL_ARGUMENT, e.getMessage() );
+    }
+    catch( RuntimeException e )
+    {
+      return error( request.id, STATUS_FAILED, e.toString() );
+    }
+  }
+
+  private static int[] execute( MegaIO card, Op op, int[] args )
+      throws IOException
+  {
+    switch (op)
+    {
+      case READ_RELAYS:
+        return values( card.readRelays() );
+      case IS_RELAY_ON:
+        return values( card.isRelayOn( args[0] ));
+      case TRIGGER_RELAY:
+        return values( card.triggerRelay( args[0], 0 != args[1] ));
+      case WRITE_RELAYS:
+        return values( card.writeRelays( args[0] ));
+      case UPDATE_RELAYS:
+        return values( card.updateRelays( args[0], args[1] ));
+      case READ_ANALOG:
+        return values( card.readAnalog( args[0] ));
+      case READ_ANALOG_RANGE:
+      {
+        // checked before the array is sized from what the client sent
+        if (args[0] < CHANNEL_NR_MIN || args[1] > ADC_CH_NR_MAX || args[1] < args[0])
+        {
+          throw new IllegalArgumentException( "Invalid analog channel range " + args[0] + "-" + args[1] );
+        }
+        int[] values = new int[args[1] - args[0] + 1];
+        card.readAnalogRange( args[0], args[1], values );
+        return values;
+      }
+      case WRITE_ANALOG:
+        return values( card.writeAnalog( args[0], 0 != args[1] ));
+      case IS_GPIO_OUTPUT:
+        return values( card.isGpioPinOutput( args[0] ));
+      case SET_GPIO_DIRECTION:
+        return values( card.setGpioPinDirection( args[0], 0 != args[1] ));
+      case SET_GPIO_PIN:
+        return values( card.setGpioPin( args[0], 0 != args[1] ));
+      case SET_IO_IRQ:
+        return values( card.setIoIrq( args[0], irqState( args[1] )).ordinal() );
+      case CONFIGURE_IO_IRQS:
+        card.configureIoIrqs( irqStates( args ));
+        return values();
+      case READ_GPIO_PIN:
+        return values( card.readGpioPin( args[0] ));
+      case READ_GPIO_PINS:
+        return values( card.readGpioPins() );
+      case READ_IO_IRQ_FLAGS:
+        return values( card.readIoIrqFlags() );
+      case READ_OPTO_IN:
+        return values( card.readOptoIn( args[0] ));
+      case READ_OPTO_INS:
+        return values( card.readOptoIns() );
+      case READ_OPTO_IRQ_FLAGS:
+        return values( card.readOptoIrqFlags() );
+      case SET_OPTO_IRQ:
+        return values( card.setOptoIrq( args[0], irqState( args[1] )).ordinal() );
+      case CONFIGURE_OPTO_IRQS:
+        card.configureOptoIrqs( irqStates( args ));
+        return values();
+      case READ_OC_PIN:
+        return values( card.readOCPin( args[0] ));
+      case SET_OC_PIN:
+        return values( card.setOCPin( args[0], 0 != args[1] ));
+      case BATCH:
+        return batch( card, args );
+      default:
+        throw new IllegalArgumentException( "Unsupported operation " + op );
+    }
+  }
+
+  /**
+   * Makes a batch received as pairs of codes and arguments.
+   *
+   * @return the mask of the registers read, as two ints, whether the writes were verified, and then the value
+   *         of each register read
+   */
+  private static int[] batch( MegaIO card, int[] args )
+      throws IOException
+  {
+    MegaIOBatch batch = card.batch();
+    for (int i = 0; i + 1 < args.length; i += 2)
+    {
+      batch.queue( args[i], args[i + 1] );
+    }
+    MegaIOBatch.Result result = batch.execute();
+    long mask = result.readMask();
+    int[] values = new int[3 + Long.bitCount( mask )];
+    values[0] = (int) mask;
+    values[1] = (int) (mask >>> 32);
+    values[2] = result.isVerified() ? 1 : 0;
+    int next = 3;
+    for (int register = 0; register < MegaIOBatch.REGISTER_COUNT; register++)
+    {
+      if (0 != (mask & (1L << register)))
+      {
+        values[next++] = result.registers()[register] & 0xFF;
+      }
+    }
+    return values;
+  }
+
+  private static IrqState irqState( int ordinal )
+  {
+    return ordinal < 0 ? null : IrqState.values()[ordinal];
+  }
+
+  private static IrqState[] irqStates( int[] ordinals )
+  {
+    IrqState[] states = new IrqState[ordinals.length];
+    for (int i = 0; i < states.length; i++)
+    {
+      states[i] = irqState( ordinals[i] );
+    }
+    return states;
+  }
+
+  private static int[] values( int... values )
+  {
+    return values;
+  }
+
+  private static int[] values( boolean value )
+  {
+    return new int[] { value ? 1 : 0 };
+  }
+
+  /* ------------- STATUS_PUSH  -------------- */
+
+  /**
+   * Sends a change found by the poller to every connection subscribed to its card.
+   */
+  @Override
+  public void changeDetected( ChangeEvent event )
+  {
+    ByteBuffer push = null;
+    for (Connection connection : connections)
+    {
+      if (connection.subscriptions.contains( event.getCard() ))
+      {
+        if (null == push)
+        {
+          push = reply( PUSH_ID, STATUS_PUSH, new int[] { event.getCard(), event.getRegister().ordinal(),
+                                                   event.getPrevious(), event.getCurrent() }, 4 );
+        }
+        pushes.incrementAndGet();
+        respond( connection, push.duplicate() );
+      }
+    }
+  }
+
+  /* ------------- STATISTICS  -------------- */
+
+  /**
+   * @return the number of clients connected
+   */
+  public int getConnections()
+  {
+    return connections.size();
+  }
+
+  /**
+   * @return the number of requests received
+   */
+  public long getRequests()
+  {
+    return requests.get();
+  }
+
+  /**
+   * @return the number of changes pushed, counting each connection they were sent to
+   */
+  public long getPushes()
+  {
+    return pushes.get();
+  }
+
+  /**
+   * @return the number of connections closed for sending something other than the protocol
+   */
+  public long getProtocolErrors()
+  {
+    return protocolErrors.get();
+  }
+
+  /**
+   * Stops serving and closes every connection. The cards are left open.
+   */
+  @Override
+  public synchronized void close()
+  {
+    if (!running)
+    {
+      return;
+    }
+    running = false;
+    if (null != poller)
+    {
+      poller.close();
+    }
+    selector.wakeup();
+    try
+    {
+      selectorThread.join();
+    }
+    catch( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+    }
+    for (Card card : cards.values())
+    {
+      card.worker.interrupt();
+    }
+    for (Connection connection : connections)
+    {
+      disconnect( connection );
+    }
+    try
+    {
+      server.close();
+      selector.close();
+    }
+    catch( IOException ignored )
+    {
+      // closing anyway
+    }
+  }
+}
@@ -0,0 +1,15 @@
+package com.sequentmicrosystems;
+
+/**
+ * Receives the metrics of MegaIO cards, for forwarding to a monitoring system. See MegaIOMetrics.publish.
+ */
+public interface MetricsSink
+{
+  /**
+   * Called once for each kind of operation, from the thread that publishes the metrics. The metrics are live,
+   * so they should be read during the call and not kept.
+   *
+   * @param metrics the counters and latencies of one kind of operation on one card
+   */
+  void report( OperationMetrics metrics );
+}
@@ -0,0 +1,126 @@
+package com.sequentmicrosystems;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters and latency histogram kept for one kind of operation on one MegaIO card.
+ */
+public class OperationMetrics
+    implements OperationMetricsMXBean
+{
+  private final int cardNum;
+  private final MegaIOMetrics.Operation operation;
+
+  private final LongAdder calls = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+  private final LongAdder exhausted = new LongAdder();
+  private final LongAdder i2cErrors = new LongAdder();
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  OperationMetrics( int cardNum, MegaIOMetrics.Operation operation )
+  {
+    this.cardNum = cardNum;
+    this.operation = operation;
+  }
+
+  void completed( long startNanos, int retryCount, boolean gaveUp )
+  {
+    latency.record( System.nanoTime() - startNanos );
+    calls.increment();
+    if (retryCount > 0)
+    {
+      retries.add( retryCount );
+    }
+    if (gaveUp)
+    {
+      exhausted.increment();
+    }
+  }
+
+  void i2cError()
+  {
+    i2cErrors.increment();
+  }
+
+  public int getCardNum()
+  {
+    return cardNum;
+  }
+
+  public MegaIOMetrics.Operation getOperation()
+  {
+    return operation;
+  }
+
+  /**
+   * @return the histogram of the latencies of this kind of operation
+   */
+  public LatencyHistogram getLatency()
+  {
+    return latency;
+  }
+
+  @Override
+  public long getCalls()
+  {
+    return calls.sum();
+  }
+
+  @Override
+  public long getRetries()
+  {
+    return retries.sum();
+  }
+
+  @Override
+  public long getExhaustedRetries()
+  {
+    return exhausted.sum();
+  }
+
+  @Override
+  public long getI2CErrors()
+  {
+    return i2cErrors.sum();
+  }
+
+  @Override
+  public long getMeanNanos()
+  {
+    return latency.getMean();
+  }
+
+  @Override
+  public long getMedianNanos()
+  {
+    return latency.getValueAtPercentile( 50 );
+  }
+
+  @Override
+  public long getP99Nanos()
+  {
+    return latency.getValueAtPercentile( 99 );
+  }
+
+  @Override
+  public long getP999Nanos()
+  {
+    return latency.getValueAtPercentile( 99.9 );
+  }
+
+  @Override
+  public long getMaxNanos()
+  {
+    return latency.getMax();
+  }
+
+  @Override
+  public void reset()
+  {
+    calls.reset();
+    retries.reset();
+    exhausted.reset();
+    i2cErrors.reset();
+    latency.reset();
+  }
+}
@@ -0,0 +1,44 @@
+package com.sequentmicrosystems;
+
+/**
+ * The JMX view of the metrics kept for one kind of operation on one MegaIO card. Latencies are in nanoseconds
+ * and cover the whole operation, including any retries and the delays between them.
+ */
+public interface OperationMetricsMXBean
+{
+  /**
+   * @return the number of operations completed, successfully or not
+   */
+  long getCalls();
+
+  /**
+   * @return the number of attempts made beyond the first, over all operations
+   */
+  long getRetries();
+
+  /**
+   * @return the number of operations that gave up, having used all their attempts without success. Operations
+   *         that are not retried give up at their first IOException.
+   */
+  long getExhaustedRetries();
+
+  /**
+   * @return the number of IOExceptions thrown by the i2c device during operations, whether or not they were retried
+   */
+  long getI2CErrors();
+
+  long getMeanNanos();
+
+  long getMedianNanos();
+
+  long getP99Nanos();
+
+  long getP999Nanos();
+
+  long getMaxNanos();
+
+  /**
+   * Sets every counter and the latency histogram back to 0.
+   */
+  void reset();
+}
@@ -0,0 +1,486 @@
+package com.sequentmicrosystems;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.sequentmicrosystems.Constants.*;
+
+/**
+ * Turns relays and open collector outputs on and off at given times, on any number of cards, from a single
+ * thread: "relay 3 on for 250 ms", "open collector 2 pulsed every 2 s".
+ * <p>
+ * Pending actions are held in a hashed timer wheel: a ring of buckets, one per tick, each a doubly linked list
+ * of the actions due in a tick that hashes to it. Scheduling and cancelling an action take constant time
+ * however many are pending. Actions may be scheduled and cancelled from any thread; they are handed to the
+ * wheel's thread through lock-free queues and take effect at its next tick.
+ * <p>
+ * All the actions due on a card in the same tick are made in one batch, so that any number of relay changes
+ * are a single write of the relay register, and likewise the open collectors. Actions are never skipped: a
+ * scheduler that falls behind makes the ticks it missed as fast as it can, and the lag of each tick behind its
+ * scheduled time is recorded in a histogram.
+ */
+public class PulseScheduler
+    implements Closeable
+{
+  public enum Output
+  {
+    RELAY,
+    OC;
+  }
+
+  /**
+   * A scheduled action, which can be cancelled until it has been made. A pulse is one action which turns its
+   * output on and then off; a repeating pulse is one action which does so until it is cancelled.
+   */
+  public final class Action
+  {
+    private final Card card;
+    private final Output output;
+    private final int channel;
+    private final long widthTicks;
+    private final long periodTicks;
+
+    // the state of the output at the next firing
+    private boolean on;
+    // the System.nanoTime() at which the action was first due, turned into a tick by the wheel's thread
+    private final long dueNanos;
+
+    // Owned by the wheel's thread.
+    // the tick at which the current pulse started
+    private long startTick;
+    private long deadline;
+    private Action previous;
+    private Action next;
+    private boolean linked = false;
+
+    private volatile boolean cancelled = false;
+    private volatile boolean done = false;
+
+    private Action( Card card, Output output, int channel, boolean on, long dueNanos, long widthTicks,
+                    long periodTicks )
+    {
+      this.card = card;
+      this.output = output;
+      this.channel = channel;
+      this.on = on;
+      this.dueNanos = dueNanos;
+      this.widthTicks = widthTicks;
+      this.periodTicks = periodTicks;
+    }
+
+    /**
+     * Cancels whatever of the action has not been made yet. A pulse cancelled while its output is on leaves it
+     * on.
+     */
+    public void cancel()
+    {
+      if (!cancelled && !done)
+      {
+        cancelled = true;
+        cancels.offer( this );
+      }
+    }
+
+    public boolean isCancelled()
+    {
+      return cancelled;
+    }
+
+    /**
+     * @return true once the action has been made in full, which a repeating pulse never is
+     */
+    public boolean isDone()
+    {
+      return done;
+    }
+  }
+
+  private static class Card
+  {
+    final MegaIOBatch batch;
+    boolean touched = false;
+
+    Card( MegaIO io )
+    {
+      this.batch = io.batch();
+    }
+  }
+
+  private final long tickNanos;
+  private final Action[] wheel;
+  private final int mask;
+
+  private final Map<Integer, Card> cards = new ConcurrentHashMap<>();
+  private final Queue<Action> additions = new ConcurrentLinkedQueue<>();
+  private final Queue<Action> cancels = new ConcurrentLinkedQueue<>();
+  private final List<Card> touched = new ArrayList<>();
+
+  private volatile long startTime = System.nanoTime();
+  // the next tick to be made; written by the wheel's thread alone
+  private volatile long tick = 0;
+  private volatile int pending = 0;
+
+  private final AtomicLong fired = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong unverified = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private volatile IOException lastError = null;
+  private final LatencyHistogram lag = new LatencyHistogram();
+
+  private volatile boolean running = false;
+  private Thread scheduler = null;
+
+  /**
+   * @param tick the resolution of the scheduler; actions are made at the first tick at or after their time
+   * @param unit the unit of the tick
+   * @param wheelSize the number of buckets, rounded up to a power of two; a wheel covering the usual delays
+   *                  keeps the buckets short
+   */
+  public PulseScheduler( long tick, TimeUnit unit, int wheelSize )
+  {
+    if (tick <= 0 || wheelSize < 1)
+    {
+      throw new IllegalArgumentException( "Invalid timer wheel " + tick + "/" + wheelSize );
+    }
+    this.tickNanos = unit.toNanos( tick );
+    int size = 1;
+    while (size < wheelSize)
+    {
+      size <<= 1;
+    }
+    this.wheel = new Action[size];
+    this.mask = size - 1;
+  }
+
+  /**
+   * Adds a card whose outputs can be scheduled.
+   *
+   * @param cardNum the number by which the card's actions name it
+   * @param card the card itself
+   */
+  public void addCard( int cardNum, MegaIO card )
+  {
+    cards.put( cardNum, new Card( card ));
+  }
+
+  /* ------------- SCHEDULING  -------------- */
+
+  /**
+   * Turns an output on or off once a delay has passed.
+   */
+  public Action set( int cardNum, Output output, int channel, boolean on, long delay, TimeUnit unit )
+  {
+    return schedule( cardNum, output, channel, on, unit.toNanos( delay ), 0, 0 );
+  }
+
+  /**
+   * Turns an output on at the next tick, and off again after the given width.
+   */
+  public Action pulse( int cardNum, Output output, int channel, long width, TimeUnit unit )
+  {
+    return schedule( cardNum, output, channel, true, 0, ticks( unit.toNanos( width )), 0 );
+  }
+
+  /**
+   * Pulses an output from the next tick, once every period, until the action is cancelled.
+   *
+   * @param width how long the output is on in each period, shorter than the period
+   * @param period the time from the start of one pulse to the start of the next
+   */
+  public Action repeat( int cardNum, Output output, int channel, long width, long period, TimeUnit unit )
+  {
+    long widthTicks = ticks( unit.toNanos( width ));
+    long periodTicks = ticks( unit.toNanos( period ));
+    if (widthTicks >= periodTicks)
+    {
+      throw new IllegalArgumentException( "Pulse width " + width + " is not shorter than its period " + period );
+    }
+    return schedule( cardNum, output, channel, true, 0, widthTicks, periodTicks );
+  }
+
+  /**
+   * @return a duration in whole ticks, rounded up, and at least one
+   */
+  private long ticks( long nanos )
+  {
+    return Math.max( 1, (nanos + tickNanos - 1) / tickNanos );
+  }
+
+  private Action schedule( int cardNum, Output output, int channel, boolean on, long delayNanos, long widthTicks,
+                           long periodTicks )
+  {
+    Card card = cards.get( cardNum );
+    if (null == card)
+    {
+      throw new IllegalArgumentException( "Unknown card " + cardNum );
+    }
+    int max = Output.RELAY == output ? RELAY_CH_NR_MAX : OC_CH_NR_MAX;
+    if (channel < CHANNEL_NR_MIN || channel > max)
+    {
+      throw new IllegalArgumentException( "Invalid " + output + " channel " + channel );
+    }
+    Action action = new Action( card, output, channel, on, System.nanoTime() + delayNanos, widthTicks,
+                                periodTicks );
+    additions.offer( action );
+    return action;
+  }
+
+  /* ------------- THE WHEEL  -------------- */
+
+  /**
+   * Starts making actions on a thread of the scheduler's own. Actions are timed from when they were scheduled,
+   * even if the scheduler was not running then; those whose time has passed are made at its first tick.
+   */
+  public synchronized void start()
+  {
+    if (running)
+    {
+      return;
+    }
+    running = true;
+    // the next tick is made now, and those after it on time from here
+    startTime = System.nanoTime() - tick * tickNanos;
+    scheduler = new Thread( this::run, "megaio-pulse-scheduler" );
+    scheduler.setDaemon( true );
+    scheduler.start();
+  }
+
+  private void run()
+  {
+    while (running)
+    {
+      long due = startTime + tick * tickNanos;
+      long now = System.nanoTime();
+      if (now < due)
+      {
+        LockSupport.parkNanos( this, due - now );
+        continue;
+      }
+      lag.record( now - due );
+      advance();
+    }
+  }
+
+  /**
+   * Makes one tick: takes in the actions scheduled and cancelled since the last, and makes those now due.
+   */
+  void advance()
+  {
+    long current = tick;
+
+    Action action;
+    while (null != (action = cancels.poll()))
+    {
+      unlink( action );
+    }
+    while (null != (action = additions.poll()))
+    {
+      if (!action.cancelled)
+      {
+        // timed here rather than when scheduled, as the wheel's start time moves each time it starts
+        long due = action.dueNanos - startTime;
+        long deadline = due <= 0 ? 0 : (due + tickNanos - 1) / tickNanos;
+        action.startTick = Math.max( current, deadline );
+        link( action, action.startTick );
+      }
+    }
+
+    Action next;
+    for (action = wheel[(int) (current & mask)]; null != action; action = next)
+    {
+      next = action.next;
+      if (action.deadline <= current)
+      {
+        unlink( action );
+        fire( action, current );
+      }
+    }
+
+    for (Card card : touched)
+    {
+      try
+      {
+        batches.incrementAndGet();
+        if (!card.batch.execute().isVerified())
+        {
+          unverified.incrementAndGet();
+        }
+      }
+      catch( IOException ioex )
+      {
+        errors.incrementAndGet();
+        lastError = ioex;
+      }
+      card.batch.clear();
+      card.touched = false;
+    }
+    touched.clear();
+
+    tick = current + 1;
+  }
+
+  private void fire( Action action, long current )
+  {
+    Card card = action.card;
+    if (Output.RELAY == action.output)
+    {
+      card.batch.triggerRelay( action.channel, action.on );
+    }
+    else
+    {
+      card.batch.setOCPin( action.channel, action.on );
+    }
+    if (!card.touched)
+    {
+      card.touched = true;
+      touched.add( card );
+    }
+    fired.incrementAndGet();
+
+    if (action.on && action.widthTicks > 0)
+    {
+      action.on = false;
+      link( action, action.startTick + action.widthTicks );
+    }
+    else if (!action.on && action.periodTicks > 0)
+    {
+      // measured from the start of the last pulse, so that a late tick does not shift the ones after it
+      action.startTick += action.periodTicks;
+      action.on = true;
+      link( action, Math.max( current + 1, action.startTick ));
+    }
+    else
+    {
+      action.done = true;
+    }
+  }
+
+  private void link( Action action, long deadline )
+  {
+    action.deadline = deadline;
+    int bucket = (int) (deadline & mask);
+    action.previous = null;
+    action.next = wheel[bucket];
+    if (null != action.next)
+    {
+      action.next.previous = action;
+    }
+    wheel[bucket] = action;
+    action.linked = true;
+    pending++;
+  }
+
+  private void unlink( Action action )
+  {
+    if (!action.linked)
+    {
+      return;
+    }
+    if (null != action.previous)
+    {
+      action.previous.next = action.next;
+    }
+    else
+    {
+      wheel[(int) (action.deadline & mask)] = action.next;
+    }
+    if (null != action.next)
+    {
+      action.next.previous = action.previous;
+    }
+    action.previous = null;
+    action.next = null;
+    action.linked = false;
+    pending--;
+  }
+
+  /* ------------- STATISTICS  -------------- */
+
+  /**
+   * @return the number of actions waiting in the wheel, as of the last tick
+   */
+  public int getPending()
+  {
+    return pending;
+  }
+
+  /**
+   * @return the number of times an output has been turned on or off
+   */
+  public long getFired()
+  {
+    return fired.get();
+  }
+
+  /**
+   * @return the number of batches written, one for each card with actions due in a tick
+   */
+  public long getBatches()
+  {
+    return batches.get();
+  }
+
+  /**
+   * @return the number of batches whose writes did not read back as written after every retry
+   */
+  public long getUnverified()
+  {
+    return unverified.get();
+  }
+
+  /**
+   * @return the number of batches that failed on the bus
+   */
+  public long getErrors()
+  {
+    return errors.get();
+  }
+
+  /**
+   * @return the most recent exception thrown by a batch, or null if there has been none
+   */
+  public IOException getLastError()
+  {
+    return lastError;
+  }
+
+  /**
+   * @return the time, in nanoseconds, by which each tick started after its scheduled time
+   */
+  public LatencyHistogram getLag()
+  {
+    return lag;
+  }
+
+  /**
+   * Stops the scheduler. Actions still pending are not made, and outputs are left as they are.
+   */
+  @Override
+  public synchronized void close()
+  {
+    if (!running)
+    {
+      return;
+    }
+    running = false;
+    LockSupport.unpark( scheduler );
+    try
+    {
+      scheduler.join();
+    }
+    catch( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+    }
+    scheduler = null;
+  }
+}
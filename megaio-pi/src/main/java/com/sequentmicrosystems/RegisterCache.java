@@ -0,0 +1,236 @@
+package com.sequentmicrosystems;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.sequentmicrosystems.Constants.*;
+
+/**
+ * A shadow copy of a MegaIO card's register map. Each register is governed by a policy that decides whether,
+ * and for how long, a value read from or written to the card may be served from memory instead of the bus.
+ * <p>
+ * By default the output registers this library owns (relays, open collectors, DAC, GPIO direction and the
+ * interrupt masks) are write-through, the inputs (opto, GPIO values and ADC) are cached for the time to live
+ * given to the constructor, the revision bytes are cached once read, and the command and interrupt flag
+ * registers are never cached.
+ * <p>
+ * A cache may be shared by any number of threads without locking. Each register's value, validity and a
+ * generation count are packed into one atomic entry, and every write or invalidation bumps the generation, so a
+ * value read from the card is only stored if nothing was written to the cache while it was being read; a slow
+ * read can never overwrite a newer write with the older value. Policies should be set before the cache is shared.
+ */
+public class RegisterCache
+{
+  public enum Policy
+  {
+    /** Always go to the bus. */
+    NONE,
+    /** Keep the last value read or written until invalidated. */
+    WRITE_THROUGH,
+    /** Keep the last value read for no longer than the time to live. */
+    TTL;
+  }
+
+  static final int REGISTER_COUNT = 0x40;
+
+  private final Policy[] policies = new Policy[REGISTER_COUNT];
+  // generation << 9 | valid << 8 | value
+  private final AtomicLongArray entries = new AtomicLongArray( REGISTER_COUNT );
+  private final AtomicLongArray loadedAt = new AtomicLongArray( REGISTER_COUNT );
+  private static final long VALID = 0x100;
+  private static final long VALUE_MASK = 0xFF;
+  private static final long GENERATION = 0x200;
+
+  // bumped before every write or invalidation, so a load can tell whether one overlapped it
+  private final AtomicLong modifications = new AtomicLong();
+
+  private final long ttlNanos;
+
+  /**
+   * @param ttlMillis how long an input register read from the card may be served from the cache
+   */
+  public RegisterCache( long ttlMillis )
+  {
+    ttlNanos = ttlMillis * 1_000_000L;
+
+    for (int i = 0; i < REGISTER_COUNT; i++)
+    {
+      policies[i] = Policy.NONE;
+    }
+    policies[RELAY_MEM_ADD] = Policy.WRITE_THROUGH;
+    policies[OC_OUT_VAL_MEM_ADD] = Policy.WRITE_THROUGH;
+    policies[DAC_VAL_H_MEM_ADD] = Policy.WRITE_THROUGH;
+    policies[DAC_VAL_L_MEM_ADD] = Policy.WRITE_THROUGH;
+    policies[GPIO_DIR_MEM_ADD] = Policy.WRITE_THROUGH;
+    for (int i = OPTO_IT_RISING_MEM_ADD; i <= GPIO_EXT_IT_FALLING_MEM_ADD; i++)
+    {
+      policies[i] = Policy.WRITE_THROUGH;
+    }
+
+    policies[OPTO_IN_MEM_ADD] = Policy.TTL;
+    policies[GPIO_VAL_MEM_ADD] = Policy.TTL;
+    for (int i = ADC_VAL_MEM_ADD; i < DAC_VAL_H_MEM_ADD; i++)
+    {
+      policies[i] = Policy.TTL;
+    }
+
+    // The revisions never change while the card is powered, so the first read is good forever.
+    for (int i = REVISION_HW_MAJOR_MEM_ADD; i <= REVISION_MINOR_MEM_ADD; i++)
+    {
+      policies[i] = Policy.WRITE_THROUGH;
+    }
+  }
+
+  public Policy getPolicy( int address )
+  {
+    return policies[address];
+  }
+
+  public void setPolicy( int address, Policy policy )
+  {
+    policies[address] = policy;
+    invalidate( address );
+  }
+
+  /**
+   * @return the cached value of the register, or -1 if it must be read from the card
+   */
+  int get( int address )
+  {
+    long entry = entries.get( address );
+    if (0 == (entry & VALID))
+    {
+      return -1;
+    }
+    int value = (int) (entry & VALUE_MASK);
+    switch (policies[address])
+    {
+      case WRITE_THROUGH:
+        return value;
+
+      case TTL:
+        return System.nanoTime() - loadedAt.get( address ) < ttlNanos ? value : -1;
+
+      default:
+        return -1;
+    }
+  }
+
+  /**
+   * @return a stamp to take before reading registers from the card, and to pass to loaded with their values
+   */
+  long stamp()
+  {
+    return modifications.get();
+  }
+
+  /**
+   * Records a value that was just read from the card, unless the cache was written or invalidated while it was
+   * being read, in which case the value may already be out of date.
+   *
+   * @param stamp the stamp taken before the read
+   */
+  void loaded( int address, int value, long stamp )
+  {
+    if (Policy.NONE == policies[address])
+    {
+      return;
+    }
+    long entry = entries.get( address );
+    if (modifications.get() != stamp)
+    {
+      return;
+    }
+    if (Policy.TTL == policies[address])
+    {
+      loadedAt.set( address, System.nanoTime() );
+    }
+    // fails if a write has changed the entry since we looked at it
+    entries.compareAndSet( address, entry, next( entry ) | VALID | (value & VALUE_MASK) );
+  }
+
+  /**
+   * Records a value that was just written to the card.
+   */
+  void written( int address, int value )
+  {
+    switch (address)
+    {
+      // The command registers change a bit in another register. Forget that register rather than guess at it,
+      // so the verifying read that follows every command goes to the card.
+      case RELAY_ON_MEM_ADD:
+      case RELAY_OFF_MEM_ADD:
+        invalidate( RELAY_MEM_ADD );
+        break;
+
+      case OC_OUT_SET_MEM_ADD:
+      case OC_OUT_CLR_MEM_ADD:
+        invalidate( OC_OUT_VAL_MEM_ADD );
+        break;
+
+      case GPIO_SET_MEM_ADD:
+      case GPIO_CLR_MEM_ADD:
+        invalidate( GPIO_VAL_MEM_ADD );
+        break;
+
+      default:
+        if (Policy.WRITE_THROUGH == policies[address])
+        {
+          store( address, value );
+        }
+        else
+        {
+          invalidate( address );
+        }
+        break;
+    }
+  }
+
+  private void store( int address, int value )
+  {
+    modifications.incrementAndGet();
+    if (Policy.TTL == policies[address])
+    {
+      loadedAt.set( address, System.nanoTime() );
+    }
+    long entry;
+    do
+    {
+      entry = entries.get( address );
+    }
+    while (!entries.compareAndSet( address, entry, next( entry ) | VALID | (value & VALUE_MASK) ));
+  }
+
+  /**
+   * @return the entry's generation moved on by one, with no value
+   */
+  private static long next( long entry )
+  {
+    return (entry & ~(VALID | VALUE_MASK)) + GENERATION;
+  }
+
+  /**
+   * Forgets the cached value of a single register.
+   */
+  public void invalidate( int address )
+  {
+    modifications.incrementAndGet();
+    long entry;
+    do
+    {
+      entry = entries.get( address );
+    }
+    while (!entries.compareAndSet( address, entry, next( entry )));
+  }
+
+  /**
+   * Forgets every cached value.
+   */
+  public void invalidate()
+  {
+    for (int i = 0; i < REGISTER_COUNT; i++)
+    {
+      invalidate( i );
+    }
+  }
+}
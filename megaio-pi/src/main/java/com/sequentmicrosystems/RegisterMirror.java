@@ -0,0 +1,361 @@
+package com.sequentmicrosystems;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.sequentmicrosystems.Constants.*;
+
+/**
+ * Polls the registers of one or more MegaIO cards and publishes them in a memory-mapped file, where any number
+ * of processes can read them through a RegisterMirrorReader without touching the bus.
+ * <p>
+ * The file is a header followed by a block for each possible card number. Each block is guarded by a seqlock:
+ * its sequence number is made odd before the block is written and even again afterwards, and a reader that
+ * sees the same even number before and after copying the block knows its copy is consistent. Readers take no
+ * lock and make no system call, and never hold up the publisher.
+ * <p>
+ * Each poll reads the relays, OptoCoupled inputs, open collectors, GPIO pins and the eight analog channels of a
+ * card in one batch. A poll that fails leaves the last values in place and counts the failure in the block, so
+ * readers can tell stale values from fresh ones. Closing the mirror marks its cards as no longer published; a
+ * publisher that dies instead leaves them published, with an update time that no longer advances.
+ */
+public class RegisterMirror
+    implements Closeable
+{
+  static final int MAGIC = 0x4D494F4D;    // "MIOM"
+  static final int VERSION = 1;
+
+  // Header layout.
+  static final int CARD_COUNT_OFFSET = 8;
+  static final int BLOCK_SIZE_OFFSET = 12;
+  static final int HEADER_SIZE = 64;
+
+  // Block layout.
+  static final int SEQUENCE = 0;
+  static final int UPDATED = 8;
+  static final int STATE = 16;
+  static final int FAILURES = 20;
+  static final int VALUES = 24;
+  static final int BLOCK_SIZE = 128;
+
+  static final int ABSENT = 0;
+  static final int PRESENT = 1;
+
+  // The values of a block, in order.
+  static final int RELAYS = 0;
+  static final int OPTO_INS = 1;
+  static final int OC_PINS = 2;
+  static final int GPIO_PINS = 3;
+  static final int ANALOG = 4;
+  static final int VALUE_COUNT = ANALOG + ADC_CH_NR_MAX;
+
+  static final int FILE_SIZE = HEADER_SIZE + CARD_NR_MAX * BLOCK_SIZE;
+
+  /*
+   * The seqlock needs real fences around the plain accesses to the mapped file. A volatile field cannot stand
+   * in for them: only accesses to that field are ordered, which on AArch64 compile to ldar/stlr and leave the
+   * accesses around them free to move. Java 8 has no public fences, so these are sun.misc.Unsafe's, which has
+   * had them since Java 8 and still does, looked up reflectively as it cannot be compiled against.
+   */
+  private static final MethodHandle LOAD_FENCE;
+  private static final MethodHandle STORE_FENCE;
+
+  static
+  {
+    try
+    {
+      Class<?> type = Class.forName( "sun.misc.Unsafe" );
+      Field field = type.getDeclaredField( "theUnsafe" );
+      field.setAccessible( true );
+      Object unsafe = field.get( null );
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      LOAD_FENCE = lookup.findVirtual( type, "loadFence", MethodType.methodType( void.class )).bindTo( unsafe );
+      STORE_FENCE = lookup.findVirtual( type, "storeFence", MethodType.methodType( void.class )).bindTo( unsafe );
+    }
+    catch( ReflectiveOperationException e )
+    {
+      throw new ExceptionInInitializerError( e );
+    }
+  }
+
+  /**
+   * Keeps every store before it from being reordered with any store after it.
+   */
+  static void storeFence()
+  {
+    try
+    {
+      STORE_FENCE.invokeExact();
+    }
+    catch( Throwable t )
+    {
+      throw new IllegalStateException( "Store fence failed", t );
+    }
+  }
+
+  /**
+   * Keeps every load before it from being reordered with any load or store after it.
+   */
+  static void loadFence()
+  {
+    try
+    {
+      LOAD_FENCE.invokeExact();
+    }
+    catch( Throwable t )
+    {
+      throw new IllegalStateException( "Load fence failed", t );
+    }
+  }
+
+  private static class Card
+  {
+    final int cardNum;
+    final MegaIOBatch batch;
+    final int[] values = new int[VALUE_COUNT];
+    int failures = 0;
+    long updated = 0;
+
+    Card( int cardNum, MegaIO io )
+    {
+      this.cardNum = cardNum;
+      this.batch = io.batch().readRelays().readOptoIns().readOCPins().readGpioPins().readAnalogAll();
+    }
+  }
+
+  private final MappedByteBuffer mirror;
+  private final long intervalNanos;
+  private final List<Card> cards = new CopyOnWriteArrayList<>();
+
+  private final AtomicLong publishes = new AtomicLong();
+  private final AtomicLong errorCount = new AtomicLong();
+  private volatile IOException lastError = null;
+
+  private volatile boolean running = false;
+  private Thread publisher = null;
+
+  /**
+   * Opens the mirror file, creating it if need be. A file left by an earlier mirror is reused rather than
+   * replaced, so readers that still have it open see the new publisher, and every card is marked as not
+   * published until it has been polled.
+   *
+   * @param file the mirror file
+   * @param interval the interval between polls of each card
+   * @param unit the unit of the interval
+   * @throws IOException thrown if the file cannot be created or mapped
+   */
+  public RegisterMirror( Path file, long interval, TimeUnit unit )
+      throws IOException
+  {
+    if (interval <= 0)
+    {
+      throw new IllegalArgumentException( "Invalid poll interval " + interval );
+    }
+    this.intervalNanos = unit.toNanos( interval );
+    try (RandomAccessFile raf = new RandomAccessFile( file.toFile(), "rw" );
+         FileChannel channel = raf.getChannel())
+    {
+      boolean reusable = FILE_SIZE == raf.length() && MAGIC == raf.readInt() && VERSION == raf.readInt();
+      if (!reusable)
+      {
+        raf.setLength( 0 );
+      }
+      mirror = channel.map( FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE );
+    }
+    mirror.putInt( 0, MAGIC );
+    mirror.putInt( 4, VERSION );
+    mirror.putInt( CARD_COUNT_OFFSET, CARD_NR_MAX );
+    mirror.putInt( BLOCK_SIZE_OFFSET, BLOCK_SIZE );
+    int[] none = new int[VALUE_COUNT];
+    for (int cardNum = 0; cardNum < CARD_NR_MAX; cardNum++)
+    {
+      write( cardNum, ABSENT, none, 0, 0 );
+    }
+  }
+
+  /**
+   * Adds a card to be polled and published.
+   *
+   * @param cardNum the number of the card, from 0 to CARD_NR_MAX - 1, under which readers find it
+   * @param card the card itself
+   */
+  public void addCard( int cardNum, MegaIO card )
+  {
+    if (cardNum < 0 || cardNum >= CARD_NR_MAX)
+    {
+      throw new IllegalArgumentException( "Invalid card number " + cardNum );
+    }
+    for (Card existing : cards)
+    {
+      if (existing.cardNum == cardNum)
+      {
+        throw new IllegalArgumentException( "Card " + cardNum + " is already mirrored" );
+      }
+    }
+    cards.add( new Card( cardNum, card ));
+    LockSupport.unpark( publisher );
+  }
+
+  /**
+   * Starts polling on a thread of the mirror's own.
+   */
+  public synchronized void start()
+  {
+    if (running)
+    {
+      return;
+    }
+    running = true;
+    publisher = new Thread( this::run, "megaio-register-mirror" );
+    publisher.setDaemon( true );
+    publisher.start();
+  }
+
+  private void run()
+  {
+    long next = System.nanoTime();
+    while (running)
+    {
+      for (Card card : cards)
+      {
+        poll( card );
+      }
+      next += intervalNanos;
+      long wait = next - System.nanoTime();
+      if (wait > 0)
+      {
+        LockSupport.parkNanos( this, wait );
+      }
+      else
+      {
+        // fallen behind, most likely on a slow bus; start again from now rather than poll back to back
+        next = System.nanoTime();
+      }
+    }
+  }
+
+  private void poll( Card card )
+  {
+    try
+    {
+      MegaIOBatch.Result result = card.batch.execute();
+      card.values[RELAYS] = result.getRelays();
+      card.values[OPTO_INS] = result.getOptoIns();
+      card.values[OC_PINS] = result.getOCPins();
+      card.values[GPIO_PINS] = result.getGpioPins();
+      for (int channel = CHANNEL_NR_MIN; channel <= ADC_CH_NR_MAX; channel++)
+      {
+        card.values[ANALOG + channel - 1] = result.getAnalog( channel );
+      }
+      card.failures = 0;
+      card.updated = System.currentTimeMillis();
+    }
+    catch( IOException ioex )
+    {
+      errorCount.incrementAndGet();
+      lastError = ioex;
+      card.failures++;
+      if (card.updated == 0)
+      {
+        // nothing to publish yet
+        return;
+      }
+    }
+    write( card.cardNum, PRESENT, card.values, card.failures, card.updated );
+  }
+
+  /**
+   * Publishes values for a card, as a poll would.
+   */
+  void publish( int cardNum, int[] values )
+  {
+    write( cardNum, PRESENT, values, 0, System.currentTimeMillis() );
+  }
+
+  /**
+   * Writes a block under its seqlock. Only the publisher thread writes, apart from the constructor and close.
+   */
+  private void write( int cardNum, int state, int[] values, int failures, long updated )
+  {
+    int block = HEADER_SIZE + cardNum * BLOCK_SIZE;
+    // continue from whatever sequence is there, made even should an earlier publisher have died mid-write, so
+    // that no reader ever sees a sequence repeated
+    long sequence = (mirror.getLong( block + SEQUENCE ) | 1) + 1;
+    mirror.putLong( block + SEQUENCE, sequence - 1 );
+    storeFence();
+    mirror.putLong( block + UPDATED, updated );
+    mirror.putInt( block + STATE, state );
+    mirror.putInt( block + FAILURES, failures );
+    for (int i = 0; i < VALUE_COUNT; i++)
+    {
+      mirror.putInt( block + VALUES + 4 * i, values[i] );
+    }
+    storeFence();
+    mirror.putLong( block + SEQUENCE, sequence );
+    publishes.incrementAndGet();
+  }
+
+  /**
+   * @return the number of times a card's block was written
+   */
+  public long getPublishCount()
+  {
+    return publishes.get();
+  }
+
+  /**
+   * @return the number of polls that failed because the registers of a card could not be read
+   */
+  public long getErrorCount()
+  {
+    return errorCount.get();
+  }
+
+  /**
+   * @return the most recent exception thrown by a poll, or null if there has been none
+   */
+  public IOException getLastError()
+  {
+    return lastError;
+  }
+
+  /**
+   * Stops polling and marks every card as no longer published.
+   */
+  @Override
+  public synchronized void close()
+  {
+    if (running)
+    {
+      running = false;
+      LockSupport.unpark( publisher );
+      try
+      {
+        publisher.join();
+      }
+      catch( InterruptedException e )
+      {
+        Thread.currentThread().interrupt();
+      }
+      publisher = null;
+    }
+    for (Card card : cards)
+    {
+      write( card.cardNum, ABSENT, card.values, card.failures, card.updated );
+    }
+    cards.clear();
+  }
+}
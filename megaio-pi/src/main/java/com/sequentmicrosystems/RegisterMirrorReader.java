@@ -0,0 +1,196 @@
+package com.sequentmicrosystems;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static com.sequentmicrosystems.Constants.*;
+import static com.sequentmicrosystems.RegisterMirror.*;
+
+/**
+ * Reads the card registers published by a RegisterMirror, possibly in another process.
+ * <p>
+ * A read copies a card's block from the mapped file and checks the block's sequence number before and after;
+ * should the publisher have been writing meanwhile, the copy is simply made again. Reading takes no lock and
+ * makes no system call, and costs well under a microsecond. Any number of threads may read through one reader,
+ * each into its own Snapshot.
+ */
+public class RegisterMirrorReader
+{
+  /**
+   * A consistent copy of the registers of one card, as they were at its last poll.
+   */
+  public static final class Snapshot
+  {
+    long sequence;
+    long updated;
+    int failures;
+    final int[] values = new int[VALUE_COUNT];
+
+    /**
+     * @return the sequence number of the block copied, which changes every time the card is published
+     */
+    public long getSequence()
+    {
+      return sequence;
+    }
+
+    /**
+     * @return the time the card was last read successfully, in milliseconds since the epoch
+     */
+    public long getUpdated()
+    {
+      return updated;
+    }
+
+    /**
+     * @return the number of polls of the card that have failed since the last one that succeeded
+     */
+    public int getFailures()
+    {
+      return failures;
+    }
+
+    public int getRelays()
+    {
+      return values[RELAYS];
+    }
+
+    public boolean isRelayOn( int relayNumber )
+    {
+      return (values[RELAYS] & (0x01 << (relayNumber - 1))) != 0;
+    }
+
+    public int getOptoIns()
+    {
+      return values[OPTO_INS];
+    }
+
+    public boolean readOptoIn( int optoPinNumber )
+    {
+      return (values[OPTO_INS] & (0x01 << (optoPinNumber - 1))) != 0;
+    }
+
+    public int getOCPins()
+    {
+      return values[OC_PINS];
+    }
+
+    public int getGpioPins()
+    {
+      return values[GPIO_PINS];
+    }
+
+    /**
+     * @param channel the analog channel, from 1 to 8
+     * @return the 12-bit value of the channel
+     */
+    public int getAnalog( int channel )
+    {
+      if (channel < CHANNEL_NR_MIN || channel > ADC_CH_NR_MAX)
+      {
+        throw new IllegalArgumentException( "Invalid analog channel " + channel );
+      }
+      return values[ANALOG + channel - 1];
+    }
+  }
+
+  // tries before a reader gives the publisher, perhaps preempted mid-write, a chance to finish
+  private static final int SPINS = 100;
+
+  private final MappedByteBuffer mirror;
+
+  /**
+   * @param file the file a RegisterMirror publishes to
+   * @throws IOException thrown if the file cannot be read or is not a register mirror
+   */
+  public RegisterMirrorReader( Path file )
+      throws IOException
+  {
+    try (FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ))
+    {
+      if (channel.size() < FILE_SIZE)
+      {
+        throw new IOException( "Not a register mirror: " + file );
+      }
+      mirror = channel.map( FileChannel.MapMode.READ_ONLY, 0, FILE_SIZE );
+    }
+    if (MAGIC != mirror.getInt( 0 ) || VERSION != mirror.getInt( 4 )
+        || CARD_NR_MAX != mirror.getInt( CARD_COUNT_OFFSET ) || BLOCK_SIZE != mirror.getInt( BLOCK_SIZE_OFFSET ))
+    {
+      throw new IOException( "Not a register mirror: " + file );
+    }
+  }
+
+  private static int block( int cardNum )
+  {
+    if (cardNum < 0 || cardNum >= CARD_NR_MAX)
+    {
+      throw new IllegalArgumentException( "Invalid card number " + cardNum );
+    }
+    return HEADER_SIZE + cardNum * BLOCK_SIZE;
+  }
+
+  /**
+   * @return the current sequence number of a card's block, for a cheap check of whether it has been published
+   *         again since a snapshot was taken; odd while the block is being written
+   */
+  public long getSequence( int cardNum )
+  {
+    long sequence = mirror.getLong( block( cardNum ) + SEQUENCE );
+    loadFence();
+    return sequence;
+  }
+
+  /**
+   * Copies the registers of a card into a snapshot.
+   *
+   * @return false if the card is not published
+   */
+  public boolean read( int cardNum, Snapshot snapshot )
+  {
+    int block = block( cardNum );
+    for (int tries = 1; ; tries++)
+    {
+      long sequence = mirror.getLong( block + SEQUENCE );
+      loadFence();
+      if ((sequence & 1) == 0)
+      {
+        boolean present = PRESENT == mirror.getInt( block + STATE );
+        long updated = mirror.getLong( block + UPDATED );
+        int failures = mirror.getInt( block + FAILURES );
+        int[] values = snapshot.values;
+        for (int i = 0; present && i < VALUE_COUNT; i++)
+        {
+          values[i] = mirror.getInt( block + VALUES + 4 * i );
+        }
+        loadFence();
+        if (sequence == mirror.getLong( block + SEQUENCE ))
+        {
+          if (present)
+          {
+            snapshot.sequence = sequence;
+            snapshot.updated = updated;
+            snapshot.failures = failures;
+          }
+          return present;
+        }
+      }
+      if (tries % SPINS == 0)
+      {
+        Thread.yield();
+      }
+    }
+  }
+
+  /**
+   * @return a snapshot of the registers of a card, or null if the card is not published
+   */
+  public Snapshot read( int cardNum )
+  {
+    Snapshot snapshot = new Snapshot();
+    return read( cardNum, snapshot ) ? snapshot : null;
+  }
+}
@@ -0,0 +1,234 @@
+package com.sequentmicrosystems;
+
+import com.pi4j.io.i2c.I2CDevice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An I2CDevice which plays back a trace captured by a TracingI2CDevice, so that what happened on a card in the
+ * field can be run again offline, under a debugger or a benchmark.
+ * <p>
+ * Each call is matched to the next transaction in the trace, and answered as the card answered it: reads return
+ * the bytes that were read, and a transaction that failed throws an IOException again. A call that is not the
+ * one traced, because the code driving the device has changed, throws an IllegalStateException naming the
+ * transaction where the two diverged; a write of different bytes is only counted. Transactions are paced to
+ * finish when they finished in the trace, at the original speed or any multiple of it, or as fast as possible.
+ */
+public class ReplayI2CDevice
+    implements I2CDevice
+{
+  private final I2CTrace trace;
+  private final List<I2CTrace.Transaction> transactions;
+  private final double speed;
+
+  private int next = 0;
+  private long originNanos;
+  private long baseNanos;
+  private long writeMismatches = 0;
+
+  /**
+   * @param trace the transactions to play back
+   * @param speed how many times faster than the trace to play it back, or 0 for as fast as possible
+   */
+  public ReplayI2CDevice( I2CTrace trace, double speed )
+  {
+    if (!(speed >= 0))
+    {
+      throw new IllegalArgumentException( "Invalid replay speed " + speed );
+    }
+    this.trace = trace;
+    this.transactions = trace.getTransactions();
+    this.speed = speed;
+  }
+
+  /**
+   * Matches a call to the next transaction, waits until it is due, and replays its failure if it failed.
+   */
+  private I2CTrace.Transaction replay( I2CTrace.Op op, int register )
+      throws IOException
+  {
+    if (next >= transactions.size())
+    {
+      throw new IllegalStateException( "Replay has run past the end of the trace, at " + op );
+    }
+    I2CTrace.Transaction transaction = transactions.get( next );
+    if (transaction.getOp() != op || transaction.getRegister() != register)
+    {
+      throw new IllegalStateException( "Replay diverged from " + transaction + " with " + op + " of register "
+                                       + register );
+    }
+    if (0 == next)
+    {
+      originNanos = System.nanoTime();
+      baseNanos = transaction.getStartNanos();
+    }
+    next++;
+    if (speed > 0)
+    {
+      long due = originNanos
+          + (long) ((transaction.getStartNanos() + transaction.getDurationNanos() - baseNanos) / speed);
+      long remaining;
+      while ((remaining = due - System.nanoTime()) > 0)
+      {
+        LockSupport.parkNanos( this, remaining );
+      }
+    }
+    if (transaction.isFailed())
+    {
+      throw new IOException( "Replayed failure of " + transaction );
+    }
+    return transaction;
+  }
+
+  private void written( I2CTrace.Transaction transaction, byte[] buffer, int offset, int size )
+  {
+    boolean same = size == transaction.getLength();
+    for (int i = 0; same && i < transaction.kept(); i++)
+    {
+      same = buffer[offset + i] == transaction.payload( i );
+    }
+    if (!same)
+    {
+      writeMismatches++;
+    }
+  }
+
+  private int read( I2CTrace.Transaction transaction, byte[] buffer, int offset, int size )
+  {
+    // bytes beyond those kept in the trace read as zero
+    for (int i = 0; i < size; i++)
+    {
+      buffer[offset + i] = i < transaction.kept() ? transaction.payload( i ) : 0;
+    }
+    return transaction.getResult();
+  }
+
+  /**
+   * @return the number of transactions played back
+   */
+  public synchronized int getReplayed()
+  {
+    return next;
+  }
+
+  /**
+   * @return true once every transaction in the trace has been played back
+   */
+  public synchronized boolean isFinished()
+  {
+    return next >= transactions.size();
+  }
+
+  /**
+   * @return the number of writes whose bytes differed from those traced
+   */
+  public synchronized long getWriteMismatches()
+  {
+    return writeMismatches;
+  }
+
+  /* ------------- I2CDevice  -------------- */
+
+  @Override
+  public int getAddress()
+  {
+    return trace.getAddress();
+  }
+
+  @Override
+  public synchronized void write( byte b )
+      throws IOException
+  {
+    written( replay( I2CTrace.Op.WRITE_BYTE, -1 ), new byte[] { b }, 0, 1 );
+  }
+
+  @Override
+  public synchronized void write( byte[] buffer, int offset, int size )
+      throws IOException
+  {
+    written( replay( I2CTrace.Op.WRITE_BUFFER, -1 ), buffer, offset, size );
+  }
+
+  @Override
+  public void write( byte[] buffer )
+      throws IOException
+  {
+    write( buffer, 0, buffer.length );
+  }
+
+  @Override
+  public synchronized void write( int address, byte b )
+      throws IOException
+  {
+    written( replay( I2CTrace.Op.WRITE_REGISTER_BYTE, address ), new byte[] { b }, 0, 1 );
+  }
+
+  @Override
+  public synchronized void write( int address, byte[] buffer, int offset, int size )
+      throws IOException
+  {
+    written( replay( I2CTrace.Op.WRITE_REGISTER_BUFFER, address ), buffer, offset, size );
+  }
+
+  @Override
+  public void write( int address, byte[] buffer )
+      throws IOException
+  {
+    write( address, buffer, 0, buffer.length );
+  }
+
+  @Override
+  public synchronized int read()
+      throws IOException
+  {
+    return replay( I2CTrace.Op.READ_BYTE, -1 ).getResult();
+  }
+
+  @Override
+  public synchronized int read( byte[] buffer, int offset, int size )
+      throws IOException
+  {
+    return read( replay( I2CTrace.Op.READ_BUFFER, -1 ), buffer, offset, size );
+  }
+
+  @Override
+  public synchronized int read( int address )
+      throws IOException
+  {
+    return replay( I2CTrace.Op.READ_REGISTER, address ).getResult();
+  }
+
+  @Override
+  public synchronized int read( int address, byte[] buffer, int offset, int size )
+      throws IOException
+  {
+    return read( replay( I2CTrace.Op.READ_REGISTER_BUFFER, address ), buffer, offset, size );
+  }
+
+  @Override
+  public synchronized int read( byte[] writeBuffer, int writeOffset, int writeSize, byte[] readBuffer,
+                                int readOffset, int readSize )
+      throws IOException
+  {
+    int register = writeSize > 0 ? writeBuffer[writeOffset] & 0xFF : -1;
+    return read( replay( I2CTrace.Op.WRITE_READ, register ), readBuffer, readOffset, readSize );
+  }
+
+  @Override
+  public synchronized void ioctl( long command, int value )
+      throws IOException
+  {
+    replay( I2CTrace.Op.IOCTL, -1 );
+  }
+
+  @Override
+  public synchronized void ioctl( long command, ByteBuffer data, IntBuffer offsets )
+      throws IOException
+  {
+    replay( I2CTrace.Op.IOCTL, -1 );
+  }
+}
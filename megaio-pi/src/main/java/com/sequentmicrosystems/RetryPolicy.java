@@ -0,0 +1,101 @@
+package com.sequentmicrosystems;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether, and after how long, an operation that did not take effect is tried again. Used by the
+ * operations that write to the card and read back what they wrote, such as triggerRelay, writeAnalog and
+ * setOCPin. Policies hold no state, so one may be shared by any number of cards and threads.
+ */
+public interface RetryPolicy
+{
+  /** Returned by nextDelay when no more attempts should be made. */
+  long GIVE_UP = -1;
+
+  /**
+   * @param attempts the number of attempts made so far, at least 1
+   * @param elapsedNanos the time since the first attempt began
+   * @return the number of milliseconds to wait before the next attempt, or GIVE_UP
+   */
+  long nextDelay( int attempts, long elapsedNanos );
+
+  /**
+   * Gives up once the next attempt could not start before the given time since the first one began.
+   */
+  default RetryPolicy withDeadline( long timeout, TimeUnit unit )
+  {
+    long timeoutNanos = unit.toNanos( timeout );
+    return (attempts, elapsedNanos) ->
+    {
+      long delay = nextDelay( attempts, elapsedNanos );
+      if (delay < 0 || elapsedNanos + TimeUnit.MILLISECONDS.toNanos( delay ) > timeoutNanos)
+      {
+        return GIVE_UP;
+      }
+      return delay;
+    };
+  }
+
+  /**
+   * Makes every attempt after the same delay, the behaviour of the card's operations before policies were
+   * pluggable, which is fixed( RETRY_TIMES, 0 ).
+   *
+   * @param maxAttempts the number of attempts, including the first
+   * @param delayMillis the wait between attempts
+   */
+  static RetryPolicy fixed( int maxAttempts, long delayMillis )
+  {
+    if (maxAttempts < 1 || delayMillis < 0)
+    {
+      throw new IllegalArgumentException( "Invalid retry policy " + maxAttempts + "/" + delayMillis );
+    }
+    return (attempts, elapsedNanos) -> attempts < maxAttempts ? delayMillis : GIVE_UP;
+  }
+
+  /**
+   * Doubles the delay after every attempt, so that a card that is failing is left alone for longer and longer
+   * rather than hammered. Each delay is shortened by a random fraction, up to the jitter, so that threads which
+   * failed together do not all retry together.
+   *
+   * @param maxAttempts the number of attempts, including the first
+   * @param initialDelayMillis the wait after the first attempt
+   * @param maxDelayMillis the longest wait
+   * @param jitter the largest fraction of each delay to take off at random, from 0 for none to 1
+   */
+  static RetryPolicy exponential( int maxAttempts, long initialDelayMillis, long maxDelayMillis, double jitter )
+  {
+    if (maxAttempts < 1 || initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis
+        || !(jitter >= 0 && jitter <= 1))
+    {
+      throw new IllegalArgumentException( "Invalid retry policy " + maxAttempts + "/" + initialDelayMillis + "/"
+                                          + maxDelayMillis + "/" + jitter );
+    }
+    return (attempts, elapsedNanos) ->
+    {
+      if (attempts >= maxAttempts)
+      {
+        return GIVE_UP;
+      }
+      long delay = initialDelayMillis;
+      for (int i = 1; i < attempts && delay < maxDelayMillis; i++)
+      {
+        delay *= 2;
+      }
+      delay = Math.min( delay, maxDelayMillis );
+      if (jitter > 0)
+      {
+        delay -= (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+      }
+      return delay;
+    };
+  }
+
+  /**
+   * Makes a single attempt.
+   */
+  static RetryPolicy none()
+  {
+    return fixed( 1, 0 );
+  }
+}
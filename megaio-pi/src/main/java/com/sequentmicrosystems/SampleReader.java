@@ -0,0 +1,297 @@
+package com.sequentmicrosystems;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static com.sequentmicrosystems.SampleRecorder.*;
+
+/**
+ * Reads back a log written by a SampleRecorder, oldest segment first, one record at a time.
+ * <p>
+ * Like AnalogSampler's cursor, each call to next decodes one record into the reader, where it can be read until
+ * the following call, without allocating. For code that would rather have objects, the reader is also Iterable.
+ * <p>
+ * Each segment is read up to the end recorded by its last complete commit, so a segment left by a recorder that
+ * crashed is read as far as it was committed. A segment whose header cannot be trusted is skipped and counted.
+ */
+public class SampleReader
+    implements Closeable, Iterable<SampleReader.Sample>
+{
+  /**
+   * A record, as returned by the iterator.
+   */
+  public static final class Sample
+  {
+    private final long time;
+    private final Series series;
+    private final int channel;
+    private final int value;
+
+    public Sample( long time, Series series, int channel, int value )
+    {
+      this.time = time;
+      this.series = series;
+      this.channel = channel;
+      this.value = value;
+    }
+
+    public long getTime()
+    {
+      return time;
+    }
+
+    public Series getSeries()
+    {
+      return series;
+    }
+
+    public int getChannel()
+    {
+      return channel;
+    }
+
+    public int getValue()
+    {
+      return value;
+    }
+
+    @Override
+    public String toString()
+    {
+      return time + " " + series + (Series.ANALOG == series ? " " + channel : "") + " " + value;
+    }
+  }
+
+  private static final Series[] SERIES = Series.values();
+
+  private final List<Path> paths;
+  private int nextSegment = 0;
+
+  private MappedByteBuffer buffer;
+  private int position;
+  private int end;
+  private long lastTime;
+  private final long[] lastValues = new long[256];
+
+  private long time;
+  private Series series;
+  private int channel;
+  private int value;
+
+  private long corruptSegments = 0;
+  private long truncatedSegments = 0;
+
+  /**
+   * @param directory the directory holding the log's segments
+   * @throws IOException thrown if the directory cannot be read
+   */
+  public SampleReader( Path directory )
+      throws IOException
+  {
+    this.paths = SampleRecorder.list( directory );
+  }
+
+  /**
+   * Moves to the next record.
+   *
+   * @return true if the reader holds a new record, false if the whole log has been read
+   * @throws IOException thrown if a segment cannot be read
+   */
+  public boolean next()
+      throws IOException
+  {
+    int tag;
+    int kind;
+    while (true)
+    {
+      if (null == buffer || position >= end)
+      {
+        if (nextSegment >= paths.size())
+        {
+          buffer = null;
+          return false;
+        }
+        open( paths.get( nextSegment++ ));
+        continue;
+      }
+      tag = buffer.get( position++ ) & 0xFF;
+      kind = (tag >> 4) - 1;
+      if (kind >= 0 && kind < SERIES.length)
+      {
+        break;
+      }
+      // committed space that was never written, as after a loss of power; nothing after it can be decoded
+      truncatedSegments++;
+      position = end;
+    }
+    time = lastTime + unzigzag( varLong() );
+    long current = lastValues[tag] + unzigzag( varLong() );
+    lastTime = time;
+    lastValues[tag] = current;
+    series = SERIES[kind];
+    channel = tag & 0x0F;
+    value = (int) current;
+    return true;
+  }
+
+  private void open( Path path )
+      throws IOException
+  {
+    buffer = null;
+    try (FileChannel file = FileChannel.open( path, StandardOpenOption.READ ))
+    {
+      long size = file.size();
+      if (size < HEADER_SIZE || size > Integer.MAX_VALUE)
+      {
+        corruptSegments++;
+        return;
+      }
+      buffer = file.map( FileChannel.MapMode.READ_ONLY, 0, size );
+    }
+    if (MAGIC != buffer.getInt( 0 ) || VERSION != buffer.getInt( 4 ))
+    {
+      corruptSegments++;
+      buffer = null;
+      return;
+    }
+    long sequence = buffer.getLong( SEQUENCE_OFFSET );
+    long bestGeneration = 0;
+    end = -1;
+    for (int slot = SLOT_OFFSET; slot < SLOT_OFFSET + 2 * SLOT_SIZE; slot += SLOT_SIZE)
+    {
+      long generation = buffer.getLong( slot );
+      int slotEnd = buffer.getInt( slot + 8 );
+      int records = buffer.getInt( slot + 12 );
+      if (generation > bestGeneration && slotEnd >= HEADER_SIZE && slotEnd <= buffer.capacity()
+          && check( sequence, generation, slotEnd, records ) == buffer.getLong( slot + 16 ))
+      {
+        bestGeneration = generation;
+        end = slotEnd;
+      }
+    }
+    if (end < 0)
+    {
+      corruptSegments++;
+      buffer = null;
+      return;
+    }
+    position = HEADER_SIZE;
+    lastTime = buffer.getLong( BASE_TIME_OFFSET );
+    Arrays.fill( lastValues, 0 );
+  }
+
+  private long varLong()
+  {
+    long result = 0;
+    for (int shift = 0; shift < 64 && position < end; shift += 7)
+    {
+      byte b = buffer.get( position++ );
+      result |= (long) (b & 0x7F) << shift;
+      if (b >= 0)
+      {
+        break;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the time of the record, in microseconds since the epoch
+   */
+  public long time()
+  {
+    return time;
+  }
+
+  public Series series()
+  {
+    return series;
+  }
+
+  /**
+   * @return the analog channel of the record, from 1 to 8, or 0 for a mask
+   */
+  public int channel()
+  {
+    return channel;
+  }
+
+  public int value()
+  {
+    return value;
+  }
+
+  /**
+   * @return the number of segments skipped because their header could not be trusted
+   */
+  public long getCorruptSegments()
+  {
+    return corruptSegments;
+  }
+
+  /**
+   * @return the number of segments whose committed records ended early, as they may after a loss of power
+   */
+  public long getTruncatedSegments()
+  {
+    return truncatedSegments;
+  }
+
+  /**
+   * Iterates over the records not yet read. Errors reading a segment are thrown as UncheckedIOException.
+   */
+  @Override
+  public Iterator<Sample> iterator()
+  {
+    return new Iterator<Sample>()
+    {
+      private boolean ready = false;
+      private boolean more = true;
+
+      @Override
+      public boolean hasNext()
+      {
+        if (!ready && more)
+        {
+          try
+          {
+            more = SampleReader.this.next();
+          }
+          catch( IOException ioex )
+          {
+            throw new UncheckedIOException( ioex );
+          }
+          ready = true;
+        }
+        return more;
+      }
+
+      @Override
+      public Sample next()
+      {
+        if (!hasNext())
+        {
+          throw new NoSuchElementException();
+        }
+        ready = false;
+        return new Sample( time, series, channel, value );
+      }
+    };
+  }
+
+  @Override
+  public void close()
+  {
+    buffer = null;
+    nextSegment = paths.size();
+  }
+}
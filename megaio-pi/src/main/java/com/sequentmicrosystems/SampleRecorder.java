@@ -0,0 +1,422 @@
+package com.sequentmicrosystems;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.sequentmicrosystems.Constants.*;
+
+/**
+ * Records samples of a card's inputs and outputs to disk in a compact binary log, for analysis later with a
+ * SampleReader.
+ * <p>
+ * The log is a directory of segment files of a fixed size, each memory mapped while it is written. A record is
+ * a tag byte naming the series, followed by the time since the previous record and the change in the series'
+ * value since its previous record, both as zigzag varints; a sweep of unchanged inputs costs three bytes a value.
+ * Recording neither allocates nor makes a system call, except when a segment fills and the next is created.
+ * <p>
+ * Each segment starts with a header holding two commit slots, written alternately and each with its own check
+ * value, so that a torn write of one leaves the other intact. A record becomes part of the log when the slot
+ * after it is written; a record left half written by a crash lies beyond the committed end and is never read.
+ * The mapped pages are forced to the device only every force interval and when a segment is finished, so that
+ * the card is not rewritten for every record: a crash of the process loses nothing, and a loss of power loses
+ * at most the records since the last force.
+ * <p>
+ * Every segment is decoded on its own, so the oldest can be deleted to bound the space the log takes.
+ */
+public class SampleRecorder
+    implements Closeable
+{
+  public enum Series
+  {
+    /** The 12-bit value of an analog input, with the channel from 1 to 8. */
+    ANALOG,
+    /** The opto inputs as a mask, with channel 0. */
+    OPTO,
+    /** The relays as a mask, with channel 0. */
+    RELAYS,
+    /** The GPIO pins as a mask, with channel 0. */
+    GPIO;
+  }
+
+  static final int MAGIC = 0x4D494F53;    // "MIOS"
+  static final int VERSION = 1;
+  static final String SUFFIX = ".seg";
+
+  // Header layout.
+  static final int SEQUENCE_OFFSET = 8;
+  static final int BASE_TIME_OFFSET = 16;
+  static final int SLOT_OFFSET = 24;
+  static final int SLOT_SIZE = 24;
+  static final int HEADER_SIZE = 128;
+
+  // a tag, a time delta and a value delta, at ten bytes a varint
+  static final int MAX_RECORD_SIZE = 21;
+  public static final int MIN_SEGMENT_SIZE = 4096;
+
+  private final Path directory;
+  private final int segmentSize;
+  private final Deque<Path> segments = new ArrayDeque<>();
+  private int maxSegments = Integer.MAX_VALUE;
+  private long forceIntervalNanos = TimeUnit.SECONDS.toNanos( 10 );
+
+  // clock
+  private final long baseEpochMicros = TimeUnit.MILLISECONDS.toMicros( System.currentTimeMillis() );
+  private final long baseNanos = System.nanoTime();
+
+  // the current segment
+  private MappedByteBuffer buffer;
+  private long sequence;
+  private int position;
+  private int records;
+  private long generation;
+  private long lastTime;
+  private final long[] lastValues = new long[256];
+  private long lastForce;
+
+  private final int[] analogValues = new int[ADC_CH_NR_MAX];
+  private long totalRecords = 0;
+  private long totalBytes = 0;
+  private boolean closed = false;
+
+  /**
+   * Opens a log, creating its directory if need be. Recording always starts in a new segment, after any left by
+   * an earlier recorder.
+   *
+   * @param directory the directory holding the segments
+   * @param segmentSize the size of each segment in bytes, at least MIN_SEGMENT_SIZE
+   * @throws IOException thrown if the directory cannot be read or the first segment cannot be created
+   */
+  public SampleRecorder( Path directory, int segmentSize )
+      throws IOException
+  {
+    if (segmentSize < MIN_SEGMENT_SIZE)
+    {
+      throw new IllegalArgumentException( "Segment size " + segmentSize + " is under " + MIN_SEGMENT_SIZE );
+    }
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    Files.createDirectories( directory );
+    segments.addAll( list( directory ));
+    sequence = segments.isEmpty() ? 0 : sequenceOf( segments.getLast() ) + 1;
+    open( now() );
+  }
+
+  /**
+   * Sets the number of segments kept; once there are more, the oldest are deleted.
+   */
+  public synchronized SampleRecorder setMaxSegments( int maxSegments )
+  {
+    if (maxSegments < 1)
+    {
+      throw new IllegalArgumentException( "Invalid segment count " + maxSegments );
+    }
+    this.maxSegments = maxSegments;
+    return this;
+  }
+
+  /**
+   * Sets how often the records are forced to the device, 10 seconds by default. Zero forces after every record.
+   */
+  public synchronized SampleRecorder setForceInterval( long interval, TimeUnit unit )
+  {
+    this.forceIntervalNanos = unit.toNanos( interval );
+    return this;
+  }
+
+  /* ------------- RECORDING  -------------- */
+
+  /**
+   * Samples every analog input, the opto inputs, the relays and the GPIO pins of a card, and records them all
+   * with the same time.
+   *
+   * @throws IOException thrown in case bytes cannot be read from the card, or the next segment cannot be created
+   */
+  public synchronized void sample( MegaIO card )
+      throws IOException
+  {
+    card.readAnalogAll( analogValues );
+    int optos = card.readOptoIns();
+    int relays = card.readRelays();
+    int gpios = card.readGpioPins();
+    long time = now();
+    for (int channel = 1; channel <= ADC_CH_NR_MAX; channel++)
+    {
+      record( Series.ANALOG, channel, time, analogValues[channel - 1] );
+    }
+    record( Series.OPTO, 0, time, optos );
+    record( Series.RELAYS, 0, time, relays );
+    record( Series.GPIO, 0, time, gpios );
+  }
+
+  /**
+   * Records a value with the current time.
+   */
+  public synchronized void record( Series series, int channel, int value )
+      throws IOException
+  {
+    record( series, channel, now(), value );
+  }
+
+  /**
+   * Records a value.
+   *
+   * @param series the kind of value
+   * @param channel the analog channel for ANALOG, and 0 for the masks
+   * @param timeMicros the time of the sample, in microseconds since the epoch
+   * @param value the value sampled
+   * @throws IOException thrown if the segment is full and the next cannot be created
+   */
+  public synchronized void record( Series series, int channel, long timeMicros, int value )
+      throws IOException
+  {
+    if (closed)
+    {
+      throw new IOException( "Recorder closed" );
+    }
+    int tag = tag( series, channel );
+    if (position + MAX_RECORD_SIZE > segmentSize)
+    {
+      roll( timeMicros );
+    }
+    int start = position;
+    buffer.put( position++, (byte) tag );
+    position = putVarLong( buffer, position, zigzag( timeMicros - lastTime ));
+    position = putVarLong( buffer, position, zigzag( value - lastValues[tag] ));
+    lastTime = timeMicros;
+    lastValues[tag] = value;
+    records++;
+    commit();
+
+    totalRecords++;
+    totalBytes += position - start;
+    long now = System.nanoTime();
+    if (now - lastForce >= forceIntervalNanos)
+    {
+      buffer.force();
+      lastForce = now;
+    }
+  }
+
+  static int tag( Series series, int channel )
+  {
+    int max = Series.ANALOG == series ? ADC_CH_NR_MAX : 0;
+    int min = Series.ANALOG == series ? CHANNEL_NR_MIN : 0;
+    if (channel < min || channel > max)
+    {
+      throw new IllegalArgumentException( "Invalid " + series + " channel " + channel );
+    }
+    // a tag is never 0, which is how the unwritten end of a segment reads
+    return (series.ordinal() + 1) << 4 | channel;
+  }
+
+  /**
+   * @return the current time in microseconds since the epoch, from a clock that does not step with the wall
+   *         clock
+   */
+  private long now()
+  {
+    return baseEpochMicros + (System.nanoTime() - baseNanos) / 1000;
+  }
+
+  /* ------------- SEGMENTS  -------------- */
+
+  private void open( long baseTime )
+      throws IOException
+  {
+    Path path = directory.resolve( String.format( "samples-%08d%s", sequence, SUFFIX ));
+    try (RandomAccessFile file = new RandomAccessFile( path.toFile(), "rw" );
+         FileChannel channel = file.getChannel())
+    {
+      buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, segmentSize );
+    }
+    buffer.putInt( 0, MAGIC );
+    buffer.putInt( 4, VERSION );
+    buffer.putLong( SEQUENCE_OFFSET, sequence );
+    buffer.putLong( BASE_TIME_OFFSET, baseTime );
+    position = HEADER_SIZE;
+    records = 0;
+    generation = 0;
+    lastTime = baseTime;
+    Arrays.fill( lastValues, 0 );
+    commit();
+    buffer.force();
+    lastForce = System.nanoTime();
+
+    segments.addLast( path );
+    while (segments.size() > maxSegments)
+    {
+      Files.deleteIfExists( segments.removeFirst() );
+    }
+  }
+
+  private void roll( long baseTime )
+      throws IOException
+  {
+    MappedByteBuffer finished = buffer;
+    finished.force();
+    sequence++;
+    open( baseTime );
+    // only once the next segment is open, so that a failure to open it leaves this one usable
+    unmap( finished );
+  }
+
+  /**
+   * Unmaps a segment straight away. A MappedByteBuffer is otherwise only unmapped once it is garbage collected,
+   * which in a recorder that allocates nothing may be never, so a long recording would hold every segment it
+   * ever wrote in its address space. There is no public API for this: from Java 9 it is Unsafe.invokeCleaner,
+   * and before that the buffer's own cleaner. Where neither can be reached the buffer is left to the collector.
+   * The buffer must not be touched afterwards.
+   */
+  static void unmap( MappedByteBuffer buffer )
+  {
+    try
+    {
+      Class<?> type = Class.forName( "sun.misc.Unsafe" );
+      Field field = type.getDeclaredField( "theUnsafe" );
+      field.setAccessible( true );
+      Object unsafe = field.get( null );
+      Method invokeCleaner;
+      try
+      {
+        invokeCleaner = type.getMethod( "invokeCleaner", ByteBuffer.class );
+      }
+      catch( NoSuchMethodException java8 )
+      {
+        Method cleanerOf = buffer.getClass().getMethod( "cleaner" );
+        cleanerOf.setAccessible( true );
+        Object cleaner = cleanerOf.invoke( buffer );
+        cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+        return;
+      }
+      invokeCleaner.invoke( unsafe, buffer );
+    }
+    catch( ReflectiveOperationException | RuntimeException e )
+    {
+      // left for the garbage collector to unmap
+    }
+  }
+
+  /**
+   * Writes the other commit slot, leaving the one written last intact until this one is complete.
+   */
+  private void commit()
+  {
+    generation++;
+    int slot = SLOT_OFFSET + (int) (generation & 1) * SLOT_SIZE;
+    buffer.putLong( slot, generation );
+    buffer.putInt( slot + 8, position );
+    buffer.putInt( slot + 12, records );
+    buffer.putLong( slot + 16, check( sequence, generation, position, records ));
+  }
+
+  static long check( long sequence, long generation, int end, int records )
+  {
+    long h = sequence * 0x9E3779B97F4A7C15L;
+    h ^= generation * 0xC2B2AE3D27D4EB4FL;
+    h ^= ((long) end << 32 | records & 0xFFFFFFFFL) * 0x165667B19E3779F9L;
+    return h ^ (h >>> 31);
+  }
+
+  static List<Path> list( Path directory )
+      throws IOException
+  {
+    List<Path> paths = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream( directory, "samples-*" + SUFFIX ))
+    {
+      for (Path path : stream)
+      {
+        paths.add( path );
+      }
+    }
+    // the sequence numbers are zero padded, so the names sort in order
+    Collections.sort( paths );
+    return paths;
+  }
+
+  private static long sequenceOf( Path path )
+  {
+    String name = path.getFileName().toString();
+    return Long.parseLong( name.substring( "samples-".length(), name.length() - SUFFIX.length() ));
+  }
+
+  /* ------------- VARINTS  -------------- */
+
+  static long zigzag( long value )
+  {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  static long unzigzag( long value )
+  {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static int putVarLong( MappedByteBuffer buffer, int position, long value )
+  {
+    while ((value & ~0x7FL) != 0)
+    {
+      buffer.put( position++, (byte) ((value & 0x7F) | 0x80) );
+      value >>>= 7;
+    }
+    buffer.put( position++, (byte) value );
+    return position;
+  }
+
+  /* ------------- STATISTICS  -------------- */
+
+  /**
+   * @return the number of records written since the recorder was opened
+   */
+  public synchronized long getRecords()
+  {
+    return totalRecords;
+  }
+
+  /**
+   * @return the number of bytes of records written since the recorder was opened, not counting headers
+   */
+  public synchronized long getBytes()
+  {
+    return totalBytes;
+  }
+
+  /**
+   * @return the segments of the log, oldest first
+   */
+  public synchronized List<Path> getSegments()
+  {
+    return new ArrayList<>( segments );
+  }
+
+  /**
+   * Forces the records to the device and closes the recorder.
+   */
+  @Override
+  public synchronized void close()
+  {
+    if (closed)
+    {
+      return;
+    }
+    closed = true;
+    buffer.force();
+    unmap( buffer );
+    buffer = null;
+  }
+}
@@ -0,0 +1,417 @@
+package com.sequentmicrosystems;
+
+import java.io.IOException;
+import java.util.function.DoubleUnaryOperator;
+
+import static com.sequentmicrosystems.Constants.*;
+
+/**
+ * Filters and calibrates the readings of the analog channels. Each channel has its own pipeline of stages, each
+ * of which is off until configured:
+ * <ol>
+ *   <li>oversampling, which averages a number of raw readings into one, so that only every Nth reading goes
+ *   on down the pipeline;</li>
+ *   <li>spike rejection, which drops a reading more than a threshold away from the last one accepted, unless
+ *   the readings that follow confirm it as a real step;</li>
+ *   <li>a median of the last N readings;</li>
+ *   <li>an exponential moving average;</li>
+ *   <li>calibration from counts to engineering units, through a lookup table computed when it is configured.</li>
+ * </ol>
+ * Once configured, feeding readings through the pipeline does not allocate: all state is held in primitive
+ * arrays sized up front. A conditioner must only be used by one thread at a time.
+ */
+public class SignalConditioner
+{
+  /** The longest median window. */
+  public static final int MAX_MEDIAN_WINDOW = 15;
+
+  /** How many consecutive out of range readings are taken as a real step, by default. */
+  public static final int DEFAULT_SPIKE_CONFIRMATIONS = 3;
+
+  private final int channels;
+
+  // oversampling
+  private final int[] oversampling;
+  private final int[] oversampleCount;
+  private final int[] oversampleSum;
+
+  // spike rejection
+  private final int[] spikeThreshold;
+  private final int[] spikeConfirmations;
+  private final int[] spikeRun;
+  private final int[] lastAccepted;
+  private final boolean[] primed;
+  private final long[] spikes;
+
+  // median
+  private final int[] medianWindow;
+  private final int[][] medianHistory;
+  private final int[] medianFill;
+  private final int[] medianNext;
+  private final int[] scratch = new int[MAX_MEDIAN_WINDOW];
+
+  // exponential moving average
+  private final double[] alpha;
+  private final double[] average;
+  private final boolean[] averaging;
+
+  // calibration
+  private final double[][] calibration;
+
+  private final double[] filtered;
+  private final long[] updates;
+
+  private final int[] sweep = new int[ADC_CH_NR_MAX];
+
+  /**
+   * Creates a conditioner for all the analog channels of a card.
+   */
+  public SignalConditioner()
+  {
+    this( ADC_CH_NR_MAX );
+  }
+
+  /**
+   * @param channels the number of channels, numbered from 1
+   */
+  public SignalConditioner( int channels )
+  {
+    this.channels = channels;
+    oversampling = new int[channels];
+    oversampleCount = new int[channels];
+    oversampleSum = new int[channels];
+    spikeThreshold = new int[channels];
+    spikeConfirmations = new int[channels];
+    spikeRun = new int[channels];
+    lastAccepted = new int[channels];
+    primed = new boolean[channels];
+    spikes = new long[channels];
+    medianWindow = new int[channels];
+    medianHistory = new int[channels][MAX_MEDIAN_WINDOW];
+    medianFill = new int[channels];
+    medianNext = new int[channels];
+    alpha = new double[channels];
+    average = new double[channels];
+    averaging = new boolean[channels];
+    calibration = new double[channels][];
+    filtered = new double[channels];
+    updates = new long[channels];
+    for (int i = 0; i < channels; i++)
+    {
+      oversampling[i] = 1;
+      medianWindow[i] = 1;
+      alpha[i] = 1.0;
+      spikeConfirmations[i] = DEFAULT_SPIKE_CONFIRMATIONS;
+    }
+  }
+
+  private int index( int channel )
+  {
+    if (channel < CHANNEL_NR_MIN || channel > channels)
+    {
+      throw new IllegalArgumentException( "Invalid analog channel " + channel );
+    }
+    return channel - 1;
+  }
+
+  /* ------------- CONFIGURATION  -------------- */
+
+  /**
+   * Averages every given number of readings into one.
+   *
+   * @param factor the number of readings to average, or 1 not to oversample
+   */
+  public SignalConditioner setOversampling( int channel, int factor )
+  {
+    if (factor < 1)
+    {
+      throw new IllegalArgumentException( "Invalid oversampling factor " + factor );
+    }
+    int i = index( channel );
+    oversampling[i] = factor;
+    oversampleCount[i] = 0;
+    oversampleSum[i] = 0;
+    return this;
+  }
+
+  /**
+   * Rejects readings that jump by more than ANALOG_ERR_THRESHOLD counts.
+   */
+  public SignalConditioner setSpikeRejection( int channel )
+  {
+    return setSpikeRejection( channel, ANALOG_ERR_THRESHOLD, DEFAULT_SPIKE_CONFIRMATIONS );
+  }
+
+  /**
+   * Rejects readings that jump too far from the last one accepted. A jump that persists is a real change of the
+   * input, so once the given number of consecutive readings have been out of range the latest is accepted.
+   *
+   * @param threshold the largest jump accepted, in counts, or 0 not to reject spikes
+   * @param confirmations the number of consecutive out of range readings accepted as a step
+   */
+  public SignalConditioner setSpikeRejection( int channel, int threshold, int confirmations )
+  {
+    if (threshold < 0 || confirmations < 1)
+    {
+      throw new IllegalArgumentException( "Invalid spike rejection " + threshold + "/" + confirmations );
+    }
+    int i = index( channel );
+    spikeThreshold[i] = threshold;
+    spikeConfirmations[i] = confirmations;
+    spikeRun[i] = 0;
+    return this;
+  }
+
+  /**
+   * Passes on the median of the last readings.
+   *
+   * @param window the number of readings, odd and at most MAX_MEDIAN_WINDOW, or 1 for no median
+   */
+  public SignalConditioner setMedian( int channel, int window )
+  {
+    if (window < 1 || window > MAX_MEDIAN_WINDOW || 0 == window % 2)
+    {
+      throw new IllegalArgumentException( "Invalid median window " + window );
+    }
+    int i = index( channel );
+    medianWindow[i] = window;
+    medianFill[i] = 0;
+    medianNext[i] = 0;
+    return this;
+  }
+
+  /**
+   * Smooths the readings with an exponential moving average.
+   *
+   * @param alpha the weight of each new reading, greater than 0, or 1 for no smoothing
+   */
+  public SignalConditioner setSmoothing( int channel, double alpha )
+  {
+    if (!(alpha > 0 && alpha <= 1))
+    {
+      throw new IllegalArgumentException( "Invalid smoothing factor " + alpha );
+    }
+    int i = index( channel );
+    this.alpha[i] = alpha;
+    averaging[i] = false;
+    return this;
+  }
+
+  /**
+   * Converts the readings to engineering units on a straight line.
+   *
+   * @param atMin the value in engineering units of a reading of ANALOG_VAL_MIN
+   * @param atMax the value in engineering units of a reading of ANALOG_VAL_MAX
+   */
+  public SignalConditioner setCalibration( int channel, double atMin, double atMax )
+  {
+    double slope = (atMax - atMin) / (ANALOG_VAL_MAX - ANALOG_VAL_MIN);
+    return setCalibration( channel, counts -> atMin + slope * (counts - ANALOG_VAL_MIN) );
+  }
+
+  /**
+   * Converts the readings to engineering units through any function, such as a thermistor curve. The function
+   * is evaluated once for each possible reading when it is set, and filtered readings between two counts are
+   * interpolated.
+   *
+   * @param countsToUnits the value in engineering units of each reading, from ANALOG_VAL_MIN to ANALOG_VAL_MAX,
+   *                      or null for no calibration
+   */
+  public SignalConditioner setCalibration( int channel, DoubleUnaryOperator countsToUnits )
+  {
+    int i = index( channel );
+    if (null == countsToUnits)
+    {
+      calibration[i] = null;
+      return this;
+    }
+    double[] table = new double[ANALOG_VAL_MAX - ANALOG_VAL_MIN + 1];
+    for (int c = 0; c < table.length; c++)
+    {
+      table[c] = countsToUnits.applyAsDouble( ANALOG_VAL_MIN + c );
+    }
+    calibration[i] = table;
+    return this;
+  }
+
+  /**
+   * Forgets every reading, keeping the configuration.
+   */
+  public void reset()
+  {
+    for (int i = 0; i < channels; i++)
+    {
+      oversampleCount[i] = 0;
+      oversampleSum[i] = 0;
+      spikeRun[i] = 0;
+      primed[i] = false;
+      spikes[i] = 0;
+      medianFill[i] = 0;
+      medianNext[i] = 0;
+      averaging[i] = false;
+      filtered[i] = 0;
+      updates[i] = 0;
+    }
+  }
+
+  /* ------------- PIPELINE  -------------- */
+
+  /**
+   * Feeds one raw reading through a channel's pipeline.
+   *
+   * @param channel the channel, from 1
+   * @param raw the raw reading in counts
+   * @return true if the channel's output was updated, false if the reading was absorbed by oversampling or
+   *         rejected as a spike
+   */
+  public boolean accept( int channel, int raw )
+  {
+    int i = index( channel );
+
+    int reading = raw;
+    if (oversampling[i] > 1)
+    {
+      oversampleSum[i] += raw;
+      if (++oversampleCount[i] < oversampling[i])
+      {
+        return false;
+      }
+      reading = (oversampleSum[i] + oversampling[i] / 2) / oversampling[i];
+      oversampleSum[i] = 0;
+      oversampleCount[i] = 0;
+    }
+
+    if (spikeThreshold[i] > 0 && primed[i] && Math.abs( reading - lastAccepted[i] ) > spikeThreshold[i])
+    {
+      if (++spikeRun[i] < spikeConfirmations[i])
+      {
+        spikes[i]++;
+        return false;
+      }
+    }
+    spikeRun[i] = 0;
+    lastAccepted[i] = reading;
+    primed[i] = true;
+
+    if (medianWindow[i] > 1)
+    {
+      reading = median( i, reading );
+    }
+
+    double value = reading;
+    if (alpha[i] < 1)
+    {
+      if (averaging[i])
+      {
+        value = average[i] + alpha[i] * (reading - average[i]);
+      }
+      average[i] = value;
+      averaging[i] = true;
+    }
+
+    filtered[i] = value;
+    updates[i]++;
+    return true;
+  }
+
+  private int median( int i, int reading )
+  {
+    int[] history = medianHistory[i];
+    int window = medianWindow[i];
+    history[medianNext[i]] = reading;
+    medianNext[i] = (medianNext[i] + 1) % window;
+    if (medianFill[i] < window)
+    {
+      medianFill[i]++;
+    }
+
+    // insertion sort of at most MAX_MEDIAN_WINDOW values into the scratch array
+    int n = medianFill[i];
+    for (int k = 0; k < n; k++)
+    {
+      int v = history[k];
+      int j = k - 1;
+      while (j >= 0 && scratch[j] > v)
+      {
+        scratch[j + 1] = scratch[j];
+        j--;
+      }
+      scratch[j + 1] = v;
+    }
+    return scratch[n / 2];
+  }
+
+  /**
+   * Feeds a reading of consecutive channels through their pipelines.
+   *
+   * @param firstChannel the channel of raw[0]
+   * @param raw the raw readings
+   * @param count the number of readings
+   */
+  public void acceptAll( int firstChannel, int[] raw, int count )
+  {
+    for (int k = 0; k < count; k++)
+    {
+      accept( firstChannel + k, raw[k] );
+    }
+  }
+
+  /**
+   * Reads every analog channel of a card in one transaction and feeds the readings through their pipelines.
+   *
+   * @throws IOException thrown in case bytes cannot be read from the i2c device or i2c bus
+   */
+  public void sample( MegaIO card )
+      throws IOException
+  {
+    card.readAnalogAll( sweep );
+    acceptAll( CHANNEL_NR_MIN, sweep, Math.min( channels, ADC_CH_NR_MAX ));
+  }
+
+  /* ------------- OUTPUTS  -------------- */
+
+  /**
+   * @return the channel's latest filtered value in counts, before calibration
+   */
+  public double getFiltered( int channel )
+  {
+    return filtered[index( channel )];
+  }
+
+  /**
+   * @return the channel's latest filtered value in engineering units, or in counts if it is not calibrated
+   */
+  public double getValue( int channel )
+  {
+    int i = index( channel );
+    double[] table = calibration[i];
+    double value = filtered[i];
+    if (null == table)
+    {
+      return value;
+    }
+    double position = Math.max( 0, Math.min( table.length - 1, value - ANALOG_VAL_MIN ));
+    int low = (int) position;
+    if (low == table.length - 1)
+    {
+      return table[low];
+    }
+    return table[low] + (position - low) * (table[low + 1] - table[low]);
+  }
+
+  /**
+   * @return the number of times the channel's output has been updated
+   */
+  public long getUpdates( int channel )
+  {
+    return updates[index( channel )];
+  }
+
+  /**
+   * @return the number of readings the channel has rejected as spikes
+   */
+  public long getSpikes( int channel )
+  {
+    return spikes[index( channel )];
+  }
+}
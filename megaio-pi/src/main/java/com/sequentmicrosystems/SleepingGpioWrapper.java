@@ -0,0 +1,21 @@
+package com.sequentmicrosystems;
+
+/**
+ * Delays with Thread.sleep, as wiringPi's delay does, without needing the native library. For use off the Raspberry
+ * Pi, such as with a MegaIOEmulator.
+ */
+public class SleepingGpioWrapper extends GpioWrapper
+{
+  @Override
+  public void delay( long millis )
+  {
+    try
+    {
+      Thread.sleep( millis );
+    }
+    catch( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,358 @@
+package com.sequentmicrosystems;
+
+import com.pi4j.io.i2c.I2CDevice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import static com.sequentmicrosystems.I2CTrace.*;
+
+/**
+ * An I2CDevice which passes every transaction on to another, and records it in a trace file: when it started and
+ * how long it took, what it was, the register and the bytes written or read, and whether it failed. The trace
+ * can be loaded with I2CTrace.load and replayed with a ReplayI2CDevice.
+ * <p>
+ * The trace is a ring of fixed-size entries in a memory-mapped file, written in place, so tracing neither
+ * allocates nor makes a system call; its cost is two reads of the clock and a copy of a few bytes, small beside
+ * the transaction itself, and it can be left on. The operating system writes the pages back in its own time, so
+ * the trace survives the process crashing. Once the ring is full the oldest transactions are overwritten.
+ */
+public class TracingI2CDevice
+    implements I2CDevice, Closeable
+{
+  private final I2CDevice device;
+  private final int capacity;
+  private final long startNanos = System.nanoTime();
+
+  private MappedByteBuffer trace;
+  private long written = 0;
+
+  /**
+   * @param device the device whose transactions are traced
+   * @param file the trace file, which is created or overwritten
+   * @param capacity the number of transactions the ring holds
+   * @throws IOException thrown if the trace file cannot be created
+   */
+  public TracingI2CDevice( I2CDevice device, Path file, int capacity )
+      throws IOException
+  {
+    if (capacity < 1)
+    {
+      throw new IllegalArgumentException( "Invalid trace capacity " + capacity );
+    }
+    this.device = device;
+    this.capacity = capacity;
+    long size = HEADER_SIZE + (long) capacity * ENTRY_SIZE;
+    try (RandomAccessFile raf = new RandomAccessFile( file.toFile(), "rw" );
+         FileChannel channel = raf.getChannel())
+    {
+      // start from an empty ring, not whatever an earlier trace left
+      raf.setLength( 0 );
+      trace = channel.map( FileChannel.MapMode.READ_WRITE, 0, size );
+    }
+    trace.putInt( 0, MAGIC );
+    trace.putInt( 4, VERSION );
+    trace.putInt( CAPACITY_OFFSET, capacity );
+    trace.putInt( ENTRY_SIZE_OFFSET, ENTRY_SIZE );
+    trace.putInt( ADDRESS_OFFSET, device.getAddress() );
+    trace.putLong( START_TIME_OFFSET, System.currentTimeMillis() );
+    trace.putLong( WRITTEN_OFFSET, 0 );
+  }
+
+  /**
+   * Writes one entry.
+   *
+   * @param buffer the bytes transferred, or null for a single byte held in value
+   */
+  private synchronized void record( Op op, long start, long end, boolean failed, int register, byte[] buffer,
+                                    int offset, int size, int value )
+  {
+    if (null == trace)
+    {
+      return;
+    }
+    long sequence = written;
+    int entry = HEADER_SIZE + (int) (sequence % capacity) * ENTRY_SIZE;
+    // invalidate the entry being overwritten before changing any of it
+    trace.putLong( entry + SEQUENCE, 0 );
+    trace.putLong( entry + START, start - startNanos );
+    trace.putInt( entry + DURATION, (int) Math.min( end - start, 0xFFFFFFFFL ));
+    trace.put( entry + OP, (byte) op.ordinal() );
+    trace.put( entry + OUTCOME, (byte) (failed ? 1 : 0) );
+    trace.putShort( entry + REGISTER, (short) register );
+    trace.putShort( entry + LENGTH, (short) size );
+    trace.putInt( entry + RESULT, value );
+    if (null == buffer)
+    {
+      if (size > 0)
+      {
+        trace.put( entry + PAYLOAD, (byte) value );
+      }
+    }
+    else
+    {
+      for (int i = 0, n = Math.min( size, MAX_PAYLOAD ); i < n; i++)
+      {
+        trace.put( entry + PAYLOAD + i, buffer[offset + i] );
+      }
+    }
+    trace.putLong( entry + SEQUENCE, sequence + 1 );
+    written = sequence + 1;
+    trace.putLong( WRITTEN_OFFSET, written );
+  }
+
+  /**
+   * @return the number of transactions traced
+   */
+  public synchronized long getWritten()
+  {
+    return written;
+  }
+
+  /**
+   * Forces the trace to the device and stops tracing. Transactions are still passed on to the device.
+   */
+  @Override
+  public synchronized void close()
+  {
+    if (null != trace)
+    {
+      trace.force();
+      trace = null;
+    }
+  }
+
+  /* ------------- I2CDevice  -------------- */
+
+  @Override
+  public int getAddress()
+  {
+    return device.getAddress();
+  }
+
+  @Override
+  public void write( byte b )
+      throws IOException
+  {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try
+    {
+      device.write( b );
+      failed = false;
+    }
+    finally
+    {
+      record( Op.WRITE_BYTE, start, System.nanoTime(), failed, -1, null, 0, 1, b );
+    }
+  }
+
+  @Override
+  public void write( byte[] buffer, int offset, int size )
+      throws IOException
+  {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try
+    {
+      device.write( buffer, offset, size );
+      failed = false;
+    }
+    finally
+    {
+      record( Op.WRITE_BUFFER, start, System.nanoTime(), failed, -1, buffer, offset, size, size );
+    }
+  }
+
+  @Override
+  public void write( byte[] buffer )
+      throws IOException
+  {
+    write( buffer, 0, buffer.length );
+  }
+
+  @Override
+  public void write( int address, byte b )
+      throws IOException
+  {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try
+    {
+      device.write( address, b );
+      failed = false;
+    }
+    finally
+    {
+      record( Op.WRITE_REGISTER_BYTE, start, System.nanoTime(), failed, address, null, 0, 1, b );
+    }
+  }
+
+  @Override
+  public void write( int address, byte[] buffer, int offset, int size )
+      throws IOException
+  {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try
+    {
+      device.write( address, buffer, offset, size );
+      failed = false;
+    }
+    finally
+    {
+      record( Op.WRITE_REGISTER_BUFFER, start, System.nanoTime(), failed, address, buffer, offset, size, size );
+    }
+  }
+
+  @Override
+  public void write( int address, byte[] buffer )
+      throws IOException
+  {
+    write( address, buffer, 0, buffer.length );
+  }
+
+  @Override
+  public int read()
+      throws IOException
+  {
+    long start = System.nanoTime();
+    int result = -1;
+    boolean failed = true;
+    try
+    {
+      result = device.read();
+      failed = false;
+      return result;
+    }
+    finally
+    {
+      record( Op.READ_BYTE, start, System.nanoTime(), failed, -1, null, 0, failed ? 0 : 1, result );
+    }
+  }
+
+  @Override
+  public int read( byte[] buffer, int offset, int size )
+      throws IOException
+  {
+    long start = System.nanoTime();
+    int result = -1;
+    boolean failed = true;
+    try
+    {
+      result = device.read( buffer, offset, size );
+      failed = false;
+      return result;
+    }
+    finally
+    {
+      record( Op.READ_BUFFER, start, System.nanoTime(), failed, -1, buffer, offset, Math.max( result, 0 ),
+              result );
+    }
+  }
+
+  @Override
+  public int read( int address )
+      throws IOException
+  {
+    long start = System.nanoTime();
+    int result = -1;
+    boolean failed = true;
+    try
+    {
+      result = device.read( address );
+      failed = false;
+      return result;
+    }
+    finally
+    {
+      record( Op.READ_REGISTER, start, System.nanoTime(), failed, address, null, 0, failed ? 0 : 1,
+              result );
+    }
+  }
+
+  @Override
+  public int read( int address, byte[] buffer, int offset, int size )
+      throws IOException
+  {
+    long start = System.nanoTime();
+    int result = -1;
+    boolean failed = true;
+    try
+    {
+      result = device.read( address, buffer, offset, size );
+      failed = false;
+      return result;
+    }
+    finally
+    {
+      record( Op.READ_REGISTER_BUFFER, start, System.nanoTime(), failed, address, buffer, offset,
+              Math.max( result, 0 ), result );
+    }
+  }
+
+  /**
+   * Traced with the first byte written as the register, and the bytes read as the payload.
+   */
+  @Override
+  public int read( byte[] writeBuffer, int writeOffset, int writeSize, byte[] readBuffer, int readOffset,
+                   int readSize )
+      throws IOException
+  {
+    long start = System.nanoTime();
+    int result = -1;
+    boolean failed = true;
+    try
+    {
+      result = device.read( writeBuffer, writeOffset, writeSize, readBuffer, readOffset, readSize );
+      failed = false;
+      return result;
+    }
+    finally
+    {
+      int register = writeSize > 0 ? writeBuffer[writeOffset] & 0xFF : -1;
+      record( Op.WRITE_READ, start, System.nanoTime(), failed, register, readBuffer, readOffset,
+              Math.max( result, 0 ), result );
+    }
+  }
+
+  @Override
+  public void ioctl( long command, int value )
+      throws IOException
+  {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try
+    {
+      device.ioctl( command, value );
+      failed = false;
+    }
+    finally
+    {
+      record( Op.IOCTL, start, System.nanoTime(), failed, -1, null, 0, 0, value );
+    }
+  }
+
+  @Override
+  public void ioctl( long command, ByteBuffer data, IntBuffer offsets )
+      throws IOException
+  {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try
+    {
+      device.ioctl( command, data, offsets );
+      failed = false;
+    }
+    finally
+    {
+      record( Op.IOCTL, start, System.nanoTime(), failed, -1, null, 0, 0, 0 );
+    }
+  }
+}
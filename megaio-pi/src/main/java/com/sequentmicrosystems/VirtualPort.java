@@ -0,0 +1,470 @@
+package com.sequentmicrosystems;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import static com.sequentmicrosystems.Constants.*;
+
+/**
+ * A port of logical channels, numbered from 0, each of which is one bit of a register on one of several MegaIO
+ * cards: a relay, an OptoCoupled input, an open collector or a GPIO pin. A plant of 32 relays on four cards,
+ * for instance, becomes a single 32-bit value.
+ * <p>
+ * Reading the port reads, on each card, just the registers its channels are in, in one batch, so a port spread
+ * over four cards costs four transactions whatever its width. Writing the port groups the channels to change
+ * by card and writes each card's relays and open collectors as set and clear masks, in one batch. With an
+ * executor the cards are read or written at the same time, the calling thread taking one card itself; without
+ * one they are taken in turn on the calling thread.
+ * <p>
+ * Neither a read nor a write is atomic across cards. When a card fails the others are still read or written,
+ * and the first IOException is thrown once all have finished. Channels are added before the port is used; once
+ * they are, any number of threads may read and write it.
+ */
+public class VirtualPort
+{
+  /**
+   * Reads or writes the channels of one card, in one batch.
+   */
+  private interface CardOperation
+  {
+    MegaIOBatch.Result run( Group group )
+        throws IOException;
+  }
+
+  private static class Group
+  {
+    final MegaIO card;
+    int[] logical = new int[8];
+    ChangeEvent.Register[] registers = new ChangeEvent.Register[8];
+    int[] bits = new int[8];
+    int size = 0;
+    MegaIOBatch reads;
+
+    Group( MegaIO card )
+    {
+      this.card = card;
+    }
+
+    void add( int channel, ChangeEvent.Register register, int bit )
+    {
+      if (size == logical.length)
+      {
+        logical = Arrays.copyOf( logical, 2 * size );
+        registers = Arrays.copyOf( registers, 2 * size );
+        bits = Arrays.copyOf( bits, 2 * size );
+      }
+      logical[size] = channel;
+      registers[size] = register;
+      bits[size] = bit;
+      size++;
+
+      // read only the registers in use, which the batch merges into a single block read
+      boolean[] used = new boolean[ChangeEvent.Register.values().length];
+      for (int i = 0; i < size; i++)
+      {
+        used[registers[i].ordinal()] = true;
+      }
+      reads = card.batch();
+      if (used[ChangeEvent.Register.RELAYS.ordinal()])
+      {
+        reads.readRelays();
+      }
+      if (used[ChangeEvent.Register.OPTO.ordinal()])
+      {
+        reads.readOptoIns();
+      }
+      if (used[ChangeEvent.Register.OC.ordinal()])
+      {
+        reads.readOCPins();
+      }
+      if (used[ChangeEvent.Register.GPIO.ordinal()])
+      {
+        reads.readGpioPins();
+      }
+    }
+  }
+
+  private final Executor executor;
+  private final List<Group> groups = new ArrayList<>();
+  private final BitSet inputs = new BitSet();
+  // the input channels among the first 64
+  private long inputMask = 0;
+  private final List<String> names = new ArrayList<>();
+  private int size = 0;
+
+  /**
+   * Creates a port whose cards are read and written one after another on the calling thread.
+   */
+  public VirtualPort()
+  {
+    this( null );
+  }
+
+  /**
+   * @param executor runs the reads and writes of all but one of the cards, while the calling thread does that
+   *                 one; see AsyncMegaIO.boundedExecutor
+   */
+  public VirtualPort( Executor executor )
+  {
+    this.executor = executor;
+  }
+
+  private static int width( ChangeEvent.Register register )
+  {
+    switch (register)
+    {
+      case RELAYS:
+        return RELAY_CH_NR_MAX;
+      case OPTO:
+        return OPTO_CH_NR_MAX;
+      case OC:
+        return OC_CH_NR_MAX;
+      default:
+        return GPIO_CH_NR_MAX;
+    }
+  }
+
+  /**
+   * Adds the next logical channel.
+   *
+   * @param card the card the channel is on
+   * @param register the register the channel is in
+   * @param channel the number of the relay, input or pin, from 1
+   * @return this port
+   */
+  public VirtualPort add( MegaIO card, ChangeEvent.Register register, int channel )
+  {
+    if (channel < CHANNEL_NR_MIN || channel > width( register ))
+    {
+      throw new IllegalArgumentException( "Invalid " + register + " channel " + channel );
+    }
+    Group group = null;
+    for (Group g : groups)
+    {
+      if (g.card == card)
+      {
+        group = g;
+      }
+    }
+    if (null == group)
+    {
+      group = new Group( card );
+      groups.add( group );
+    }
+    int bit = 0x01 << (channel - 1);
+    for (int i = 0; i < group.size; i++)
+    {
+      if (group.registers[i] == register && group.bits[i] == bit)
+      {
+        throw new IllegalArgumentException( register + " channel " + channel + " is already logical channel "
+                                            + group.logical[i] );
+      }
+    }
+    group.add( size, register, bit );
+    if (ChangeEvent.Register.OPTO == register)
+    {
+      inputs.set( size );
+      if (size < Long.SIZE)
+      {
+        inputMask |= 1L << size;
+      }
+    }
+    names.add( register + " " + channel );
+    size++;
+    return this;
+  }
+
+  /**
+   * Adds every channel of a register of a card, in order, as the next logical channels.
+   *
+   * @return this port
+   */
+  public VirtualPort addAll( MegaIO card, ChangeEvent.Register register )
+  {
+    for (int channel = CHANNEL_NR_MIN; channel <= width( register ); channel++)
+    {
+      add( card, register, channel );
+    }
+    return this;
+  }
+
+  /**
+   * @return the number of logical channels
+   */
+  public int size()
+  {
+    return size;
+  }
+
+  /* ------------- READS  -------------- */
+
+  private static int value( MegaIOBatch.Result result, ChangeEvent.Register register )
+  {
+    switch (register)
+    {
+      case RELAYS:
+        return result.getRelays();
+      case OPTO:
+        return result.getOptoIns();
+      case OC:
+        return result.getOCPins();
+      default:
+        return result.getGpioPins();
+    }
+  }
+
+  /**
+   * Reads every channel into a BitSet, bit n standing for logical channel n.
+   *
+   * @param bits the set to read into, whose other bits are cleared
+   * @return bits
+   * @throws IOException thrown in case bytes cannot be read from a card
+   */
+  public BitSet read( BitSet bits )
+      throws IOException
+  {
+    MegaIOBatch.Result[] results = forEachCard( group -> group.reads.execute() );
+    bits.clear();
+    for (int g = 0; g < results.length; g++)
+    {
+      Group group = groups.get( g );
+      for (int i = 0; i < group.size; i++)
+      {
+        if ((value( results[g], group.registers[i] ) & group.bits[i]) != 0)
+        {
+          bits.set( group.logical[i] );
+        }
+      }
+    }
+    return bits;
+  }
+
+  /**
+   * Reads every channel of a port of no more than 64 channels.
+   *
+   * @return a bit for each channel, bit n standing for logical channel n
+   * @throws IOException thrown in case bytes cannot be read from a card
+   */
+  public long read()
+      throws IOException
+  {
+    if (size > Long.SIZE)
+    {
+      throw new IllegalStateException( "A port of " + size + " channels does not fit in a long" );
+    }
+    MegaIOBatch.Result[] results = forEachCard( group -> group.reads.execute() );
+    long bits = 0;
+    for (int g = 0; g < results.length; g++)
+    {
+      Group group = groups.get( g );
+      for (int i = 0; i < group.size; i++)
+      {
+        if ((value( results[g], group.registers[i] ) & group.bits[i]) != 0)
+        {
+          bits |= 1L << group.logical[i];
+        }
+      }
+    }
+    return bits;
+  }
+
+  /* ------------- WRITES  -------------- */
+
+  private void checkOutputs( BitSet channels )
+  {
+    if (channels.length() > size)
+    {
+      throw new IllegalArgumentException( "No logical channel " + (channels.length() - 1) );
+    }
+    if (channels.intersects( inputs ))
+    {
+      BitSet both = (BitSet) channels.clone();
+      both.and( inputs );
+      int channel = both.nextSetBit( 0 );
+      throw new IllegalArgumentException( "Logical channel " + channel + ", " + names.get( channel )
+                                          + ", is an input" );
+    }
+  }
+
+  /**
+   * Turns some channels on and others off, leaving the rest as they are. A channel in both sets is turned on.
+   *
+   * @param set the channels to turn on
+   * @param clear the channels to turn off
+   * @return true if every relay and open collector written read back as written
+   * @throws IOException thrown in case bytes cannot be read from or written to a card
+   */
+  public boolean write( BitSet set, BitSet clear )
+      throws IOException
+  {
+    checkOutputs( set );
+    checkOutputs( clear );
+    return write( channel -> set.get( channel ), channel -> clear.get( channel ));
+  }
+
+  /**
+   * Turns some channels on and others off, leaving the rest as they are, on a port of no more than 64 channels.
+   * A channel in both masks is turned on.
+   *
+   * @param setMask the channels to turn on, bit n standing for logical channel n
+   * @param clearMask the channels to turn off
+   * @return true if every relay and open collector written read back as written
+   * @throws IOException thrown in case bytes cannot be read from or written to a card
+   */
+  public boolean write( long setMask, long clearMask )
+      throws IOException
+  {
+    checkOutputs( BitSet.valueOf( new long[] { setMask } ));
+    checkOutputs( BitSet.valueOf( new long[] { clearMask } ));
+    return write( channel -> (setMask & (1L << channel)) != 0, channel -> (clearMask & (1L << channel)) != 0 );
+  }
+
+  /**
+   * Sets every output channel of a port of no more than 64 channels. The bits of input channels are ignored.
+   *
+   * @param value a bit for each channel, bit n standing for logical channel n
+   * @return true if every relay and open collector written read back as written
+   * @throws IOException thrown in case bytes cannot be read from or written to a card
+   */
+  public boolean write( long value )
+      throws IOException
+  {
+    if (size > Long.SIZE)
+    {
+      throw new IllegalStateException( "A port of " + size + " channels does not fit in a long" );
+    }
+    long outputs = (Long.SIZE == size ? -1L : (1L << size) - 1) & ~inputMask;
+    return write( value & outputs, ~value & outputs );
+  }
+
+  private interface ChannelMask
+  {
+    boolean contains( int channel );
+  }
+
+  private boolean write( ChannelMask set, ChannelMask clear )
+      throws IOException
+  {
+    MegaIOBatch.Result[] results = forEachCard( group ->
+    {
+      MegaIOBatch batch = null;
+      for (int i = 0; i < group.size; i++)
+      {
+        int channel = group.logical[i];
+        boolean on = set.contains( channel );
+        if (!on && !clear.contains( channel ))
+        {
+          continue;
+        }
+        if (null == batch)
+        {
+          batch = group.card.batch();
+        }
+        int number = Integer.numberOfTrailingZeros( group.bits[i] ) + 1;
+        switch (group.registers[i])
+        {
+          case RELAYS:
+            batch.triggerRelay( number, on );
+            break;
+          case OC:
+            batch.setOCPin( number, on );
+            break;
+          default:
+            batch.setGpioPin( number, on );
+            break;
+        }
+      }
+      // a card with nothing to change is left alone
+      return null == batch ? null : batch.execute();
+    } );
+    boolean verified = true;
+    for (MegaIOBatch.Result result : results)
+    {
+      verified &= null == result || result.isVerified();
+    }
+    return verified;
+  }
+
+  /* ------------- CARDS  -------------- */
+
+  /**
+   * Runs an operation on every card, at the same time when there is an executor.
+   *
+   * @return the result for each card, in the order of groups
+   * @throws IOException the first thrown by a card, once every card is done
+   */
+  private MegaIOBatch.Result[] forEachCard( CardOperation operation )
+      throws IOException
+  {
+    int count = groups.size();
+    MegaIOBatch.Result[] results = new MegaIOBatch.Result[count];
+    if (null == executor || count < 2)
+    {
+      IOException failure = null;
+      for (int g = 0; g < count; g++)
+      {
+        try
+        {
+          results[g] = operation.run( groups.get( g ));
+        }
+        catch( IOException ioex )
+        {
+          failure = null == failure ? ioex : failure;
+        }
+      }
+      if (null != failure)
+      {
+        throw failure;
+      }
+      return results;
+    }
+
+    List<CompletableFuture<Void>> others = new ArrayList<>( count - 1 );
+    for (int g = 1; g < count; g++)
+    {
+      int index = g;
+      others.add( CompletableFuture.runAsync( () ->
+      {
+        try
+        {
+          results[index] = operation.run( groups.get( index ));
+        }
+        catch( IOException ioex )
+        {
+          throw new CompletionException( ioex );
+        }
+      }, executor ));
+    }
+    IOException failure = null;
+    try
+    {
+      results[0] = operation.run( groups.get( 0 ));
+    }
+    catch( IOException ioex )
+    {
+      failure = ioex;
+    }
+    for (CompletableFuture<Void> other : others)
+    {
+      try
+      {
+        AsyncMegaIO.await( other );
+      }
+      catch( IOException ioex )
+      {
+        failure = null == failure ? ioex : failure;
+      }
+    }
+    if (null != failure)
+    {
+      throw failure;
+    }
+    return results;
+  }
+}
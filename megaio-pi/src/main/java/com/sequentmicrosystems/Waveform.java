@@ -0,0 +1,120 @@
+package com.sequentmicrosystems;
+
+import java.util.function.DoubleUnaryOperator;
+
+import static com.sequentmicrosystems.Constants.*;
+
+/**
+ * A table of DAC values, computed once, to be played by a WaveformGenerator. Each value is a 12-bit count from
+ * ANALOG_VAL_MIN to ANALOG_VAL_MAX. Periodic waveforms hold exactly one period, so that playing the table over
+ * and over produces a continuous signal.
+ */
+public final class Waveform
+{
+  private final short[] samples;
+
+  private Waveform( short[] samples )
+  {
+    this.samples = samples;
+  }
+
+  /**
+   * A straight line from one value to another, both included.
+   *
+   * @param samples the number of samples, at least 2
+   */
+  public static Waveform ramp( int from, int to, int samples )
+  {
+    checkLength( samples, 2 );
+    return of( phase -> from + (to - from) * phase * samples / (samples - 1), samples );
+  }
+
+  /**
+   * One period of a triangle wave, rising from min to max over the first half and falling back over the second.
+   *
+   * @param samples the number of samples in the period, at least 2
+   */
+  public static Waveform triangle( int min, int max, int samples )
+  {
+    checkLength( samples, 2 );
+    return of( phase -> min + (max - min) * (1 - Math.abs( 2 * phase - 1 )), samples );
+  }
+
+  /**
+   * One period of a sine wave swinging between min and max, starting from the midpoint on the way up.
+   *
+   * @param samples the number of samples in the period, at least 2
+   */
+  public static Waveform sine( int min, int max, int samples )
+  {
+    checkLength( samples, 2 );
+    double middle = (min + max) / 2.0;
+    double amplitude = (max - min) / 2.0;
+    return of( phase -> middle + amplitude * Math.sin( 2 * Math.PI * phase ), samples );
+  }
+
+  /**
+   * Any waveform, computed from a function of the phase.
+   *
+   * @param function the value in counts at each phase, from 0 at the first sample towards 1, rounded to the
+   *                 nearest count
+   * @param samples the number of samples
+   */
+  public static Waveform of( DoubleUnaryOperator function, int samples )
+  {
+    checkLength( samples, 1 );
+    short[] table = new short[samples];
+    for (int i = 0; i < samples; i++)
+    {
+      table[i] = check( Math.round( function.applyAsDouble( (double) i / samples )));
+    }
+    return new Waveform( table );
+  }
+
+  /**
+   * An arbitrary sequence of values.
+   */
+  public static Waveform of( int... values )
+  {
+    checkLength( values.length, 1 );
+    short[] table = new short[values.length];
+    for (int i = 0; i < values.length; i++)
+    {
+      table[i] = check( values[i] );
+    }
+    return new Waveform( table );
+  }
+
+  private static void checkLength( int samples, int least )
+  {
+    if (samples < least)
+    {
+      throw new IllegalArgumentException( "Invalid waveform length " + samples );
+    }
+  }
+
+  private static short check( long value )
+  {
+    if (value < ANALOG_VAL_MIN || value > ANALOG_VAL_MAX)
+    {
+      throw new IllegalArgumentException( "Invalid analog value " + value );
+    }
+    return (short) value;
+  }
+
+  /**
+   * @return the number of samples in the table
+   */
+  public int size()
+  {
+    return samples.length;
+  }
+
+  /**
+   * @return the value of a sample, from 0 to 4095
+   */
+  public int get( int index )
+  {
+    return samples[index];
+  }
+}
@@ -0,0 +1,277 @@
+package com.sequentmicrosystems;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Plays a Waveform on the analog output of a card at a fixed sample rate.
+ * <p>
+ * Samples are scheduled against absolute deadlines from the start, so the time taken by each write does not
+ * accumulate into drift. If the generator falls more than a sample period behind, the samples it cannot catch
+ * up are skipped and counted, and playing resumes at the sample due now, keeping the waveform in phase with
+ * the clock. Samples are written without reading them back, and nothing is allocated while playing.
+ * <p>
+ * The intended and actual time of each sample written is kept in a preallocated ring, so the achieved rate and
+ * the jitter can be examined; the lateness of every sample is also recorded in a histogram.
+ */
+public class WaveformGenerator
+    implements Closeable
+{
+  private final MegaIO card;
+  private final Waveform waveform;
+  private final long periodNanos;
+  private volatile boolean repeat = true;
+
+  private final int capacity;
+  private final long mask;
+  private final long[] intendedTimes;
+  private final long[] actualTimes;
+  private volatile long published = 0;
+  // Used as a sequence lock: the generator write-locks it for each sample, readers copy optimistically.
+  private final StampedLock ringLock = new StampedLock();
+
+  private final AtomicLong skippedSamples = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private volatile IOException lastError = null;
+  private final LatencyHistogram lateness = new LatencyHistogram();
+
+  private volatile boolean running = false;
+  private Thread generator = null;
+
+  /**
+   * @param card the card whose analog output is driven
+   * @param waveform the samples to play
+   * @param samplesPerSecond the sample rate
+   * @param historyCapacity the number of sample timings kept, rounded up to a power of two
+   */
+  public WaveformGenerator( MegaIO card, Waveform waveform, double samplesPerSecond, int historyCapacity )
+  {
+    if (!(samplesPerSecond > 0))
+    {
+      throw new IllegalArgumentException( "Invalid sample rate " + samplesPerSecond );
+    }
+    this.card = card;
+    this.waveform = waveform;
+    this.periodNanos = Math.max( 1, (long) (1_000_000_000L / samplesPerSecond) );
+
+    int size = 1;
+    while (size < historyCapacity)
+    {
+      size <<= 1;
+    }
+    this.capacity = size;
+    this.mask = size - 1;
+    this.intendedTimes = new long[size];
+    this.actualTimes = new long[size];
+  }
+
+  /**
+   * @param repeat true to play the waveform over and over, the default, false to play it once and stop
+   */
+  public WaveformGenerator setRepeat( boolean repeat )
+  {
+    this.repeat = repeat;
+    return this;
+  }
+
+  /**
+   * Starts playing on a thread of the generator's own, from the first sample.
+   */
+  public synchronized void start()
+  {
+    if (running)
+    {
+      return;
+    }
+    running = true;
+    generator = new Thread( this::run, "megaio-dac-waveform" );
+    generator.setDaemon( true );
+    generator.start();
+  }
+
+  private void run()
+  {
+    int length = waveform.size();
+    long start = System.nanoTime();
+    long sample = 0;
+    while (running)
+    {
+      if (!repeat && sample >= length)
+      {
+        running = false;
+        return;
+      }
+      long deadline = start + sample * periodNanos;
+      long now = System.nanoTime();
+      while (now < deadline)
+      {
+        LockSupport.parkNanos( this, deadline - now );
+        if (!running)
+        {
+          return;
+        }
+        now = System.nanoTime();
+      }
+
+      try
+      {
+        card.writeAnalog( waveform.get( (int) (sample % length) ), false );
+        record( deadline, System.nanoTime() );
+      }
+      catch( IOException ioex )
+      {
+        errors.incrementAndGet();
+        lastError = ioex;
+      }
+
+      sample++;
+      long behind = System.nanoTime() - (start + sample * periodNanos);
+      if (behind > periodNanos)
+      {
+        long missed = behind / periodNanos;
+        if (!repeat)
+        {
+          // samples past the end of the waveform are not skipped, they are not there
+          missed = Math.min( missed, length - sample );
+        }
+        skippedSamples.addAndGet( missed );
+        sample += missed;
+      }
+    }
+  }
+
+  private void record( long intended, long actual )
+  {
+    lateness.record( actual - intended );
+    long stamp = ringLock.writeLock();
+    try
+    {
+      int index = (int) (published & mask);
+      intendedTimes[index] = intended;
+      actualTimes[index] = actual;
+      published++;
+    }
+    finally
+    {
+      ringLock.unlockWrite( stamp );
+    }
+  }
+
+  /**
+   * Copies the timings of the most recent samples written, oldest first.
+   *
+   * @param intended receives the System.nanoTime() at which each sample was due
+   * @param actual receives the System.nanoTime() at which each sample's write completed
+   * @return the number of timings copied, at most the length of the arrays and the capacity of the ring
+   */
+  public int copyTimings( long[] intended, long[] actual )
+  {
+    int wanted = Math.min( intended.length, actual.length );
+    while (true)
+    {
+      long stamp = ringLock.tryOptimisticRead();
+      long written = published;
+      int count = (int) Math.min( Math.min( wanted, capacity ), written );
+      for (int i = 0; i < count; i++)
+      {
+        int index = (int) ((written - count + i) & mask);
+        intended[i] = intendedTimes[index];
+        actual[i] = actualTimes[index];
+      }
+      // If a sample was recorded while we were copying, the timings may be torn; try again.
+      if (ringLock.validate( stamp ))
+      {
+        return count;
+      }
+      Thread.yield();
+    }
+  }
+
+  /* ------------- STATISTICS  -------------- */
+
+  /**
+   * @return true while the waveform is playing
+   */
+  public boolean isRunning()
+  {
+    return running;
+  }
+
+  /**
+   * @return the number of samples written
+   */
+  public long getSamplesWritten()
+  {
+    return published;
+  }
+
+  /**
+   * @return the number of samples skipped because the generator fell more than a period behind schedule
+   */
+  public long getSkippedSamples()
+  {
+    return skippedSamples.get();
+  }
+
+  /**
+   * @return the number of samples that could not be written
+   */
+  public long getErrors()
+  {
+    return errors.get();
+  }
+
+  /**
+   * @return the most recent exception thrown by a write, or null if there has been none
+   */
+  public IOException getLastError()
+  {
+    return lastError;
+  }
+
+  /**
+   * @return the number of samples per second achieved over the timings still held in the ring
+   */
+  public double getAchievedRate()
+  {
+    long[] intended = new long[capacity];
+    long[] actual = new long[capacity];
+    int count = copyTimings( intended, actual );
+    long elapsed = actual[Math.max( 0, count - 1 )] - actual[0];
+    return count < 2 || elapsed <= 0 ? 0 : (count - 1) * 1e9 / elapsed;
+  }
+
+  /**
+   * @return the time, in nanoseconds, by which each sample's write completed after it was due
+   */
+  public LatencyHistogram getLateness()
+  {
+    return lateness;
+  }
+
+  /**
+   * Stops playing. The timings remain readable.
+   */
+  @Override
+  public synchronized void close()
+  {
+    if (null == generator)
+    {
+      return;
+    }
+    running = false;
+    LockSupport.unpark( generator );
+    try
+    {
+      generator.join();
+    }
+    catch( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+    }
+    generator = null;
+  }
+}
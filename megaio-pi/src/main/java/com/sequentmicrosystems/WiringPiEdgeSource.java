@@ -0,0 +1,59 @@
+package com.sequentmicrosystems;
+
+import com.pi4j.wiringpi.Gpio;
+
+import java.io.IOException;
+
+/**
+ * An EdgeSource that watches a Raspberry Pi GPIO pin through wiringPi. The MegaIO cards pull the line low to
+ * signal an interrupt, so the pin is configured as an input with its pull-up enabled and the falling edge is
+ * reported.
+ */
+public class WiringPiEdgeSource implements EdgeSource
+{
+  private final int pin;
+
+  private volatile Runnable onInterrupt = null;
+
+  /**
+   * @param pin the wiringPi number of the GPIO pin wired to the cards' interrupt line
+   */
+  public WiringPiEdgeSource( int pin )
+  {
+    this.pin = pin;
+  }
+
+  @Override
+  public void start( Runnable onInterrupt )
+      throws IOException
+  {
+    if (-1 == Gpio.wiringPiSetup())
+    {
+      throw new IOException( "Unable to initialize wiringPi" );
+    }
+    Gpio.pinMode( pin, Gpio.INPUT );
+    Gpio.pullUpDnControl( pin, Gpio.PUD_UP );
+    this.onInterrupt = onInterrupt;
+    if (0 > Gpio.wiringPiISR( pin, Gpio.INT_EDGE_FALLING, this::callback ))
+    {
+      this.onInterrupt = null;
+      throw new IOException( "Unable to register an interrupt handler for pin " + pin );
+    }
+  }
+
+  private void callback( int pin )
+  {
+    Runnable handler = onInterrupt;
+    if (null != handler)
+    {
+      handler.run();
+    }
+  }
+
+  @Override
+  public void stop()
+  {
+    onInterrupt = null;
+    Gpio.wiringPiClearISR( pin );
+  }
+}
@@ -0,0 +1,151 @@
+package com.sequentmicrosystems;
+
+import com.pi4j.io.i2c.I2CDevice;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.sequentmicrosystems.Constants.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class AnalogSamplerTest
+{
+  private I2CDevice device;
+  private MegaIOImpl mega;
+  private int reads;
+
+  @Before
+  public void setup()
+      throws Exception
+  {
+    device = mock( I2CDevice.class );
+    mega = new MegaIOImpl( device, mock( GpioWrapper.class ));
+    reads = 0;
+
+    // each block read returns channel * 100 + the number of reads so far
+    doAnswer( invocationOnMock ->
+    {
+      int address = invocationOnMock.getArgument( 0 );
+      byte[] buffer = invocationOnMock.getArgument( 1 );
+      int size = invocationOnMock.getArgument( 3 );
+      reads++;
+      for (int i = 0; i < size / 2; i++)
+      {
+        int channel = (address - ADC_VAL_MEM_ADD) / 2 + 1 + i;
+        int value = channel * 100 + reads;
+        buffer[2 * i] = (byte) (value >> 8);
+        buffer[2 * i + 1] = (byte) value;
+      }
+      return size;
+    } ).when( device ).read( anyInt(), any( byte[].class ), eq( 0 ), anyInt() );
+  }
+
+  @Test
+  public void sweepsConfiguredChannelsInOneRead()
+      throws Exception
+  {
+    AnalogSampler sampler = new AnalogSampler( mega, 1000, 16, 2, 5 );
+    AnalogSampler.Cursor cursor = sampler.oldest();
+    assertFalse( cursor.next() );
+
+    assertTrue( sampler.sweep( 42 ));
+    verify( device ).read( eq( ADC_VAL_MEM_ADD + 2 ), any( byte[].class ), eq( 0 ), eq( 8 ));
+
+    assertTrue( cursor.next() );
+    assertEquals( 42, cursor.time() );
+    assertEquals( 2, cursor.channel() );
+    assertEquals( 201, cursor.value() );
+    assertTrue( cursor.next() );
+    assertEquals( 5, cursor.channel() );
+    assertEquals( 501, cursor.value() );
+    assertFalse( cursor.next() );
+    assertEquals( 0, cursor.getOverruns() );
+  }
+
+  @Test
+  public void slowConsumerOverruns()
+  {
+    AnalogSampler sampler = new AnalogSampler( mega, 1000, 4, 1 );
+    AnalogSampler.Cursor cursor = sampler.latest();
+    for (int i = 0; i < 10; i++)
+    {
+      sampler.sweep( i );
+    }
+    assertEquals( 10, cursor.getBacklog() );
+
+    // only the last four sweeps are still in the ring
+    assertTrue( cursor.next() );
+    assertEquals( 6, cursor.time() );
+    assertEquals( 107, cursor.value() );
+    assertEquals( 6, cursor.getOverruns() );
+    int count = 1;
+    while (cursor.next())
+    {
+      count++;
+    }
+    assertEquals( 4, count );
+    assertEquals( 9, cursor.time() );
+  }
+
+  @Test
+  public void samplesAtRate()
+      throws Exception
+  {
+    AnalogSampler sampler = new AnalogSampler( mega, 500, 1024, 1, 2, 3, 4, 5, 6, 7, 8 );
+    AnalogSampler.Cursor cursor = sampler.latest();
+    sampler.start();
+    Thread.sleep( 200 );
+    sampler.close();
+
+    long sweeps = sampler.getSweeps();
+    assertTrue( "only " + sweeps + " sweeps", sweeps >= 50 && sweeps <= 110 );
+    assertEquals( 0, sampler.getErrors() );
+    long entries = 0;
+    long lastTime = Long.MIN_VALUE;
+    while (cursor.next())
+    {
+      assertTrue( cursor.time() >= lastTime );
+      lastTime = cursor.time();
+      entries++;
+    }
+    assertEquals( 8 * sweeps, entries );
+    assertTrue( sampler.getAchievedRate() > 0 );
+  }
+
+  @Test
+  public void measuresJitterBetweenSweeps()
+      throws Exception
+  {
+    MegaIOEmulator emulator = new MegaIOEmulator();
+    emulator.setLatency( 1_000_000, 0 );
+    AnalogSampler sampler = new AnalogSampler( new MegaIOImpl( emulator, new SleepingGpioWrapper() ), 200, 64, 3 );
+    AnalogSampler.Cursor cursor = sampler.latest();
+    sampler.start();
+    Thread.sleep( 100 );
+    sampler.close();
+
+    // an interval for every sweep after the first
+    long sweeps = sampler.getSweeps();
+    assertEquals( 0, sampler.getErrors() );
+    assertEquals( sweeps - 1, sampler.getJitter().getCount() );
+    if (0 == sampler.getSkippedSweeps())
+    {
+      // every interval was scheduled to be a period, so the worst is the one furthest from it in the ring
+      long worst = 0;
+      assertTrue( cursor.next() );
+      long previous = cursor.time();
+      while (cursor.next())
+      {
+        worst = Math.max( worst, Math.abs( cursor.time() - previous - 5_000_000 ));
+        previous = cursor.time();
+      }
+      assertEquals( worst, sampler.getJitter().getMax() );
+    }
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void rateMustBePositive()
+  {
+    new AnalogSampler( mega, Double.NaN, 16, 1 );
+  }
+}
@@ -0,0 +1,178 @@
+package com.sequentmicrosystems;
+
+import com.pi4j.io.i2c.I2CDevice;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+import static com.sequentmicrosystems.Constants.*;
+import static com.sequentmicrosystems.Constants.IrqState.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class AsyncMegaIOTest
+{
+  private I2CDevice device;
+  private GpioWrapper gpio;
+  private ExecutorService executor;
+  private AsyncMegaIO async;
+
+  @Before
+  public void setup()
+  {
+    device = mock( I2CDevice.class );
+    gpio = mock( GpioWrapper.class );
+    executor = AsyncMegaIO.boundedExecutor( 2, 16 );
+    async = new AsyncMegaIO( new MegaIOImpl( device, gpio ), executor );
+  }
+
+  @After
+  public void teardown()
+  {
+    async.close();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void triggerRelayOn()
+      throws Exception
+  {
+    when( device.read( RELAY_MEM_ADD )).thenReturn( 0 ).thenReturn( 0x01 );
+    assertTrue( AsyncMegaIO.await( async.triggerRelay( 1, true )));
+    verify( device ).write( RELAY_ON_MEM_ADD, (byte) 1 );
+  }
+
+  @Test
+  public void triggerRelayOffFailsWithoutSleeping()
+      throws Exception
+  {
+    when( device.read( RELAY_MEM_ADD )).thenReturn( 0xFF );
+    assertFalse( AsyncMegaIO.await( async.triggerRelay( 2, false )));
+    verify( device, times( RETRY_TIMES )).write( RELAY_OFF_MEM_ADD, (byte) 2 );
+    verify( gpio, never() ).delay( anyLong() );
+  }
+
+  @Test
+  public void setOCPinGivesUp()
+      throws Exception
+  {
+    CompletableFuture<Boolean> result = async.setOCPin( 2, true );
+    try
+    {
+      AsyncMegaIO.await( result );
+      fail( "setOCPin should have given up" );
+    }
+    catch( IOException expected )
+    {
+      assertEquals( "Too many attempts", expected.getMessage() );
+    }
+    verify( device, times( RETRY_TIMES )).write( OC_OUT_SET_MEM_ADD, (byte) 2 );
+  }
+
+  @Test
+  public void readFailurePropagates()
+      throws Exception
+  {
+    when( device.read( OPTO_IN_MEM_ADD )).thenThrow( new IOException( "NACK" ));
+    try
+    {
+      AsyncMegaIO.await( async.readOptoIn( 1 ));
+      fail( "readOptoIn should have failed" );
+    }
+    catch( IOException expected )
+    {
+      assertEquals( "NACK", expected.getMessage() );
+    }
+  }
+
+  @Test
+  public void cachedAnalogWriteVerifiesOnBus()
+      throws Exception
+  {
+    MegaIOImpl card = new MegaIOImpl( device, gpio );
+    card.setRegisterCache( new RegisterCache( 100 ));
+    try (AsyncMegaIO cached = new AsyncMegaIO( card, executor ))
+    {
+      // the card ignores the write and reads back 0, whatever the cache holds
+      assertFalse( AsyncMegaIO.await( cached.writeAnalog( 3242 )));
+    }
+    verify( device, times( RETRY_TIMES )).read( eq( (int) DAC_VAL_H_MEM_ADD ), any( byte[].class ), eq( 0 ), eq( 2 ));
+  }
+
+  @Test
+  public void operationsAreMeasured()
+      throws Exception
+  {
+    MegaIOMetrics metrics = new MegaIOMetrics( 0 );
+    MegaIOImpl card = new MegaIOImpl( device, gpio );
+    card.setMetrics( metrics );
+    // the relay never switches off, and the first command is not acknowledged
+    when( device.read( RELAY_MEM_ADD )).thenReturn( 0xFF );
+    doThrow( new IOException( "NACK" )).doNothing().when( device ).write( eq( RELAY_OFF_MEM_ADD ), anyByte() );
+    when( device.read( OC_OUT_VAL_MEM_ADD )).thenReturn( 0x01 );
+    try (AsyncMegaIO measured = new AsyncMegaIO( card, executor ))
+    {
+      assertFalse( AsyncMegaIO.await( measured.triggerRelay( 2, false )));
+      assertTrue( AsyncMegaIO.await( measured.setOCPin( 1, true )));
+      assertEquals( RISING, AsyncMegaIO.await( measured.setOptoIrq( 1, RISING )));
+    }
+
+    OperationMetrics relay = metrics.get( MegaIOMetrics.Operation.TRIGGER_RELAY );
+    assertEquals( 1, relay.getCalls() );
+    assertEquals( RETRY_TIMES - 1, relay.getRetries() );
+    assertEquals( 1, relay.getExhaustedRetries() );
+    assertEquals( 1, relay.getI2CErrors() );
+    OperationMetrics oc = metrics.get( MegaIOMetrics.Operation.SET_OC_PIN );
+    assertEquals( 1, oc.getCalls() );
+    assertEquals( 0, oc.getRetries() );
+    assertEquals( 1, metrics.get( MegaIOMetrics.Operation.CONFIGURE_IRQS ).getCalls() );
+    // the checks along the way are part of the operations, not reads of their own
+    assertEquals( 0, metrics.get( MegaIOMetrics.Operation.READ_RELAYS ).getCalls() );
+    assertEquals( 0, metrics.get( MegaIOMetrics.Operation.READ_OC ).getCalls() );
+  }
+
+  @Test
+  public void setIoIrqRising()
+      throws Exception
+  {
+    // pin 6 is rising and falling, pin 5 and 3 are just falling, pins 4 and 2 are just rising, pin 1 is disabled.
+    when( device.read( GPIO_EXT_IT_RISING_MEM_ADD  )).thenReturn( 0b00101010 );
+    when( device.read( GPIO_EXT_IT_FALLING_MEM_ADD )).thenReturn( 0b00110100 );
+
+    assertEquals( RISING, AsyncMegaIO.await( async.setIoIrq( 5, RISING )));
+    verify( device ).write( GPIO_EXT_IT_RISING_MEM_ADD,  (byte) 0b00111010 );
+    verify( device ).write( GPIO_EXT_IT_FALLING_MEM_ADD, (byte) 0b00100100 );
+    verify( gpio, never() ).delay( anyLong() );
+  }
+
+  @Test
+  public void maskUpdatesAreNotLost()
+      throws Exception
+  {
+    MegaIOEmulator emulator = new MegaIOEmulator( 0 );
+    MegaIOImpl card = new MegaIOImpl( emulator, new SleepingGpioWrapper() );
+    card.setIrqWriteDelay( 2 );
+    try (AsyncMegaIO shared = new AsyncMegaIO( card, executor ))
+    {
+      CompletableFuture<IrqState> first = shared.setOptoIrq( 1, RISING );
+      CompletableFuture<IrqState> second = shared.setOptoIrq( 2, RISING );
+      card.setOptoIrq( 3, RISING );
+      AsyncMegaIO.await( first );
+      AsyncMegaIO.await( second );
+    }
+    assertEquals( 0b111, card.readRegister( OPTO_IT_RISING_MEM_ADD ));
+
+    // and relays, whose commands are checked after settling
+    try (AsyncMegaIO shared = new AsyncMegaIO( card, executor ))
+    {
+      CompletableFuture<Boolean> relay = shared.triggerRelay( 1, true );
+      card.triggerRelay( 2, true );
+      assertTrue( AsyncMegaIO.await( relay ));
+    }
+    assertEquals( 0x03, emulator.getRelays() );
+  }
+}
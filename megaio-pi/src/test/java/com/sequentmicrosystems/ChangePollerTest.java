@@ -0,0 +1,134 @@
+package com.sequentmicrosystems;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ChangePollerTest
+{
+  private MegaIOEmulator emulator;
+  private MegaIOImpl mega;
+  private ChangePoller poller;
+  private BlockingQueue<ChangeEvent> events;
+
+  @Before
+  public void setup()
+  {
+    emulator = new MegaIOEmulator( 1 );
+    mega = new MegaIOImpl( emulator, new SleepingGpioWrapper() );
+    poller = new ChangePoller( 1, 64, TimeUnit.MILLISECONDS );
+    events = new LinkedBlockingQueue<>();
+    poller.addListener( events::add );
+  }
+
+  @After
+  public void teardown()
+  {
+    poller.close();
+  }
+
+  private void awaitPolls( long count )
+      throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 2000;
+    while (poller.getPollCount() < count && System.currentTimeMillis() < deadline)
+    {
+      Thread.sleep( 1 );
+    }
+  }
+
+  @Test
+  public void reportsOnlyChanges()
+      throws Exception
+  {
+    emulator.setOptoInput( 1, true );
+    poller.addCard( 1, mega );
+    poller.start();
+    awaitPolls( 1 );
+    assertTrue( events.isEmpty() );
+
+    emulator.setOptoInput( 3, true );
+    emulator.setOptoInput( 1, false );
+    ChangeEvent event = events.poll( 1, TimeUnit.SECONDS );
+    assertNotNull( event );
+    assertEquals( 1, event.getCard() );
+    assertEquals( ChangeEvent.Register.OPTO, event.getRegister() );
+    assertEquals( 0b00000101, event.getChanged() );
+    assertEquals( 0b00000100, event.getRising() );
+    assertEquals( 0b00000001, event.getFalling() );
+
+    mega.setOCPin( 2, true );
+    event = events.poll( 1, TimeUnit.SECONDS );
+    assertNotNull( event );
+    assertEquals( ChangeEvent.Register.OC, event.getRegister() );
+    assertEquals( 0b0010, event.getCurrent() );
+
+    Thread.sleep( 50 );
+    assertTrue( events.isEmpty() );
+  }
+
+  @Test
+  public void failingListenerDoesNotStopPolling()
+      throws Exception
+  {
+    poller.addListener( event ->
+    {
+      throw new IllegalStateException( "listener failed" );
+    } );
+    poller.addCard( 1, mega );
+    poller.start();
+    awaitPolls( 1 );
+
+    // polling goes on, and every change still reaches every listener
+    emulator.setOptoInput( 2, true );
+    assertEquals( ChangeEvent.Register.OPTO, events.poll( 1, TimeUnit.SECONDS ).getRegister() );
+    mega.setOCPin( 1, true );
+    assertEquals( ChangeEvent.Register.OC, events.poll( 1, TimeUnit.SECONDS ).getRegister() );
+    long deadline = System.currentTimeMillis() + 1000;
+    while (poller.getListenerErrorCount() < 2 && System.currentTimeMillis() < deadline)
+    {
+      Thread.sleep( 1 );
+    }
+    assertEquals( 2, poller.getListenerErrorCount() );
+    assertEquals( "listener failed", poller.getLastListenerError().getMessage() );
+  }
+
+  @Test
+  public void backsOffWhenIdle()
+      throws Exception
+  {
+    poller.addCard( 1, mega );
+    poller.start();
+    awaitPolls( 10 );
+    assertEquals( 64, poller.getInterval( 1, TimeUnit.MILLISECONDS ));
+
+    // an idle card settles at the longest interval, a tiny fraction of the bus a fixed 1 ms poll would use
+    long transactions = emulator.getTransactionCount();
+    Thread.sleep( 300 );
+    assertTrue( emulator.getTransactionCount() - transactions <= 2 * 6 );
+
+    emulator.setGpioInput( 2, true );
+    assertNotNull( events.poll( 1, TimeUnit.SECONDS ));
+    assertEquals( 1, poller.getInterval( 1, TimeUnit.MILLISECONDS ));
+  }
+
+  @Test
+  public void countsErrors()
+      throws Exception
+  {
+    emulator.setNackRate( 1 );
+    poller.addCard( 0, mega );
+    poller.start();
+    awaitPolls( 2 );
+    assertTrue( poller.getErrorCount() >= 2 );
+    assertTrue( poller.getLastError() instanceof IOException );
+    assertEquals( -1, poller.getInterval( 3, TimeUnit.MILLISECONDS ));
+  }
+}
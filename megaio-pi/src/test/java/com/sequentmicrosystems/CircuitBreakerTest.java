@@ -0,0 +1,134 @@
+package com.sequentmicrosystems;
+
+import com.pi4j.io.i2c.I2CDevice;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class CircuitBreakerTest
+{
+  private MegaIOEmulator emulator;
+  private MegaIOImpl mega;
+  private CircuitBreaker breaker;
+
+  @Before
+  public void setup()
+  {
+    emulator = new MegaIOEmulator();
+    mega = new MegaIOImpl( emulator, new SleepingGpioWrapper() );
+    breaker = new CircuitBreaker( 3, 50, TimeUnit.MILLISECONDS );
+    mega.setCircuitBreaker( breaker );
+  }
+
+  private void readFails()
+  {
+    try
+    {
+      mega.readOptoIns();
+      fail( "Should have thrown" );
+    }
+    catch( IOException expected )
+    {
+    }
+  }
+
+  @Test
+  public void opensAfterConsecutiveFailures()
+      throws Exception
+  {
+    emulator.setNackRate( 1 );
+    readFails();
+    readFails();
+    assertEquals( CircuitBreaker.State.CLOSED, breaker.getState() );
+    assertEquals( 2, breaker.getConsecutiveFailures() );
+    readFails();
+    assertEquals( CircuitBreaker.State.OPEN, breaker.getState() );
+    assertEquals( 1, breaker.getTrips() );
+
+    // while open nothing goes to the bus
+    long transactions = emulator.getTransactionCount() + emulator.getNackCount();
+    try
+    {
+      mega.writeAnalog( 100 );
+      fail( "Should have failed fast" );
+    }
+    catch( CircuitOpenException expected )
+    {
+      assertTrue( expected.getRetryAfter( TimeUnit.MILLISECONDS ) > 0 );
+    }
+    assertEquals( transactions, emulator.getTransactionCount() + emulator.getNackCount() );
+    assertEquals( 1, breaker.getRejected() );
+  }
+
+  @Test
+  public void probeClosesOrReopens()
+      throws Exception
+  {
+    emulator.setNackRate( 1 );
+    readFails();
+    readFails();
+    readFails();
+
+    // the probe fails, so the breaker opens again
+    Thread.sleep( 60 );
+    readFails();
+    assertEquals( 1, breaker.getProbes() );
+    assertEquals( CircuitBreaker.State.OPEN, breaker.getState() );
+    assertEquals( 2, breaker.getTrips() );
+
+    // the card recovers, and the next probe closes the breaker
+    emulator.setNackRate( 0 );
+    Thread.sleep( 60 );
+    emulator.setOptoInput( 2, true );
+    assertEquals( 0b10, mega.readOptoIns() );
+    assertEquals( CircuitBreaker.State.CLOSED, breaker.getState() );
+    assertEquals( 0, breaker.getConsecutiveFailures() );
+    assertTrue( mega.writeAnalog( 1234 ));
+  }
+
+  @Test
+  public void uncheckedProbeFailureReopens()
+      throws Exception
+  {
+    I2CDevice device = mock( I2CDevice.class );
+    when( device.read( Constants.OPTO_IN_MEM_ADD ))
+        .thenThrow( new IOException( "nack" ), new IOException( "nack" ), new IOException( "nack" ))
+        .thenThrow( new IllegalStateException( "driver bug" ));
+    mega = new MegaIOImpl( device, new SleepingGpioWrapper() );
+    mega.setCircuitBreaker( breaker );
+    readFails();
+    readFails();
+    readFails();
+
+    Thread.sleep( 60 );
+    try
+    {
+      mega.readOptoIns();
+      fail( "Should have thrown" );
+    }
+    catch( IllegalStateException expected )
+    {
+    }
+    // the probe ended, so it is not left half open
+    assertEquals( CircuitBreaker.State.OPEN, breaker.getState() );
+    assertEquals( 2, breaker.getTrips() );
+  }
+
+  @Test
+  public void successResetsTheCount()
+      throws Exception
+  {
+    emulator.setNackRate( 1 );
+    readFails();
+    readFails();
+    emulator.setNackRate( 0 );
+    mega.readOptoIns();
+    assertEquals( 0, breaker.getConsecutiveFailures() );
+    assertEquals( CircuitBreaker.State.CLOSED, breaker.getState() );
+  }
+}
@@ -0,0 +1,119 @@
+package com.sequentmicrosystems;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DacWriterTest
+{
+  private MegaIOEmulator emulator;
+  private MegaIOImpl mega;
+  private DacWriter writer;
+
+  @Before
+  public void setup()
+  {
+    emulator = new MegaIOEmulator();
+    mega = new MegaIOImpl( emulator, new SleepingGpioWrapper() );
+  }
+
+  @After
+  public void teardown()
+  {
+    if (null != writer)
+    {
+      writer.close();
+    }
+  }
+
+  private void awaitOutput( int value )
+      throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 2000;
+    while (emulator.getAnalogOutput() != value && System.currentTimeMillis() < deadline)
+    {
+      Thread.sleep( 1 );
+    }
+  }
+
+  @Test
+  public void newestSetpointWins()
+      throws Exception
+  {
+    writer = new DacWriter( mega, 100 );
+    writer.start();
+    for (int value = 1; value <= 1000; value++)
+    {
+      writer.set( value );
+    }
+    awaitOutput( 1000 );
+    assertEquals( 1000, emulator.getAnalogOutput() );
+
+    // at 100 writes a second only a handful of the setpoints reach the card; the rest are superseded
+    Thread.sleep( 20 );
+    assertEquals( 1000, writer.getSubmitted() );
+    assertTrue( writer.getWritten() < 10 );
+    assertEquals( 1000, writer.getWritten() + writer.getDropped() );
+    assertEquals( 1000, writer.getLastWritten() );
+    assertEquals( writer.getWritten(), writer.getLatency().getCount() );
+  }
+
+  @Test
+  public void rateIsLimited()
+      throws Exception
+  {
+    writer = new DacWriter( mega, 50 );
+    writer.start();
+    long start = System.nanoTime();
+    for (int i = 0; i < 200; i++)
+    {
+      writer.set( i % 2 );
+      Thread.sleep( 1 );
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    assertTrue( writer.getWritten() <= 50 * seconds + 2 );
+    assertTrue( writer.getDropped() > 0 );
+  }
+
+  @Test
+  public void verificationIsSampled()
+      throws Exception
+  {
+    writer = new DacWriter( mega, Double.POSITIVE_INFINITY ).setVerifyEvery( 4 );
+    writer.start();
+    for (int value = 1; value <= 8; value++)
+    {
+      writer.set( value );
+      awaitOutput( value );
+    }
+    Thread.sleep( 20 );
+    // eight writes, of which two are read back
+    assertEquals( 8, writer.getWritten() );
+    assertEquals( 8 + 2, emulator.getTransactionCount() );
+  }
+
+  @Test
+  public void failedVerificationIsCounted()
+      throws Exception
+  {
+    emulator.setStuckBits( Constants.DAC_VAL_L_MEM_ADD, 0, 0x01 );
+    writer = new DacWriter( mega, Double.POSITIVE_INFINITY ).setVerifyEvery( 1 );
+    writer.start();
+    writer.set( 3 );
+    long deadline = System.currentTimeMillis() + 2000;
+    while (0 == writer.getWritten() && System.currentTimeMillis() < deadline)
+    {
+      Thread.sleep( 1 );
+    }
+    assertEquals( 1, writer.getVerifyFailures() );
+    assertEquals( -1, writer.getLastWritten() );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void valueOutOfRange()
+  {
+    new DacWriter( mega, 10 ).set( 4096 );
+  }
+}
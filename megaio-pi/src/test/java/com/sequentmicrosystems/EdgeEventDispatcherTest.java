@@ -0,0 +1,135 @@
+package com.sequentmicrosystems;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class EdgeEventDispatcherTest
+{
+  /** An interrupt line that is asserted by the test. */
+  private static class TestEdgeSource implements EdgeSource
+  {
+    Runnable onInterrupt;
+
+    @Override
+    public void start( Runnable onInterrupt )
+    {
+      this.onInterrupt = onInterrupt;
+    }
+
+    @Override
+    public void stop()
+    {
+      onInterrupt = null;
+    }
+  }
+
+  private TestEdgeSource source;
+  private EdgeEventDispatcher dispatcher;
+  private BlockingQueue<EdgeEvent> events;
+
+  @Before
+  public void setup()
+  {
+    source = new TestEdgeSource();
+    dispatcher = new EdgeEventDispatcher( source );
+    events = new LinkedBlockingQueue<>();
+    dispatcher.addListener( events::add );
+  }
+
+  @After
+  public void teardown()
+  {
+    dispatcher.close();
+  }
+
+  @Test
+  public void dispatchesFlaggedPins()
+      throws Exception
+  {
+    MegaIO card = mock( MegaIO.class );
+    // opto 2 rose, opto 4 fell and GPIO 6 rose; reading the flags clears them
+    when( card.readOptoIrqFlags() ).thenReturn( 0b00001010 ).thenReturn( 0 );
+    when( card.readOptoIns() ).thenReturn( 0b00000010 );
+    when( card.readIoIrqFlags() ).thenReturn( 0b00100000 ).thenReturn( 0 );
+    when( card.readGpioPins() ).thenReturn( 0b00100000 );
+    dispatcher.addCard( 2, card );
+    dispatcher.start();
+    source.onInterrupt.run();
+
+    EdgeEvent event = events.poll( 1, TimeUnit.SECONDS );
+    assertNotNull( event );
+    assertEquals( 2, event.getCard() );
+    assertEquals( EdgeEvent.Source.OPTO, event.getSource() );
+    assertEquals( 2, event.getChannel() );
+    assertTrue( event.isRising() );
+
+    event = events.poll( 1, TimeUnit.SECONDS );
+    assertNotNull( event );
+    assertEquals( 4, event.getChannel() );
+    assertFalse( event.isRising() );
+
+    event = events.poll( 1, TimeUnit.SECONDS );
+    assertNotNull( event );
+    assertEquals( EdgeEvent.Source.GPIO, event.getSource() );
+    assertEquals( 6, event.getChannel() );
+    assertTrue( event.isRising() );
+
+    Thread.sleep( 50 );
+    assertTrue( events.isEmpty() );
+  }
+
+  @Test
+  public void failingListenerDoesNotStopDispatching()
+      throws Exception
+  {
+    dispatcher.addListener( event ->
+    {
+      throw new IllegalStateException( "listener failed" );
+    } );
+    MegaIO card = mock( MegaIO.class );
+    when( card.readOptoIrqFlags() ).thenReturn( 0b0001 ).thenReturn( 0b0010 ).thenReturn( 0 );
+    dispatcher.addCard( 1, card );
+    dispatcher.start();
+    assertEquals( 1, events.poll( 1, TimeUnit.SECONDS ).getChannel() );
+
+    // the dispatcher survives, and the next interrupt still reaches every listener
+    source.onInterrupt.run();
+    assertEquals( 2, events.poll( 1, TimeUnit.SECONDS ).getChannel() );
+    long deadline = System.currentTimeMillis() + 1000;
+    while (dispatcher.getListenerErrorCount() < 2 && System.currentTimeMillis() < deadline)
+    {
+      Thread.sleep( 1 );
+    }
+    assertEquals( 2, dispatcher.getListenerErrorCount() );
+    assertEquals( "listener failed", dispatcher.getLastListenerError().getMessage() );
+    assertEquals( 0, dispatcher.getErrorCount() );
+  }
+
+  @Test
+  public void countsBusErrors()
+      throws Exception
+  {
+    MegaIO card = mock( MegaIO.class );
+    when( card.readOptoIrqFlags() ).thenThrow( new IOException( "NACK" ));
+    dispatcher.addCard( 0, card );
+    dispatcher.start();
+
+    long deadline = System.currentTimeMillis() + 1000;
+    while (0 == dispatcher.getErrorCount() && System.currentTimeMillis() < deadline)
+    {
+      Thread.sleep( 1 );
+    }
+    assertEquals( 1, dispatcher.getErrorCount() );
+    assertEquals( "NACK", dispatcher.getLastError().getMessage() );
+    assertTrue( events.isEmpty() );
+  }
+}
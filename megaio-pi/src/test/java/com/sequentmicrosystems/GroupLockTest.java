@@ -0,0 +1,59 @@
+package com.sequentmicrosystems;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class GroupLockTest
+{
+  @Test
+  public void waitersAreGrantedInOrder()
+      throws Exception
+  {
+    GroupLock lock = new GroupLock();
+    List<String> granted = new ArrayList<>();
+    lock.lock();
+
+    lock.lock( () -> granted.add( "first" ));
+    CountDownLatch blocked = new CountDownLatch( 1 );
+    Thread thread = new Thread( () ->
+    {
+      blocked.countDown();
+      lock.lock();
+      synchronized (granted)
+      {
+        granted.add( "thread" );
+      }
+    } );
+    thread.start();
+    blocked.await();
+    // let the thread queue behind the callback
+    Thread.sleep( 50 );
+    assertTrue( granted.isEmpty() );
+
+    lock.unlock();
+    assertEquals( "[first]", granted.toString() );
+    assertTrue( lock.isLocked() );
+
+    // released on another thread than the one it was granted to
+    Thread releaser = new Thread( lock::unlock );
+    releaser.start();
+    releaser.join();
+    thread.join( TimeUnit.SECONDS.toMillis( 5 ));
+    assertEquals( "[first, thread]", granted.toString() );
+
+    lock.unlock();
+    assertFalse( lock.isLocked() );
+  }
+
+  @Test( expected = IllegalMonitorStateException.class )
+  public void unlockingAFreeLockFails()
+  {
+    new GroupLock().unlock();
+  }
+}
@@ -0,0 +1,233 @@
+package com.sequentmicrosystems;
+
+import com.pi4j.io.i2c.I2CBus;
+import com.pi4j.io.i2c.I2CDevice;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static com.sequentmicrosystems.Constants.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class I2CBusArbiterTest
+{
+  private final I2CDevice[] devices = new I2CDevice[CARD_NR_MAX];
+  private I2CBusArbiter arbiter;
+  private List<String> order;
+
+  @Before
+  public void setup()
+      throws Exception
+  {
+    I2CBus bus = mock( I2CBus.class );
+    for (int card = 0; card < CARD_NR_MAX; card++)
+    {
+      devices[card] = mock( I2CDevice.class );
+      when( bus.getDevice( MEGAIO_HW_I2C_BASE_ADD + card )).thenReturn( devices[card] );
+    }
+    arbiter = new I2CBusArbiter( bus );
+    order = new CopyOnWriteArrayList<>();
+  }
+
+  private static void await( CountDownLatch latch )
+      throws InterruptedIOException
+  {
+    try
+    {
+      latch.await();
+    }
+    catch( InterruptedException e )
+    {
+      throw new InterruptedIOException();
+    }
+  }
+
+  private Thread queue( int cardNum, I2CBusArbiter.Priority priority, String name )
+  {
+    Thread thread = new Thread( () ->
+    {
+      try
+      {
+        arbiter.exclusive( cardNum, priority, () -> order.add( name ));
+      }
+      catch( Exception e )
+      {
+        order.add( e.toString() );
+      }
+    } );
+    thread.start();
+    return thread;
+  }
+
+  private void awaitQueueDepth( int depth )
+      throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 1000;
+    while (arbiter.getQueueDepth() < depth && System.currentTimeMillis() < deadline)
+    {
+      Thread.sleep( 1 );
+    }
+    assertEquals( depth, arbiter.getQueueDepth() );
+  }
+
+  @Test
+  public void criticalJumpsTheQueue()
+      throws Exception
+  {
+    CountDownLatch holding = new CountDownLatch( 1 );
+    CountDownLatch done = new CountDownLatch( 1 );
+    Thread holder = new Thread( () ->
+    {
+      try
+      {
+        arbiter.exclusive( 0, I2CBusArbiter.Priority.NORMAL, () ->
+        {
+          holding.countDown();
+          await( done );
+          return null;
+        } );
+      }
+      catch( Exception e )
+      {
+        order.add( e.toString() );
+      }
+    } );
+    holder.start();
+    holding.await();
+
+    Thread bulk = queue( 1, I2CBusArbiter.Priority.BULK, "bulk" );
+    awaitQueueDepth( 1 );
+    Thread normal = queue( 2, I2CBusArbiter.Priority.NORMAL, "normal" );
+    awaitQueueDepth( 2 );
+    Thread critical = queue( 3, I2CBusArbiter.Priority.CRITICAL, "critical" );
+    awaitQueueDepth( 3 );
+
+    done.countDown();
+    holder.join();
+    bulk.join();
+    normal.join();
+    critical.join();
+
+    assertEquals( "critical", order.get( 0 ));
+    assertEquals( "normal", order.get( 1 ));
+    assertEquals( "bulk", order.get( 2 ));
+    assertEquals( 0, arbiter.getQueueDepth() );
+    assertTrue( arbiter.getMaxWaitNanos( 1 ) >= arbiter.getMaxWaitNanos( 3 ));
+  }
+
+  @Test
+  public void cardsTakeTurns()
+      throws Exception
+  {
+    CountDownLatch done = new CountDownLatch( 1 );
+    Thread holder = new Thread( () ->
+    {
+      try
+      {
+        arbiter.exclusive( 0, I2CBusArbiter.Priority.NORMAL, () ->
+        {
+          await( done );
+          return null;
+        } );
+      }
+      catch( Exception e )
+      {
+        order.add( e.toString() );
+      }
+    } );
+    holder.start();
+    while (1 != arbiter.getTransactionCount( 0 ))
+    {
+      Thread.sleep( 1 );
+    }
+
+    Thread a1 = queue( 1, I2CBusArbiter.Priority.NORMAL, "1a" );
+    awaitQueueDepth( 1 );
+    Thread a2 = queue( 1, I2CBusArbiter.Priority.NORMAL, "1b" );
+    awaitQueueDepth( 2 );
+    Thread b = queue( 2, I2CBusArbiter.Priority.NORMAL, "2" );
+    awaitQueueDepth( 3 );
+
+    done.countDown();
+    holder.join();
+    a1.join();
+    a2.join();
+    b.join();
+
+    assertEquals( "1a", order.get( 0 ));
+    assertEquals( "2", order.get( 1 ));
+    assertEquals( "1b", order.get( 2 ));
+    assertEquals( 2, arbiter.getTransactionCount( 1 ));
+  }
+
+  @Test
+  public void devicesAreArbitrated()
+      throws Exception
+  {
+    I2CDevice device = arbiter.getDevice( 2 );
+    device.write( RELAY_MEM_ADD, (byte) 0x0F );
+    device.read( ADC_VAL_MEM_ADD, new byte[16], 0, 16 );
+    assertEquals( 2, arbiter.getTransactionCount( 2 ));
+    assertEquals( 0, arbiter.getQueueDepth( 2 ));
+  }
+
+  @Test
+  public void readModifyWritesAreExclusive()
+      throws Exception
+  {
+    MegaIOImpl card = new MegaIOImpl( arbiter.getDevice( 1 ), new SleepingGpioWrapper() );
+    card.setIrqWriteDelay( 0 );
+
+    // each read, write and read back is several transactions, but the bus is granted only once for all of them
+    card.setGpioPinDirection( 3, true );
+    assertEquals( 1, arbiter.getTransactionCount( 1 ));
+    when( devices[1].read( RELAY_MEM_ADD )).thenReturn( 0, 0x01 );
+    card.updateRelays( 0x01, 0 );
+    assertEquals( 2, arbiter.getTransactionCount( 1 ));
+    // and once for each interrupt mask
+    card.setOptoIrq( 2, Constants.IrqState.RISING );
+    assertEquals( 4, arbiter.getTransactionCount( 1 ));
+  }
+
+  @Test
+  public void pausesReleaseTheBus()
+      throws Exception
+  {
+    // every pause checks that another card can have the bus meanwhile
+    MegaIOImpl card = new MegaIOImpl( arbiter.getDevice( 1 ), new SleepingGpioWrapper()
+    {
+      @Override
+      public void delay( long millis )
+      {
+        Thread other = queue( 2, I2CBusArbiter.Priority.CRITICAL, "pause" );
+        try
+        {
+          other.join( 1000 );
+        }
+        catch( InterruptedException e )
+        {
+          Thread.currentThread().interrupt();
+        }
+        if (other.isAlive())
+        {
+          order.add( "held" );
+          other.interrupt();
+        }
+      }
+    } );
+    card.setIrqWriteDelay( 1 );
+
+    // relays that never take are written again after a pause, and so are the batch's folded relays
+    card.updateRelays( 0x01, 0 );
+    card.setOptoIrq( 2, Constants.IrqState.RISING );
+    card.configureOptoIrqs( new Constants.IrqState[] { Constants.IrqState.BOTH } );
+    card.batch().triggerRelay( 1, true ).triggerRelay( 2, true ).execute();
+    assertFalse( order.contains( "held" ));
+    assertTrue( order.size() > 2 * RETRY_TIMES );
+  }
+}
@@ -0,0 +1,169 @@
+package com.sequentmicrosystems;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static com.sequentmicrosystems.Constants.*;
+import static org.junit.Assert.*;
+
+public class I2CTraceTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path file;
+  private MegaIOEmulator emulator;
+
+  @Before
+  public void setup()
+  {
+    file = folder.getRoot().toPath().resolve( "card0.trace" );
+    emulator = new MegaIOEmulator();
+    emulator.setAnalogInput( 4, 2048 );
+    emulator.setOptoInput( 2, true );
+  }
+
+  /**
+   * The same work, run first against the emulator and then against the replay of its trace.
+   */
+  private static int[] work( MegaIO mega )
+      throws IOException
+  {
+    int[] analog = new int[ADC_CH_NR_MAX];
+    mega.triggerRelay( 3, true );
+    mega.setOCPin( 1, true );
+    mega.readAnalogAll( analog );
+    return new int[] { mega.readRelays(), mega.readOptoIns(), analog[3], mega.readAnalog( 4 ),
+                       mega.readOCPin( 1 ) ? 1 : 0 };
+  }
+
+  @Test
+  public void traceAndReplay()
+      throws Exception
+  {
+    int[] expected;
+    long written;
+    try (TracingI2CDevice tracing = new TracingI2CDevice( emulator, file, 1024 ))
+    {
+      expected = work( new MegaIOImpl( tracing, new SleepingGpioWrapper() ));
+      written = tracing.getWritten();
+    }
+    assertArrayEquals( new int[] { 0x04, 0x02, 2048, 2048, 1 }, expected );
+    assertEquals( emulator.getTransactionCount(), written );
+
+    I2CTrace trace = I2CTrace.load( file );
+    assertEquals( emulator.getAddress(), trace.getAddress() );
+    assertEquals( written, trace.getTransactions().size() );
+    assertEquals( 0, trace.getOverwritten() );
+    I2CTrace.Transaction first = trace.getTransactions().get( 0 );
+    assertFalse( first.isFailed() );
+    assertTrue( first.getDurationNanos() > 0 );
+
+    ReplayI2CDevice replay = new ReplayI2CDevice( trace, 0 );
+    assertArrayEquals( expected, work( new MegaIOImpl( replay, new SleepingGpioWrapper() )));
+    assertTrue( replay.isFinished() );
+    assertEquals( 0, replay.getWriteMismatches() );
+  }
+
+  /**
+   * @return what each attempt to turn a relay on did, including failing
+   */
+  private static String relaysOn( MegaIO mega )
+  {
+    StringBuilder outcomes = new StringBuilder();
+    for (int relay = 1; relay <= RELAY_CH_NR_MAX; relay++)
+    {
+      try
+      {
+        outcomes.append( mega.triggerRelay( relay, true )).append( ' ' );
+      }
+      catch( IOException ioex )
+      {
+        outcomes.append( "failed " );
+      }
+    }
+    return outcomes.toString();
+  }
+
+  @Test
+  public void failuresAreReplayed()
+      throws Exception
+  {
+    emulator.setNackRate( 0.3 );
+    emulator.setSeed( 42 );
+    String outcomes;
+    try (TracingI2CDevice tracing = new TracingI2CDevice( emulator, file, 1024 ))
+    {
+      outcomes = relaysOn( new MegaIOImpl( tracing, new SleepingGpioWrapper() ));
+    }
+    I2CTrace trace = I2CTrace.load( file );
+    assertTrue( outcomes.contains( "failed" ));
+    assertTrue( trace.getTransactions().stream().anyMatch( I2CTrace.Transaction::isFailed ));
+
+    // the failures and retries happen just as they did
+    ReplayI2CDevice replay = new ReplayI2CDevice( trace, 0 );
+    assertEquals( outcomes, relaysOn( new MegaIOImpl( replay, new SleepingGpioWrapper() )));
+    assertTrue( replay.isFinished() );
+  }
+
+  @Test( expected = IllegalStateException.class )
+  public void divergenceIsReported()
+      throws Exception
+  {
+    try (TracingI2CDevice tracing = new TracingI2CDevice( emulator, file, 1024 ))
+    {
+      new MegaIOImpl( tracing, new SleepingGpioWrapper() ).readRelays();
+    }
+    new MegaIOImpl( new ReplayI2CDevice( I2CTrace.load( file ), 0 ), new SleepingGpioWrapper() ).readOptoIns();
+  }
+
+  @Test
+  public void ringKeepsTheNewest()
+      throws Exception
+  {
+    try (TracingI2CDevice tracing = new TracingI2CDevice( emulator, file, 16 ))
+    {
+      MegaIOImpl mega = new MegaIOImpl( tracing, new SleepingGpioWrapper() );
+      for (int i = 0; i < 100; i++)
+      {
+        mega.readOptoIns();
+      }
+      assertEquals( 100, tracing.getWritten() );
+    }
+    I2CTrace trace = I2CTrace.load( file );
+    assertEquals( 100, trace.getWritten() );
+    assertEquals( 16, trace.getTransactions().size() );
+    assertEquals( 84, trace.getOverwritten() );
+    assertEquals( 84, trace.getTransactions().get( 0 ).getSequence() );
+  }
+
+  @Test
+  public void pacedReplay()
+      throws Exception
+  {
+    emulator.setLatency( 2_000_000, 0 );
+    try (TracingI2CDevice tracing = new TracingI2CDevice( emulator, file, 64 ))
+    {
+      MegaIOImpl mega = new MegaIOImpl( tracing, new SleepingGpioWrapper() );
+      for (int i = 0; i < 10; i++)
+      {
+        mega.readOptoIns();
+      }
+    }
+    I2CTrace trace = I2CTrace.load( file );
+    MegaIOImpl mega = new MegaIOImpl( new ReplayI2CDevice( trace, 2 ), new SleepingGpioWrapper() );
+    long start = System.nanoTime();
+    for (int i = 0; i < 10; i++)
+    {
+      mega.readOptoIns();
+    }
+    long took = System.nanoTime() - start;
+    // ten transactions of 2 ms each, played back at twice the speed
+    assertTrue( "took " + took, took >= 9_000_000 && took < 40_000_000 );
+  }
+}
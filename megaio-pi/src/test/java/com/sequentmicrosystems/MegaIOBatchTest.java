@@ -0,0 +1,209 @@
+package com.sequentmicrosystems;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.sequentmicrosystems.Constants.*;
+import static org.junit.Assert.*;
+
+public class MegaIOBatchTest
+{
+  /**
+   * Records the reads made, as "address+size", and every access in order, without touching a card. Every
+   * register reads as 0.
+   */
+  private static class RecordingAccess implements MegaIOBatch.RegisterAccess
+  {
+    final List<String> reads = new ArrayList<>();
+    final List<String> accesses = new ArrayList<>();
+
+    @Override
+    public void read( int address, byte[] buffer, int offset, int size, boolean verify )
+    {
+      reads.add( address + "+" + size );
+      accesses.add( "read " + address );
+    }
+
+    @Override
+    public void write( int address, byte[] buffer, int offset, int size )
+    {
+      accesses.add( "write " + address );
+    }
+
+    @Override
+    public void delay( long millis )
+    {
+      accesses.add( "delay " + millis );
+    }
+
+    @Override
+    public RetryPolicy retryPolicy()
+    {
+      return MegaIOImpl.DEFAULT_RETRY_POLICY;
+    }
+
+    @Override
+    public <T> T exclusive( I2CBusArbiter.BusOperation<T> operation )
+        throws IOException
+    {
+      accesses.add( "exclusive" );
+      T result = operation.run();
+      accesses.add( "end" );
+      return result;
+    }
+  }
+
+  private MegaIOEmulator emulator;
+  private MegaIOImpl mega;
+
+  @Before
+  public void setup()
+  {
+    emulator = new MegaIOEmulator();
+    mega = new MegaIOImpl( emulator, new SleepingGpioWrapper() );
+  }
+
+  @Test
+  public void inputsAreOneRead()
+      throws IOException
+  {
+    emulator.setOptoInput( 3, true );
+    emulator.setAnalogInput( 1, 100 );
+    emulator.setAnalogInput( 8, 4000 );
+    MegaIOBatch.Result result = mega.batch()
+        .readOptoIns()
+        .readOCPins()
+        .readAnalogAll()
+        .execute();
+
+    assertEquals( 1, emulator.getTransactionCount() );
+    assertEquals( 0b00000100, result.getOptoIns() );
+    assertTrue( result.readOptoIn( 3 ));
+    assertEquals( 0, result.getOCPins() );
+    assertEquals( 100, result.getAnalog( 1 ));
+    assertEquals( 4000, result.getAnalog( 8 ));
+    assertTrue( result.isVerified() );
+  }
+
+  @Test( expected = IllegalStateException.class )
+  public void unreadRegister()
+      throws IOException
+  {
+    mega.batch().readOptoIns().execute().getRelays();
+  }
+
+  @Test
+  public void relayChangesAreOneWrite()
+      throws IOException
+  {
+    emulator.setOptoInput( 5, true );
+    MegaIOBatch.Result result = mega.batch()
+        .triggerRelay( 1, true )
+        .triggerRelay( 2, true )
+        .triggerRelay( 8, true )
+        .triggerRelay( 2, false )
+        .readRelays()
+        .readOptoIns()
+        .execute();
+
+    // read, write, then one read for the verification, the relays requested and the opto inputs
+    assertEquals( 3, emulator.getTransactionCount() );
+    assertEquals( 0b10000001, emulator.getRelays() );
+    assertEquals( 0b10000001, result.getRelays() );
+    assertEquals( 0b00010000, result.getOptoIns() );
+    assertTrue( result.isVerified() );
+  }
+
+  @Test
+  public void singleChangeIsACommand()
+      throws IOException
+  {
+    mega.writeRelays( 0b00110000 );
+    long before = emulator.getTransactionCount();
+    MegaIOBatch batch = mega.batch().setOCPin( 2, true ).triggerRelay( 5, false );
+    assertTrue( batch.execute().isVerified() );
+
+    // two commands, and one read of the relays through the open collectors
+    assertEquals( 3, emulator.getTransactionCount() - before );
+    assertEquals( 0b00100000, emulator.getRelays() );
+    assertEquals( 0b0010, emulator.getOCOutputs() );
+
+    // the batch can be run again
+    assertTrue( batch.execute().isVerified() );
+    assertEquals( 2, batch.size() );
+    assertEquals( 0, batch.clear().size() );
+  }
+
+  @Test
+  public void writesAndVerification()
+      throws IOException
+  {
+    emulator.setGpioInput( 4, true );
+    MegaIOBatch.Result result = mega.batch()
+        .writeAnalog( 3000 )
+        .writeRelays( 0xFF )
+        .setGpioPin( 1, true )
+        .readGpioPins()
+        .execute();
+
+    // the relays, both DAC registers at once and a GPIO command, then the relays, and the DAC through the GPIO pins
+    assertEquals( 5, emulator.getTransactionCount() );
+    assertEquals( 3000, emulator.getAnalogOutput() );
+    assertEquals( 3000, result.getAnalogOutput() );
+    assertEquals( 0xFF, result.getRelays() );
+    assertTrue( result.readGpioPin( 4 ));
+    assertTrue( result.isVerified() );
+  }
+
+  @Test
+  public void stuckOutputIsRetried()
+      throws IOException
+  {
+    emulator.setStuckBits( OC_OUT_VAL_MEM_ADD, 0, 0b0100 );
+    MegaIOBatch.Result result = mega.batch().setOCPin( 3, true ).setOCPin( 1, true ).execute();
+    assertFalse( result.isVerified() );
+    assertEquals( 0b0001, result.getOCPins() );
+    // a read and a write, the verification, and a write and read for each retry
+    assertEquals( 3 + 2 * (RETRY_TIMES - 1), emulator.getTransactionCount() );
+  }
+
+  @Test
+  public void relaysSettleBeforeEveryVerify()
+      throws IOException
+  {
+    RecordingAccess access = new RecordingAccess();
+    assertFalse( new MegaIOBatch( null ).writeRelays( 0x0F ).run( access ).isVerified() );
+    // the batch's write and each retry is read back only once the relays have had time to switch
+    String attempt = "[write 0, delay 5, read 0]";
+    assertEquals( attempt, access.accesses.subList( 0, 3 ).toString() );
+    assertEquals( attempt, access.accesses.subList( 3, 6 ).toString() );
+    assertEquals( 3 * RETRY_TIMES, access.accesses.size() );
+  }
+
+  @Test
+  public void foldedWritesAreExclusive()
+      throws IOException
+  {
+    RecordingAccess access = new RecordingAccess();
+    new MegaIOBatch( null ).triggerRelay( 1, true ).triggerRelay( 2, true ).setOCPin( 1, true ).run( access );
+    // nothing comes between the read of the relays and the write of them all; the settling is outside
+    assertEquals( "[exclusive, read 0, write 0, end, write 5, delay 5]", access.accesses.subList( 0, 6 ).toString() );
+  }
+
+  @Test
+  public void readsAreMergedAcrossSmallGaps()
+      throws IOException
+  {
+    RecordingAccess access = new RecordingAccess();
+    long wanted = (1L << RELAY_MEM_ADD) | (1L << OC_OUT_VAL_MEM_ADD) | (1L << GPIO_VAL_MEM_ADD)
+                  | (1L << GPIO_EXT_IT_FALLING_MEM_ADD) | (1L << GPIO_IT_FLAGS_MEM_ADD)
+                  | (1L << REVISION_MINOR_MEM_ADD);
+    MegaIOBatch.readRanges( access, wanted, 0, new byte[MegaIOBatch.REGISTER_COUNT] );
+    // the relays and open collectors are joined; the opto interrupt flags are not read to join the GPIO flags
+    assertEquals( "[0+5, 25+1, 32+1, 34+1, 63+1]", access.reads.toString() );
+  }
+}
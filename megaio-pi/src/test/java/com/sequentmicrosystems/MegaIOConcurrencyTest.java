@@ -0,0 +1,187 @@
+package com.sequentmicrosystems;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.sequentmicrosystems.Constants.*;
+import static org.junit.Assert.*;
+
+/**
+ * Hammers one card from several threads at once, each owning some of the bits of the shared registers, and
+ * checks that no thread's update is lost.
+ */
+public class MegaIOConcurrencyTest
+{
+  private static final int THREADS = 4;
+  private static final int ROUNDS = 200;
+
+  private interface Work
+  {
+    void run( int thread, int round )
+        throws Exception;
+  }
+
+  private MegaIOEmulator emulator;
+  private MegaIOImpl mega;
+
+  @Before
+  public void setup()
+  {
+    emulator = new MegaIOEmulator();
+    mega = new MegaIOImpl( emulator, new SleepingGpioWrapper() );
+    mega.setIrqWriteDelay( 0 );
+    // slow enough transactions that the threads interleave between the steps of each operation
+    emulator.setLatency( 20_000, 0 );
+  }
+
+  private void hammer( Work work )
+      throws Exception
+  {
+    CyclicBarrier barrier = new CyclicBarrier( THREADS );
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++)
+    {
+      int thread = t;
+      threads.add( new Thread( () ->
+      {
+        try
+        {
+          barrier.await();
+          for (int round = 0; round < ROUNDS; round++)
+          {
+            work.run( thread, round );
+          }
+        }
+        catch( Throwable e )
+        {
+          failure.compareAndSet( null, e );
+        }
+      } ));
+    }
+    for (Thread thread : threads)
+    {
+      thread.start();
+    }
+    for (Thread thread : threads)
+    {
+      thread.join();
+    }
+    if (null != failure.get())
+    {
+      throw new AssertionError( failure.get() );
+    }
+  }
+
+  /**
+   * @return the bits each thread leaves on after its last round, where every thread owns pins thread + 1 and
+   *         thread + 1 + THREADS and turns the first on and the second off on odd rounds, and the reverse on even
+   */
+  private static int expectedBits()
+  {
+    int bits = 0;
+    for (int thread = 0; thread < THREADS; thread++)
+    {
+      bits |= 0 == (ROUNDS - 1) % 2 ? 1 << (thread + THREADS) : 1 << thread;
+    }
+    return bits;
+  }
+
+  @Test
+  public void gpioDirectionsAndInterruptMasks()
+      throws Exception
+  {
+    hammer( (thread, round) ->
+    {
+      boolean odd = 1 == round % 2;
+      mega.setGpioPinDirection( thread + 1, odd );
+      mega.setGpioPinDirection( thread + 1 + THREADS, !odd );
+      mega.setOptoIrq( thread + 1, odd ? IrqState.RISING : IrqState.DISABLED );
+      mega.setOptoIrq( thread + 1 + THREADS, odd ? IrqState.DISABLED : IrqState.FALLING );
+    } );
+    int expected = expectedBits();
+    assertEquals( expected, emulator.read( GPIO_DIR_MEM_ADD ));
+    assertEquals( expected & 0x0F, emulator.read( OPTO_IT_RISING_MEM_ADD ));
+    assertEquals( expected & 0xF0, emulator.read( OPTO_IT_FALLING_MEM_ADD ));
+  }
+
+  @Test
+  public void relaysWithCache()
+      throws Exception
+  {
+    mega.setRegisterCache( new RegisterCache( 1 ));
+    hammer( (thread, round) ->
+    {
+      int low = 1 << thread;
+      int high = 1 << (thread + THREADS);
+      if (1 == round % 2)
+      {
+        mega.updateRelays( low, high );
+      }
+      else
+      {
+        mega.triggerRelay( thread + 1, false );
+        mega.triggerRelay( thread + 1 + THREADS, true );
+      }
+    } );
+    assertEquals( expectedBits(), emulator.getRelays() );
+    // the cache has not been left holding a stale value
+    assertEquals( expectedBits(), mega.readRelays() );
+  }
+
+  @Test
+  public void analogReadsAndWrites()
+      throws Exception
+  {
+    for (int channel = 1; channel <= ADC_CH_NR_MAX; channel++)
+    {
+      emulator.setAnalogInput( channel, 100 * channel );
+    }
+    hammer( (thread, round) ->
+    {
+      if (0 == thread)
+      {
+        assertTrue( mega.writeAnalog( round ));
+        return;
+      }
+      int[] values = new int[ADC_CH_NR_MAX];
+      mega.readAnalogAll( values );
+      for (int channel = 1; channel <= ADC_CH_NR_MAX; channel++)
+      {
+        assertEquals( 100 * channel, values[channel - 1] );
+      }
+      mega.writeAnalog( round, false );
+    } );
+  }
+
+  @Test
+  public void batchesAndSingleOperations()
+      throws Exception
+  {
+    hammer( (thread, round) ->
+    {
+      boolean odd = 1 == round % 2;
+      if (0 == thread % 2)
+      {
+        assertTrue( mega.batch()
+            .triggerRelay( thread + 1, odd )
+            .setOCPin( thread / 2 + 1, odd )
+            .execute()
+            .isVerified() );
+      }
+      else
+      {
+        assertTrue( mega.triggerRelay( thread + 1, odd ));
+        assertEquals( odd, mega.setOCPin( thread / 2 + 3, odd ));
+      }
+    } );
+    int last = 1 == (ROUNDS - 1) % 2 ? 0x0F : 0;
+    assertEquals( last, emulator.getRelays() );
+    assertEquals( last, emulator.getOCOutputs() );
+  }
+}
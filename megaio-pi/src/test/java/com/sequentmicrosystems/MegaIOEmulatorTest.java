@@ -0,0 +1,160 @@
+package com.sequentmicrosystems;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.sequentmicrosystems.Constants.*;
+import static com.sequentmicrosystems.Constants.IrqState.*;
+import static org.junit.Assert.*;
+
+public class MegaIOEmulatorTest
+{
+  private MegaIOEmulator emulator;
+  private MegaIOImpl mega;
+
+  @Before
+  public void setup()
+  {
+    emulator = new MegaIOEmulator( 1 );
+    mega = new MegaIOImpl( emulator, new SleepingGpioWrapper() );
+    mega.setIrqWriteDelay( 0 );
+  }
+
+  @Test
+  public void relays()
+      throws IOException
+  {
+    assertTrue( mega.triggerRelay( 3, true ));
+    assertTrue( mega.triggerRelay( 8, true ));
+    assertEquals( 0b10000100, emulator.getRelays() );
+    assertTrue( mega.isRelayOn( 3 ));
+
+    assertTrue( mega.triggerRelay( 3, false ));
+    assertEquals( 0b10000000, mega.readRelays() );
+
+    assertTrue( mega.updateRelays( 0b00000011, 0b10000000 ));
+    assertEquals( 0b00000011, emulator.getRelays() );
+  }
+
+  @Test
+  public void outputs()
+      throws IOException
+  {
+    assertTrue( mega.setOCPin( 4, true ));
+    assertEquals( 0b1000, emulator.getOCOutputs() );
+    assertTrue( mega.readOCPin( 4 ));
+
+    assertTrue( mega.writeAnalog( 2748 ));
+    assertEquals( 2748, emulator.getAnalogOutput() );
+  }
+
+  @Test
+  public void inputs()
+      throws IOException
+  {
+    emulator.setAnalogInput( 1, 4095 );
+    emulator.setAnalogInput( 5, 1234 );
+    emulator.setAnalogInput( 8, 7 );
+    int[] values = new int[ADC_CH_NR_MAX];
+    mega.readAnalogAll( values );
+    assertArrayEquals( new int[] { 4095, 0, 0, 0, 1234, 0, 0, 7 }, values );
+    assertEquals( 1234, mega.readAnalog( 5 ));
+
+    emulator.setOptoInput( 2, true );
+    assertTrue( mega.readOptoIn( 2 ));
+    assertEquals( 0b00000010, mega.readOptoIns() );
+
+    // a pin configured as an output reads back what was written, not what is applied
+    emulator.setGpioInput( 1, true );
+    emulator.setGpioInput( 2, true );
+    assertTrue( mega.setGpioPinDirection( 2, true ));
+    assertTrue( mega.readGpioPin( 1 ));
+    assertFalse( mega.readGpioPin( 2 ));
+    assertTrue( mega.setGpioPin( 2, true ));
+    assertEquals( 0b000011, mega.readGpioPins() );
+  }
+
+  @Test
+  public void interrupts()
+      throws Exception
+  {
+    mega.configureOptoIrqs( new IrqState[] { RISING, BOTH, DISABLED } );
+    EdgeEventDispatcher dispatcher = new EdgeEventDispatcher( emulator.getInterruptLine() );
+    BlockingQueue<EdgeEvent> events = new LinkedBlockingQueue<>();
+    dispatcher.addListener( events::add );
+    dispatcher.addCard( 1, mega );
+    dispatcher.start();
+    try
+    {
+      emulator.setOptoInput( 3, true );   // not enabled
+      emulator.setOptoInput( 1, true );
+      EdgeEvent event = events.poll( 1, TimeUnit.SECONDS );
+      assertNotNull( event );
+      assertEquals( 1, event.getCard() );
+      assertEquals( EdgeEvent.Source.OPTO, event.getSource() );
+      assertEquals( 1, event.getChannel() );
+      assertTrue( event.isRising() );
+
+      emulator.setOptoInput( 1, false );  // rising only
+      emulator.setOptoInput( 2, true );
+      emulator.setOptoInput( 2, false );
+      event = events.poll( 1, TimeUnit.SECONDS );
+      assertNotNull( event );
+      assertEquals( 2, event.getChannel() );
+      Thread.sleep( 50 );
+      assertTrue( events.size() <= 1 );
+      assertEquals( 0, mega.readOptoIrqFlags() );
+    }
+    finally
+    {
+      dispatcher.close();
+    }
+  }
+
+  @Test
+  public void nacksAreRetried()
+      throws IOException
+  {
+    emulator.setSeed( 1 );
+    emulator.setNackRate( 0.5 );
+    assertTrue( mega.writeRelays( 0b01010101 ));
+    emulator.setNackRate( 0 );
+    assertEquals( 0b01010101, emulator.getRelays() );
+    assertTrue( emulator.getNackCount() > 0 );
+  }
+
+  @Test( expected = IOException.class )
+  public void nackRateOfOneFails()
+      throws IOException
+  {
+    emulator.setNackRate( 1 );
+    mega.readRelays();
+  }
+
+  @Test
+  public void stuckBitDefeatsRetries()
+      throws IOException
+  {
+    emulator.setStuckBits( RELAY_MEM_ADD, 0, 0b00010000 );
+    assertFalse( mega.triggerRelay( 5, true ));
+    assertTrue( mega.triggerRelay( 4, true ));
+    assertEquals( 0b00001000, emulator.getRelays() );
+  }
+
+  @Test
+  public void latency()
+      throws IOException
+  {
+    emulator.setBusSpeed( 100, 0 );
+    long start = System.nanoTime();
+    mega.readRelays();
+    // four bytes at 90us each
+    assertTrue( System.nanoTime() - start >= 360_000 );
+    assertEquals( 1, emulator.getTransactionCount() );
+  }
+}
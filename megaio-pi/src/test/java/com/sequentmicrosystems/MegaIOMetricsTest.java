@@ -0,0 +1,174 @@
+package com.sequentmicrosystems;
+
+import com.pi4j.io.i2c.I2CDevice;
+import com.sequentmicrosystems.MegaIOMetrics.Operation;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.sequentmicrosystems.Constants.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class MegaIOMetricsTest
+{
+  @Mock
+  I2CDevice device;
+
+  @Mock
+  GpioWrapper gpio;
+
+  @InjectMocks
+  MegaIOImpl mega;
+
+  MegaIOMetrics metrics;
+
+  @Before
+  public void setup()
+  {
+    initMocks( this );
+    metrics = new MegaIOMetrics( 2 );
+    mega.setMetrics( metrics );
+  }
+
+  @Test
+  public void histogramPercentiles()
+  {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++)
+    {
+      histogram.record( i * 1000L );
+    }
+    assertEquals( 1000, histogram.getCount() );
+    assertEquals( 500_500, histogram.getMean() );
+    assertEquals( 1_000_000, histogram.getMax() );
+    // within the resolution of a bucket
+    assertEquals( 500_000, histogram.getValueAtPercentile( 50 ), 500_000 / 16 );
+    assertEquals( 990_000, histogram.getValueAtPercentile( 99 ), 990_000 / 16 );
+    assertEquals( 1_000_000, histogram.getValueAtPercentile( 100 ));
+
+    histogram.reset();
+    assertEquals( 0, histogram.getCount() );
+    assertEquals( 0, histogram.getValueAtPercentile( 50 ));
+  }
+
+  @Test
+  public void bucketsAreContiguous()
+  {
+    for (long value = 0; value < 1 << 20; value++)
+    {
+      int bucket = LatencyHistogram.bucket( value );
+      assertTrue( value <= LatencyHistogram.highestInBucket( bucket ));
+      assertTrue( 0 == bucket || value > LatencyHistogram.highestInBucket( bucket - 1 ));
+    }
+  }
+
+  @Test
+  public void countsRetries()
+      throws IOException
+  {
+    // the first write is not acknowledged and the second does not take
+    doThrow( new IOException( "NACK" )).doNothing().when( device ).write( eq( RELAY_MEM_ADD ), anyByte() );
+    when( device.read( RELAY_MEM_ADD )).thenReturn( 0x00 ).thenReturn( 0x0F );
+    assertTrue( mega.writeRelays( 0x0F ));
+
+    OperationMetrics writes = metrics.get( Operation.WRITE_RELAYS );
+    assertEquals( 1, writes.getCalls() );
+    assertEquals( 2, writes.getRetries() );
+    assertEquals( 1, writes.getI2CErrors() );
+    assertEquals( 0, writes.getExhaustedRetries() );
+    assertEquals( 1, writes.getLatency().getCount() );
+  }
+
+  @Test
+  public void countsExhaustedRetries()
+      throws IOException
+  {
+    when( device.read( OC_OUT_VAL_MEM_ADD )).thenReturn( 0 );
+    try
+    {
+      mega.setOCPin( 1, true );
+      fail( "Should have run out of attempts" );
+    }
+    catch( IOException expected )
+    {
+    }
+    // the DAC reads back 0, whatever is written
+    assertFalse( mega.writeAnalog( 1000 ));
+
+    OperationMetrics oc = metrics.get( Operation.SET_OC_PIN );
+    assertEquals( 1, oc.getCalls() );
+    assertEquals( RETRY_TIMES - 1, oc.getRetries() );
+    assertEquals( 1, oc.getExhaustedRetries() );
+    assertEquals( 0, oc.getI2CErrors() );
+    // the read of the OC pins made while setting them is not counted as an operation of its own
+    assertEquals( 0, metrics.get( Operation.READ_OC ).getCalls() );
+
+    OperationMetrics dac = metrics.get( Operation.WRITE_ANALOG );
+    assertEquals( 1, dac.getExhaustedRetries() );
+    assertEquals( RETRY_TIMES - 1, dac.getRetries() );
+  }
+
+  @Test
+  public void countsReadErrors()
+      throws IOException
+  {
+    when( device.read( OPTO_IN_MEM_ADD )).thenReturn( 0x01 ).thenThrow( new IOException( "NACK" ));
+    assertTrue( mega.readOptoIn( 1 ));
+    try
+    {
+      mega.readOptoIns();
+      fail( "Should have thrown" );
+    }
+    catch( IOException expected )
+    {
+    }
+    OperationMetrics opto = metrics.get( Operation.READ_OPTO );
+    assertEquals( 2, opto.getCalls() );
+    assertEquals( 1, opto.getI2CErrors() );
+    assertEquals( 1, opto.getExhaustedRetries() );
+    assertEquals( 0, opto.getRetries() );
+  }
+
+  @Test
+  public void publishesToSink()
+      throws IOException
+  {
+    mega.readRelays();
+    List<OperationMetrics> reported = new ArrayList<>();
+    metrics.publish( reported::add );
+    assertEquals( Operation.values().length, reported.size() );
+    assertEquals( Operation.READ_RELAYS, reported.get( 0 ).getOperation() );
+    assertEquals( 2, reported.get( 0 ).getCardNum() );
+    assertEquals( 1, reported.get( 0 ).getCalls() );
+  }
+
+  @Test
+  public void exportsMBeans()
+      throws Exception
+  {
+    MBeanServer server = MBeanServerFactory.newMBeanServer();
+    metrics.registerMBeans( server );
+    mega.triggerRelay( 1, false );
+
+    ObjectName name = new ObjectName( "com.sequentmicrosystems:type=MegaIO,card=2,operation=READ_RELAYS" );
+    assertTrue( server.isRegistered( name ));
+    assertEquals( 0L, server.getAttribute( name, "Calls" ));
+    name = new ObjectName( "com.sequentmicrosystems:type=MegaIO,card=2,operation=TRIGGER_RELAY" );
+    assertEquals( 1L, server.getAttribute( name, "Calls" ));
+    server.invoke( name, "reset", null, null );
+    assertEquals( 0L, server.getAttribute( name, "Calls" ));
+
+    metrics.unregisterMBeans( server );
+    assertFalse( server.isRegistered( name ));
+  }
+}
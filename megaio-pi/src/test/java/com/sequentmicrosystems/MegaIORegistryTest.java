@@ -0,0 +1,120 @@
+package com.sequentmicrosystems;
+
+import com.pi4j.io.i2c.I2CBus;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.sequentmicrosystems.Constants.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class MegaIORegistryTest
+{
+  private final MegaIOEmulator[] emulators = new MegaIOEmulator[CARD_NR_MAX];
+  private I2CBus bus;
+  private final AtomicInteger opened = new AtomicInteger();
+  private MegaIORegistry registry;
+
+  @Before
+  public void setup()
+      throws Exception
+  {
+    bus = mock( I2CBus.class );
+    for (int card = 0; card < CARD_NR_MAX; card++)
+    {
+      emulators[card] = new MegaIOEmulator( card );
+      when( bus.getDevice( MEGAIO_HW_I2C_BASE_ADD + card )).thenReturn( emulators[card] );
+    }
+    // cards 0 and 2 are fitted
+    emulators[0].setRevision( 4, 1, 2, 7 );
+    emulators[2].setRevision( 4, 2, 2, 9 );
+    emulators[1].setNackRate( 1 );
+    emulators[3].setNackRate( 1 );
+    registry = new MegaIORegistry( () ->
+    {
+      opened.incrementAndGet();
+      return bus;
+    }, true, new SleepingGpioWrapper() );
+  }
+
+  @Test
+  public void probeFindsCards()
+      throws Exception
+  {
+    assertEquals( 0, opened.get() );
+    List<MegaIORegistry.CardInfo> cards = registry.probe();
+    assertEquals( 2, cards.size() );
+    assertEquals( "card 0 at 0x31, hardware 4.1, firmware 2.7", cards.get( 0 ).toString() );
+    MegaIORegistry.CardInfo card2 = registry.getCard( 2 );
+    assertEquals( 0x33, card2.getAddress() );
+    assertEquals( 4, card2.getHardwareMajor() );
+    assertEquals( 2, card2.getHardwareMinor() );
+    assertEquals( "2.9", card2.getFirmwareVersion() );
+    assertNull( registry.getCard( 1 ));
+
+    // one block read per fitted card, and the revisions are remembered
+    assertEquals( 1, emulators[0].getTransactionCount() );
+    assertEquals( MegaIORegistry.PROBE_ATTEMPTS, emulators[1].getNackCount() );
+    registry.getCards();
+    assertEquals( 1, emulators[0].getTransactionCount() );
+    assertEquals( 1, opened.get() );
+  }
+
+  @Test
+  public void addressesAreProbedTogether()
+      throws Exception
+  {
+    for (MegaIOEmulator emulator : emulators)
+    {
+      emulator.setLatency( TimeUnit.MILLISECONDS.toNanos( 50 ), 0 );
+    }
+    long start = System.nanoTime();
+    assertEquals( 2, registry.probe().size() );
+    // one after another, two fitted cards and two empty addresses tried twice would take 300 ms
+    assertTrue( System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos( 250 ));
+  }
+
+  @Test
+  public void cardsAreShared()
+      throws Exception
+  {
+    MegaIOImpl card = registry.open( 0 );
+    assertSame( card, registry.open( 0 ));
+    assertTrue( card.writeRelays( 0x0F ));
+    assertEquals( 0x0F, emulators[0].getRelays() );
+
+    // a card not yet probed for is opened without probing; after a probe only fitted cards are
+    registry.open( 1 );
+    registry.probe();
+    try
+    {
+      registry.open( 1 );
+      fail( "an empty address was opened" );
+    }
+    catch( IOException ioex )
+    {
+      assertTrue( ioex.getMessage().contains( "0x32" ));
+    }
+    assertEquals( 1, opened.get() );
+  }
+
+  @Test
+  public void resetReopensTheBus()
+      throws Exception
+  {
+    MegaIOImpl card = registry.open( 0 );
+    registry.probe();
+    registry.reset();
+    verify( bus ).close();
+
+    emulators[1].setNackRate( 0 );
+    assertEquals( 3, registry.getCards().size() );
+    assertNotSame( card, registry.open( 0 ));
+    assertEquals( 2, opened.get() );
+  }
+}
@@ -0,0 +1,302 @@
+package com.sequentmicrosystems;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.sequentmicrosystems.Constants.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Runs the server and its clients over loopback, with emulated cards.
+ */
+public class MegaIOServerTest
+{
+  private MegaIOEmulator emulator0;
+  private MegaIOEmulator emulator1;
+  private MegaIOServer server;
+  private InetSocketAddress address;
+  private final List<MegaIOClient> clients = new ArrayList<>();
+
+  @Before
+  public void setup()
+      throws Exception
+  {
+    emulator0 = new MegaIOEmulator( 0 );
+    emulator1 = new MegaIOEmulator( 1 );
+    server = new MegaIOServer( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ))
+        .addCard( 0, new MegaIOImpl( emulator0, new SleepingGpioWrapper() ))
+        .addCard( 1, new MegaIOImpl( emulator1, new SleepingGpioWrapper() ))
+        .enablePush( 1, 5, TimeUnit.MILLISECONDS );
+    server.start();
+    address = server.getAddress();
+  }
+
+  @After
+  public void teardown()
+  {
+    for (MegaIOClient client : clients)
+    {
+      client.close();
+    }
+    server.close();
+  }
+
+  private MegaIOClient connect( int cardNum )
+      throws IOException
+  {
+    MegaIOClient client = new MegaIOClient( address, cardNum );
+    clients.add( client );
+    return client;
+  }
+
+  @Test
+  public void operations()
+      throws Exception
+  {
+    MegaIOClient card0 = connect( 0 );
+    MegaIOClient card1 = connect( 1 );
+    emulator0.setAnalogInput( 3, 1234 );
+    emulator1.setOptoInput( 8, true );
+
+    assertTrue( card0.triggerRelay( 2, true ));
+    assertTrue( card0.setOCPin( 4, true ));
+    assertEquals( 0x02, card0.readRelays() );
+    assertTrue( card0.isRelayOn( 2 ));
+    assertEquals( 0x02, emulator0.getRelays() );
+    assertEquals( 0x08, emulator0.getOCOutputs() );
+    assertEquals( 0, emulator1.getRelays() );
+
+    assertEquals( 1234, card0.readAnalog( 3 ));
+    int[] analog = new int[ADC_CH_NR_MAX];
+    card0.readAnalogAll( analog );
+    assertEquals( 1234, analog[2] );
+    assertTrue( card0.writeAnalog( 4000 ));
+    assertEquals( 4000, emulator0.getAnalogOutput() );
+
+    assertEquals( 0x80, card1.readOptoIns() );
+    assertTrue( card1.readOptoIn( 8 ));
+    assertEquals( IrqState.RISING, card1.setOptoIrq( 8, IrqState.RISING ));
+  }
+
+  @Test
+  public void errors()
+      throws Exception
+  {
+    try
+    {
+      connect( 0 ).readAnalogRange( 5, 2, new int[8] );
+      fail( "an invalid range was accepted" );
+    }
+    catch( IllegalArgumentException e )
+    {
+      assertTrue( e.getMessage().contains( "5-2" ));
+    }
+
+    try
+    {
+      connect( 7 ).readRelays();
+      fail( "a card that is not served was read" );
+    }
+    catch( IOException ioex )
+    {
+      assertTrue( ioex.getMessage().contains( "No card 7" ));
+    }
+
+    emulator0.setNackRate( 1 );
+    try
+    {
+      connect( 0 ).readOptoIns();
+      fail( "a failing card was read" );
+    }
+    catch( IOException ioex )
+    {
+      assertTrue( ioex.getMessage().contains( "acknowledgement" ));
+    }
+  }
+
+  @Test
+  public void batchesArePipelined()
+      throws Exception
+  {
+    MegaIOClient card0 = connect( 0 );
+    emulator0.setAnalogInput( 1, 100 );
+    List<CompletableFuture<MegaIOBatch.Result>> results = new ArrayList<>();
+    for (int i = 0; i < 200; i++)
+    {
+      results.add( card0.submit( card0.batch().triggerRelay( 1 + i % 8, 0 == i % 2 ).readAnalog( 1 )));
+    }
+    for (CompletableFuture<MegaIOBatch.Result> result : results)
+    {
+      assertEquals( 100, result.get( 5, TimeUnit.SECONDS ).getAnalog( 1 ));
+      assertTrue( result.get().isVerified() );
+    }
+    // made in order, so the last change to each relay is the one left
+    assertEquals( 0x55, emulator0.getRelays() );
+
+    MegaIOBatch.Result result = card0.batch().readRelays().readOptoIns().execute();
+    assertEquals( 0x55, result.getRelays() );
+    assertEquals( 0, result.getOptoIns() );
+  }
+
+  @Test
+  public void manyConnections()
+      throws Exception
+  {
+    int count = 200;
+    for (int i = 0; i < count; i++)
+    {
+      connect( i % 2 );
+    }
+    List<Thread> threads = new ArrayList<>();
+    List<Throwable> failures = new ArrayList<>();
+    for (MegaIOClient client : clients)
+    {
+      Thread thread = new Thread( () ->
+      {
+        try
+        {
+          for (int i = 0; i < 5; i++)
+          {
+            client.readOptoIns();
+          }
+        }
+        catch( Throwable e )
+        {
+          synchronized (failures)
+          {
+            failures.add( e );
+          }
+        }
+      } );
+      threads.add( thread );
+      thread.start();
+    }
+    for (Thread thread : threads)
+    {
+      thread.join();
+    }
+    assertEquals( "[]", failures.toString() );
+    assertEquals( count, server.getConnections() );
+  }
+
+  @Test
+  public void changesArePushed()
+      throws Exception
+  {
+    MegaIOClient card1 = connect( 1 );
+    BlockingQueue<ChangeEvent> events = new LinkedBlockingQueue<>();
+    card1.addChangeListener( events::add );
+    connect( 0 ).addChangeListener( event -> fail( "card 0 did not change" ));
+
+    // let the poller record the card as it is before changing it
+    Thread.sleep( 50 );
+    emulator1.setOptoInput( 3, true );
+    ChangeEvent event = events.poll( 2, TimeUnit.SECONDS );
+    assertNotNull( event );
+    assertEquals( 1, event.getCard() );
+    assertEquals( ChangeEvent.Register.OPTO, event.getRegister() );
+    assertEquals( 0x04, event.getRising() );
+    assertTrue( server.getPushes() >= 1 );
+  }
+
+  @Test
+  public void failingListenerDoesNotFailTheClient()
+      throws Exception
+  {
+    MegaIOClient card1 = connect( 1 );
+    BlockingQueue<ChangeEvent> events = new LinkedBlockingQueue<>();
+    card1.addChangeListener( event ->
+    {
+      throw new IllegalArgumentException( "listener failed" );
+    } );
+    card1.addChangeListener( events::add );
+
+    Thread.sleep( 50 );
+    emulator1.setOptoInput( 3, true );
+    assertNotNull( events.poll( 2, TimeUnit.SECONDS ));
+    // the connection survives, and the next change still reaches every listener
+    assertEquals( 0, card1.readRelays() );
+    emulator1.setOptoInput( 4, true );
+    assertNotNull( events.poll( 2, TimeUnit.SECONDS ));
+    assertEquals( 2, card1.getListenerErrorCount() );
+    assertEquals( "listener failed", card1.getLastListenerError().getMessage() );
+  }
+
+  @Test
+  public void garbageClosesTheConnection()
+      throws Exception
+  {
+    try (SocketChannel channel = SocketChannel.open( address ))
+    {
+      channel.write( ByteBuffer.wrap( new byte[] { 0x7F, 0, 0, 0, 1, 2, 3 } ));
+      ByteBuffer buffer = ByteBuffer.allocate( 16 );
+      assertEquals( -1, channel.read( buffer ));
+    }
+    assertEquals( 1, server.getProtocolErrors() );
+
+    // and the server carries on
+    assertEquals( 0, connect( 0 ).readRelays() );
+  }
+
+  @Test
+  public void rangesAreCheckedBeforeAllocating()
+      throws Exception
+  {
+    try (SocketChannel channel = SocketChannel.open( address ))
+    {
+      channel.write( MegaIOProtocol.request( 1, MegaIOProtocol.Op.READ_ANALOG_RANGE, 0,
+                                             new int[] { 1, 2_000_000_000 }, 2 ));
+      ByteBuffer reply = ByteBuffer.allocate( 256 );
+      while (MegaIOProtocol.frameLength( (ByteBuffer) reply.duplicate().flip() ) < 0)
+      {
+        assertTrue( channel.read( reply ) > 0 );
+      }
+      reply.flip();
+      reply.getInt();
+      assertEquals( 1, MegaIOProtocol.getVarInt( reply ));
+      assertEquals( MegaIOProtocol.STATUS_ILLEGAL_ARGUMENT, reply.get() );
+      assertTrue( MegaIOProtocol.message( reply ).contains( "1-2000000000" ));
+    }
+    assertEquals( 0, connect( 0 ).readRelays() );
+  }
+
+  @Test
+  public void workersSurviveErrors()
+      throws Exception
+  {
+    MegaIO card = mock( MegaIO.class );
+    when( card.readRelays() ).thenThrow( new OutOfMemoryError( "test" )).thenReturn( 0x05 );
+    try (MegaIOServer other = new MegaIOServer( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ))
+        .addCard( 0, card ))
+    {
+      other.start();
+      try (MegaIOClient client = new MegaIOClient( other.getAddress(), 0 ))
+      {
+        try
+        {
+          client.readRelays();
+          fail( "the error was not reported" );
+        }
+        catch( IOException ioex )
+        {
+          assertTrue( ioex.getMessage().contains( "OutOfMemoryError" ));
+        }
+        assertEquals( 0x05, client.readRelays() );
+      }
+    }
+  }
+}
@@ -67,6 +67,45 @@ public class MegaIOTest
     verify( device, times( RETRY_TIMES) ).write( RELAY_OFF_MEM_ADD, (byte) 2 );
   }
 
+  @Test
+  public void writeRelays()
+      throws Exception
+  {
+    when( device.read( RELAY_MEM_ADD )).thenReturn( 0b10100101 );
+    assertTrue( mega.writeRelays( 0b10100101 ));
+    verify( device ).write( RELAY_MEM_ADD, (byte) 0b10100101 );
+    verify( device, times( 1 )).read( RELAY_MEM_ADD );
+    verify( device, never() ).write( eq( RELAY_ON_MEM_ADD ), anyByte() );
+  }
+
+  @Test
+  public void writeRelaysFails()
+      throws Exception
+  {
+    when( device.read( RELAY_MEM_ADD )).thenReturn( 0 );
+    assertFalse( mega.writeRelays( 0x0F ));
+    verify( device, times( RETRY_TIMES )).write( RELAY_MEM_ADD, (byte) 0x0F );
+  }
+
+  @Test
+  public void updateRelays()
+      throws Exception
+  {
+    // relays 1-4 are on; turn 5 and 6 on and 1 and 2 off
+    when( device.read( RELAY_MEM_ADD )).thenReturn( 0x0F ).thenReturn( 0x3C );
+    assertTrue( mega.updateRelays( 0x30, 0x03 ));
+    verify( device ).write( RELAY_MEM_ADD, (byte) 0x3C );
+  }
+
+  @Test
+  public void updateRelaysUnchanged()
+      throws Exception
+  {
+    when( device.read( RELAY_MEM_ADD )).thenReturn( 0x0F );
+    assertTrue( mega.updateRelays( 0x01, 0x80 ));
+    verify( device, never() ).write( eq( RELAY_MEM_ADD ), anyByte() );
+  }
+
   @Test
   public void readAnalog()
       throws Exception
@@ -85,6 +124,56 @@ public class MegaIOTest
     assertEquals( 3242, voltage );
   }
 
+  @Test
+  public void readAnalogAll()
+      throws Exception
+  {
+    doAnswer( invocationOnMock ->
+    {
+      byte[] buffer1 = invocationOnMock.getArgument( 1 );
+      for (int i = 0; i < 8; i++)
+      {
+        buffer1[2 * i] = (byte) i;
+        buffer1[2 * i + 1] = (byte) (0x10 * i);
+      }
+      return 16;
+    } ).when( device ).read( eq( (int) ADC_VAL_MEM_ADD ), any( byte[].class ), eq( 0 ), eq( 16 ));
+
+    int[] values = new int[8];
+    mega.readAnalogAll( values );
+    assertEquals( 0, values[0] );
+    assertEquals( 0x0110, values[1] );
+    assertEquals( 0x0770, values[7] );
+    verify( device, times( 1 )).read( eq( (int) ADC_VAL_MEM_ADD ), any( byte[].class ), eq( 0 ), eq( 16 ));
+  }
+
+  @Test
+  public void readAnalogRange()
+      throws Exception
+  {
+    doAnswer( invocationOnMock ->
+    {
+      byte[] buffer1 = invocationOnMock.getArgument( 1 );
+      buffer1[0] = 12;
+      buffer1[1] = -86;
+      buffer1[2] = 0x0F;
+      buffer1[3] = -1;
+      return 4;
+    } ).when( device ).read( eq( ADC_VAL_MEM_ADD + 6 ), any( byte[].class ), eq( 0 ), eq( 4 ));
+
+    int[] values = new int[2];
+    mega.readAnalogRange( 4, 5, values );
+    assertEquals( 3242, values[0] );
+    assertEquals( 4095, values[1] );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void readAnalogRangeInvalid()
+      throws Exception
+  {
+    mega.readAnalogRange( 5, 9, new int[8] );
+  }
+
   @Test
   public void writeAnalog()
       throws Exception
@@ -106,6 +195,15 @@ public class MegaIOTest
     verify( device ).write( DAC_VAL_H_MEM_ADD, byteStreamFromInteger );
   }
 
+  @Test
+  public void writeAnalogUnverified()
+      throws Exception
+  {
+    assertTrue( mega.writeAnalog( 3242, false ));
+    verify( device ).write( DAC_VAL_H_MEM_ADD, new byte[] { 12, -86 } );
+    verify( device, never() ).read( anyInt(), any( byte[].class ), anyInt(), anyInt() );
+  }
+
   @Test
   public void getPinDirection()
       throws IOException
@@ -224,4 +322,115 @@ public class MegaIOTest
     verify( device ).write( GPIO_EXT_IT_RISING_MEM_ADD,  (byte) 0b00101011 );
     verify( device ).write( GPIO_EXT_IT_FALLING_MEM_ADD, (byte) 0b00110101 );
   }
-}
\ No newline at end of file
+
+  @Test
+  public void cachedRelayStatus()
+      throws IOException
+  {
+    mega.setRegisterCache( new RegisterCache( 100 ));
+    when( device.read( RELAY_MEM_ADD )).thenReturn( 0b01001010 );
+
+    assertTrue( mega.isRelayOn( 4 ));
+    assertFalse( mega.isRelayOn( 8 ));
+    verify( device, times( 1 )).read( RELAY_MEM_ADD );
+
+    mega.invalidate();
+    assertTrue( mega.isRelayOn( 2 ));
+    verify( device, times( 2 )).read( RELAY_MEM_ADD );
+  }
+
+  @Test
+  public void cachedTriggerRelayVerifiesOnBus()
+      throws IOException
+  {
+    mega.setRegisterCache( new RegisterCache( 100 ));
+    when( device.read( RELAY_MEM_ADD )).thenReturn( 0 ).thenReturn( 0x01 );
+
+    assertTrue( mega.triggerRelay( 1, true ));
+    assertTrue( mega.isRelayOn( 1 ));
+    // one read before the command, one verifying read after it, and nothing for the final query
+    verify( device, times( 2 )).read( RELAY_MEM_ADD );
+  }
+
+  @Test
+  public void cachedGpioDirectionVerifiesOnBus()
+      throws IOException
+  {
+    mega.setRegisterCache( new RegisterCache( 100 ));
+    when( device.read( GPIO_DIR_MEM_ADD )).thenReturn( 0x0F ).thenReturn( 0x1F ).thenReturn( 0x1E );
+
+    assertTrue( mega.setGpioPinDirection( 5, true ));
+    assertFalse( mega.setGpioPinDirection( 1, false ));
+    // one read before the first write, then only the verifying reads
+    verify( device, times( 3 )).read( GPIO_DIR_MEM_ADD );
+    verify( device ).write( GPIO_DIR_MEM_ADD, (byte) 0x1F );
+    verify( device ).write( GPIO_DIR_MEM_ADD, (byte) 0x1E );
+  }
+
+  @Test
+  public void cachedAnalogWriteVerifiesOnBus()
+      throws IOException
+  {
+    mega.setRegisterCache( new RegisterCache( 100 ));
+
+    // the card reads back 0, whatever the cache holds
+    assertFalse( mega.writeAnalog( 3242 ));
+    verify( device, atLeastOnce() ).read( eq( (int) DAC_VAL_H_MEM_ADD ), any( byte[].class ), eq( 0 ), eq( 2 ));
+  }
+
+  @Test
+  public void cachedInputsExpire()
+      throws Exception
+  {
+    mega.setRegisterCache( new RegisterCache( 20 ));
+    when( device.read( OPTO_IN_MEM_ADD )).thenReturn( 0x0F );
+
+    assertTrue( mega.readOptoIn( 3 ));
+    assertTrue( mega.readOptoIn( 4 ));
+    verify( device, times( 1 )).read( OPTO_IN_MEM_ADD );
+
+    Thread.sleep( 30 );
+    assertTrue( mega.readOptoIn( 1 ));
+    verify( device, times( 2 )).read( OPTO_IN_MEM_ADD );
+  }
+
+  @Test
+  public void optoIrqFlagsInvalidateCachedInputs()
+      throws IOException
+  {
+    mega.setRegisterCache( new RegisterCache( 1000 ));
+    when( device.read( OPTO_IN_MEM_ADD )).thenReturn( 0x01 ).thenReturn( 0x03 );
+    when( device.read( OPTO_IT_FLAGS_MEM_ADD )).thenReturn( 0x02 );
+
+    assertEquals( 0x01, mega.readOptoIns() );
+    assertEquals( 0x02, mega.readOptoIrqFlags() );
+    assertEquals( 0x03, mega.readOptoIns() );
+    verify( device, times( 2 )).read( OPTO_IN_MEM_ADD );
+  }
+
+  @Test
+  public void configureIoIrqs()
+      throws IOException
+  {
+    mega.configureIoIrqs( new IrqState[] { DISABLED, RISING, FALLING, RISING, FALLING, BOTH } );
+    verify( device, never() ).read( anyInt() );
+    verify( device ).write( GPIO_EXT_IT_RISING_MEM_ADD,  (byte) 0b00101010 );
+    verify( device ).write( GPIO_EXT_IT_FALLING_MEM_ADD, (byte) 0b00110100 );
+    verify( gpio, times( 1 )).delay( 10 );
+  }
+
+  @Test
+  public void configureOptoIrqsPartial()
+      throws IOException
+  {
+    when( device.read( OPTO_IT_RISING_MEM_ADD  )).thenReturn( 0b10000001 );
+    when( device.read( OPTO_IT_FALLING_MEM_ADD )).thenReturn( 0b10000010 );
+    mega.setIrqWriteDelay( 0 );
+
+    // pin 1 falling, pin 2 disabled, pin 3 both and pins 4 to 8 left alone
+    mega.configureOptoIrqs( new IrqState[] { FALLING, DISABLED, BOTH } );
+    verify( device ).write( OPTO_IT_RISING_MEM_ADD,  (byte) 0b10000100 );
+    verify( device ).write( OPTO_IT_FALLING_MEM_ADD, (byte) 0b10000101 );
+    verify( gpio, never() ).delay( anyLong() );
+  }
+}
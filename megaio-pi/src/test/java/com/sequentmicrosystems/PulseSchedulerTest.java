@@ -0,0 +1,192 @@
+package com.sequentmicrosystems;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.sequentmicrosystems.PulseScheduler.Output.*;
+import static org.junit.Assert.*;
+
+/**
+ * Most of the tests drive the wheel a tick at a time, with ticks of a second so that the time taken by the test
+ * itself never moves an action into another tick.
+ */
+public class PulseSchedulerTest
+{
+  private MegaIOEmulator emulator;
+  private MegaIOImpl mega;
+  private PulseScheduler scheduler;
+
+  @Before
+  public void setup()
+  {
+    emulator = new MegaIOEmulator();
+    mega = new MegaIOImpl( emulator, new SleepingGpioWrapper() );
+    scheduler = new PulseScheduler( 1, TimeUnit.SECONDS, 16 );
+    scheduler.addCard( 0, mega );
+  }
+
+  @After
+  public void teardown()
+  {
+    scheduler.close();
+  }
+
+  private void advance( int ticks )
+  {
+    for (int i = 0; i < ticks; i++)
+    {
+      scheduler.advance();
+    }
+  }
+
+  @Test
+  public void actionsInOneTickAreOneWrite()
+  {
+    for (int relay = 1; relay <= 8; relay++)
+    {
+      scheduler.set( 0, RELAY, relay, true, 3, TimeUnit.SECONDS );
+    }
+    scheduler.set( 0, OC, 2, true, 3, TimeUnit.SECONDS );
+    advance( 3 );
+    assertEquals( 0, emulator.getRelays() );
+    assertEquals( 9, scheduler.getPending() );
+
+    long before = emulator.getTransactionCount();
+    advance( 2 );
+    assertEquals( 0xFF, emulator.getRelays() );
+    assertEquals( 0x02, emulator.getOCOutputs() );
+    assertEquals( 9, scheduler.getFired() );
+    assertEquals( 1, scheduler.getBatches() );
+    assertEquals( 0, scheduler.getPending() );
+    // a read and a write for each register, where a relay at a time would be twice that per relay
+    assertTrue( emulator.getTransactionCount() - before <= 6 );
+  }
+
+  @Test
+  public void pulse()
+  {
+    PulseScheduler.Action action = scheduler.pulse( 0, RELAY, 3, 2500, TimeUnit.MILLISECONDS );
+    advance( 1 );
+    int ticks = 0;
+    while (0 == emulator.getRelays() && ticks++ < 3)
+    {
+      advance( 1 );
+    }
+    assertEquals( 0x04, emulator.getRelays() );
+    assertFalse( action.isDone() );
+
+    // the width is rounded up to three ticks
+    advance( 2 );
+    assertEquals( 0x04, emulator.getRelays() );
+    advance( 1 );
+    assertEquals( 0, emulator.getRelays() );
+    assertTrue( action.isDone() );
+    assertEquals( 2, scheduler.getFired() );
+  }
+
+  @Test
+  public void cancel()
+  {
+    PulseScheduler.Action action = scheduler.set( 0, OC, 1, true, 5, TimeUnit.SECONDS );
+    advance( 2 );
+    assertEquals( 1, scheduler.getPending() );
+    action.cancel();
+    assertTrue( action.isCancelled() );
+    advance( 10 );
+    assertEquals( 0, scheduler.getPending() );
+    assertEquals( 0, scheduler.getFired() );
+    assertEquals( 0, emulator.getOCOutputs() );
+    assertFalse( action.isDone() );
+  }
+
+  @Test
+  public void repeat()
+  {
+    PulseScheduler.Action action = scheduler.repeat( 0, OC, 4, 1, 4, TimeUnit.SECONDS );
+    advance( 2 );
+    long started = scheduler.getFired();
+    assertEquals( 1, started );
+    assertEquals( 0x08, emulator.getOCOutputs() );
+    // five more periods, each a pulse on and off
+    advance( 20 );
+    assertEquals( 11, scheduler.getFired() );
+    assertEquals( 0x08, emulator.getOCOutputs() );
+
+    action.cancel();
+    advance( 10 );
+    assertEquals( 11, scheduler.getFired() );
+    assertFalse( action.isDone() );
+  }
+
+  @Test
+  public void actionsBeyondTheWheelWaitTheirTurn()
+  {
+    // a wheel of 16 buckets, and a delay of more than one turn of it
+    scheduler.set( 0, RELAY, 1, true, 20, TimeUnit.SECONDS );
+    advance( 18 );
+    assertEquals( 0, emulator.getRelays() );
+    advance( 4 );
+    assertEquals( 0x01, emulator.getRelays() );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void invalidChannel()
+  {
+    scheduler.set( 0, OC, 5, true, 0, TimeUnit.SECONDS );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void unknownCard()
+  {
+    scheduler.pulse( 1, RELAY, 1, 1, TimeUnit.SECONDS );
+  }
+
+  @Test
+  public void runsOnItsOwnThread()
+      throws Exception
+  {
+    scheduler = new PulseScheduler( 1, TimeUnit.MILLISECONDS, 64 );
+    scheduler.addCard( 0, mega );
+    scheduler.start();
+    PulseScheduler.Action action = scheduler.pulse( 0, RELAY, 8, 20, TimeUnit.MILLISECONDS );
+    long deadline = System.currentTimeMillis() + 2000;
+    while (!action.isDone() && System.currentTimeMillis() < deadline)
+    {
+      Thread.sleep( 5 );
+    }
+    assertTrue( action.isDone() );
+    assertEquals( 0, emulator.getRelays() );
+    assertEquals( 0, scheduler.getErrors() );
+    assertTrue( scheduler.getLag().getCount() >= 20 );
+  }
+
+  @Test
+  public void actionsScheduledBeforeStartKeepTheirTime()
+      throws Exception
+  {
+    scheduler = new PulseScheduler( 1, TimeUnit.MILLISECONDS, 64 );
+    scheduler.addCard( 0, mega );
+    PulseScheduler.Action early = scheduler.set( 0, RELAY, 1, true, 0, TimeUnit.MILLISECONDS );
+    PulseScheduler.Action late = scheduler.set( 0, RELAY, 2, true, 400, TimeUnit.MILLISECONDS );
+    Thread.sleep( 300 );
+
+    long started = System.nanoTime();
+    scheduler.start();
+    while (!early.isDone() && System.nanoTime() - started < TimeUnit.SECONDS.toNanos( 2 ))
+    {
+      Thread.sleep( 1 );
+    }
+    // the first is overdue, and made at once rather than a second after the start
+    assertTrue( early.isDone() );
+    assertTrue( System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos( 250 ));
+    assertFalse( late.isDone() );
+    while (!late.isDone() && System.nanoTime() - started < TimeUnit.SECONDS.toNanos( 2 ))
+    {
+      Thread.sleep( 1 );
+    }
+    assertEquals( 0x03, emulator.getRelays() );
+  }
+}
@@ -0,0 +1,187 @@
+package com.sequentmicrosystems;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class RegisterMirrorTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path file;
+  private MegaIOEmulator emulator;
+  private RegisterMirror mirror;
+
+  @Before
+  public void setup()
+      throws Exception
+  {
+    file = folder.getRoot().toPath().resolve( "megaio.mirror" );
+    emulator = new MegaIOEmulator( 0 );
+    mirror = new RegisterMirror( file, 1, TimeUnit.MILLISECONDS );
+  }
+
+  @After
+  public void teardown()
+  {
+    mirror.close();
+  }
+
+  private static RegisterMirrorReader.Snapshot await( RegisterMirrorReader reader, int cardNum, long after )
+      throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 2000;
+    while (System.currentTimeMillis() < deadline)
+    {
+      RegisterMirrorReader.Snapshot snapshot = reader.read( cardNum );
+      if (snapshot != null && snapshot.getSequence() > after)
+      {
+        return snapshot;
+      }
+      Thread.sleep( 1 );
+    }
+    fail( "card " + cardNum + " was not published" );
+    return null;
+  }
+
+  @Test
+  public void publishesCards()
+      throws Exception
+  {
+    MegaIOImpl card = new MegaIOImpl( emulator, new SleepingGpioWrapper() );
+    card.writeRelays( 0x81 );
+    emulator.setOptoInput( 2, true );
+    emulator.setAnalogInput( 5, 2048 );
+    mirror.addCard( 0, card );
+    RegisterMirrorReader reader = new RegisterMirrorReader( file );
+    assertNull( reader.read( 0 ));
+    mirror.start();
+
+    RegisterMirrorReader.Snapshot snapshot = await( reader, 0, 0 );
+    assertEquals( 0x81, snapshot.getRelays() );
+    assertTrue( snapshot.isRelayOn( 8 ));
+    assertEquals( 0x02, snapshot.getOptoIns() );
+    assertTrue( snapshot.readOptoIn( 2 ));
+    assertEquals( 2048, snapshot.getAnalog( 5 ));
+    assertEquals( 0, snapshot.getFailures() );
+    assertTrue( snapshot.getUpdated() > 0 );
+    assertNull( reader.read( 1 ));
+
+    // the mirror follows the card
+    emulator.setOptoInput( 2, false );
+    long deadline = System.currentTimeMillis() + 2000;
+    while (snapshot.getOptoIns() != 0 && System.currentTimeMillis() < deadline)
+    {
+      snapshot = await( reader, 0, snapshot.getSequence() );
+    }
+    assertEquals( 0, snapshot.getOptoIns() );
+
+    mirror.close();
+    assertNull( reader.read( 0 ));
+  }
+
+  @Test
+  public void failedPollsAreCounted()
+      throws Exception
+  {
+    mirror.addCard( 0, new MegaIOImpl( emulator, new SleepingGpioWrapper() ));
+    mirror.start();
+    RegisterMirrorReader reader = new RegisterMirrorReader( file );
+    RegisterMirrorReader.Snapshot snapshot = await( reader, 0, 0 );
+    long updated = snapshot.getUpdated();
+
+    emulator.setNackRate( 1 );
+    long deadline = System.currentTimeMillis() + 2000;
+    while (snapshot.getFailures() == 0 && System.currentTimeMillis() < deadline)
+    {
+      snapshot = await( reader, 0, snapshot.getSequence() );
+    }
+    assertTrue( snapshot.getFailures() > 0 );
+    assertEquals( updated, snapshot.getUpdated() );
+    assertTrue( mirror.getErrorCount() > 0 );
+    assertNotNull( mirror.getLastError() );
+  }
+
+  @Test
+  public void snapshotsAreConsistent()
+      throws Exception
+  {
+    RegisterMirrorReader reader = new RegisterMirrorReader( file );
+    AtomicReference<String> torn = new AtomicReference<>();
+    Thread[] readers = new Thread[3];
+    long until = System.currentTimeMillis() + 300;
+    for (int r = 0; r < readers.length; r++)
+    {
+      readers[r] = new Thread( () ->
+      {
+        RegisterMirrorReader.Snapshot snapshot = new RegisterMirrorReader.Snapshot();
+        while (System.currentTimeMillis() < until)
+        {
+          if (reader.read( 2, snapshot ))
+          {
+            int[] values = snapshot.values;
+            for (int value : values)
+            {
+              if (value != values[0])
+              {
+                torn.compareAndSet( null, Arrays.toString( values ));
+              }
+            }
+          }
+        }
+      } );
+      readers[r].start();
+    }
+
+    // every value of each publication is the same, so a torn copy shows as a mixture
+    int[] values = new int[RegisterMirror.VALUE_COUNT];
+    for (int i = 0; System.currentTimeMillis() < until; i++)
+    {
+      Arrays.fill( values, i );
+      mirror.publish( 2, values );
+    }
+    for (Thread thread : readers)
+    {
+      thread.join();
+    }
+    assertNull( torn.get() );
+    assertEquals( 0, reader.getSequence( 2 ) & 1 );
+  }
+
+  @Test
+  public void reopeningContinuesTheSequence()
+      throws Exception
+  {
+    mirror.publish( 3, new int[RegisterMirror.VALUE_COUNT] );
+    RegisterMirrorReader reader = new RegisterMirrorReader( file );
+    long sequence = reader.read( 3 ).getSequence();
+    mirror.close();
+
+    // readers holding the file see the new publisher
+    mirror = new RegisterMirror( file, 1, TimeUnit.MILLISECONDS );
+    assertNull( reader.read( 3 ));
+    mirror.publish( 3, new int[RegisterMirror.VALUE_COUNT] );
+    assertTrue( reader.read( 3 ).getSequence() > sequence );
+  }
+
+  @Test( expected = IOException.class )
+  public void rejectsOtherFiles()
+      throws Exception
+  {
+    Path other = folder.newFile().toPath();
+    Files.write( other, new byte[RegisterMirror.FILE_SIZE] );
+    new RegisterMirrorReader( other );
+  }
+}
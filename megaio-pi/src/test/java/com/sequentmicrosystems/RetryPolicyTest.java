@@ -0,0 +1,91 @@
+package com.sequentmicrosystems;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static com.sequentmicrosystems.Constants.*;
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest
+{
+  private MegaIOEmulator emulator;
+  private MegaIOImpl mega;
+
+  @Before
+  public void setup()
+  {
+    emulator = new MegaIOEmulator();
+    mega = new MegaIOImpl( emulator, new SleepingGpioWrapper() );
+  }
+
+  @Test
+  public void fixed()
+  {
+    RetryPolicy policy = RetryPolicy.fixed( 3, 5 );
+    assertEquals( 5, policy.nextDelay( 1, 0 ));
+    assertEquals( 5, policy.nextDelay( 2, 0 ));
+    assertEquals( RetryPolicy.GIVE_UP, policy.nextDelay( 3, 0 ));
+    assertEquals( RetryPolicy.GIVE_UP, RetryPolicy.none().nextDelay( 1, 0 ));
+  }
+
+  @Test
+  public void exponential()
+  {
+    RetryPolicy policy = RetryPolicy.exponential( 6, 1, 10, 0 );
+    assertEquals( 1, policy.nextDelay( 1, 0 ));
+    assertEquals( 2, policy.nextDelay( 2, 0 ));
+    assertEquals( 4, policy.nextDelay( 3, 0 ));
+    assertEquals( 8, policy.nextDelay( 4, 0 ));
+    assertEquals( 10, policy.nextDelay( 5, 0 ));
+    assertEquals( RetryPolicy.GIVE_UP, policy.nextDelay( 6, 0 ));
+
+    // jitter only ever shortens the delay
+    RetryPolicy jittered = RetryPolicy.exponential( 100, 100, 100, 0.5 );
+    for (int i = 0; i < 100; i++)
+    {
+      long delay = jittered.nextDelay( 1, 0 );
+      assertTrue( delay >= 50 && delay <= 100 );
+    }
+  }
+
+  @Test
+  public void deadline()
+  {
+    RetryPolicy policy = RetryPolicy.fixed( 100, 10 ).withDeadline( 50, TimeUnit.MILLISECONDS );
+    assertEquals( 10, policy.nextDelay( 1, TimeUnit.MILLISECONDS.toNanos( 40 )));
+    assertEquals( RetryPolicy.GIVE_UP, policy.nextDelay( 2, TimeUnit.MILLISECONDS.toNanos( 41 )));
+  }
+
+  @Test
+  public void cardFollowsPolicy()
+      throws IOException
+  {
+    emulator.setStuckBits( OC_OUT_VAL_MEM_ADD, 0, 0x01 );
+    mega.setRetryPolicy( RetryPolicy.fixed( 3, 0 ));
+    try
+    {
+      mega.setOCPin( 1, true );
+      fail( "Should have run out of attempts" );
+    }
+    catch( IOException expected )
+    {
+    }
+    // a command and a read for each attempt
+    assertEquals( 6, emulator.getTransactionCount() );
+
+    long before = emulator.getTransactionCount();
+    emulator.setStuckBits( DAC_VAL_L_MEM_ADD, 0, 0x01 );
+    mega.setRetryPolicy( RetryPolicy.none() );
+    assertFalse( mega.writeAnalog( 1 ));
+    assertEquals( 2, emulator.getTransactionCount() - before );
+
+    // a batch retries under the same policy
+    before = emulator.getTransactionCount();
+    mega.setRetryPolicy( RetryPolicy.fixed( 2, 0 ));
+    assertFalse( mega.batch().setOCPin( 1, true ).execute().isVerified() );
+    assertEquals( 4, emulator.getTransactionCount() - before );
+  }
+}
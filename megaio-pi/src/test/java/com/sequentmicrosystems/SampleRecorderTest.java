@@ -0,0 +1,225 @@
+package com.sequentmicrosystems;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.sequentmicrosystems.SampleRecorder.Series.*;
+import static org.junit.Assert.*;
+
+public class SampleRecorderTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path directory;
+
+  @Before
+  public void setup()
+  {
+    directory = folder.getRoot().toPath().resolve( "log" );
+  }
+
+  private List<SampleReader.Sample> readAll()
+      throws Exception
+  {
+    List<SampleReader.Sample> samples = new ArrayList<>();
+    try (SampleReader reader = new SampleReader( directory ))
+    {
+      for (SampleReader.Sample sample : reader)
+      {
+        samples.add( sample );
+      }
+    }
+    return samples;
+  }
+
+  @Test
+  public void roundTrip()
+      throws Exception
+  {
+    try (SampleRecorder recorder = new SampleRecorder( directory, 64 * 1024 ))
+    {
+      recorder.record( ANALOG, 3, 1_000_000, 4095 );
+      recorder.record( OPTO, 0, 1_000_000, 0xA5 );
+      recorder.record( ANALOG, 3, 1_000_250, 17 );
+      recorder.record( RELAYS, 0, 999_000, 0xFF );
+      recorder.record( GPIO, 0, 2_000_000, 0x3F );
+    }
+
+    List<SampleReader.Sample> samples = readAll();
+    assertEquals( 5, samples.size() );
+    assertEquals( "1000000 ANALOG 3 4095", samples.get( 0 ).toString() );
+    assertEquals( "1000000 OPTO 165", samples.get( 1 ).toString() );
+    assertEquals( "1000250 ANALOG 3 17", samples.get( 2 ).toString() );
+    // a time earlier than the last is kept as it was recorded
+    assertEquals( "999000 RELAYS 255", samples.get( 3 ).toString() );
+    assertEquals( "2000000 GPIO 63", samples.get( 4 ).toString() );
+  }
+
+  @Test
+  public void samplesACardCompactly()
+      throws Exception
+  {
+    MegaIOEmulator emulator = new MegaIOEmulator();
+    MegaIOImpl mega = new MegaIOImpl( emulator, new SleepingGpioWrapper() );
+    emulator.setAnalogInput( 2, 1234 );
+    emulator.setOptoInput( 1, true );
+    mega.triggerRelay( 5, true );
+
+    int sweeps = 1000;
+    try (SampleRecorder recorder = new SampleRecorder( directory, 64 * 1024 ))
+    {
+      for (int i = 0; i < sweeps; i++)
+      {
+        recorder.sample( mega );
+      }
+      assertEquals( 11 * sweeps, recorder.getRecords() );
+      // unchanged values cost a tag, a time delta and a value delta of a byte each, apart from the first
+      assertTrue( recorder.getBytes() < 4 * recorder.getRecords() );
+    }
+
+    try (SampleReader reader = new SampleReader( directory ))
+    {
+      int records = 0;
+      long lastTime = 0;
+      while (reader.next())
+      {
+        records++;
+        assertTrue( reader.time() >= lastTime );
+        lastTime = reader.time();
+        if (ANALOG == reader.series() && 2 == reader.channel())
+        {
+          assertEquals( 1234, reader.value() );
+        }
+        else if (RELAYS == reader.series())
+        {
+          assertEquals( 0x10, reader.value() );
+        }
+        else if (OPTO == reader.series())
+        {
+          assertEquals( 0x01, reader.value() );
+        }
+      }
+      assertEquals( 11 * sweeps, records );
+    }
+  }
+
+  @Test
+  public void rollsOverAndDeletesOldSegments()
+      throws Exception
+  {
+    int records = 10_000;
+    try (SampleRecorder recorder = new SampleRecorder( directory, SampleRecorder.MIN_SEGMENT_SIZE ))
+    {
+      recorder.setMaxSegments( 3 );
+      for (int i = 0; i < records; i++)
+      {
+        recorder.record( ANALOG, 1, 1000L * i, i % 4096 );
+      }
+      assertEquals( 3, recorder.getSegments().size() );
+    }
+    assertEquals( 3, SampleRecorder.list( directory ).size() );
+
+    // the segments kept decode on their own, and hold the newest records
+    List<SampleReader.Sample> samples = readAll();
+    assertTrue( samples.size() > 1000 && samples.size() < records );
+    int first = records - samples.size();
+    for (int i = 0; i < samples.size(); i++)
+    {
+      assertEquals( 1000L * (first + i), samples.get( i ).getTime() );
+      assertEquals( (first + i) % 4096, samples.get( i ).getValue() );
+    }
+  }
+
+  private long mappedSegments()
+      throws Exception
+  {
+    return Files.readAllLines( Paths.get( "/proc/self/maps" )).stream()
+        .filter( line -> line.contains( directory.toString() ))
+        .count();
+  }
+
+  @Test
+  public void finishedSegmentsAreUnmapped()
+      throws Exception
+  {
+    Assume.assumeTrue( Files.isReadable( Paths.get( "/proc/self/maps" )));
+    SampleRecorder recorder = new SampleRecorder( directory, SampleRecorder.MIN_SEGMENT_SIZE );
+    for (int i = 0; i < 10_000; i++)
+    {
+      recorder.record( ANALOG, 1, 1000L * i, i % 4096 );
+    }
+    assertTrue( recorder.getSegments().size() > 3 );
+    assertEquals( 1, mappedSegments() );
+    recorder.close();
+    assertEquals( 0, mappedSegments() );
+  }
+
+  @Test
+  public void newRecorderStartsANewSegment()
+      throws Exception
+  {
+    try (SampleRecorder recorder = new SampleRecorder( directory, SampleRecorder.MIN_SEGMENT_SIZE ))
+    {
+      recorder.record( RELAYS, 0, 1, 1 );
+    }
+    try (SampleRecorder recorder = new SampleRecorder( directory, SampleRecorder.MIN_SEGMENT_SIZE ))
+    {
+      recorder.record( RELAYS, 0, 2, 2 );
+    }
+    List<SampleReader.Sample> samples = readAll();
+    assertEquals( 2, samples.size() );
+    assertEquals( 1, samples.get( 0 ).getValue() );
+    assertEquals( 2, samples.get( 1 ).getValue() );
+  }
+
+  @Test
+  public void uncommittedAndTornWritesAreIgnored()
+      throws Exception
+  {
+    SampleRecorder recorder = new SampleRecorder( directory, SampleRecorder.MIN_SEGMENT_SIZE );
+    recorder.record( ANALOG, 1, 10, 100 );
+    recorder.record( ANALOG, 1, 20, 200 );
+    // the recorder is never closed, as if the process had died
+    Path segment = recorder.getSegments().get( 0 );
+
+    try (RandomAccessFile file = new RandomAccessFile( segment.toFile(), "rw" ))
+    {
+      // half a record past the committed end
+      file.seek( SampleRecorder.HEADER_SIZE + 100 );
+      file.write( new byte[] { 0x11, (byte) 0x80 } );
+    }
+    assertEquals( 2, readAll().size() );
+
+    try (RandomAccessFile file = new RandomAccessFile( segment.toFile(), "rw" ))
+    {
+      // a torn write of the newest commit slot; the older one still holds the first record
+      file.seek( SampleRecorder.SLOT_OFFSET + SampleRecorder.SLOT_SIZE + 8 );
+      file.writeInt( 0x7FFF );
+    }
+    List<SampleReader.Sample> samples = readAll();
+    assertEquals( 1, samples.size() );
+    assertEquals( 100, samples.get( 0 ).getValue() );
+    recorder.close();
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void invalidChannel()
+      throws Exception
+  {
+    try (SampleRecorder recorder = new SampleRecorder( directory, SampleRecorder.MIN_SEGMENT_SIZE ))
+    {
+      recorder.record( OPTO, 1, 0 );
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package com.sequentmicrosystems;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static com.sequentmicrosystems.Constants.*;
+import static org.junit.Assert.*;
+
+public class SignalConditionerTest
+{
+  private final SignalConditioner conditioner = new SignalConditioner();
+
+  @Test
+  public void oversampling()
+  {
+    conditioner.setOversampling( 1, 4 );
+    assertFalse( conditioner.accept( 1, 100 ));
+    assertFalse( conditioner.accept( 1, 101 ));
+    assertFalse( conditioner.accept( 1, 102 ));
+    assertTrue( conditioner.accept( 1, 103 ));
+    // 101.5, rounded
+    assertEquals( 102, conditioner.getFiltered( 1 ), 0 );
+    assertEquals( 1, conditioner.getUpdates( 1 ));
+  }
+
+  @Test
+  public void medianRemovesOutliers()
+  {
+    conditioner.setMedian( 2, 3 );
+    conditioner.accept( 2, 500 );
+    conditioner.accept( 2, 510 );
+    conditioner.accept( 2, 4000 );
+    assertEquals( 510, conditioner.getFiltered( 2 ), 0 );
+    conditioner.accept( 2, 505 );
+    assertEquals( 510, conditioner.getFiltered( 2 ), 0 );
+    conditioner.accept( 2, 495 );
+    assertEquals( 505, conditioner.getFiltered( 2 ), 0 );
+  }
+
+  @Test
+  public void spikesAreRejectedUnlessConfirmed()
+  {
+    conditioner.setSpikeRejection( 3 );
+    assertTrue( conditioner.accept( 3, 1000 ));
+    assertFalse( conditioner.accept( 3, 1000 + ANALOG_ERR_THRESHOLD + 1 ));
+    assertTrue( conditioner.accept( 3, 1000 + ANALOG_ERR_THRESHOLD ));
+    assertEquals( 1, conditioner.getSpikes( 3 ));
+
+    // a step that persists is accepted on its third reading
+    assertFalse( conditioner.accept( 3, 3000 ));
+    assertFalse( conditioner.accept( 3, 3000 ));
+    assertTrue( conditioner.accept( 3, 3000 ));
+    assertEquals( 3000, conditioner.getFiltered( 3 ), 0 );
+    assertTrue( conditioner.accept( 3, 3010 ));
+  }
+
+  @Test
+  public void smoothing()
+  {
+    conditioner.setSmoothing( 4, 0.25 );
+    conditioner.accept( 4, 1000 );
+    assertEquals( 1000, conditioner.getFiltered( 4 ), 0 );
+    conditioner.accept( 4, 2000 );
+    assertEquals( 1250, conditioner.getFiltered( 4 ), 1e-9 );
+    conditioner.accept( 4, 2000 );
+    assertEquals( 1437.5, conditioner.getFiltered( 4 ), 1e-9 );
+  }
+
+  @Test
+  public void calibration()
+  {
+    // a 4-20 mA loop read across the full scale
+    conditioner.setCalibration( 5, 4.0, 20.0 );
+    conditioner.accept( 5, ANALOG_VAL_MAX );
+    assertEquals( 20.0, conditioner.getValue( 5 ), 1e-9 );
+    conditioner.accept( 5, 0 );
+    assertEquals( 4.0, conditioner.getValue( 5 ), 1e-9 );
+
+    // filtered values between two counts are interpolated from the table
+    conditioner.setCalibration( 6, counts -> counts * counts );
+    conditioner.setSmoothing( 6, 0.5 );
+    conditioner.accept( 6, 10 );
+    conditioner.accept( 6, 11 );
+    assertEquals( 110.5, conditioner.getValue( 6 ), 1e-9 );
+    assertEquals( 10.5, conditioner.getFiltered( 6 ), 1e-9 );
+
+    // uncalibrated channels read in counts
+    conditioner.accept( 7, 1234 );
+    assertEquals( 1234, conditioner.getValue( 7 ), 0 );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void evenMedianWindow()
+  {
+    conditioner.setMedian( 1, 4 );
+  }
+
+  @Test
+  public void doesNotAllocate()
+  {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue( threads instanceof com.sun.management.ThreadMXBean );
+    com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+    Assume.assumeTrue( allocation.isThreadAllocatedMemorySupported() );
+
+    for (int channel = 1; channel <= ADC_CH_NR_MAX; channel++)
+    {
+      conditioner.setOversampling( channel, 2 )
+          .setSpikeRejection( channel )
+          .setMedian( channel, 5 )
+          .setSmoothing( channel, 0.1 )
+          .setCalibration( channel, 0, 10 );
+    }
+    int[] raw = new int[ADC_CH_NR_MAX];
+    double sum = run( raw, 100_000 );
+
+    long thread = Thread.currentThread().getId();
+    long before = allocation.getThreadAllocatedBytes( thread );
+    sum += run( raw, 100_000 );
+    long allocated = allocation.getThreadAllocatedBytes( thread ) - before;
+    assertTrue( sum > 0 );
+    // allow for the odd allocation by the JIT or the bean itself, far below one per reading
+    assertTrue( "Allocated " + allocated + " bytes", allocated < 10_000 );
+  }
+
+  private double run( int[] raw, int sweeps )
+  {
+    double sum = 0;
+    for (int s = 0; s < sweeps; s++)
+    {
+      for (int i = 0; i < raw.length; i++)
+      {
+        raw[i] = 2000 + ((s * 31 + i * 7) % 64) + (0 == s % 97 ? 1000 : 0);
+      }
+      conditioner.acceptAll( 1, raw, raw.length );
+      sum += conditioner.getValue( 1 + s % ADC_CH_NR_MAX );
+    }
+    return sum;
+  }
+}
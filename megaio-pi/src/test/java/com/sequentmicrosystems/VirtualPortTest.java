@@ -0,0 +1,184 @@
+package com.sequentmicrosystems;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.sequentmicrosystems.ChangeEvent.Register.*;
+import static com.sequentmicrosystems.Constants.*;
+import static org.junit.Assert.*;
+
+public class VirtualPortTest
+{
+  private final MegaIOEmulator[] emulators = new MegaIOEmulator[CARD_NR_MAX];
+  private final MegaIOImpl[] cards = new MegaIOImpl[CARD_NR_MAX];
+  private ExecutorService executor;
+
+  @Before
+  public void setup()
+  {
+    for (int card = 0; card < CARD_NR_MAX; card++)
+    {
+      emulators[card] = new MegaIOEmulator( card );
+      cards[card] = new MegaIOImpl( emulators[card], new SleepingGpioWrapper() );
+    }
+    executor = AsyncMegaIO.boundedExecutor( CARD_NR_MAX - 1, 16 );
+  }
+
+  @After
+  public void teardown()
+  {
+    executor.shutdownNow();
+  }
+
+  private VirtualPort plant( VirtualPort port, ChangeEvent.Register register )
+  {
+    for (MegaIOImpl card : cards)
+    {
+      port.addAll( card, register );
+    }
+    return port;
+  }
+
+  private long transactions()
+  {
+    long total = 0;
+    for (MegaIOEmulator emulator : emulators)
+    {
+      total += emulator.getTransactionCount();
+    }
+    return total;
+  }
+
+  @Test
+  public void readsThePlant()
+      throws Exception
+  {
+    VirtualPort optos = plant( new VirtualPort( executor ), OPTO );
+    assertEquals( 32, optos.size() );
+    emulators[0].setOptoInput( 1, true );
+    emulators[1].setOptoInput( 8, true );
+    emulators[3].setOptoInput( 2, true );
+
+    long before = transactions();
+    assertEquals( 0x0200_8001L, optos.read() );
+    // one read for each card
+    assertEquals( CARD_NR_MAX, transactions() - before );
+
+    BitSet bits = new BitSet();
+    bits.set( 40 );
+    optos.read( bits );
+    assertEquals( "{0, 15, 25}", bits.toString() );
+  }
+
+  @Test
+  public void writesAsMasks()
+      throws Exception
+  {
+    VirtualPort relays = plant( new VirtualPort( executor ), RELAYS );
+    assertTrue( relays.write( 0x8100_00FFL ));
+    assertEquals( 0xFF, emulators[0].getRelays() );
+    assertEquals( 0, emulators[1].getRelays() );
+    assertEquals( 0x81, emulators[3].getRelays() );
+    assertEquals( 0x8100_00FFL, relays.read() );
+
+    // only the channels named change, and a card with none of them is left alone
+    long before = emulators[1].getTransactionCount();
+    assertTrue( relays.write( 1L << 17, 0x0000_000FL ));
+    assertEquals( 0xF0, emulators[0].getRelays() );
+    assertEquals( 0x02, emulators[2].getRelays() );
+    assertEquals( before, emulators[1].getTransactionCount() );
+
+    BitSet set = new BitSet();
+    set.set( 31 );
+    BitSet clear = new BitSet();
+    clear.set( 24 );
+    assertTrue( relays.write( set, clear ));
+    assertEquals( 0x80, emulators[3].getRelays() );
+  }
+
+  @Test
+  public void mixesRegistersOnACard()
+      throws Exception
+  {
+    VirtualPort port = new VirtualPort()
+        .add( cards[2], RELAYS, 3 )
+        .add( cards[2], OC, 4 )
+        .add( cards[2], OPTO, 5 )
+        .add( cards[0], OC, 1 );
+    emulators[2].setOptoInput( 5, true );
+    assertTrue( port.write( 0b1011, 0 ));
+    assertEquals( 0x04, emulators[2].getRelays() );
+    assertEquals( 0x08, emulators[2].getOCOutputs() );
+    assertEquals( 0x01, emulators[0].getOCOutputs() );
+    assertEquals( 0b1111, port.read() );
+
+    // the whole port is written, leaving the input alone
+    assertTrue( port.write( 0b0100L ));
+    assertEquals( 0, emulators[2].getRelays() );
+    assertEquals( 0, emulators[2].getOCOutputs() );
+    assertEquals( 0, emulators[0].getOCOutputs() );
+    assertEquals( 0b0100, port.read() );
+    assertTrue( port.write( -1L ));
+    assertEquals( 0b1111, port.read() );
+
+    try
+    {
+      port.write( 0b0100, 0 );
+      fail( "an input was written" );
+    }
+    catch( IllegalArgumentException e )
+    {
+      assertTrue( e.getMessage().contains( "OPTO 5" ));
+    }
+    try
+    {
+      port.add( cards[2], RELAYS, 3 );
+      fail( "a relay was added twice" );
+    }
+    catch( IllegalArgumentException e )
+    {
+      assertTrue( e.getMessage().contains( "logical channel 0" ));
+    }
+  }
+
+  @Test
+  public void cardsAreReadTogether()
+      throws Exception
+  {
+    for (MegaIOEmulator emulator : emulators)
+    {
+      emulator.setLatency( TimeUnit.MILLISECONDS.toNanos( 20 ), 0 );
+    }
+    VirtualPort optos = plant( new VirtualPort( executor ), OPTO );
+    optos.read();
+    long start = System.nanoTime();
+    optos.read();
+    // one card after another would take 80 ms
+    assertTrue( System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos( 60 ));
+  }
+
+  @Test
+  public void failingCardDoesNotStopTheOthers()
+      throws Exception
+  {
+    VirtualPort relays = plant( new VirtualPort( executor ), RELAYS );
+    emulators[1].setNackRate( 1 );
+    try
+    {
+      relays.write( -1L );
+      fail( "a failing card was written" );
+    }
+    catch( IOException ioex )
+    {
+      assertTrue( ioex.getMessage().contains( "0x32" ));
+    }
+    assertEquals( 0xFF, emulators[0].getRelays() );
+    assertEquals( 0xFF, emulators[3].getRelays() );
+  }
+}
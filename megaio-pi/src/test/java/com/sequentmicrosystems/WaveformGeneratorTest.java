@@ -0,0 +1,129 @@
+package com.sequentmicrosystems;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class WaveformGeneratorTest
+{
+  private MegaIOEmulator emulator;
+  private MegaIOImpl mega;
+  private WaveformGenerator generator;
+
+  @Before
+  public void setup()
+  {
+    emulator = new MegaIOEmulator();
+    mega = new MegaIOImpl( emulator, new SleepingGpioWrapper() );
+  }
+
+  @After
+  public void teardown()
+  {
+    if (null != generator)
+    {
+      generator.close();
+    }
+  }
+
+  @Test
+  public void tables()
+  {
+    Waveform ramp = Waveform.ramp( 100, 400, 4 );
+    assertEquals( 4, ramp.size() );
+    assertEquals( 100, ramp.get( 0 ));
+    assertEquals( 200, ramp.get( 1 ));
+    assertEquals( 400, ramp.get( 3 ));
+
+    Waveform triangle = Waveform.triangle( 0, 1000, 4 );
+    assertArrayEquals( new int[] { 0, 500, 1000, 500 }, values( triangle ));
+
+    Waveform sine = Waveform.sine( 1000, 3000, 4 );
+    assertArrayEquals( new int[] { 2000, 3000, 2000, 1000 }, values( sine ));
+
+    assertArrayEquals( new int[] { 7, 4095, 0 }, values( Waveform.of( 7, 4095, 0 )));
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void valueOutOfRange()
+  {
+    Waveform.sine( 0, 4096, 16 );
+  }
+
+  private static int[] values( Waveform waveform )
+  {
+    int[] values = new int[waveform.size()];
+    for (int i = 0; i < values.length; i++)
+    {
+      values[i] = waveform.get( i );
+    }
+    return values;
+  }
+
+  private void playToTheEnd()
+      throws InterruptedException
+  {
+    generator.setRepeat( false ).start();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (generator.isRunning() && System.currentTimeMillis() < deadline)
+    {
+      Thread.sleep( 5 );
+    }
+    assertFalse( generator.isRunning() );
+  }
+
+  /**
+   * @return the timings of the samples written, checking that each is due a whole number of periods after the
+   *         first and written no earlier than it was due
+   */
+  private long[] checkedDeadlines( long periodNanos )
+  {
+    long[] intended = new long[256];
+    long[] actual = new long[256];
+    int count = generator.copyTimings( intended, actual );
+    assertEquals( generator.getSamplesWritten(), count );
+    for (int i = 0; i < count; i++)
+    {
+      assertEquals( 0, (intended[i] - intended[0]) % periodNanos );
+      assertTrue( actual[i] >= intended[i] );
+    }
+    assertEquals( count, generator.getLateness().getCount() );
+    return Arrays.copyOf( intended, count );
+  }
+
+  @Test
+  public void playsOnceOnSchedule()
+      throws Exception
+  {
+    generator = new WaveformGenerator( mega, Waveform.ramp( 0, 99, 100 ), 1000, 128 );
+    playToTheEnd();
+    // every sample is written or skipped, and each written is one write, with no read back
+    assertEquals( 100, generator.getSamplesWritten() + generator.getSkippedSamples() );
+    assertEquals( generator.getSamplesWritten(), emulator.getTransactionCount() );
+    // deadlines are multiples of the period from the start, however late the writes were
+    checkedDeadlines( 1_000_000 );
+  }
+
+  @Test
+  public void skipsWhenTheBusIsTooSlow()
+      throws Exception
+  {
+    // each write takes 2 ms, so at 1000 samples a second the next sample is always due before a write is done
+    emulator.setLatency( 2_000_000, 0 );
+    generator = new WaveformGenerator( mega, Waveform.sine( 0, 4000, 50 ), 1000, 64 );
+    playToTheEnd();
+    assertEquals( 50, generator.getSamplesWritten() + generator.getSkippedSamples() );
+    assertEquals( generator.getSamplesWritten(), emulator.getTransactionCount() );
+    assertTrue( generator.getSkippedSamples() > 0 );
+    long[] intended = checkedDeadlines( 1_000_000 );
+    for (int i = 1; i < intended.length; i++)
+    {
+      // the sample after each one written was skipped
+      assertTrue( intended[i] - intended[i - 1] >= 2_000_000 );
+    }
+  }
+}